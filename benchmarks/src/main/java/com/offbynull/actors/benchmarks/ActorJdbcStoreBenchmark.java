@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.benchmarks;
+
+import com.offbynull.actors.gateways.actor.SerializableActor;
+import com.offbynull.actors.gateways.actor.SerializableActorHelper;
+import com.offbynull.actors.gateways.actor.Store.StoredWork;
+import com.offbynull.actors.gateways.actor.stores.jdbc.JdbcStore;
+import com.offbynull.actors.shuttle.Message;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link JdbcStore}'s handling of actors and messages. {@code actorCount} actors are stored up front, each with
+ * {@code queueDepth} queued messages (so {@code actorCount * queueDepth} rows in the message queue). Checkpoints never come due.
+ * @author Kasra Faghihi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ActorJdbcStoreBenchmark {
+    
+    private static final String PREFIX = "actor";
+    private static final int PREFILL_BATCH_SIZE = 1000;
+    
+    // CHECKSTYLE:OFF -- JMH needs @Param fields to be public
+    /**
+     * Number of actors.
+     */
+    @Param({"1000", "100000"})
+    public int actorCount;
+    
+    /**
+     * Number of messages queued per actor.
+     */
+    @Param({"1", "10"})
+    public int queueDepth;
+    
+    /**
+     * Number of buckets for the partitioned schema, or {@code 0} for the unpartitioned schema.
+     */
+    @Param({"0", "8"})
+    public int bucketCount;
+    
+    /**
+     * Number of actors claimed per round-trip, or {@code 0} to not prefetch.
+     */
+    @Param({"0", "32"})
+    public int prefetchCount;
+    // CHECKSTYLE:ON
+    
+    private EmbeddedDerby derby;
+    private JdbcStore store;
+    private SerializableActor[] actors; // checkpoint not updated, so storing these leaves the checkpoint as-is
+
+    /**
+     * Creates the database and fills it with actors and queued messages.
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+        derby = EmbeddedDerby.create();
+        derby.createActorTables(bucketCount);
+        store = JdbcStore.create(PREFIX, derby.getDataSource(), bucketCount, prefetchCount, Duration.ofMinutes(1L));
+        
+        actors = new SerializableActor[actorCount];
+        for (int i = 0; i < actorCount; i++) {
+            SerializableActor actor = SerializableActorHelper.createFake(PREFIX + ":" + i, "checkpoint", Long.MAX_VALUE);
+            store.store(actor);
+            actor.setCheckpointUpdated(false);
+            actors[i] = actor;
+        }
+        
+        List<Message> batch = new ArrayList<>(PREFILL_BATCH_SIZE);
+        for (int depth = 0; depth < queueDepth; depth++) {
+            for (int i = 0; i < actorCount; i++) {
+                batch.add(new Message("client", PREFIX + ":" + i, "payload"));
+                if (batch.size() == PREFILL_BATCH_SIZE) {
+                    store.store(batch);
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            store.store(batch);
+        }
+    }
+    
+    /**
+     * Closes the store and drops the database.
+     * @throws IOException on failure to close
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        derby.close();
+    }
+
+    /**
+     * Stores a message for a random actor. Queues grow as this runs.
+     */
+    @Benchmark
+    public void storeMessage() {
+        int idx = ThreadLocalRandom.current().nextInt(actorCount);
+        store.store(new Message("client", PREFIX + ":" + idx, "payload"));
+    }
+    
+    /**
+     * Stores a random actor without updating its checkpoint.
+     */
+    @Benchmark
+    public void storeActor() {
+        int idx = ThreadLocalRandom.current().nextInt(actorCount);
+        store.store(actors[idx]);
+    }
+    
+    /**
+     * Takes work, stores the actor back, and queues a replacement message for it -- a full processing cycle that keeps queue depths the
+     * same. Requires at most {@code actorCount} threads, otherwise threads end up waiting for work.
+     * @return work that was taken
+     */
+    @Benchmark
+    public StoredWork takeAndStore() {
+        StoredWork work = store.take();
+        SerializableActor actor = work.getActor();
+        store.store(actor);
+        store.store(new Message("client", actor.getSelf().toString(), "payload"));
+        return work;
+    }
+}
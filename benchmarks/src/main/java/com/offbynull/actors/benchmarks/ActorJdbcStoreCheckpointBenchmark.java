@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.benchmarks;
+
+import com.offbynull.actors.gateways.actor.SerializableActor;
+import com.offbynull.actors.gateways.actor.SerializableActorHelper;
+import com.offbynull.actors.gateways.actor.Store.StoredWork;
+import com.offbynull.actors.gateways.actor.stores.jdbc.JdbcStore;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link JdbcStore}'s recovery of actors from checkpoints. {@code actorCount} actors are stored up front, each with a checkpoint
+ * that's due right away and nothing queued, so every take recovers an actor from its checkpoint.
+ * @author Kasra Faghihi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ActorJdbcStoreCheckpointBenchmark {
+    
+    private static final String PREFIX = "actor";
+    
+    // CHECKSTYLE:OFF -- JMH needs @Param fields to be public
+    /**
+     * Number of actors.
+     */
+    @Param({"1000", "100000"})
+    public int actorCount;
+    // CHECKSTYLE:ON
+    
+    private EmbeddedDerby derby;
+    private JdbcStore store;
+
+    /**
+     * Creates the database and fills it with actors.
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+        derby = EmbeddedDerby.create();
+        derby.createActorTables(0);
+        store = JdbcStore.create(PREFIX, derby.getDataSource());
+        
+        for (int i = 0; i < actorCount; i++) {
+            SerializableActor actor = SerializableActorHelper.createFake(PREFIX + ":" + i, "checkpoint", 0L);
+            store.store(actor);
+        }
+    }
+    
+    /**
+     * Closes the store and drops the database.
+     * @throws IOException on failure to close
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        derby.close();
+    }
+
+    /**
+     * Recovers an actor from its checkpoint and stores it back, which makes its checkpoint come due again.
+     * @return work that was taken
+     */
+    @Benchmark
+    public StoredWork recoverAndStore() {
+        StoredWork work = store.take();
+        store.store(work.getActor());
+        return work;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.benchmarks;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+import org.apache.commons.lang3.Validate;
+import org.apache.derby.jdbc.EmbeddedConnectionPoolDataSource;
+
+/**
+ * An in-memory Apache Derby database for benchmarking the JDBC storage engines. The tables are created with the same DDL that the storage
+ * engines document. The database is dropped when closed.
+ * @author Kasra Faghihi
+ */
+public final class EmbeddedDerby implements Closeable {
+    
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+    
+    private final String databaseName;
+    private final EmbeddedConnectionPoolDataSource dataSource;
+
+    /**
+     * Creates a new in-memory database.
+     * @return new in-memory database
+     * @throws IllegalStateException if the database couldn't be created
+     */
+    public static EmbeddedDerby create() {
+        EmbeddedDerby derby = new EmbeddedDerby("memory:benchmarkDB" + NEXT_ID.getAndIncrement());
+        try (Connection conn = derby.dataSource.getConnection()) {
+            // connecting once is what creates the database
+        } catch (SQLException sqle) {
+            throw new IllegalStateException(sqle);
+        }
+        return derby;
+    }
+    
+    private EmbeddedDerby(String databaseName) {
+        Validate.notNull(databaseName);
+        this.databaseName = databaseName;
+        this.dataSource = new EmbeddedConnectionPoolDataSource();
+        this.dataSource.setDatabaseName(databaseName);
+        this.dataSource.setCreateDatabase("create");
+    }
+
+    /**
+     * Get the data source for this database.
+     * @return data source
+     */
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Creates the {@code ACTOR} and {@code MESSAGE_QUEUE} tables used by
+     * {@link com.offbynull.actors.gateways.actor.stores.jdbc.JdbcStore}.
+     * @param bucketCount number of buckets if the partitioned schema is used, or {@code 0} for the unpartitioned schema
+     * @throws IllegalArgumentException if {@code bucketCount < 0}
+     * @throws IllegalStateException if the tables couldn't be created
+     */
+    public void createActorTables(int bucketCount) {
+        Validate.isTrue(bucketCount >= 0);
+        if (bucketCount == 0) {
+            createActorTables("");
+        } else {
+            for (int i = 0; i < bucketCount; i++) {
+                createActorTables("_" + i);
+            }
+        }
+    }
+    
+    private void createActorTables(String suffix) {
+        execute(
+                "CREATE TABLE ACTOR" + suffix + " (\n"
+                + "    ADDRESS VARCHAR(1024) NOT NULL,\n"
+                + "    CHECKPOINT_DATA BLOB,\n"
+                + "    CHECKPOINT_MESSAGE_DATA BLOB NOT NULL,\n"
+                + "    CHECKPOINT_TIME BIGINT NOT NULL,\n"
+                + "    CHECKPOINT_INSTANCE INTEGER NOT NULL,\n"
+                + "    IDLE INTEGER NOT NULL,\n"
+                + "    NEXT_MSG_NUMBER INTEGER,\n"
+                + "    LEASE_EXPIRY BIGINT,\n"
+                + "    DATA BLOB NOT NULL,\n"
+                + "    PRIMARY KEY (ADDRESS)\n"
+                + ")\n",
+                "CREATE INDEX ACTOR_READY" + suffix + " ON ACTOR" + suffix + " (IDLE, NEXT_MSG_NUMBER)",
+                "CREATE INDEX ACTOR_CHECKPOINT" + suffix + " ON ACTOR" + suffix + " (CHECKPOINT_TIME)",
+                "CREATE INDEX ACTOR_LEASE" + suffix + " ON ACTOR" + suffix + " (LEASE_EXPIRY)",
+                "CREATE TABLE MESSAGE_QUEUE" + suffix + " (\n"
+                + "    MSG_NUMBER INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1),\n"
+                + "    ADDRESS VARCHAR(1024) NOT NULL,\n"
+                + "    DATA BLOB NOT NULL,\n"
+                + "    PRIMARY KEY (MSG_NUMBER),\n"
+                + "    FOREIGN KEY (ADDRESS) REFERENCES ACTOR" + suffix + "(ADDRESS) ON DELETE CASCADE\n"
+                + ")\n",
+                "CREATE INDEX MESSAGE_QUEUE_ADDRESS" + suffix + " ON MESSAGE_QUEUE" + suffix + " (ADDRESS, MSG_NUMBER)");
+    }
+
+    /**
+     * Creates the {@code HTTP_CLIENT_QUEUE} table used by {@link com.offbynull.actors.gateways.servlet.stores.jdbc.JdbcStore}.
+     * @throws IllegalStateException if the table couldn't be created
+     */
+    public void createHttpClientQueueTable() {
+        execute(
+                "CREATE TABLE HTTP_CLIENT_QUEUE (\n"
+                + "    MSG_NUMBER INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1),\n"
+                + "    ADDRESS VARCHAR(1024) NOT NULL,\n"
+                + "    WRITE_TIME BIGINT NOT NULL,\n"
+                + "    DATA BLOB NOT NULL,\n"
+                + "    PRIMARY KEY (MSG_NUMBER)\n"
+                + ")\n",
+                "CREATE INDEX HTTP_CLIENT_QUEUE_ADDRESS ON HTTP_CLIENT_QUEUE (ADDRESS, MSG_NUMBER)",
+                "CREATE INDEX HTTP_CLIENT_QUEUE_WRITE_TIME ON HTTP_CLIENT_QUEUE (WRITE_TIME)");
+    }
+    
+    private void execute(String... statements) {
+        try (Connection conn = dataSource.getConnection();
+                Statement statement = conn.createStatement()) {
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        } catch (SQLException sqle) {
+            throw new IllegalStateException(sqle);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            DriverManager.getConnection("jdbc:derby:" + databaseName + ";drop=true");
+        } catch (SQLException sqle) {
+            // https://db.apache.org/derby/docs/10.8/devguide/cdevdvlpinmemdb.html -- See section "Removing an in-memory database"
+            if (!"08006".equals(sqle.getSQLState())) { // 08006 is expected
+                throw new IllegalStateException(sqle);
+            }
+        }
+    }
+}
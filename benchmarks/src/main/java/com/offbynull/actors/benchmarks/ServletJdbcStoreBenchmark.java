@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.benchmarks;
+
+import com.offbynull.actors.gateways.servlet.stores.jdbc.JdbcStore;
+import com.offbynull.actors.shuttle.Message;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link JdbcStore}'s handling of HTTP client queues. Messages are written to and read from {@code clientCount} HTTP clients, in
+ * writes of {@code batchSize} messages.
+ * @author Kasra Faghihi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ServletJdbcStoreBenchmark {
+    
+    private static final String PREFIX = "servlet";
+    
+    // CHECKSTYLE:OFF -- JMH needs @Param fields to be public
+    /**
+     * Number of HTTP clients.
+     */
+    @Param({"100", "10000"})
+    public int clientCount;
+    
+    /**
+     * Number of messages per write.
+     */
+    @Param({"1", "16"})
+    public int batchSize;
+    // CHECKSTYLE:ON
+    
+    private EmbeddedDerby derby;
+    private JdbcStore store;
+
+    /**
+     * Creates the database.
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+        derby = EmbeddedDerby.create();
+        derby.createHttpClientQueueTable();
+        store = JdbcStore.create(PREFIX, derby.getDataSource());
+    }
+    
+    /**
+     * Closes the store and drops the database.
+     * @throws IOException on failure to close
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        derby.close();
+    }
+
+    /**
+     * Writes messages to a random HTTP client. Queues grow as this runs (until messages expire).
+     */
+    @Benchmark
+    public void write() {
+        String id = String.valueOf(ThreadLocalRandom.current().nextInt(clientCount));
+        store.write(id, messages(id));
+    }
+
+    /**
+     * Writes messages to a random HTTP client and then reads its queue.
+     * @return messages read
+     */
+    @Benchmark
+    public List<Message> writeAndRead() {
+        String id = String.valueOf(ThreadLocalRandom.current().nextInt(clientCount));
+        store.write(id, messages(id));
+        return store.read(id);
+    }
+    
+    private List<Message> messages(String id) {
+        List<Message> messages = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            messages.add(new Message("actor:a", PREFIX + ":" + id + ":" + i, "payload"));
+        }
+        return messages;
+    }
+}
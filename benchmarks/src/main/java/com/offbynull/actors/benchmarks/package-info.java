@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+
+/**
+ * JMH benchmarks for storage engines. Build with the {@code benchmarks} profile ({@code mvn -Pbenchmarks package}) and run
+ * {@code java -jar benchmarks/target/benchmarks.jar}. Standard JMH options apply -- for example, {@code -t 8} to run with 8 threads, or
+ * {@code -p actorCount=1000000 -p queueDepth=10} to run against 1M actors with 10M queued messages.
+ * 
+ * @author Kasra Faghihi
+ */
+package com.offbynull.actors.benchmarks;
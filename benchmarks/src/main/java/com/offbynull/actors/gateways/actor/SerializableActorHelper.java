@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.actor;
+
+import com.offbynull.actors.shuttle.Address;
+import com.offbynull.coroutines.user.CoroutineRunner;
+
+/**
+ * Creates stand-in actors for benchmarks. These actors have no logic -- they're only meant to be stored and retrieved.
+ * @author Kasra Faghihi
+ */
+public final class SerializableActorHelper {
+    private SerializableActorHelper() {
+        // do nothing
+    }
+
+    /**
+     * Creates a stand-in actor.
+     * @param address address of the actor
+     * @param checkpointMsg checkpoint message payload
+     * @param checkpointTimeout checkpoint timeout
+     * @return new serializable actor
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static SerializableActor createFake(String address, Object checkpointMsg, long checkpointTimeout) {
+        Context context = new Context(Address.fromString(address));
+        context.checkpointTimeout(checkpointTimeout);
+        context.checkpointPayload(checkpointMsg);
+        CoroutineRunner runner = new CoroutineRunner(cnt -> { });
+        Actor actor = new Actor(null, runner, context);
+        
+        return SerializableActor.serialize(actor);
+    }
+}
@@ -0,0 +1,746 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.actor.stores.file;
+
+import com.offbynull.actors.common.BestEffortSerializer;
+import com.offbynull.actors.gateways.actor.SerializableActor;
+import com.offbynull.actors.gateways.actor.Store;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.RECORD_ACTOR;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.RECORD_CHECKPOINT_HIT;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.RECORD_DISCARD;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.RECORD_MESSAGE;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.RECORD_SNAPSHOT;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.RECORD_TAKE;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.calculateCheckpointTime;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.encodeActor;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.encodeAddressOnly;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.encodeCheckpointHit;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.encodeMessage;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.fromMillis;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.toMillis;
+import com.offbynull.actors.shuttle.Address;
+import com.offbynull.actors.shuttle.Message;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import static java.nio.ByteBuffer.wrap;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import static java.util.Arrays.asList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.collections4.list.UnmodifiableList;
+import static org.apache.commons.collections4.list.UnmodifiableList.unmodifiableList;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A storage engine that keeps all actors and messages in append-only, memory-mapped log files on local disk.
+ * <p>
+ * Every change (actor stored, message stored, message taken, actor discarded, checkpoint hit) is appended to the log of the lock region
+ * the actor belongs to. Only an index is kept on-heap -- for each actor, where its latest state, its checkpoint state, and each of its
+ * queued messages sit in the log. When the store is re-opened on the same directory, the logs are replayed to rebuild that index.
+ * <p>
+ * Logs are forced to disk in batches, once every flush interval, rather than on every write. A crash may lose changes made since the last
+ * flush, but the log will never be left in a state that can't be replayed. Logs that have grown well past their live data get compacted
+ * in the background.
+ * <p>
+ * Messages are removed from the log as soon as they're taken, so a crash while an actor is processing a message loses that message (same
+ * as the other storage engines). After a crash, actors that were processing are made available again, and checkpoints that were hit but
+ * never processed will hit again.
+ * @author Kasra Faghihi
+ */
+public final class FileStore implements Store {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileStore.class);
+
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final long MIN_COMPACTION_SIZE = 64L * 1024L * 1024L;
+
+
+    private final UnmodifiableList<LockRegion> lockRegions;
+    private final String prefix;
+    private final ScheduledExecutorService maintenance;
+    private volatile boolean closed;
+
+    /**
+     * Creates a {@link FileStore} object. Equivalent to calling {@code create(prefix, concurrency, directory, Duration.ofMillis(100L))}.
+     * @param prefix prefix for the actor gateway that this storage engine belongs to
+     * @param concurrency concurrency level (should be set to number of cores or larger)
+     * @param directory directory to keep logs in
+     * @return new file store
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code concurrency <= 0}, or if {@code directory} was created with a different concurrency level
+     * @throws IllegalStateException if the logs couldn't be opened
+     */
+    public static FileStore create(String prefix, int concurrency, Path directory) {
+        return create(prefix, concurrency, directory, Duration.ofMillis(100L));
+    }
+
+    /**
+     * Creates a {@link FileStore} object. If {@code directory} contains logs from a previous instance, those logs are replayed.
+     * @param prefix prefix for the actor gateway that this storage engine belongs to
+     * @param concurrency concurrency level (should be set to number of cores or larger) -- must be the same every time the same directory
+     * is opened
+     * @param directory directory to keep logs in
+     * @param flushInterval how often to force logs to disk
+     * @return new file store
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code concurrency <= 0}, if {@code flushInterval} isn't positive, or if {@code directory} was
+     * created with a different concurrency level
+     * @throws IllegalStateException if the logs couldn't be opened
+     */
+    public static FileStore create(String prefix, int concurrency, Path directory, Duration flushInterval) {
+        Validate.notNull(prefix);
+        Validate.notNull(directory);
+        Validate.notNull(flushInterval);
+        Validate.isTrue(concurrency > 0);
+        Validate.isTrue(!flushInterval.isNegative() && !flushInterval.isZero());
+        return new FileStore(prefix, concurrency, directory, flushInterval);
+    }
+
+    private FileStore(String prefix, int concurrency, Path directory, Duration flushInterval) {
+        Validate.notNull(prefix);
+        Validate.notNull(directory);
+        Validate.notNull(flushInterval);
+        Validate.isTrue(concurrency > 0);
+
+        LockRegion[] regions = new LockRegion[concurrency];
+        try {
+            long existingRegions = 0L;
+            if (Files.isDirectory(directory)) {
+                try (Stream<Path> paths = Files.list(directory)) {
+                    existingRegions = paths.filter(p -> p.getFileName().toString().matches("region\\d+")).count();
+                }
+            }
+            Validate.isTrue(existingRegions == 0L || existingRegions == concurrency,
+                    "Directory was created with a different concurrency level: %s", directory);
+
+            for (int i = 0; i < regions.length; i++) {
+                regions[i] = new LockRegion(directory.resolve("region" + i));
+            }
+        } catch (IOException | UncheckedIOException e) {
+            throw new IllegalStateException("Unable to open logs", e);
+        }
+
+        this.prefix = prefix;
+        this.lockRegions = (UnmodifiableList<LockRegion>) unmodifiableList(new ArrayList<>(asList(regions)));
+        this.closed = false;
+
+        long flushMillis = flushInterval.toMillis();
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setName("FileStoreMaintenance - " + prefix);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maintenance.scheduleWithFixedDelay(this::maintain, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void store(SerializableActor actor) {
+        Validate.notNull(actor);
+
+        Address actorAddr = actor.getSelf();
+        Validate.isTrue(actorAddr.size() == 2, "Actor address has unexpected number of elements: %s", actorAddr);
+        Validate.isTrue(actorAddr.getElement(0).equals(prefix), "Actor address must start with %s: %s", prefix, actorAddr);
+
+        Validate.validState(!closed, "Store closed");
+
+        if (actor.getCheckpointTimeout() < 0L && actor.getCheckpointPayload() == null) {
+            LOGGER.warn("Actor doesn't have checkpoint time/message -- ignoring store: {} {} {}",
+                    actorAddr,
+                    actor.getCheckpointTimeout(),
+                    actor.getCheckpointPayload());
+            return;
+        }
+
+        LockRegion lockRegion = getLockRegion(actorAddr);
+        synchronized (lockRegion) {
+            Validate.validState(!closed, "Store closed");
+
+            ActorData actorData = lockRegion.actors.get(actorAddr);
+            byte[] serializedActor = lockRegion.serializer.serialize(actor);
+
+            if (actorData == null) {
+                Instant checkpointTime = calculateCheckpointTime(actor.getCheckpointTimeout());
+                SegmentLog.Ref ref = appendActor(lockRegion, actorAddr, true, actor.getCheckpointInstance(), checkpointTime,
+                        serializedActor);
+
+                actorData = new ActorData(actorAddr);
+                actorData.data = ref;
+                actorData.checkpointData = ref;
+                actorData.checkpointTime = checkpointTime;
+                actorData.checkpointInstance = actor.getCheckpointInstance();
+                lockRegion.actors.put(actorAddr, actorData);
+                lockRegion.timeouts.add(actorData);
+            } else {
+                if (actor.getCheckpointInstance() < actorData.checkpointInstance) { // if checkpoint inst is older
+                    // This is an old instance -- a checkpoint has already hit so it wouldn't be a good idea to put this back in.
+                    actorData.data = appendActor(lockRegion, actorAddr, false, 0, Instant.MIN, serializedActor);
+                    LOGGER.warn("Ignoring update for actor with old checkpoint instance: {} vs {} for {}",
+                            actorData.checkpointInstance,
+                            actor.getCheckpointInstance(),
+                            actorAddr);
+                    return;
+                }
+
+                if (actor.getCheckpointUpdated()) { // if actor should be checkpointed
+                    LOGGER.debug("Checkpoint actor: {}", actorAddr);
+                    Instant checkpointTime = calculateCheckpointTime(actor.getCheckpointTimeout());
+                    SegmentLog.Ref ref = appendActor(lockRegion, actorAddr, true, actor.getCheckpointInstance(), checkpointTime,
+                            serializedActor);
+
+                    lockRegion.timeouts.remove(actorData);
+                    actorData.data = ref;
+                    actorData.checkpointData = ref;
+                    actorData.checkpointTime = checkpointTime;
+                    actorData.checkpointInstance = actor.getCheckpointInstance();
+                    lockRegion.timeouts.add(actorData);
+                } else {
+                    actorData.data = appendActor(lockRegion, actorAddr, false, 0, Instant.MIN, serializedActor);
+                }
+
+                if (!actorData.msgQueue.isEmpty()) {
+                    lockRegion.availableSet.add(actorAddr);
+                }
+                lockRegion.processingSet.remove(actorAddr);
+            }
+
+            LOGGER.debug("Stored actor: {}", actorAddr);
+        }
+    }
+
+    @Override
+    public void store(Collection<Message> messages) {
+        Validate.notNull(messages);
+        Validate.noNullElements(messages);
+        Validate.validState(!closed, "Store closed");
+        messages.forEach(m -> {
+            Address dstAddr = m.getDestinationAddress();
+            Validate.isTrue(dstAddr.size() >= 2, "Actor address must have atleast 2 elements: %s", dstAddr);
+            Validate.isTrue(dstAddr.getElement(0).equals(prefix), "Actor address must start with %s: %s", prefix, dstAddr);
+        });
+
+        for (Message message : messages) {
+            Address dstAddr = message.getDestinationAddress();
+            Address dstActorAddr = Address.of(prefix, dstAddr.getElement(1));
+
+            LockRegion lockRegion = getLockRegion(dstActorAddr);
+            synchronized (lockRegion) {
+                Validate.validState(!closed, "Store closed");
+
+                ActorData dstActorData = lockRegion.actors.get(dstActorAddr);
+                if (dstActorData == null) {
+                    continue;
+                }
+
+                byte[] serializedMsg = lockRegion.serializer.serialize(message);
+                dstActorData.msgQueue.addLast(appendMessage(lockRegion, dstActorAddr, serializedMsg));
+                lockRegion.pendingMsgCount++;
+
+                if (!lockRegion.processingSet.contains(dstActorAddr)) {
+                    lockRegion.availableSet.add(dstActorAddr);
+                }
+
+                LOGGER.debug("Stored message: {}", message);
+            }
+        }
+    }
+
+    @Override
+    public void discard(Address address) {
+        Validate.isTrue(address.size() == 2);
+        Validate.isTrue(address.getElement(0).equals(prefix));
+        Validate.validState(!closed, "Store closed");
+
+        LockRegion lockRegion = getLockRegion(address);
+        synchronized (lockRegion) {
+            Validate.validState(!closed, "Store closed");
+
+            ActorData actorData = lockRegion.actors.remove(address);
+            if (actorData != null) {
+                append(lockRegion, encodeAddressOnly(RECORD_DISCARD, address));
+                lockRegion.pendingMsgCount -= actorData.msgQueue.size();
+                lockRegion.timeouts.remove(actorData);
+                lockRegion.availableSet.remove(address);
+                lockRegion.processingSet.remove(address);
+            }
+
+            LOGGER.debug("Discarded actor: {}", address);
+        }
+    }
+
+    @Override
+    public StoredWork take() {
+        while (true) {
+            Validate.validState(!closed, "Store closed");
+
+            LockRegion lockRegion = randomizeLockRegion();
+            synchronized (lockRegion) {
+                Validate.validState(!closed, "Store closed");
+
+                if (!lockRegion.availableSet.isEmpty()) { // something waiting? if so, grab it and return it
+                    Address actorAddr = lockRegion.availableSet.iterator().next();
+
+                    ActorData actorData = lockRegion.actors.get(actorAddr);
+                    SegmentLog.Ref msgRef = actorData.msgQueue.peekFirst();
+                    Message msg = lockRegion.serializer.deserialize(lockRegion.log.read(msgRef));
+                    SerializableActor actor = lockRegion.serializer.deserialize(lockRegion.log.read(actorData.data));
+
+                    append(lockRegion, encodeAddressOnly(RECORD_TAKE, actorAddr));
+                    actorData.msgQueue.removeFirst();
+                    lockRegion.pendingMsgCount--;
+
+                    lockRegion.availableSet.remove(actorAddr);
+                    lockRegion.processingSet.add(actorAddr);
+
+                    LOGGER.debug("Pulling message for actor: {}", msg);
+
+                    return new StoredWork(msg, actor);
+                } else if (!lockRegion.timeouts.isEmpty()) { // otherwise, any stale actors? timeouts only contain non-processing actors
+                    ActorData actorData = lockRegion.timeouts.first();
+
+                    Instant now = Instant.now();
+                    Instant checkpointTime = actorData.checkpointTime;
+
+                    if (now.isAfter(checkpointTime) || now.equals(checkpointTime)) {
+                        SerializableActor actor = lockRegion.serializer.deserialize(lockRegion.log.read(actorData.checkpointData));
+
+                        // Inc expected checkpointInstance by 1, so any stores for the prev checkpoint instance will be ignored. Also, set
+                        // checkpoint updated flag to true, so it'll re-apply the checkpoint message and timeout that was set.
+                        int checkpointInstance = actorData.checkpointInstance + 1;
+                        append(lockRegion, encodeCheckpointHit(actorData.address, checkpointInstance));
+                        actorData.checkpointInstance = checkpointInstance;
+                        actor.setCheckpointInstance(checkpointInstance);
+                        actor.setCheckpointUpdated(true);
+
+                        lockRegion.timeouts.remove(actorData);
+
+                        Address actorAddr = actor.getSelf();
+                        Object checkpointMsg = actor.getCheckpointPayload();
+                        Message msg = new Message(actorAddr, actorAddr, checkpointMsg);
+
+                        lockRegion.availableSet.remove(actorAddr);
+                        lockRegion.processingSet.add(actorAddr);
+
+                        LOGGER.debug("Checkpoint hit for actor: {}", msg);
+
+                        return new StoredWork(msg, actor);
+                    }
+                }
+            }
+
+            // Same as MemoryStore -- called in a tight loop by the actor system, so yield outside of the lock.
+            try {
+                Thread.sleep(0);
+            } catch (InterruptedException ie) {
+                throw new IllegalStateException(ie);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        maintenance.shutdownNow();
+
+        for (LockRegion lockRegion : lockRegions) {
+            synchronized (lockRegion) {
+                lockRegion.log.close();
+            }
+        }
+    }
+
+    /**
+     * Get the number of messages that require processing.
+     * @return number of messages waiting to be processed
+     * @throws IllegalStateException if storage engine has been closed
+     */
+    public int getStoredMessageCount() {
+        Validate.validState(!closed, "Store closed");
+
+        int ret = 0;
+        for (LockRegion lockRegion : lockRegions) {
+            synchronized (lockRegion) {
+                ret += lockRegion.pendingMsgCount;
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Get the number of actors that are stored -- including those idle, awaiting processing, being processed, and stale (approximate).
+     * @return number of actors stored
+     * @throws IllegalStateException if storage engine has been closed
+     */
+    public int getActorCount() {
+        Validate.validState(!closed, "Store closed");
+
+        int ret = 0;
+        for (LockRegion lockRegion : lockRegions) {
+            synchronized (lockRegion) {
+                ret += lockRegion.actors.size();
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Get the number of actors that are currently processing a message (approximate).
+     * @return number of actors currently processing
+     * @throws IllegalStateException if storage engine has been closed
+     */
+    public int getProcessingActorCount() {
+        Validate.validState(!closed, "Store closed");
+
+        int ret = 0;
+        for (LockRegion lockRegion : lockRegions) {
+            synchronized (lockRegion) {
+                ret += lockRegion.processingSet.size();
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Get the number of actors that have pending messages and are awaiting processing (approximate).
+     * @return number of actors awaiting processing
+     * @throws IllegalStateException if storage engine has been closed
+     */
+    public int getReadyActorCount() {
+        Validate.validState(!closed, "Store closed");
+
+        int ret = 0;
+        for (LockRegion lockRegion : lockRegions) {
+            synchronized (lockRegion) {
+                ret += lockRegion.availableSet.size();
+            }
+        }
+
+        return ret;
+    }
+
+    void compact() { // package-private so tests can trigger it directly
+        for (LockRegion lockRegion : lockRegions) {
+            synchronized (lockRegion) {
+                if (!closed) {
+                    compact(lockRegion);
+                }
+            }
+        }
+    }
+
+    private void maintain() {
+        for (LockRegion lockRegion : lockRegions) {
+            synchronized (lockRegion) {
+                if (closed) {
+                    return;
+                }
+
+                try {
+                    lockRegion.log.force();
+                    long size = lockRegion.log.size();
+                    if (size >= MIN_COMPACTION_SIZE && size >= lockRegion.compactedSize * 2L) {
+                        compact(lockRegion);
+                    }
+                } catch (RuntimeException re) {
+                    LOGGER.error("Log maintenance failed", re);
+                }
+            }
+        }
+    }
+
+    // Rewrites the live state of a region (a snapshot of each actor followed by its queued messages) to a new generation of the log. The
+    // index only gets pointed at the new generation once the whole thing has been written and committed.
+    private static void compact(LockRegion lockRegion) {
+        SegmentLog log = lockRegion.log;
+        Map<ActorData, Compacted> compacted = new HashMap<>();
+
+        log.beginCompaction();
+        try {
+            for (ActorData actorData : lockRegion.actors.values()) {
+                Compacted entry = new Compacted();
+
+                byte[] data = log.read(actorData.data);
+                byte[] checkpointData = actorData.data == actorData.checkpointData ? null : log.read(actorData.checkpointData);
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                int[] offsets = encodeSnapshot(baos, actorData.address, actorData.checkpointInstance, actorData.checkpointTime, data,
+                        checkpointData);
+                SegmentLog.Ref ref = log.append(baos.toByteArray());
+                entry.data = ref.slice(offsets[0], data.length);
+                entry.checkpointData = checkpointData == null ? entry.data : ref.slice(offsets[1], checkpointData.length);
+
+                for (SegmentLog.Ref msgRef : actorData.msgQueue) {
+                    entry.msgQueue.add(appendMessageUnchecked(log, actorData.address, log.read(msgRef)));
+                }
+
+                compacted.put(actorData, entry);
+            }
+            log.commitCompaction();
+        } catch (IOException | RuntimeException e) {
+            log.abortCompaction();
+            LOGGER.error("Log compaction failed, continuing with old log", e);
+            return;
+        }
+
+        compacted.forEach((actorData, entry) -> {
+            actorData.data = entry.data;
+            actorData.checkpointData = entry.checkpointData;
+            actorData.msgQueue = entry.msgQueue;
+        });
+        lockRegion.compactedSize = log.size();
+
+        LOGGER.debug("Compacted log to {} bytes", lockRegion.compactedSize);
+    }
+
+    private static SegmentLog.Ref appendActor(LockRegion lockRegion, Address address, boolean checkpoint, int checkpointInstance,
+            Instant checkpointTime, byte[] data) {
+        try {
+            return appendData(lockRegion.log, encodeActor(address, checkpoint, checkpointInstance, checkpointTime, data), data.length);
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Unable to append to log", ioe);
+        }
+    }
+
+    private static SegmentLog.Ref appendMessage(LockRegion lockRegion, Address address, byte[] data) {
+        try {
+            return appendMessageUnchecked(lockRegion.log, address, data);
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Unable to append to log", ioe);
+        }
+    }
+
+    private static SegmentLog.Ref appendMessageUnchecked(SegmentLog log, Address address, byte[] data) throws IOException {
+        return appendData(log, encodeMessage(address, data), data.length);
+    }
+
+    // Data is always the tail of actor/message records, so the ref to it is the last dataLength bytes of the record body
+    private static SegmentLog.Ref appendData(SegmentLog log, byte[] body, int dataLength) throws IOException {
+        return log.append(body).slice(body.length - dataLength, dataLength);
+    }
+
+    private static void append(LockRegion lockRegion, byte[] body) {
+        try {
+            lockRegion.log.append(body);
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Unable to append to log", ioe);
+        }
+    }
+
+    // Returns offsets of data and checkpointData (if checkpointData is null, it means it's the same as data)
+    private static int[] encodeSnapshot(ByteArrayOutputStream baos, Address address, int checkpointInstance, Instant checkpointTime,
+            byte[] data, byte[] checkpointData) throws IOException {
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(RECORD_SNAPSHOT);
+        dos.writeUTF(address.toString());
+        dos.writeInt(checkpointInstance);
+        dos.writeLong(toMillis(checkpointTime));
+        dos.writeInt(data.length);
+        int dataOffset = dos.size();
+        dos.write(data);
+        dos.writeInt(checkpointData == null ? -1 : checkpointData.length);
+        int checkpointDataOffset = dos.size();
+        if (checkpointData != null) {
+            dos.write(checkpointData);
+        }
+        return new int[] {dataOffset, checkpointDataOffset};
+    }
+
+
+
+
+
+
+
+
+
+
+    private LockRegion getLockRegion(Address key) {
+        String keyStr = key.toString();
+        byte[] hash = DigestUtils.md5(keyStr);
+        int idx = Math.abs(wrap(hash).getInt() % lockRegions.size());
+
+        return lockRegions.get(idx);
+    }
+
+    private LockRegion randomizeLockRegion() {
+        long nanoTime = System.nanoTime();
+        int threadHashCode = Thread.currentThread().hashCode();
+        ByteBuffer byteBuffer = ByteBuffer.allocate(Long.BYTES + Integer.BYTES);
+        byteBuffer.putLong(nanoTime);
+        byteBuffer.putInt(threadHashCode);
+
+        byte[] dataToHash = byteBuffer.array();
+        byte[] hash = DigestUtils.md5(dataToHash);
+
+        int idx = Math.abs(wrap(hash).getInt() % lockRegions.size());
+
+        return lockRegions.get(idx);
+    }
+
+
+
+
+    private static final class LockRegion {
+        private final BestEffortSerializer serializer = new BestEffortSerializer();
+        private final HashMap<Address, ActorData> actors = new HashMap<>();         // actor addr -> stored actor obj
+        private final TreeSet<ActorData> timeouts = new TreeSet<>((x, y) -> {
+            int ret = x.checkpointTime.compareTo(y.checkpointTime);
+            if (ret == 0 && x != y) { // if we ever encounter the same time (but different objs), treat it as less-than -- we do this
+                                      // because we're using this set just to order (we still want duplicates showing up)
+                ret = -1;
+            }
+            return ret;
+        }); // timeout -> actor addr
+
+        private int pendingMsgCount; // cache of messages waiting to be processed
+
+        private final LinkedHashSet<Address> availableSet = new LinkedHashSet<>();  // actors that aren't processing but have msgs ready
+        private final LinkedHashSet<Address> processingSet = new LinkedHashSet<>(); // actors currently processing a msg
+
+        private final SegmentLog log;
+        private long compactedSize; // size of log right after last compaction
+
+        LockRegion(Path directory) throws IOException {
+            log = SegmentLog.open(directory, SEGMENT_SIZE, this::replay);
+            compactedSize = log.size();
+
+            // Nothing is processing after a restart -- everything goes back to waiting on messages / checkpoints
+            for (ActorData actorData : actors.values()) {
+                timeouts.add(actorData);
+                pendingMsgCount += actorData.msgQueue.size();
+                if (!actorData.msgQueue.isEmpty()) {
+                    availableSet.add(actorData.address);
+                }
+            }
+        }
+
+        private void replay(SegmentLog.Ref ref, byte[] body) {
+            try {
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = dis.readByte();
+                Address address = Address.fromString(dis.readUTF());
+                ActorData actorData = actors.get(address);
+                switch (type) {
+                    case RECORD_ACTOR: {
+                        boolean checkpoint = dis.readBoolean();
+                        int checkpointInstance = dis.readInt();
+                        Instant checkpointTime = fromMillis(dis.readLong());
+                        int dataLength = dis.readInt();
+                        SegmentLog.Ref dataRef = ref.slice(body.length - dataLength, dataLength);
+                        if (actorData == null) {
+                            actorData = new ActorData(address);
+                            actors.put(address, actorData);
+                        }
+                        actorData.data = dataRef;
+                        if (checkpoint) {
+                            actorData.checkpointData = dataRef;
+                            actorData.checkpointInstance = checkpointInstance;
+                            actorData.checkpointTime = checkpointTime;
+                        }
+                        break;
+                    }
+                    case RECORD_SNAPSHOT: {
+                        actorData = new ActorData(address);
+                        actorData.checkpointInstance = dis.readInt();
+                        actorData.checkpointTime = fromMillis(dis.readLong());
+                        int dataLength = dis.readInt();
+                        int dataOffset = body.length - dis.available();
+                        actorData.data = ref.slice(dataOffset, dataLength);
+                        dis.skipBytes(dataLength);
+                        int checkpointDataLength = dis.readInt();
+                        int checkpointDataOffset = body.length - dis.available();
+                        actorData.checkpointData = checkpointDataLength == -1
+                                ? actorData.data
+                                : ref.slice(checkpointDataOffset, checkpointDataLength);
+                        actors.put(address, actorData);
+                        break;
+                    }
+                    case RECORD_MESSAGE: {
+                        int dataLength = dis.readInt();
+                        if (actorData != null) {
+                            actorData.msgQueue.addLast(ref.slice(body.length - dataLength, dataLength));
+                        }
+                        break;
+                    }
+                    case RECORD_TAKE: {
+                        if (actorData != null) {
+                            actorData.msgQueue.pollFirst();
+                        }
+                        break;
+                    }
+                    case RECORD_DISCARD: {
+                        actors.remove(address);
+                        break;
+                    }
+                    case RECORD_CHECKPOINT_HIT: {
+                        int checkpointInstance = dis.readInt();
+                        if (actorData != null) {
+                            actorData.checkpointInstance = checkpointInstance;
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException("Unrecognized record type: " + type);
+                }
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+    }
+
+    private static final class ActorData {
+        private final Address address;
+        private SegmentLog.Ref data;
+        private ArrayDeque<SegmentLog.Ref> msgQueue = new ArrayDeque<>();
+
+        private SegmentLog.Ref checkpointData;
+        private Instant checkpointTime;
+        private int checkpointInstance;
+
+        ActorData(Address address) {
+            this.address = address;
+        }
+    }
+
+    private static final class Compacted {
+        private SegmentLog.Ref data;
+        private SegmentLog.Ref checkpointData;
+        private final ArrayDeque<SegmentLog.Ref> msgQueue = new ArrayDeque<>();
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.actor.stores.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Append-only log made up of memory-mapped segment files. Each record is framed as [length:int][crc32:int][body], and a length of 0 marks
+// the end of the records in a segment (segments are pre-sized, so the unwritten tail is zeroes). On open, records are replayed in order and
+// replay of a segment stops at the first record that's incomplete or fails its checksum -- that's a write that got torn by a crash.
+//
+// Segments belong to a generation. Compaction writes the live state out to segments of a new generation, and only once those segments have
+// been forced to disk does it drop a marker file for the new generation and delete the old generation. On open, the newest generation
+// with a marker wins and everything else gets deleted, so a crash partway through compaction just leaves the old generation in place.
+//
+// Not thread-safe -- the owning lock region guards access.
+final class SegmentLog implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentLog.class);
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("(\\d+)-(\\d+)\\.log");
+    private static final Pattern MARKER_NAME = Pattern.compile("(\\d+)\\.done");
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+
+    private final Path directory;
+    private final int segmentSize;
+
+    private long generation;
+    private List<Segment> segments;
+    private long size;
+
+    // only set while compacting -- the generation being written to and the state to fall back on if the compaction gets aborted
+    private long oldGeneration = -1L;
+    private List<Segment> oldSegments;
+    private long oldSize;
+
+    private SegmentLog(Path directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    static SegmentLog open(Path directory, int segmentSize, BiConsumer<Ref, byte[]> replayer) throws IOException {
+        Validate.notNull(directory);
+        Validate.notNull(replayer);
+        Validate.isTrue(segmentSize > HEADER_SIZE);
+
+        Files.createDirectories(directory);
+
+        SegmentLog log = new SegmentLog(directory, segmentSize);
+
+        long generation = -1L;
+        TreeMap<Long, Path> candidates = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                Matcher markerMatcher = MARKER_NAME.matcher(path.getFileName().toString());
+                if (markerMatcher.matches()) {
+                    generation = Math.max(generation, Long.parseLong(markerMatcher.group(1)));
+                }
+            }
+        }
+
+        if (generation == -1L) {
+            generation = 0L;
+            Files.createFile(directory.resolve(markerName(generation)));
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                Matcher segmentMatcher = SEGMENT_NAME.matcher(name);
+                Matcher markerMatcher = MARKER_NAME.matcher(name);
+                if (segmentMatcher.matches() && Long.parseLong(segmentMatcher.group(1)) == generation) {
+                    candidates.put(Long.parseLong(segmentMatcher.group(2)), path);
+                } else if (segmentMatcher.matches() || (markerMatcher.matches() && Long.parseLong(markerMatcher.group(1)) != generation)) {
+                    LOG.debug("Deleting stale log file {}", path);
+                    Files.delete(path); // either an old generation or a compaction that never finished
+                }
+            }
+        }
+
+        log.generation = generation;
+        log.segments = new ArrayList<>();
+        for (Path path : candidates.values()) {
+            Segment segment = log.map(path, 0);
+            log.segments.add(segment);
+            log.size += replay(segment, replayer);
+        }
+
+        return log;
+    }
+
+    Ref append(byte[] body) throws IOException {
+        Validate.notNull(body);
+
+        int recordSize = HEADER_SIZE + body.length;
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active == null || active.buffer.remaining() < recordSize) {
+            if (active != null) {
+                active.buffer.force(); // done writing to this one, make sure it's on disk before moving on
+            }
+            int nextSequence = segments.size();
+            active = map(directory.resolve(segmentName(generation, nextSequence)), recordSize + Integer.BYTES); // room for end marker
+            segments.add(active);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        MappedByteBuffer buffer = active.buffer;
+        int offset = buffer.position();
+        buffer.putInt(offset + Integer.BYTES, (int) crc.getValue());
+        buffer.position(offset + HEADER_SIZE);
+        buffer.put(body);
+        buffer.putInt(offset, body.length); // length goes in last, so a torn write never looks like a complete record
+        size += recordSize;
+
+        return new Ref(active, offset + HEADER_SIZE, body.length);
+    }
+
+    byte[] read(Ref ref) {
+        Validate.notNull(ref);
+
+        ByteBuffer view = ref.segment.buffer.duplicate();
+        view.position(ref.offset);
+        byte[] data = new byte[ref.length];
+        view.get(data);
+        return data;
+    }
+
+    long size() {
+        return size;
+    }
+
+    void force() {
+        if (!segments.isEmpty()) {
+            segments.get(segments.size() - 1).buffer.force(); // anything before the last segment was forced when it got rolled over
+        }
+    }
+
+    void beginCompaction() {
+        Validate.validState(oldGeneration == -1L, "Already compacting");
+
+        oldGeneration = generation;
+        oldSegments = segments;
+        oldSize = size;
+
+        generation++;
+        segments = new ArrayList<>();
+        size = 0L;
+    }
+
+    void commitCompaction() throws IOException {
+        Validate.validState(oldGeneration != -1L, "Not compacting");
+
+        force();
+        Files.createFile(directory.resolve(markerName(generation)));
+
+        for (Segment segment : oldSegments) {
+            deleteQuietly(segment.path);
+        }
+        deleteQuietly(directory.resolve(markerName(oldGeneration)));
+
+        oldGeneration = -1L;
+        oldSegments = null;
+        oldSize = 0L;
+    }
+
+    void abortCompaction() {
+        Validate.validState(oldGeneration != -1L, "Not compacting");
+
+        for (Segment segment : segments) {
+            deleteQuietly(segment.path);
+        }
+
+        generation = oldGeneration;
+        segments = oldSegments;
+        size = oldSize;
+
+        oldGeneration = -1L;
+        oldSegments = null;
+        oldSize = 0L;
+    }
+
+    @Override
+    public void close() {
+        force();
+        // no way to explicitly unmap on java 8, GC will take care of it
+    }
+
+    private Segment map(Path path, int minSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, CREATE, READ, WRITE)) {
+            long mapSize = Math.max(Math.max(segmentSize, minSize), channel.size());
+            Validate.validState(mapSize <= Integer.MAX_VALUE, "Segment too large: %s", path);
+            return new Segment(path, channel.map(READ_WRITE, 0L, mapSize)); // mapping stays valid after the channel is closed
+        }
+    }
+
+    private static long replay(Segment segment, BiConsumer<Ref, byte[]> replayer) {
+        MappedByteBuffer buffer = segment.buffer;
+        long replayed = 0L;
+        boolean torn = false;
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int offset = buffer.position();
+            int length = buffer.getInt(offset);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || length > buffer.remaining() - HEADER_SIZE) {
+                torn = true;
+                break;
+            }
+
+            byte[] body = new byte[length];
+            buffer.position(offset + HEADER_SIZE);
+            buffer.get(body);
+
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(offset + Integer.BYTES)) {
+                buffer.position(offset);
+                torn = true;
+                break;
+            }
+
+            replayer.accept(new Ref(segment, offset + HEADER_SIZE, length), body);
+            replayed += HEADER_SIZE + length;
+        }
+
+        if (torn) {
+            // Zero out the remainder, so that a torn record followed by new appends can't look valid on the next replay
+            LOG.warn("Torn record in {} at {}, ignoring remainder of segment", segment.path, buffer.position());
+            int position = buffer.position();
+            while (buffer.hasRemaining()) {
+                buffer.put((byte) 0);
+            }
+            buffer.position(position);
+        }
+
+        return replayed;
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ioe) {
+            LOG.warn("Unable to delete log file {}", path, ioe);
+        }
+    }
+
+    private static String segmentName(long generation, int sequence) {
+        return generation + "-" + sequence + ".log";
+    }
+
+    private static String markerName(long generation) {
+        return generation + ".done";
+    }
+
+    // Points to a record body, or to a slice of a record body
+    static final class Ref {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Ref(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        Ref slice(int sliceOffset, int sliceLength) {
+            Validate.isTrue(sliceOffset >= 0 && sliceLength >= 0 && sliceOffset + sliceLength <= length);
+            return new Ref(segment, offset + sliceOffset, sliceLength);
+        }
+
+        int length() {
+            return length;
+        }
+    }
+
+    private static final class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+}
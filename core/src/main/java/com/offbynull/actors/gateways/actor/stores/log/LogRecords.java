@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.actor.stores.log;
+
+import com.offbynull.actors.shuttle.Address;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+
+/**
+ * Encodes the records that the local disk storage engines write to their logs. Each record starts with a type byte followed by the
+ * address of the actor it applies to. For records that carry data (actor and message records), the data is always the tail end of the
+ * record, so a {@code data.length} slice off the end of the record is the data.
+ * <p>
+ * This class is internal to the storage engines -- it's only public so that it can be shared between packages.
+ * @author Kasra Faghihi
+ */
+public final class LogRecords {
+
+    /**
+     * Actor record: {@code [type][address][checkpoint:boolean][checkpointInstance:int][checkpointTime:long][length:int][data]}.
+     */
+    public static final byte RECORD_ACTOR = 1;
+    /**
+     * Message record: {@code [type][address][length:int][data]}.
+     */
+    public static final byte RECORD_MESSAGE = 2;
+    /**
+     * Take record (head of message queue removed): {@code [type][address]}.
+     */
+    public static final byte RECORD_TAKE = 3;
+    /**
+     * Discard record (actor removed): {@code [type][address]}.
+     */
+    public static final byte RECORD_DISCARD = 4;
+    /**
+     * Checkpoint hit record: {@code [type][address][checkpointInstance:int]}.
+     */
+    public static final byte RECORD_CHECKPOINT_HIT = 5;
+    /**
+     * Snapshot record. Layout is specific to the storage engine that writes it.
+     */
+    public static final byte RECORD_SNAPSHOT = 6;
+
+    private LogRecords() {
+        // do nothing
+    }
+
+    /**
+     * Encode an actor record.
+     * @param address actor address
+     * @param checkpoint {@code true} if {@code data} is also the actor's checkpoint
+     * @param checkpointInstance checkpoint instance (ignored on replay if {@code checkpoint} is {@code false})
+     * @param checkpointTime checkpoint time (ignored on replay if {@code checkpoint} is {@code false})
+     * @param data serialized actor
+     * @return encoded record
+     */
+    public static byte[] encodeActor(Address address, boolean checkpoint, int checkpointInstance, Instant checkpointTime, byte[] data) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeByte(RECORD_ACTOR);
+            dos.writeUTF(address.toString());
+            dos.writeBoolean(checkpoint);
+            dos.writeInt(checkpointInstance);
+            dos.writeLong(toMillis(checkpointTime));
+            dos.writeInt(data.length);
+            dos.write(data);
+            return baos.toByteArray();
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe); // should never happen
+        }
+    }
+
+    /**
+     * Encode a message record.
+     * @param address destination actor address
+     * @param data serialized message
+     * @return encoded record
+     */
+    public static byte[] encodeMessage(Address address, byte[] data) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeByte(RECORD_MESSAGE);
+            dos.writeUTF(address.toString());
+            dos.writeInt(data.length);
+            dos.write(data);
+            return baos.toByteArray();
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe); // should never happen
+        }
+    }
+
+    /**
+     * Encode a record that's only made up of a type and an address.
+     * @param type record type ({@link #RECORD_TAKE} or {@link #RECORD_DISCARD})
+     * @param address actor address
+     * @return encoded record
+     */
+    public static byte[] encodeAddressOnly(byte type, Address address) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeByte(type);
+            dos.writeUTF(address.toString());
+            return baos.toByteArray();
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe); // should never happen
+        }
+    }
+
+    /**
+     * Encode a checkpoint hit record.
+     * @param address actor address
+     * @param checkpointInstance checkpoint instance that was hit
+     * @return encoded record
+     */
+    public static byte[] encodeCheckpointHit(Address address, int checkpointInstance) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeByte(RECORD_CHECKPOINT_HIT);
+            dos.writeUTF(address.toString());
+            dos.writeInt(checkpointInstance);
+            return baos.toByteArray();
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe); // should never happen
+        }
+    }
+
+    /**
+     * Read a length-prefixed block of data, as written out for actor and message records.
+     * @param dis stream to read from
+     * @return data
+     * @throws IOException if the underlying stream throws an exception
+     */
+    public static byte[] readBytes(DataInputStream dis) throws IOException {
+        byte[] data = new byte[dis.readInt()];
+        dis.readFully(data);
+        return data;
+    }
+
+    /**
+     * Convert a time to milliseconds since epoch, clamping times that don't fit in a {@code long} ({@link Instant#MIN} /
+     * {@link Instant#MAX}).
+     * @param instant time
+     * @return milliseconds since epoch
+     */
+    public static long toMillis(Instant instant) {
+        try {
+            return instant.toEpochMilli();
+        } catch (ArithmeticException ae) {
+            return instant.isAfter(Instant.EPOCH) ? Long.MAX_VALUE : Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Inverse of {@link #toMillis(java.time.Instant) }.
+     * @param millis milliseconds since epoch
+     * @return time
+     */
+    public static Instant fromMillis(long millis) {
+        if (millis == Long.MAX_VALUE) {
+            return Instant.MAX;
+        }
+        return Instant.ofEpochMilli(millis);
+    }
+
+    /**
+     * Calculate the time a checkpoint should hit at, clamping to {@link Instant#MAX} on overflow.
+     * @param timeout checkpoint timeout in milliseconds
+     * @return checkpoint time
+     */
+    public static Instant calculateCheckpointTime(long timeout) {
+        try {
+            return Instant.now().plusMillis(timeout);
+        } catch (ArithmeticException ae) {
+            return Instant.MAX;
+        }
+    }
+}
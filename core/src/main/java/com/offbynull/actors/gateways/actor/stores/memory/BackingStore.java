@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.actor.stores.memory;
+
+import com.offbynull.actors.shuttle.Address;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Durable storage that a {@link MemoryStore} writes behind to.
+ * <p>
+ * The state of each actor (serialized actor, checkpoint, and queued messages) is handed over as a single opaque blob keyed by the actor's
+ * address, so implementations only need to be able to replace, remove, and enumerate blobs. Implementations must be robust. It should only
+ * throw exceptions for critical errors -- a {@link MemoryStore} retries failed writes on its next write-behind pass.
+ * @author Kasra Faghihi
+ */
+public interface BackingStore {
+
+    /**
+     * Applies a batch of changes atomically.
+     * @param puts actor address to blob for actors to add or replace
+     * @param removes addresses of actors to remove (actors that don't exist should be ignored)
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IllegalStateException if the operation could not complete successfully
+     */
+    void write(Map<Address, byte[]> puts, Collection<Address> removes);
+
+    /**
+     * Passes every stored actor address and blob to {@code loader}.
+     * @param loader loader to pass to
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalStateException if the operation could not complete successfully
+     */
+    void load(BiConsumer<Address, byte[]> loader);
+}
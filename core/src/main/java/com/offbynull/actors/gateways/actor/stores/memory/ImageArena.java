@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.actor.stores.memory;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.apache.commons.lang3.Validate;
+
+// Off-heap storage for serialized actor images (actor state and checkpoint state) of a single lock region. Unlike queued messages, images
+// get replaced in no particular order, so this is a size-class allocator rather than a bump allocator: each power-of-2 block size from
+// 64 bytes up to 64KB gets its own slabs, carved into blocks of that size, with freed blocks going onto an intrusive free list (the
+// next-free handle is written into the freed block itself, so free lists take up no heap). Images bigger than the largest block size get a
+// direct buffer of their own.
+//
+// Each block is [storedLength:int][rawLength:int][data]. Images at or above a size threshold get compressed (deflate at its fastest level),
+// but the compressed form is only kept if it's actually smaller -- rawLength is -1 if the data isn't compressed.
+//
+// A handle is (slab index << 32 | offset). Slabs for block sizes are never released, their blocks just get reused.
+//
+// The deflater/inflater hold native zlib memory that's only released by close() (or, eventually, finalization).
+//
+// Not thread-safe -- the owning lock region guards access.
+final class ImageArena implements Closeable {
+
+    static final long NIL = -1L;
+
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final int MIN_BLOCK_SHIFT = 6;  // 64 bytes
+    private static final int MAX_BLOCK_SHIFT = 16; // 64KB
+    private static final int SLAB_SIZE = 256 * 1024;
+    private static final int COMPRESSION_THRESHOLD = 256;
+
+    private final boolean compress;
+    private final Deflater deflater;
+    private final Inflater inflater;
+
+    private final ArrayList<Slab> slabs;          // slab index -> slab (null if index is free)
+    private final ArrayDeque<Integer> freeIndices; // slab indices that can be reused
+    private final long[] freeHeads;                // block size class -> head of free list
+    private final Slab[] carving;                  // block size class -> slab that new blocks are being carved out of
+
+    private boolean closed;
+
+    ImageArena(boolean compress) {
+        this.compress = compress;
+        this.deflater = compress ? new Deflater(Deflater.BEST_SPEED, true) : null;
+        this.inflater = compress ? new Inflater(true) : null;
+
+        int classCount = MAX_BLOCK_SHIFT - MIN_BLOCK_SHIFT + 1;
+        this.slabs = new ArrayList<>();
+        this.freeIndices = new ArrayDeque<>();
+        this.freeHeads = new long[classCount];
+        this.carving = new Slab[classCount];
+        Arrays.fill(freeHeads, NIL);
+    }
+
+    long allocate(byte[] data) {
+        Validate.notNull(data);
+        Validate.validState(!closed, "Arena closed");
+
+        byte[] stored = data;
+        int rawLength = -1;
+        if (compress && data.length >= COMPRESSION_THRESHOLD) {
+            byte[] compressed = deflate(data);
+            if (compressed != null) {
+                stored = compressed;
+                rawLength = data.length;
+            }
+        }
+
+        int blockSize = HEADER_SIZE + stored.length;
+        long handle = blockSize > (1 << MAX_BLOCK_SHIFT) ? allocateDedicated(blockSize) : allocateBlock(sizeClass(blockSize));
+
+        ByteBuffer buffer = slab(handle).buffer;
+        int offset = offset(handle);
+        buffer.putInt(offset, stored.length);
+        buffer.putInt(offset + Integer.BYTES, rawLength);
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + HEADER_SIZE);
+        view.put(stored);
+
+        return handle;
+    }
+
+    byte[] read(long handle) {
+        Validate.validState(!closed, "Arena closed");
+
+        ByteBuffer buffer = slab(handle).buffer;
+        int offset = offset(handle);
+        int storedLength = buffer.getInt(offset);
+        int rawLength = buffer.getInt(offset + Integer.BYTES);
+
+        byte[] stored = new byte[storedLength];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + HEADER_SIZE);
+        view.get(stored);
+
+        return rawLength == -1 ? stored : inflate(stored, rawLength);
+    }
+
+    void free(long handle) {
+        Slab slab = slab(handle);
+        int slabIndex = (int) (handle >>> 32);
+        if (slab.sizeClass == -1) {
+            slabs.set(slabIndex, null); // dedicated, leave buffer to GC
+            freeIndices.push(slabIndex);
+            return;
+        }
+
+        slab.buffer.putLong(offset(handle), freeHeads[slab.sizeClass]);
+        freeHeads[slab.sizeClass] = handle;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (compress) {
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    private long allocateBlock(int sizeClass) {
+        long head = freeHeads[sizeClass];
+        if (head != NIL) {
+            freeHeads[sizeClass] = slab(head).buffer.getLong(offset(head));
+            return head;
+        }
+
+        int blockSize = 1 << (sizeClass + MIN_BLOCK_SHIFT);
+        Slab slab = carving[sizeClass];
+        if (slab == null || slab.buffer.capacity() - slab.position < blockSize) {
+            slab = new Slab(ByteBuffer.allocateDirect(SLAB_SIZE), sizeClass);
+            slab.index = addSlab(slab);
+            carving[sizeClass] = slab;
+        }
+
+        int offset = slab.position;
+        slab.position += blockSize;
+        return ((long) slab.index << 32) | offset;
+    }
+
+    private long allocateDedicated(int size) {
+        Slab slab = new Slab(ByteBuffer.allocateDirect(size), -1);
+        slab.index = addSlab(slab);
+        return (long) slab.index << 32;
+    }
+
+    private int addSlab(Slab slab) {
+        if (freeIndices.isEmpty()) {
+            slabs.add(slab);
+            return slabs.size() - 1;
+        }
+        int index = freeIndices.pop();
+        slabs.set(index, slab);
+        return index;
+    }
+
+    private byte[] deflate(byte[] data) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+
+        byte[] out = new byte[data.length - 1]; // anything that doesn't come out smaller isn't worth keeping
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                return null;
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+
+        return Arrays.copyOf(out, length);
+    }
+
+    private byte[] inflate(byte[] stored, int rawLength) {
+        inflater.reset();
+        inflater.setInput(stored);
+
+        byte[] out = new byte[rawLength];
+        try {
+            int length = 0;
+            while (length < rawLength) {
+                int read = inflater.inflate(out, length, rawLength - length);
+                Validate.validState(read != 0 || !inflater.needsInput(), "Truncated image");
+                length += read;
+            }
+        } catch (DataFormatException dfe) {
+            throw new IllegalStateException(dfe); // should never happen
+        }
+        return out;
+    }
+
+    private Slab slab(long handle) {
+        Validate.isTrue(handle != NIL);
+        return slabs.get((int) (handle >>> 32));
+    }
+
+    private static int offset(long handle) {
+        return (int) handle;
+    }
+
+    private static int sizeClass(int blockSize) {
+        int shift = 32 - Integer.numberOfLeadingZeros(blockSize - 1); // ceil(log2(blockSize))
+        return Math.max(shift, MIN_BLOCK_SHIFT) - MIN_BLOCK_SHIFT;
+    }
+
+    private static final class Slab {
+        private final ByteBuffer buffer;
+        private final int sizeClass; // -1 if dedicated to a single image
+        private int index;
+        private int position;
+
+        Slab(ByteBuffer buffer, int sizeClass) {
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+        }
+    }
+}
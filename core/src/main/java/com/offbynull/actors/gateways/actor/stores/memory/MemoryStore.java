@@ -20,34 +20,89 @@ import com.offbynull.actors.common.BestEffortSerializer;
 import com.offbynull.actors.gateways.actor.SerializableActor;
 import com.offbynull.actors.shuttle.Address;
 import com.offbynull.actors.shuttle.Message;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import static java.nio.ByteBuffer.wrap;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import static java.util.Arrays.asList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.collections4.list.UnmodifiableList;
 import static org.apache.commons.collections4.list.UnmodifiableList.unmodifiableList;
 import org.apache.commons.lang3.Validate;
 import com.offbynull.actors.gateways.actor.Store;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.RECORD_ACTOR;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.RECORD_CHECKPOINT_HIT;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.RECORD_DISCARD;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.RECORD_MESSAGE;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.RECORD_TAKE;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.calculateCheckpointTime;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.encodeActor;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.encodeAddressOnly;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.encodeCheckpointHit;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.encodeMessage;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.fromMillis;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.readBytes;
+import static com.offbynull.actors.gateways.actor.stores.log.LogRecords.toMillis;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A storage engine that keeps all actors and messages serialized in memory.
+ * A storage engine that keeps all actors and messages serialized in memory. Serialized actors and queued messages are kept off-heap (in
+ * direct buffers), so the number of stored actors and queued messages doesn't drive GC -- make sure the JVM's direct memory limit
+ * ({@code -XX:MaxDirectMemorySize}) is large enough to hold them. Larger serialized actors are compressed.
+ * <p>
+ * Optionally, changes can be persisted to a write-ahead log so that the contents of the storage engine survive a restart. Writes to the
+ * log are group committed: storing actors/messages and discarding actors block until the change is on disk, but concurrent callers share
+ * fsyncs. Taking work out of storage doesn't block on the log -- those changes go out with the next group commit or the next periodic
+ * flush, so a crash may end up re-delivering messages that were recently taken. Each lock region is periodically snapshotted so that the
+ * log doesn't grow without bound, and on startup lock regions are recovered (snapshot + log tail) in parallel.
+ * <p>
+ * When persisting, actors can also optionally be passivated: actors that have gone idle (no messages queued, not processing, and no
+ * checkpoint coming up) are moved out of memory into a file in the same directory, leaving behind only a small slot in an off-heap index.
+ * A passivated actor is transparently brought back into memory when a message comes in for it, when it's stored or discarded, and shortly
+ * before its checkpoint is due. This lets a node host far more logical actors than it has memory for, so long as most are idle.
+ * <p>
+ * Alternatively, changes can be written behind to a {@link BackingStore} (e.g. a database). Everything is still served from memory, but the
+ * state of changed actors is periodically written out in batches, with repeated changes to the same actor coalesced into a single write.
+ * On startup, memory is warmed from the backing store.
  * @author Kasra Faghihi
  */
 public final class MemoryStore implements Store {
     
     private static final Logger LOGGER = LoggerFactory.getLogger(MemoryStore.class);
+
+    private static final long FLUSH_INTERVAL = 100L;
+    private static final long CLOSE_TIMEOUT = 10000L;
+    private static final int SLAB_SIZE = 1024 * 1024;
+
     
     private final UnmodifiableList<LockRegion> lockRegions;
     private final String prefix;
+    private final ScheduledExecutorService maintenance; // null if not persisting
+    private final long passivateAfter; // -1 if not passivating
+    private final BackingStore backingStore; // null if not writing behind
+    private final long maxLag; // -1 if not writing behind
     private volatile boolean closed;
 
     /**
@@ -61,21 +116,172 @@ public final class MemoryStore implements Store {
     public static MemoryStore create(String prefix, int concurrency) {
         Validate.notNull(prefix);
         Validate.isTrue(concurrency > 0);
-        return new MemoryStore(prefix, concurrency);
+        return new MemoryStore(prefix, concurrency, null, null, null, null, null);
+    }
+
+    /**
+     * Creates a {@link MemoryStore} object that persists to a write-ahead log. Equivalent to calling
+     * {@code create(prefix, concurrency, directory, Duration.ofMinutes(1L))}.
+     * @param prefix prefix for the actor gateway that this storage engine belongs to
+     * @param concurrency concurrency level (should be set to number of cores or larger)
+     * @param directory directory to keep the write-ahead log and snapshots in
+     * @return new memory store
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code concurrency <= 0}
+     * @throws IllegalStateException if recovery from {@code directory} failed
+     */
+    public static MemoryStore create(String prefix, int concurrency, Path directory) {
+        return create(prefix, concurrency, directory, Duration.ofMinutes(1L));
     }
 
-    private MemoryStore(String prefix, int concurrency) {
+    /**
+     * Creates a {@link MemoryStore} object that persists to a write-ahead log. If {@code directory} already contains a write-ahead
+     * log/snapshots, the storage engine's contents get recovered from them.
+     * <p>
+     * Lock regions are persisted independently, so {@code concurrency} must be the same every time the same {@code directory} is used.
+     * @param prefix prefix for the actor gateway that this storage engine belongs to
+     * @param concurrency concurrency level (should be set to number of cores or larger)
+     * @param directory directory to keep the write-ahead log and snapshots in
+     * @param snapshotInterval how often to snapshot
+     * @return new memory store
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code concurrency <= 0} or {@code snapshotInterval} isn't positive
+     * @throws IllegalStateException if recovery from {@code directory} failed
+     */
+    public static MemoryStore create(String prefix, int concurrency, Path directory, Duration snapshotInterval) {
         Validate.notNull(prefix);
+        Validate.notNull(directory);
+        Validate.notNull(snapshotInterval);
         Validate.isTrue(concurrency > 0);
+        Validate.isTrue(!snapshotInterval.isNegative() && !snapshotInterval.isZero());
+        return new MemoryStore(prefix, concurrency, directory, snapshotInterval, null, null, null);
+    }
+
+    /**
+     * Creates a {@link MemoryStore} object that persists to a write-ahead log and passivates idle actors. Identical to
+     * {@link #create(java.lang.String, int, java.nio.file.Path, java.time.Duration) }, except that actors that have been idle for
+     * {@code passivateAfter} get moved out of memory and into {@code directory} until they're needed again.
+     * @param prefix prefix for the actor gateway that this storage engine belongs to
+     * @param concurrency concurrency level (should be set to number of cores or larger)
+     * @param directory directory to keep the write-ahead log, snapshots, and passivated actors in
+     * @param snapshotInterval how often to snapshot
+     * @param passivateAfter how long an actor must be idle for before it gets passivated
+     * @return new memory store
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code concurrency <= 0}, or if {@code snapshotInterval} or {@code passivateAfter} isn't positive
+     * @throws IllegalStateException if recovery from {@code directory} failed
+     */
+    public static MemoryStore create(String prefix, int concurrency, Path directory, Duration snapshotInterval, Duration passivateAfter) {
+        Validate.notNull(prefix);
+        Validate.notNull(directory);
+        Validate.notNull(snapshotInterval);
+        Validate.notNull(passivateAfter);
+        Validate.isTrue(concurrency > 0);
+        Validate.isTrue(!snapshotInterval.isNegative() && !snapshotInterval.isZero());
+        Validate.isTrue(!passivateAfter.isNegative() && !passivateAfter.isZero());
+        return new MemoryStore(prefix, concurrency, directory, snapshotInterval, passivateAfter, null, null);
+    }
+
+    /**
+     * Creates a {@link MemoryStore} object that writes behind to durable storage. On creation, the storage engine's contents get loaded
+     * from {@code backingStore}.
+     * <p>
+     * Changes are collected and written out to {@code backingStore} in batches (roughly every {@code maxLag / 4}), so the backing store
+     * sees at most 1 write per changed actor per batch regardless of how many times that actor changed. If the backing store falls behind
+     * (or fails) such that changes older than {@code maxLag} haven't been written out, storing actors/messages and discarding actors blocks
+     * until it catches up. Anything outstanding gets written out on {@link #close() }.
+     * <p>
+     * Changes that haven't been written out yet are lost on a crash, so a crash may end up losing recent changes (up to {@code maxLag}
+     * worth) and re-delivering messages that were recently taken.
+     * @param prefix prefix for the actor gateway that this storage engine belongs to
+     * @param concurrency concurrency level (should be set to number of cores or larger)
+     * @param backingStore durable storage to write behind to
+     * @param maxLag how far behind {@code backingStore} may fall
+     * @return new memory store
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code concurrency <= 0} or {@code maxLag} isn't positive
+     * @throws IllegalStateException if loading from {@code backingStore} failed
+     */
+    public static MemoryStore create(String prefix, int concurrency, BackingStore backingStore, Duration maxLag) {
+        Validate.notNull(prefix);
+        Validate.notNull(backingStore);
+        Validate.notNull(maxLag);
+        Validate.isTrue(concurrency > 0);
+        Validate.isTrue(!maxLag.isNegative() && !maxLag.isZero());
+        return new MemoryStore(prefix, concurrency, null, null, null, backingStore, maxLag);
+    }
+
+    private MemoryStore(String prefix, int concurrency, Path directory, Duration snapshotInterval, Duration passivateAfter,
+            BackingStore backingStore, Duration maxLag) {
+        Validate.notNull(prefix);
+        Validate.isTrue(concurrency > 0);
+        Validate.isTrue(passivateAfter == null || directory != null);
+        Validate.isTrue(backingStore == null || directory == null);
 
         LockRegion[] regions = new LockRegion[concurrency];
-        for (int i = 0; i < regions.length; i++) {
-            regions[i] = new LockRegion();
+        if (directory == null) {
+            for (int i = 0; i < regions.length; i++) {
+                regions[i] = new LockRegion(backingStore != null);
+            }
+        } else {
+            // Regions are independent of each other, so recover them in parallel
+            try {
+                IntStream.range(0, concurrency).parallel().forEach(i -> {
+                    try {
+                        regions[i] = new LockRegion(directory, "region" + i, passivateAfter);
+                    } catch (IOException ioe) {
+                        throw new UncheckedIOException(ioe);
+                    }
+                });
+            } catch (RuntimeException re) {
+                asList(regions).stream().filter(r -> r != null).forEach(r -> r.close());
+                throw new IllegalStateException("Unable to recover", re);
+            }
         }
 
         this.prefix = prefix;
         this.lockRegions = (UnmodifiableList<LockRegion>) unmodifiableList(new ArrayList<>(asList(regions)));
         this.closed = false;
+        this.passivateAfter = passivateAfter == null ? -1L : Math.max(passivateAfter.toMillis(), 1L);
+        this.backingStore = backingStore;
+        this.maxLag = maxLag == null ? -1L : Math.max(maxLag.toMillis(), 1L);
+
+        if (backingStore != null) {
+            backingStore.load((address, entry) -> {
+                if (address.size() == 2 && address.getElement(0).equals(prefix)) { // backing store may be shared with other gateways
+                    LockRegion lockRegion = getLockRegion(address);
+                    lockRegion.load(entry);
+                }
+            });
+            lockRegions.forEach(LockRegion::recovered);
+        }
+
+        if (directory == null && backingStore == null) {
+            this.maintenance = null;
+        } else if (directory == null) {
+            this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r);
+                thread.setName("MemoryStoreWriteBehind - " + prefix);
+                thread.setDaemon(true);
+                return thread;
+            });
+            long writeBehindMillis = Math.max(this.maxLag / 4L, 10L);
+            this.maintenance.scheduleWithFixedDelay(this::writeBehind, writeBehindMillis, writeBehindMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r);
+                thread.setName("MemoryStoreMaintenance - " + prefix);
+                thread.setDaemon(true);
+                return thread;
+            });
+            long snapshotMillis = snapshotInterval.toMillis();
+            this.maintenance.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+            this.maintenance.scheduleWithFixedDelay(this::snapshot, snapshotMillis, snapshotMillis, TimeUnit.MILLISECONDS);
+            if (passivateAfter != null) {
+                long passivateMillis = Math.max(this.passivateAfter / 2L, 10L);
+                this.maintenance.scheduleWithFixedDelay(this::passivate, passivateMillis, passivateMillis, TimeUnit.MILLISECONDS);
+            }
+        }
     }
 
     @Override
@@ -97,34 +303,41 @@ public final class MemoryStore implements Store {
         }
 
         LockRegion lockRegion = getLockRegion(actorAddr);
+        long seq = -1L;
         synchronized (lockRegion) {
-            boolean exists = lockRegion.actors.containsKey(actorAddr);
+            awaitWriteBehind(lockRegion);
+            boolean exists = lockRegion.activate(actorAddr) != null;
 
             byte[] serializedActor = lockRegion.serializer.serialize(actor);
             
             if (!exists) {
                 ActorData actorData = new ActorData();
                 
-                actorData.msgQueue = new LinkedList<>();
-                actorData.data = serializedActor;
+                actorData.address = actorAddr;
+                lockRegion.setImage(actorData, serializedActor, true);
                 actorData.checkpointInstance = actor.getCheckpointInstance();
-                actorData.checkpointData = serializedActor;
                 actorData.checkpointTime = calculateCheckpointTime(actor.getCheckpointTimeout());
                 actorData.checkpointInstance = actor.getCheckpointInstance();                
                 lockRegion.actors.put(actorAddr, actorData);
                 lockRegion.timeouts.add(actorData);
                 
                 lockRegion.actors.put(actorAddr, actorData);
+                lockRegion.markDirty(actorData);
+                seq = log(lockRegion,
+                        encodeActor(actorAddr, true, actorData.checkpointInstance, actorData.checkpointTime, serializedActor));
             } else {
                 ActorData actorData = lockRegion.actors.get(actorAddr);
                 
-                actorData.data = serializedActor;
+                lockRegion.setImage(actorData, serializedActor, false);
+                lockRegion.markDirty(actorData);
                 if (actor.getCheckpointInstance() < actorData.checkpointInstance) { // if checkpoint inst is older
+                    seq = log(lockRegion, encodeActor(actorAddr, false, 0, Instant.MIN, serializedActor));
                     // This is an old instance -- a checkpoint has already hit so it wouldn't be a good idea to put this back in.
                     LOGGER.warn("Ignoring update for actor with old checkpoint instance: {} vs {} for {}",
                             actorData.checkpointInstance,
                             actor.getCheckpointInstance(),
                             actorAddr);
+                    sync(lockRegion, seq); // rare, so fine to wait while holding the lock
                     return;
                 }
 
@@ -132,14 +345,18 @@ public final class MemoryStore implements Store {
                     // Update checkpoint details
                     LOGGER.debug("Checkpoint actor: {}", actorAddr);
                     lockRegion.timeouts.remove(actorData);
-                    actorData.checkpointData = serializedActor;
+                    lockRegion.checkpointImage(actorData);
                     actorData.checkpointTime = calculateCheckpointTime(actor.getCheckpointTimeout());
                     actorData.checkpointInstance = actor.getCheckpointInstance();
                     lockRegion.timeouts.add(actorData);
+                    seq = log(lockRegion, encodeActor(actorAddr, true, actorData.checkpointInstance, actorData.checkpointTime,
+                            serializedActor));
+                } else {
+                    seq = log(lockRegion, encodeActor(actorAddr, false, 0, Instant.MIN, serializedActor));
                 }
                 
                 // If msgs are available, add to availableSet. If is being put back into storage after processing, remove from processingSet
-                if (!actorData.msgQueue.isEmpty()) {
+                if (actorData.msgCount > 0) {
                     lockRegion.availableSet.add(actorAddr);
                 }
                 lockRegion.processingSet.remove(actorAddr);
@@ -147,6 +364,8 @@ public final class MemoryStore implements Store {
 
             LOGGER.debug("Stored actor: {} ({})", actorAddr, exists ? "existing" : "new");
         }
+        
+        sync(lockRegion, seq);
     }
 
     @Override
@@ -160,18 +379,25 @@ public final class MemoryStore implements Store {
             Validate.isTrue(dstAddr.getElement(0).equals(prefix), "Actor address must start with %s: %s", prefix, dstAddr);
         });
 
+        Map<LockRegion, Long> seqs = new HashMap<>();
         for (Message message : messages) {
             Address dstAddr = message.getDestinationAddress();
             Address dstActorAddr = Address.of(prefix, dstAddr.getElement(1));
 
             LockRegion lockRegion = getLockRegion(dstActorAddr);
             synchronized (lockRegion) {
-                ActorData dstActorData = lockRegion.actors.get(dstActorAddr);
+                awaitWriteBehind(lockRegion);
+                ActorData dstActorData = lockRegion.activate(dstActorAddr);
 
                 if (dstActorData != null) {
                     byte[] serializedMsg = lockRegion.serializer.serialize(message);
-                    dstActorData.msgQueue.addLast(serializedMsg);
+                    lockRegion.enqueue(dstActorData, serializedMsg);
+                    lockRegion.markDirty(dstActorData);
                     lockRegion.pendingMsgCount++;
+                    long seq = log(lockRegion, encodeMessage(dstActorAddr, serializedMsg));
+                    if (seq != -1L) {
+                        seqs.put(lockRegion, seq);
+                    }
                     
                     // mark as available if not processing
                     if (!lockRegion.processingSet.contains(dstActorAddr)) {
@@ -182,6 +408,8 @@ public final class MemoryStore implements Store {
                 }
             }
         }
+        
+        seqs.forEach((lockRegion, seq) -> sync(lockRegion, seq));
     }
     
     @Override
@@ -192,10 +420,18 @@ public final class MemoryStore implements Store {
 
         Address lockAddr = address;
         LockRegion lockRegion = getLockRegion(lockAddr);
+        long seq = -1L;
         synchronized (lockRegion) {
+            awaitWriteBehind(lockRegion);
             Address actorAddr = address;
+            lockRegion.activate(actorAddr); // if passivated, bring it back so that it gets discarded like any other actor
             ActorData actorData = lockRegion.actors.remove(actorAddr);
             if (actorData != null) {
+                seq = log(lockRegion, encodeAddressOnly(RECORD_DISCARD, actorAddr));
+                lockRegion.markDirty(actorData);
+                lockRegion.pendingMsgCount -= actorData.msgCount;
+                lockRegion.clear(actorData);
+                lockRegion.freeImages(actorData);
                 lockRegion.timeouts.remove(actorData);
                 lockRegion.availableSet.remove(actorAddr);
                 lockRegion.processingSet.remove(actorAddr);
@@ -203,6 +439,8 @@ public final class MemoryStore implements Store {
             
             LOGGER.debug("Discarded actor: {}", actorAddr);
         }
+        
+        sync(lockRegion, seq);
     }
 
     @Override
@@ -218,12 +456,14 @@ public final class MemoryStore implements Store {
 
                     // Remove message and deserialize it + deserialize the actor
                     ActorData actorData = lockRegion.actors.get(actorAddr);
-                    byte[] serializedMsg = actorData.msgQueue.removeFirst();
-                    byte[] serializedActor = actorData.data;
+                    byte[] serializedMsg = lockRegion.dequeue(actorData);
+                    lockRegion.markDirty(actorData);
+                    byte[] serializedActor = lockRegion.images.read(actorData.data);
                     Message msg = lockRegion.serializer.deserialize(serializedMsg);
                     SerializableActor actor = lockRegion.serializer.deserialize(serializedActor);
 
                     lockRegion.pendingMsgCount--;
+                    log(lockRegion, encodeAddressOnly(RECORD_TAKE, actorAddr)); // not synced, see class docs
 
                     // Remove from available and add to processing, also remove from timeouts because we don't want the actor triggering the
                     // stale message while it's processing
@@ -241,13 +481,15 @@ public final class MemoryStore implements Store {
                     Instant checkpointTime = actorData.checkpointTime;
 
                     if (now.isAfter(checkpointTime) || now.equals(checkpointTime)) {
-                        byte[] serializedActor = actorData.checkpointData;
+                        byte[] serializedActor = lockRegion.images.read(actorData.checkpointData);
                         SerializableActor actor = lockRegion.serializer.deserialize(serializedActor);
                         
                         // Inc expected checkpointInstance by 1, so any stores for the prev checkpoint instance will be ignored. Also, set
                         // checkpoint updated flag to true, so it'll re-apply the checkpoint message and timeout that was set.
                         actorData.checkpointInstance++;
+                        lockRegion.markDirty(actorData);
                         actor.setCheckpointInstance(actorData.checkpointInstance);
+                        log(lockRegion, encodeCheckpointHit(actor.getSelf(), actorData.checkpointInstance)); // not synced, see class docs
                         actor.setCheckpointUpdated(true);
                         
                         // Remove from timeouts so this checkpoint doesn't get hit again.
@@ -282,6 +524,25 @@ public final class MemoryStore implements Store {
     @Override
     public void close() {
         closed = true;
+
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+            if (backingStore != null) {
+                try {
+                    maintenance.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                writeBehind(); // write out whatever is outstanding
+            }
+        }
+
+        for (LockRegion lockRegion : lockRegions) {
+            synchronized (lockRegion) {
+                lockRegion.close();
+                lockRegion.notifyAll(); // wake up anything waiting on write-behind
+            }
+        }
     }
 
     /**
@@ -303,7 +564,8 @@ public final class MemoryStore implements Store {
     }
 
     /**
-     * Get the number of actors that are stored -- including those idle, awaiting processing, being processed, and stale (approximate).
+     * Get the number of actors that are stored -- including those idle, awaiting processing, being processed, stale, and passivated
+     * (approximate).
      * @return number of actors currently processing
      * @throws IllegalStateException if storage engine has been closed
      */
@@ -314,6 +576,25 @@ public final class MemoryStore implements Store {
         for (LockRegion lockRegion : lockRegions) {
             synchronized (lockRegion) {
                 ret += lockRegion.actors.size();
+                ret += lockRegion.passivated == null ? 0 : lockRegion.passivated.size();
+            }
+        }
+        
+        return ret;
+    }
+
+    /**
+     * Get the number of actors that are passivated (approximate).
+     * @return number of actors currently passivated
+     * @throws IllegalStateException if storage engine has been closed
+     */
+    public int getPassivatedActorCount() {
+        Validate.validState(!closed, "Store closed");
+        
+        int ret = 0;
+        for (LockRegion lockRegion : lockRegions) {
+            synchronized (lockRegion) {
+                ret += lockRegion.passivated == null ? 0 : lockRegion.passivated.size();
             }
         }
         
@@ -356,11 +637,126 @@ public final class MemoryStore implements Store {
         return ret;
     }
 
-    private static Instant calculateCheckpointTime(long timeout) {
+    private void flush() {
+        for (LockRegion lockRegion : lockRegions) {
+            try {
+                lockRegion.wal.flush();
+            } catch (RuntimeException re) {
+                if (!closed) {
+                    LOGGER.error("Unable to flush log", re);
+                }
+            }
+        }
+    }
+
+    void snapshot() { // package-private so tests can trigger it directly
+        for (LockRegion lockRegion : lockRegions) {
+            synchronized (lockRegion) {
+                if (closed) {
+                    return;
+                }
+
+                try {
+                    lockRegion.wal.snapshot(lockRegion::writeSnapshot);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.error("Unable to snapshot", e);
+                }
+            }
+        }
+    }
+
+    void passivate() { // package-private so tests can trigger it directly
+        long now = System.currentTimeMillis();
+        for (LockRegion lockRegion : lockRegions) {
+            synchronized (lockRegion) {
+                if (closed) {
+                    return;
+                }
+
+                try {
+                    lockRegion.passivate(now, passivateAfter);
+                } catch (RuntimeException re) {
+                    LOGGER.error("Unable to passivate", re);
+                }
+            }
+        }
+    }
+
+    void writeBehind() { // package-private so tests can trigger it directly
+        Map<Address, byte[]> puts = new HashMap<>();
+        List<Address> removes = new ArrayList<>();
+        Map<LockRegion, HashMap<Address, ActorData>> batches = new HashMap<>();
+        Map<LockRegion, Long> batchesSince = new HashMap<>();
+        for (LockRegion lockRegion : lockRegions) {
+            synchronized (lockRegion) {
+                if (lockRegion.dirty.isEmpty()) {
+                    continue;
+                }
+
+                for (Entry<Address, ActorData> entry : lockRegion.dirty.entrySet()) {
+                    if (lockRegion.actors.containsKey(entry.getKey())) {
+                        puts.put(entry.getKey(), lockRegion.encodeEntry(entry.getValue()));
+                    } else {
+                        removes.add(entry.getKey());
+                    }
+                }
+
+                batches.put(lockRegion, lockRegion.dirty);
+                batchesSince.put(lockRegion, lockRegion.dirtySince);
+                lockRegion.dirty = new HashMap<>();
+                lockRegion.dirtySince = -1L;
+            }
+        }
+
+        if (batches.isEmpty()) {
+            return;
+        }
+
         try {
-            return Instant.now().plusMillis(timeout);
-        } catch (ArithmeticException ae) {
-            return Instant.MAX;
+            backingStore.write(puts, removes);
+        } catch (RuntimeException re) {
+            LOGGER.error("Unable to write behind, will retry", re);
+            // Put everything back so it gets retried -- anything that got dirty again in the meantime is newer, so it takes precedence
+            batches.forEach((lockRegion, batch) -> {
+                synchronized (lockRegion) {
+                    batch.forEach(lockRegion.dirty::putIfAbsent);
+                    long since = batchesSince.get(lockRegion);
+                    lockRegion.dirtySince = lockRegion.dirtySince == -1L ? since : Math.min(lockRegion.dirtySince, since);
+                }
+            });
+            return;
+        }
+
+        batches.keySet().forEach(lockRegion -> {
+            synchronized (lockRegion) {
+                lockRegion.notifyAll(); // wake up anything waiting on write-behind
+            }
+        });
+    }
+
+    // Call while holding region lock. Blocks while the backing store is too far behind.
+    private void awaitWriteBehind(LockRegion lockRegion) {
+        if (backingStore == null) {
+            return;
+        }
+
+        while (!closed && lockRegion.dirtySince != -1L && System.currentTimeMillis() - lockRegion.dirtySince > maxLag) {
+            try {
+                lockRegion.wait(maxLag); // releases region lock while waiting
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ie);
+            }
+        }
+    }
+
+    private static long log(LockRegion lockRegion, byte[] record) {
+        return lockRegion.wal == null ? -1L : lockRegion.wal.append(record);
+    }
+
+    private static void sync(LockRegion lockRegion, long seq) {
+        if (seq != -1L) {
+            lockRegion.wal.sync(seq);
         }
     }
 
@@ -402,7 +798,8 @@ public final class MemoryStore implements Store {
 
     private static final class LockRegion {
         private final BestEffortSerializer serializer = new BestEffortSerializer();
-        private final HashMap<Address, ActorData> actors = new HashMap<>();         // actor addr -> stored actor obj
+        // actor addr -> stored actor obj (access ordered, see passivate)
+        private final LinkedHashMap<Address, ActorData> actors = new LinkedHashMap<>(16, 0.75f, true);
         private final TreeSet<ActorData> timeouts = new TreeSet<>((x, y) -> {
             int ret = x.checkpointTime.compareTo(y.checkpointTime);
             if (ret == 0 && x != y) { // if we ever encounter the same time (but different objs), treat it as less-than -- we do this
@@ -416,14 +813,371 @@ public final class MemoryStore implements Store {
         
         private final LinkedHashSet<Address> availableSet = new LinkedHashSet<>();  // actors that aren't processing but have msgs ready
         private final LinkedHashSet<Address> processingSet = new LinkedHashSet<>(); // actors currently processing a msg
+
+        private final MessageArena arena = new MessageArena(SLAB_SIZE);
+        private final ImageArena images = new ImageArena(true);
+        private final WriteAheadLog wal; // null if not persisting
+        private final PassivationFile passivated; // null if not passivating
+
+        private HashMap<Address, ActorData> dirty; // actors changed since last write-behind -- null if not writing behind
+        private long dirtySince = -1L;            // when the oldest of those changes happened, -1 if nothing changed
+
+        LockRegion(boolean writeBehind) {
+            wal = null;
+            passivated = null;
+            dirty = writeBehind ? new HashMap<>() : null;
+        }
+
+        LockRegion(Path directory, String name, Duration passivateAfter) throws IOException {
+            wal = WriteAheadLog.open(directory, name, this::readSnapshot, this::replay);
+            try {
+                passivated = passivateAfter == null
+                        ? null
+                        : PassivationFile.open(directory.resolve(name + ".passivated"), Math.max(passivateAfter.toMillis(), 1L));
+            } catch (IOException ioe) {
+                wal.close();
+                throw ioe;
+            }
+
+            recovered();
+        }
+
+        private void recovered() {
+            // Nothing is processing after a restart -- everything goes back to waiting on messages / checkpoints
+            for (ActorData actorData : actors.values()) {
+                timeouts.add(actorData);
+                pendingMsgCount += actorData.msgCount;
+                if (actorData.msgCount > 0) {
+                    availableSet.add(actorData.address);
+                }
+            }
+        }
+
+        // Returns actor if it's stored, bringing it back into memory first if it's passivated. Returns null if actor isn't stored.
+        private ActorData activate(Address address) {
+            ActorData actorData = actors.get(address);
+            if (actorData == null && passivated != null) {
+                byte[] entry = passivated.remove(address);
+                if (entry != null) {
+                    actorData = restore(entry);
+                    LOGGER.debug("Reactivated actor: {}", address);
+                }
+            }
+
+            if (actorData != null) {
+                actorData.lastAccessTime = System.currentTimeMillis();
+            }
+            return actorData;
+        }
+
+        // Reactivates actors whose checkpoints are coming up (so that take() sees them in time), then passivates actors that have been idle
+        // for at least idleTime. Actors are kept in access order, so the walk stops at the first one that was accessed too recently.
+        private void passivate(long now, long idleTime) {
+            passivated.drain(now + idleTime, this::restore);
+
+            Instant earliestCheckpoint = Instant.ofEpochMilli(now + idleTime * 2L); // anything sooner would just get reactivated again
+            Iterator<ActorData> it = actors.values().iterator();
+            while (it.hasNext()) {
+                ActorData actorData = it.next();
+                if (now - actorData.lastAccessTime < idleTime) {
+                    break;
+                }
+                if (actorData.msgCount > 0 || processingSet.contains(actorData.address)
+                        || !actorData.checkpointTime.isAfter(earliestCheckpoint)) {
+                    continue;
+                }
+
+                passivated.put(actorData.address, toMillis(actorData.checkpointTime), encodeEntry(actorData));
+                freeImages(actorData);
+                timeouts.remove(actorData);
+                it.remove();
+                LOGGER.debug("Passivated actor: {}", actorData.address);
+            }
+        }
+
+        private ActorData restore(byte[] entry) {
+            try {
+                ActorData actorData = readEntry(new DataInputStream(new ByteArrayInputStream(entry)));
+                actors.put(actorData.address, actorData);
+                timeouts.add(actorData);
+                return actorData;
+            } catch (IOException ioe) {
+                throw new IllegalStateException(ioe); // should never happen
+            }
+        }
+
+        private byte[] encodeEntry(ActorData actorData) {
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                writeEntry(new DataOutputStream(baos), actorData);
+                return baos.toByteArray();
+            } catch (IOException ioe) {
+                throw new IllegalStateException(ioe); // should never happen
+            }
+        }
+
+        // Write-behind only needs to know which actors changed -- their state gets read when the batch is put together
+        private void markDirty(ActorData actorData) {
+            if (dirty == null) {
+                return;
+            }
+
+            if (dirtySince == -1L) {
+                dirtySince = System.currentTimeMillis();
+            }
+            dirty.put(actorData.address, actorData);
+        }
+
+        private void load(byte[] entry) {
+            try {
+                ActorData actorData = readEntry(new DataInputStream(new ByteArrayInputStream(entry)));
+                ActorData oldActorData = actors.put(actorData.address, actorData);
+                if (oldActorData != null) { // backing store handed over the same actor twice (e.g. it retried part way through)
+                    clear(oldActorData);
+                    freeImages(oldActorData);
+                }
+            } catch (IOException ioe) {
+                throw new IllegalStateException("Unable to load actor", ioe);
+            }
+        }
+
+        private void close() {
+            if (wal != null) {
+                wal.close();
+            }
+            if (passivated != null) {
+                passivated.close();
+            }
+            images.close();
+        }
+
+        // Replaces actor image, and optionally points checkpoint image to it. Images that are no longer referenced get freed.
+        private void setImage(ActorData actorData, byte[] data, boolean checkpoint) {
+            long oldData = actorData.data;
+            actorData.data = images.allocate(data);
+            if (oldData != ImageArena.NIL && oldData != actorData.checkpointData) {
+                images.free(oldData);
+            }
+            if (checkpoint) {
+                checkpointImage(actorData);
+            }
+        }
+
+        // Points checkpoint image to actor image (the 2 share the same handle, so it's only stored once).
+        private void checkpointImage(ActorData actorData) {
+            long oldCheckpointData = actorData.checkpointData;
+            actorData.checkpointData = actorData.data;
+            if (oldCheckpointData != ImageArena.NIL && oldCheckpointData != actorData.data) {
+                images.free(oldCheckpointData);
+            }
+        }
+
+        private void freeImages(ActorData actorData) {
+            if (actorData.data != ImageArena.NIL) {
+                images.free(actorData.data);
+            }
+            if (actorData.checkpointData != ImageArena.NIL && actorData.checkpointData != actorData.data) {
+                images.free(actorData.checkpointData);
+            }
+            actorData.data = ImageArena.NIL;
+            actorData.checkpointData = ImageArena.NIL;
+        }
+
+        private void enqueue(ActorData actorData, byte[] msg) {
+            long handle = arena.append(actorData.msgTail, msg);
+            if (actorData.msgHead == MessageArena.NIL) {
+                actorData.msgHead = handle;
+            }
+            actorData.msgTail = handle;
+            actorData.msgCount++;
+
+            if (arena.isCompactionDue()) {
+                compactQueues();
+            }
+        }
+
+        // Moves queued messages out of mostly-empty slabs so that those slabs can be released, see MessageArena. Only runs once the arena
+        // has enough sparse slabs to be worth it (checked each time it rolls to a new slab), but it does walk every actor and every queued
+        // message in the region.
+        private void compactQueues() {
+            arena.beginCompaction();
+            try {
+                for (ActorData actorData : actors.values()) { // iterating doesn't affect access order
+                    long prev = MessageArena.NIL;
+                    long handle = actorData.msgHead;
+                    while (handle != MessageArena.NIL) {
+                        long next = arena.next(handle);
+                        long moved = arena.relocate(handle);
+                        if (moved != handle) {
+                            if (prev == MessageArena.NIL) {
+                                actorData.msgHead = moved;
+                            } else {
+                                arena.link(prev, moved);
+                            }
+                        }
+                        prev = moved;
+                        handle = next;
+                    }
+                    actorData.msgTail = prev;
+                }
+            } finally {
+                arena.endCompaction();
+            }
+        }
+
+        private byte[] dequeue(ActorData actorData) {
+            long handle = actorData.msgHead;
+            byte[] msg = arena.read(handle);
+            actorData.msgHead = arena.next(handle);
+            if (actorData.msgHead == MessageArena.NIL) {
+                actorData.msgTail = MessageArena.NIL;
+            }
+            actorData.msgCount--;
+            arena.free(handle);
+            return msg;
+        }
+
+        private void clear(ActorData actorData) {
+            long handle = actorData.msgHead;
+            while (handle != MessageArena.NIL) {
+                long next = arena.next(handle);
+                arena.free(handle);
+                handle = next;
+            }
+            actorData.msgHead = MessageArena.NIL;
+            actorData.msgTail = MessageArena.NIL;
+            actorData.msgCount = 0;
+        }
+
+        private void writeSnapshot(DataOutputStream dos) throws IOException {
+            dos.writeInt(actors.size() + (passivated == null ? 0 : passivated.size()));
+            for (ActorData actorData : actors.values()) {
+                writeEntry(dos, actorData);
+            }
+            if (passivated != null) {
+                passivated.forEach(dos::write); // passivated actors are already in snapshot format
+            }
+        }
+
+        private void writeEntry(DataOutputStream dos, ActorData actorData) throws IOException {
+            dos.writeUTF(actorData.address.toString());
+            dos.writeInt(actorData.checkpointInstance);
+            dos.writeLong(toMillis(actorData.checkpointTime));
+            byte[] data = images.read(actorData.data);
+            dos.writeInt(data.length);
+            dos.write(data);
+            if (actorData.checkpointData == actorData.data) {
+                dos.writeBoolean(false);
+            } else {
+                byte[] checkpointData = images.read(actorData.checkpointData);
+                dos.writeBoolean(true);
+                dos.writeInt(checkpointData.length);
+                dos.write(checkpointData);
+            }
+            dos.writeInt(actorData.msgCount);
+            for (long handle = actorData.msgHead; handle != MessageArena.NIL; handle = arena.next(handle)) {
+                byte[] msg = arena.read(handle);
+                dos.writeInt(msg.length);
+                dos.write(msg);
+            }
+        }
+
+        private void readSnapshot(DataInputStream dis) throws IOException {
+            int actorCount = dis.readInt();
+            for (int i = 0; i < actorCount; i++) {
+                ActorData actorData = readEntry(dis);
+                actors.put(actorData.address, actorData);
+            }
+        }
+
+        private ActorData readEntry(DataInputStream dis) throws IOException {
+            ActorData actorData = new ActorData();
+            actorData.address = Address.fromString(dis.readUTF());
+            actorData.checkpointInstance = dis.readInt();
+            actorData.checkpointTime = fromMillis(dis.readLong());
+            setImage(actorData, readBytes(dis), true);
+            if (dis.readBoolean()) {
+                actorData.checkpointData = images.allocate(readBytes(dis));
+            }
+            int msgCount = dis.readInt();
+            for (int j = 0; j < msgCount; j++) {
+                enqueue(actorData, readBytes(dis));
+            }
+            return actorData;
+        }
+
+        private void replay(byte[] record) {
+            try {
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(record));
+                byte type = dis.readByte();
+                Address address = Address.fromString(dis.readUTF());
+                ActorData actorData = actors.get(address);
+                switch (type) {
+                    case RECORD_ACTOR: {
+                        boolean checkpoint = dis.readBoolean();
+                        int checkpointInstance = dis.readInt();
+                        Instant checkpointTime = fromMillis(dis.readLong());
+                        byte[] data = readBytes(dis);
+                        if (actorData == null) {
+                            actorData = new ActorData();
+                            actorData.address = address;
+                            actors.put(address, actorData);
+                        }
+                        setImage(actorData, data, checkpoint);
+                        if (checkpoint) {
+                            actorData.checkpointInstance = checkpointInstance;
+                            actorData.checkpointTime = checkpointTime;
+                        }
+                        break;
+                    }
+                    case RECORD_MESSAGE: {
+                        byte[] data = readBytes(dis);
+                        if (actorData != null) {
+                            enqueue(actorData, data);
+                        }
+                        break;
+                    }
+                    case RECORD_TAKE: {
+                        if (actorData != null && actorData.msgCount > 0) {
+                            dequeue(actorData);
+                        }
+                        break;
+                    }
+                    case RECORD_DISCARD: {
+                        if (actorData != null) {
+                            clear(actorData);
+                            freeImages(actorData);
+                        }
+                        actors.remove(address);
+                        break;
+                    }
+                    case RECORD_CHECKPOINT_HIT: {
+                        int checkpointInstance = dis.readInt();
+                        if (actorData != null) {
+                            actorData.checkpointInstance = checkpointInstance;
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException("Unrecognized record type: " + type);
+                }
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
     }
     
     private static final class ActorData {
-        private byte[] data;
-        private LinkedList<byte[]> msgQueue;
+        private Address address;
+        private long data = ImageArena.NIL;           // actor images live off-heap in the region's arena, see ImageArena
+        private long msgHead = MessageArena.NIL; // queued messages live off-heap in the region's arena, see MessageArena
+        private long msgTail = MessageArena.NIL;
+        private int msgCount;
         
-        private byte[] checkpointData;
+        private long checkpointData = ImageArena.NIL; // same handle as data if the images are the same
         private Instant checkpointTime;
         private int checkpointInstance;
+
+        private long lastAccessTime = System.currentTimeMillis();
     }
 }
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.actor.stores.memory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import org.apache.commons.lang3.Validate;
+
+// Off-heap storage for queued messages of a single lock region. Serialized messages are bump-allocated into direct ByteBuffer slabs, and
+// each entry is [next:long][length:int][data] -- next is the handle of the following message in the same actor's queue. So an actor's
+// queue is a linked list threaded through the slabs, and the only thing kept on-heap per actor is its head/tail handle and a count.
+// Queue depth has no effect on the number of heap objects.
+//
+// A handle is (slab index << 32 | offset). Each slab counts its live entries. Once a slab that's no longer being allocated into has no live
+// entries, it's recycled -- up to a few slabs are pooled for reuse and the rest are left for GC. Messages bigger than a slab get a slab of
+// their own, which is never pooled.
+//
+// A single message that sits in a queue for a long time keeps its entire slab from being recycled, so slabs that are mostly empty can pile
+// up (worst case, 1 slab per queued message). To deal with that, each time a new slab gets rolled in the arena checks how many of the
+// other slabs are less than half full. Once there are enough of them, isCompactionDue() flips to true and the owner is expected to do a
+// compaction pass: beginCompaction() marks the sparse slabs, the owner walks every queue calling relocate() on each entry (which copies the
+// entry out if it's in a marked slab) and fixes up its links with link() and its head/tail, then endCompaction(). Marked slabs end up with
+// no live entries and get recycled. The owner has to walk the queues because the arena doesn't know which queue an entry belongs to.
+//
+// Not thread-safe -- the owning lock region guards access.
+final class MessageArena {
+
+    static final long NIL = -1L;
+
+    private static final int NEXT_OFFSET = 0;
+    private static final int LENGTH_OFFSET = Long.BYTES;
+    private static final int HEADER_SIZE = Long.BYTES + Integer.BYTES;
+    private static final int MAX_POOLED_SLABS = 4;
+    private static final int MIN_SPARSE_SLABS = 4; // only worth compacting once there's at least this many slabs to reclaim
+
+    private final int slabSize;
+    private final ArrayList<Slab> slabs;          // slab index -> slab (null if index is free)
+    private final ArrayDeque<Integer> freeIndices; // slab indices that can be reused
+    private final ArrayDeque<Slab> pool;           // recycled slabs ready for reuse
+    private Slab current;
+    private boolean compactionDue;
+    private boolean compacting;
+
+    MessageArena(int slabSize) {
+        Validate.isTrue(slabSize > HEADER_SIZE);
+        this.slabSize = slabSize;
+        this.slabs = new ArrayList<>();
+        this.freeIndices = new ArrayDeque<>();
+        this.pool = new ArrayDeque<>();
+    }
+
+    // Copies data into the arena and returns its handle. If tail isn't NIL, the new entry gets linked after it.
+    long append(long tail, byte[] data) {
+        Validate.notNull(data);
+
+        int entrySize = HEADER_SIZE + data.length;
+        if (current == null || current.buffer.capacity() - current.position < entrySize) {
+            roll(entrySize);
+        }
+
+        Slab slab = current;
+        int offset = slab.position;
+        slab.buffer.putLong(offset + NEXT_OFFSET, NIL);
+        slab.buffer.putInt(offset + LENGTH_OFFSET, data.length);
+        ByteBuffer view = slab.buffer.duplicate();
+        view.position(offset + HEADER_SIZE);
+        view.put(data);
+        slab.position += entrySize;
+        slab.live++;
+        slab.liveBytes += entrySize;
+
+        long handle = ((long) slab.index << 32) | offset;
+        if (tail != NIL) {
+            slab(tail).buffer.putLong(offset(tail) + NEXT_OFFSET, handle);
+        }
+        return handle;
+    }
+
+    byte[] read(long handle) {
+        Slab slab = slab(handle);
+        int offset = offset(handle);
+        int length = slab.buffer.getInt(offset + LENGTH_OFFSET);
+
+        byte[] data = new byte[length];
+        ByteBuffer view = slab.buffer.duplicate();
+        view.position(offset + HEADER_SIZE);
+        view.get(data);
+        return data;
+    }
+
+    long next(long handle) {
+        return slab(handle).buffer.getLong(offset(handle) + NEXT_OFFSET);
+    }
+
+    void free(long handle) {
+        Slab slab = slab(handle);
+        slab.live--;
+        slab.liveBytes -= HEADER_SIZE + slab.buffer.getInt(offset(handle) + LENGTH_OFFSET);
+        if (slab.live == 0) {
+            if (slab == current) {
+                slab.position = 0; // nothing live in it, so start allocating from the beginning again
+            } else {
+                recycle(slab);
+            }
+        }
+    }
+
+    boolean isCompactionDue() {
+        return compactionDue;
+    }
+
+    void beginCompaction() {
+        Validate.validState(!compacting, "Already compacting");
+        compacting = true;
+        for (Slab slab : slabs) {
+            if (slab != null && isSparse(slab)) {
+                slab.marked = true;
+            }
+        }
+    }
+
+    // Copies the entry out to the current slab if it's in a slab that's being compacted, and frees the original. Returns the entry's handle
+    // (new handle if it was moved, same handle otherwise). The moved entry still points to the same next entry, but whatever pointed to the
+    // original needs to be re-linked to the new handle.
+    long relocate(long handle) {
+        Validate.validState(compacting, "Not compacting");
+        if (!slab(handle).marked) {
+            return handle;
+        }
+
+        long next = next(handle);
+        long moved = append(NIL, read(handle));
+        link(moved, next);
+        free(handle);
+        return moved;
+    }
+
+    void link(long handle, long next) {
+        slab(handle).buffer.putLong(offset(handle) + NEXT_OFFSET, next);
+    }
+
+    void endCompaction() {
+        Validate.validState(compacting, "Not compacting");
+        for (Slab slab : slabs) {
+            if (slab != null) {
+                slab.marked = false;
+            }
+        }
+        compacting = false;
+        compactionDue = false;
+    }
+
+    private boolean isSparse(Slab slab) {
+        return slab != current && slab.buffer.capacity() == slabSize && slab.liveBytes < slabSize / 2;
+    }
+
+    private void roll(int minSize) {
+        Slab old = current;
+
+        if (minSize > slabSize) {
+            current = new Slab(ByteBuffer.allocateDirect(minSize));
+        } else if (!pool.isEmpty()) {
+            current = pool.pop();
+        } else {
+            current = new Slab(ByteBuffer.allocateDirect(slabSize));
+        }
+
+        current.index = freeIndices.isEmpty() ? slabs.size() : freeIndices.pop();
+        if (current.index == slabs.size()) {
+            slabs.add(current);
+        } else {
+            slabs.set(current.index, current);
+        }
+
+        if (old != null && old.live == 0) {
+            recycle(old);
+        }
+
+        if (!compacting && !compactionDue) {
+            int sparse = 0;
+            for (Slab slab : slabs) {
+                if (slab != null && isSparse(slab)) {
+                    sparse++;
+                }
+            }
+            compactionDue = sparse >= MIN_SPARSE_SLABS;
+        }
+    }
+
+    private void recycle(Slab slab) {
+        slabs.set(slab.index, null);
+        freeIndices.push(slab.index);
+
+        slab.marked = false;
+        if (slab.buffer.capacity() == slabSize && pool.size() < MAX_POOLED_SLABS) {
+            slab.position = 0;
+            slab.index = -1;
+            pool.push(slab);
+        }
+    }
+
+    private Slab slab(long handle) {
+        Validate.isTrue(handle != NIL);
+        return slabs.get((int) (handle >>> 32));
+    }
+
+    private static int offset(long handle) {
+        return (int) handle;
+    }
+
+    private static final class Slab {
+        private final ByteBuffer buffer;
+        private int index;
+        private int position;
+        private int live;
+        private int liveBytes;
+        private boolean marked; // being compacted
+
+        Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
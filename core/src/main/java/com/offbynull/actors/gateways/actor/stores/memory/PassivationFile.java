@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.actor.stores.memory;
+
+import com.offbynull.actors.gateways.actor.stores.memory.WriteAheadLog.IoConsumer;
+import com.offbynull.actors.shuttle.Address;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Cold tier for idle (passivated) actors of a single lock region. Passivated actors are appended to a file as [length:int][deadline:long]
+// [entry], where entry is the actor in snapshot format (so it starts with the actor's address). The only thing kept in memory per
+// passivated actor is a slot in an off-heap open-addressing hash table -- [hash:int][offset + 1:long], 0 means an empty slot and -1 means a
+// removed one. A lookup probes slots with a matching hash and reads the record to make sure the address really matches.
+//
+// Passivated actors may still have a checkpoint coming up, so offsets are also grouped into coarse buckets by checkpoint deadline. The
+// owning region drains buckets as they come due, bringing those actors back into memory before their checkpoint hits. Offsets in a bucket
+// aren't removed when the actor gets reactivated, they're checked against the hash table when drained and skipped if stale.
+//
+// The file is append-only and gets rewritten once most of it is dead. It isn't a source of truth -- the write-ahead log/snapshots are -- so
+// it's truncated on open and deleted on close.
+//
+// Not thread-safe -- the owning lock region guards access.
+final class PassivationFile implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PassivationFile.class);
+
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + Long.BYTES;
+    private static final int SLOT_SIZE = Integer.BYTES + Long.BYTES;
+    private static final long EMPTY = 0L;
+    private static final long REMOVED = -1L;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long MIN_COMPACTION_SIZE = 16L * 1024L * 1024L;
+
+    private final Path path;
+    private final long bucketMillis;
+    private final TreeMap<Long, Offsets> deadlines; // deadline bucket -> offsets of records in that bucket
+
+    private FileChannel channel;
+    private long fileSize;
+    private long deadSize;
+
+    private ByteBuffer slots;
+    private int capacity; // always a power of 2
+    private int size;
+    private int removed;
+
+    private PassivationFile(Path path, long bucketMillis) {
+        this.path = path;
+        this.bucketMillis = bucketMillis;
+        this.deadlines = new TreeMap<>();
+        this.capacity = INITIAL_CAPACITY;
+        this.slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+    }
+
+    static PassivationFile open(Path path, long bucketMillis) throws IOException {
+        Validate.notNull(path);
+        Validate.isTrue(bucketMillis > 0L);
+
+        PassivationFile file = new PassivationFile(path, bucketMillis);
+        file.channel = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, READ, WRITE);
+        return file;
+    }
+
+    // Deadline is the actor's checkpoint time in millis (Long.MAX_VALUE if it has none). Actor must not already be passivated.
+    void put(Address address, long deadline, byte[] entry) {
+        Validate.notNull(address);
+        Validate.notNull(entry);
+
+        long offset = fileSize;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + entry.length);
+        record.putInt(Long.BYTES + entry.length);
+        record.putLong(deadline);
+        record.put(entry);
+        record.flip();
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Unable to passivate", ioe);
+        }
+        fileSize += record.limit();
+
+        insert(hash(address.toString()), offset);
+        track(deadline, offset);
+    }
+
+    // Removes actor and returns its entry, or returns null if actor isn't passivated.
+    byte[] remove(Address address) {
+        Validate.notNull(address);
+
+        String addressStr = address.toString();
+        int hash = hash(addressStr);
+        for (int slot = hash & (capacity - 1); ; slot = (slot + 1) & (capacity - 1)) {
+            long ref = ref(slot);
+            if (ref == EMPTY) {
+                return null;
+            }
+            if (ref == REMOVED || slots.getInt(slot * SLOT_SIZE) != hash) {
+                continue;
+            }
+
+            byte[] entry = read(ref - 1L);
+            if (readAddress(entry).equals(addressStr)) {
+                release(slot, entry);
+                compactIfMostlyDead();
+                return entry;
+            }
+        }
+    }
+
+    // Removes every actor with a deadline before or around until, and passes its entry to reactivator.
+    void drain(long until, Consumer<byte[]> reactivator) {
+        Validate.notNull(reactivator);
+
+        while (!deadlines.isEmpty() && deadlines.firstKey() <= until / bucketMillis) {
+            Offsets offsets = deadlines.pollFirstEntry().getValue();
+            for (int i = 0; i < offsets.size; i++) {
+                long offset = offsets.values[i];
+                byte[] entry = read(offset);
+                int slot = find(hash(readAddress(entry)), offset);
+                if (slot == -1) {
+                    continue; // stale -- actor was reactivated (and maybe passivated again) since
+                }
+
+                release(slot, entry);
+                reactivator.accept(entry);
+            }
+        }
+
+        compactIfMostlyDead(); // only once done draining -- compaction moves records, so offsets being drained would go stale
+    }
+
+    // Passes the entry of every passivated actor to consumer. Entries are read sequentially, so this is cheap even for a large file.
+    void forEach(IoConsumer<byte[]> consumer) throws IOException {
+        Validate.notNull(consumer);
+        scan((offset, deadline, entry) -> consumer.accept(entry));
+    }
+
+    int size() {
+        return size;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException ioe) {
+            LOG.warn("Unable to delete passivation file {}", path, ioe);
+        }
+    }
+
+    private void release(int slot, byte[] entry) {
+        slots.putLong(slot * SLOT_SIZE + Integer.BYTES, REMOVED);
+        size--;
+        removed++;
+        deadSize += RECORD_HEADER_SIZE + entry.length;
+    }
+
+    private void compactIfMostlyDead() {
+        if (deadSize < MIN_COMPACTION_SIZE || deadSize * 2L < fileSize) {
+            return;
+        }
+
+        try {
+            compact();
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Unable to compact passivation file", ioe);
+        }
+    }
+
+    private void compact() throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel newChannel = FileChannel.open(tempPath, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            long[] newFileSize = new long[1];
+            deadlines.clear();
+            scan((offset, deadline, entry) -> {
+                long newOffset = newFileSize[0];
+                ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + entry.length);
+                record.putInt(Long.BYTES + entry.length);
+                record.putLong(deadline);
+                record.put(entry);
+                record.flip();
+                while (record.hasRemaining()) {
+                    newChannel.write(record, newOffset + record.position());
+                }
+                newFileSize[0] += record.limit();
+
+                int slot = find(hash(readAddress(entry)), offset);
+                slots.putLong(slot * SLOT_SIZE + Integer.BYTES, newOffset + 1L);
+                track(deadline, newOffset);
+            });
+            fileSize = newFileSize[0];
+            deadSize = 0L;
+        }
+
+        channel.close();
+        Files.move(tempPath, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        channel = FileChannel.open(path, READ, WRITE);
+
+        rehash(capacity); // clears out removed slots
+    }
+
+    private void scan(RecordConsumer consumer) throws IOException {
+        // Stream isn't closed, because that would close the channel. Everything else uses positional reads/writes, so moving the channel's
+        // position around here doesn't affect anything.
+        InputStream is = new BufferedInputStream(Channels.newInputStream(channel.position(0L)));
+        DataInputStream dis = new DataInputStream(is);
+        long offset = 0L;
+        while (offset < fileSize) {
+            int length = dis.readInt();
+            long deadline = dis.readLong();
+            byte[] entry = new byte[length - Long.BYTES];
+            dis.readFully(entry);
+
+            if (find(hash(readAddress(entry)), offset) != -1) {
+                consumer.accept(offset, deadline, entry);
+            }
+            offset += Integer.BYTES + length;
+        }
+    }
+
+    private byte[] read(long offset) {
+        try {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            while (header.hasRemaining()) {
+                Validate.validState(channel.read(header, offset + header.position()) != -1, "Truncated passivation file");
+            }
+            ByteBuffer entry = ByteBuffer.allocate(header.getInt(0) - Long.BYTES);
+            long entryOffset = offset + RECORD_HEADER_SIZE;
+            while (entry.hasRemaining()) {
+                Validate.validState(channel.read(entry, entryOffset + entry.position()) != -1, "Truncated passivation file");
+            }
+            return entry.array();
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Unable to read passivation file", ioe);
+        }
+    }
+
+    private void track(long deadline, long offset) {
+        if (deadline == Long.MAX_VALUE) {
+            return; // no checkpoint coming up
+        }
+        deadlines.computeIfAbsent(deadline / bucketMillis, k -> new Offsets()).add(offset);
+    }
+
+    private void insert(int hash, long offset) {
+        if ((size + removed + 1) * 4L > capacity * 3L) { // keep load factor (including removed slots) under 0.75
+            rehash(size * 2 + 2 > capacity ? capacity * 2 : capacity);
+        }
+
+        int slot = hash & (capacity - 1);
+        while (ref(slot) > 0L) {
+            slot = (slot + 1) & (capacity - 1);
+        }
+        if (ref(slot) == REMOVED) {
+            removed--;
+        }
+        slots.putInt(slot * SLOT_SIZE, hash);
+        slots.putLong(slot * SLOT_SIZE + Integer.BYTES, offset + 1L);
+        size++;
+    }
+
+    private int find(int hash, long offset) {
+        for (int slot = hash & (capacity - 1); ; slot = (slot + 1) & (capacity - 1)) {
+            long ref = ref(slot);
+            if (ref == EMPTY) {
+                return -1;
+            }
+            if (ref == offset + 1L) {
+                return slot;
+            }
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        Validate.validState(newCapacity <= Integer.MAX_VALUE / SLOT_SIZE, "Too many passivated actors");
+
+        ByteBuffer oldSlots = slots;
+        int oldCapacity = capacity;
+
+        slots = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+        capacity = newCapacity;
+        removed = 0;
+        for (int i = 0; i < oldCapacity; i++) {
+            long ref = oldSlots.getLong(i * SLOT_SIZE + Integer.BYTES);
+            if (ref > 0L) {
+                int hash = oldSlots.getInt(i * SLOT_SIZE);
+                int slot = hash & (capacity - 1);
+                while (ref(slot) != EMPTY) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                slots.putInt(slot * SLOT_SIZE, hash);
+                slots.putLong(slot * SLOT_SIZE + Integer.BYTES, ref);
+            }
+        }
+    }
+
+    private long ref(int slot) {
+        return slots.getLong(slot * SLOT_SIZE + Integer.BYTES);
+    }
+
+    private static String readAddress(byte[] entry) {
+        try {
+            return new DataInputStream(new ByteArrayInputStream(entry)).readUTF();
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe); // should never happen
+        }
+    }
+
+    private static int hash(String address) {
+        int h = address.hashCode() * 0x9E3779B9; // spread out bits so linear probing doesn't cluster
+        return h ^ (h >>> 16);
+    }
+
+    private interface RecordConsumer {
+        void accept(long offset, long deadline, byte[] entry) throws IOException;
+    }
+
+    private static final class Offsets {
+        private long[] values = new long[4];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.actor.stores.memory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Write-ahead log + snapshot for a single lock region. Records are framed as [length:int][crc32:int][body] (same framing as FileStore's
+// SegmentLog) and the record bodies come from LogRecords (same codec as FileStore).
+//
+// This doesn't sit on top of SegmentLog itself. SegmentLog writes through pre-sized memory-mapped segments and has to be called under the
+// region lock, which is what FileStore wants since it reads record data back out of the mapping. Here the log is only ever read on
+// recovery, writes are done by whichever thread leads the group commit after the region lock has been released, and compaction is a
+// snapshot of the region's state rather than a rewrite of the live records -- none of which fits SegmentLog's model.
+//
+// Appends only copy the record into a pending buffer (called while the region lock is held, so they're cheap). Durability comes from
+// sync(), which is called after the region lock has been released: the first caller to find unflushed records becomes the leader, writes
+// everything that's pending (its own records along with whatever other threads appended in the meantime) and forces it to disk, while the
+// other callers wait on it. That's group commit -- many writers, 1 fsync.
+//
+// The log is split into generations. A snapshot (taken while the region lock is held) starts a new generation: pending records get flushed
+// to the old generation, the full region state gets written to a temp file and atomically moved into place, and then older generations are
+// deleted. Recovery loads the snapshot and replays every generation from the one the snapshot names onwards. A torn record at the tail of
+// a generation (crash mid-write) ends replay of that generation.
+//
+// A failed write latches the log into a failed state -- every append/sync after that throws. The batch that failed may have partially
+// made it into the file, so it can't just be retried (anything appended after a torn record is invisible to replay), and letting a later
+// batch succeed would mark the failed batch's records as durable when they aren't.
+final class WriteAheadLog implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private final Path directory;
+    private final String name;
+    private final Pattern walName;
+
+    // All of the following are guarded by this
+    private ByteArrayOutputStream pending;
+    private long appendedSeq;
+    private long durableSeq;
+    private boolean flushing;
+    private FileChannel channel;
+    private long generation;
+    private boolean closed;
+    private IOException failure;
+
+    private WriteAheadLog(Path directory, String name) {
+        this.directory = directory;
+        this.name = name;
+        this.walName = Pattern.compile(Pattern.quote(name) + "-(\\d+)\\.wal");
+        this.pending = new ByteArrayOutputStream();
+    }
+
+    static WriteAheadLog open(Path directory, String name, IoConsumer<DataInputStream> snapshotLoader, Consumer<byte[]> replayer)
+            throws IOException {
+        Validate.notNull(directory);
+        Validate.notNull(name);
+        Validate.notNull(snapshotLoader);
+        Validate.notNull(replayer);
+
+        Files.createDirectories(directory);
+        WriteAheadLog wal = new WriteAheadLog(directory, name);
+
+        long firstGeneration = 0L;
+        Path snapshotPath = wal.snapshotPath();
+        if (Files.exists(snapshotPath)) {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+                firstGeneration = dis.readLong();
+                snapshotLoader.accept(dis);
+            }
+        }
+
+        TreeMap<Long, Path> generations = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                Matcher matcher = wal.walName.matcher(path.getFileName().toString());
+                if (!matcher.matches()) {
+                    continue;
+                }
+
+                long generation = Long.parseLong(matcher.group(1));
+                if (generation < firstGeneration) {
+                    Files.delete(path); // covered by snapshot, snapshot must have been written right before a crash
+                } else {
+                    generations.put(generation, path);
+                }
+            }
+        }
+
+        long lastGeneration = firstGeneration - 1L;
+        for (Path path : generations.values()) {
+            replay(path, replayer);
+        }
+        if (!generations.isEmpty()) {
+            lastGeneration = generations.lastKey();
+        }
+
+        // Always start a fresh generation -- the tail of the last one may be torn, and appending after a torn record would hide everything
+        // after it on the next recovery.
+        wal.generation = Math.max(lastGeneration + 1L, firstGeneration);
+        wal.channel = FileChannel.open(wal.walPath(wal.generation), CREATE, TRUNCATE_EXISTING, WRITE);
+
+        return wal;
+    }
+
+    // Call while holding region lock. Returns sequence to pass to sync().
+    long append(byte[] body) {
+        Validate.notNull(body);
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        synchronized (this) {
+            Validate.validState(!closed, "Log closed");
+            checkFailure();
+
+            DataOutputStream dos = new DataOutputStream(pending);
+            try {
+                dos.writeInt(body.length);
+                dos.writeInt((int) crc.getValue());
+                dos.write(body);
+            } catch (IOException ioe) {
+                throw new IllegalStateException(ioe); // should never happen
+            }
+
+            appendedSeq++;
+            return appendedSeq;
+        }
+    }
+
+    // Call without holding region lock. Blocks until everything up to and including seq is on disk.
+    void sync(long seq) {
+        ByteArrayOutputStream batch;
+        long batchSeq;
+        FileChannel batchChannel;
+
+        synchronized (this) {
+            while (true) {
+                if (durableSeq >= seq) {
+                    return;
+                }
+                Validate.validState(!closed, "Log closed");
+                checkFailure(); // batch that was supposed to contain seq (or an earlier one) never made it to disk
+                if (!flushing) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(ie);
+                }
+            }
+
+            // Become the leader -- take everything pending so far
+            flushing = true;
+            batch = pending;
+            batchSeq = appendedSeq;
+            batchChannel = channel;
+            pending = new ByteArrayOutputStream();
+        }
+
+        IOException batchFailure = null;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+            while (buffer.hasRemaining()) {
+                batchChannel.write(buffer);
+            }
+            batchChannel.force(false);
+        } catch (IOException ioe) {
+            batchFailure = ioe;
+        }
+
+        synchronized (this) {
+            flushing = false;
+            if (batchFailure == null) {
+                durableSeq = batchSeq;
+            } else {
+                failure = batchFailure;
+            }
+            notifyAll();
+        }
+
+        if (batchFailure != null) {
+            throw new IllegalStateException("Unable to write to log", batchFailure);
+        }
+    }
+
+    void flush() {
+        long seq;
+        synchronized (this) {
+            seq = appendedSeq;
+        }
+        sync(seq);
+    }
+
+    // Call while holding region lock, so nothing gets appended while the snapshot is being taken.
+    void snapshot(IoConsumer<DataOutputStream> snapshotWriter) throws IOException {
+        Validate.notNull(snapshotWriter);
+
+        flush(); // everything pending goes to the current generation
+
+        long newGeneration;
+        FileChannel newChannel;
+        synchronized (this) {
+            Validate.validState(!closed, "Log closed");
+            checkFailure();
+            newGeneration = generation + 1L;
+        }
+        newChannel = FileChannel.open(walPath(newGeneration), CREATE, TRUNCATE_EXISTING, WRITE);
+
+        Path tempPath = directory.resolve(name + ".snapshot.tmp");
+        try (FileChannel snapshotChannel = FileChannel.open(tempPath, CREATE, TRUNCATE_EXISTING, WRITE, READ)) {
+            OutputStream os = Channels.newOutputStream(snapshotChannel);
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+            dos.writeLong(newGeneration);
+            snapshotWriter.accept(dos);
+            dos.flush();
+            snapshotChannel.force(true);
+        }
+        Files.move(tempPath, snapshotPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+
+        FileChannel oldChannel;
+        long oldGeneration;
+        synchronized (this) {
+            oldChannel = channel;
+            oldGeneration = generation;
+            channel = newChannel;
+            generation = newGeneration;
+        }
+        oldChannel.close();
+
+        for (long i = oldGeneration; i >= 0L; i--) {
+            if (!Files.deleteIfExists(walPath(i))) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            flush();
+        } catch (RuntimeException re) {
+            LOG.warn("Unable to flush log on close", re);
+        }
+
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                LOG.warn("Unable to close log", ioe);
+            }
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("Log failed", failure);
+        }
+    }
+
+    private Path walPath(long generation) {
+        return directory.resolve(name + "-" + generation + ".wal");
+    }
+
+    private Path snapshotPath() {
+        return directory.resolve(name + ".snapshot");
+    }
+
+    private static void replay(Path path, Consumer<byte[]> replayer) throws IOException {
+        long fileSize = Files.size(path);
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(path, READ))) {
+            DataInputStream dis = new DataInputStream(is);
+            while (true) {
+                int length;
+                int expectedCrc;
+                byte[] body;
+                try {
+                    length = dis.readInt();
+                    expectedCrc = dis.readInt();
+                    Validate.isTrue(length >= 0 && length <= fileSize);
+                    body = new byte[length];
+                    dis.readFully(body);
+                } catch (EOFException | IllegalArgumentException e) {
+                    return; // end of log, or torn record
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if ((int) crc.getValue() != expectedCrc) {
+                    LOG.warn("Torn record in {}, ignoring remainder", path);
+                    return;
+                }
+
+                replayer.accept(body);
+            }
+        }
+    }
+
+    interface IoConsumer<T> {
+        void accept(T t) throws IOException;
+    }
+}
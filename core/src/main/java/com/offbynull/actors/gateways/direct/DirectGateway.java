@@ -21,28 +21,44 @@ import com.offbynull.actors.gateway.Gateway;
 import com.offbynull.actors.shuttle.Shuttle;
 import com.offbynull.actors.shuttle.Address;
 import com.offbynull.actors.shuttle.Message;
-import com.offbynull.actors.shuttles.simple.Bus;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import org.apache.commons.lang3.Validate;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
 
 /**
  * {@link Gateway} that allows you read and write messages from normal Java code.
  * <p>
  * To read messages coming into a specific address, first register it for listening by calling 
  * {@link #listen(com.offbynull.actors.shuttle.Address) } then read messages by calling
- * {@link #readMessage(com.offbynull.actors.shuttle.Address, long, java.util.concurrent.TimeUnit) }.
+ * {@link #readMessage(com.offbynull.actors.shuttle.Address, long, java.util.concurrent.TimeUnit) }. If messages are coming in at a high
+ * rate, use {@link #readMessages(com.offbynull.actors.shuttle.Address, int, long, java.util.concurrent.TimeUnit) } to read them in batches.
  * <p>
  * To write messages from a specific address, call {@link #writeMessage(com.offbynull.actors.shuttle.Message) }.
+ * <p>
+ * To send a request and asynchronously wait for its response, call
+ * {@link #ask(com.offbynull.actors.shuttle.Address, java.lang.Object, long, java.util.concurrent.TimeUnit) }. Each request is sent from its
+ * own ephemeral address under {@code <prefix>:ask}, and the first message that comes in to that address completes the request. No thread
+ * is tied up while a request is outstanding, so the number of in-flight requests isn't bound by the number of threads available.
+ * <p>
+ * To hook this gateway up to a reactive pipeline, call
+ * {@link #publisher(com.offbynull.actors.shuttle.Address, java.util.concurrent.Executor) } to get a {@link Publisher} of the messages
+ * coming in to a listening address and {@link #subscriber() } to get a {@link Subscriber} that writes messages out. Messages are only
+ * pulled off a listening address when there's demand for them, so use {@link #listen(com.offbynull.actors.shuttle.Address, int) } to
+ * bound how many messages can queue up while a consumer is falling behind.
  * @author Kasra Faghihi
  */
 public final class DirectGateway implements Gateway {
 
 
     private final String prefix;
-    private final ConcurrentHashMap<Address, Bus> readQueues;
+    private final MailboxTree mailboxes;
+    private final RequestDispatcher requests;
     private final ConcurrentHashMap<String, Shuttle> outShuttles;
     private final DirectShuttle shuttle;
     
@@ -71,9 +87,10 @@ public final class DirectGateway implements Gateway {
         Validate.notNull(prefix);
         
         this.prefix = prefix;
-        this.readQueues = new ConcurrentHashMap<>();
+        this.mailboxes = new MailboxTree();
+        this.requests = new RequestDispatcher(Address.of(prefix, "ask"));
         this.outShuttles = new ConcurrentHashMap<>();
-        this.shuttle = new DirectShuttle(prefix, readQueues);
+        this.shuttle = new DirectShuttle(prefix, mailboxes, requests);
         
         this.joinerLatch = new CountDownLatch(1);
     }
@@ -108,22 +125,41 @@ public final class DirectGateway implements Gateway {
     }
 
     /**
-     * Registers an address for listening. The input address and all addresses under it will be listenable.
+     * Equivalent to calling {@code listen(listenAddress, -1)}.
      * @param listenAddress address to register
      * @throws NullPointerException if any argument is {@code null}
      * @throws IllegalArgumentException if {@code listenAddress} has already been registered, or if {@code listenAddress} does not begin
-     * with the prefix for this gateway
+     * with the prefix for this gateway, or if {@code listenAddress} is under the address reserved for {@link #ask(Address, Object, long,
+     * TimeUnit) } responses
      * @throws IllegalStateException if this gateway is closed
      */
     public void listen(Address listenAddress) {
+        listen(listenAddress, -1);
+    }
+
+    /**
+     * Registers an address for listening. The input address and all addresses under it will be listenable.
+     * <p>
+     * If {@code capacity} is set, messages that come in while {@code capacity} messages are already waiting to be read are dropped.
+     * @param listenAddress address to register
+     * @param capacity maximum number of messages that can be waiting to be read (or {@code -1} for no limit)
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code listenAddress} has already been registered, or if {@code listenAddress} does not begin
+     * with the prefix for this gateway, or if {@code listenAddress} is under the address reserved for {@link #ask(Address, Object, long,
+     * TimeUnit) } responses, or if {@code capacity != -1 && capacity <= 0}
+     * @throws IllegalStateException if this gateway is closed
+     */
+    public void listen(Address listenAddress, int capacity) {
         Validate.notNull(listenAddress);
+        Validate.isTrue(capacity == -1 || capacity > 0);
         Validate.isTrue(listenAddress.getElement(0).equals(prefix));
+        Validate.isTrue(!requests.getRequestAddress().isPrefixOf(listenAddress), "%s reserved for responses", listenAddress);
         if (joinerLatch.getCount() == 0L) { // latch will be at 0 when closed
             throw new IllegalStateException();
         }
         
-        Bus existingBus = readQueues.putIfAbsent(listenAddress, new Bus());
-        Validate.isTrue(existingBus == null, "Listener already registered");
+        boolean added = mailboxes.add(listenAddress, new Mailbox(capacity));
+        Validate.isTrue(added, "Listener already registered");
     }
     
     /**
@@ -143,6 +179,24 @@ public final class DirectGateway implements Gateway {
         listen(Address.fromString(listenAddress));
     }
 
+    /**
+     * Equivalent to calling {@code listen(Address.fromString(address), capacity)}.
+     * @param listenAddress address to register
+     * @param capacity maximum number of messages that can be waiting to be read (or {@code -1} for no limit)
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code listenAddress} has already been registered, or if {@code address} does not begin with the
+     * prefix for this gateway, or if {@code capacity != -1 && capacity <= 0}
+     * @throws IllegalStateException if this gateway is closed
+     */
+    public void listen(String listenAddress, int capacity) {
+        Validate.notNull(listenAddress);
+        if (joinerLatch.getCount() == 0L) { // latch will be at 0 when closed
+            throw new IllegalStateException();
+        }
+
+        listen(Address.fromString(listenAddress), capacity);
+    }
+
     /**
      * Unregisters an address for listening. If the address was never registered, nothing happens.
      * @param listenAddress address to unregister
@@ -157,7 +211,10 @@ public final class DirectGateway implements Gateway {
             throw new IllegalStateException();
         }
         
-        readQueues.remove(listenAddress);
+        Mailbox mailbox = mailboxes.remove(listenAddress);
+        if (mailbox != null) {
+            mailbox.close(); // wake up anyone waiting on it
+        }
     }
 
     /**
@@ -274,6 +331,61 @@ public final class DirectGateway implements Gateway {
         writeMessage(Address.fromString(destination), message);
     }
 
+    /**
+     * Sends a message and returns a future that completes with the first message sent back to it. The message is sent from an ephemeral
+     * address unique to this request (under {@code <prefix>:ask}), so the recipient should respond to the source address of the message it
+     * receives. The response is consumed by the returned future -- it won't show up in any listening address.
+     * <p>
+     * The returned future is completed on an internal dispatcher thread, so dependent stages shouldn't block for long periods.
+     * @param destination destination address
+     * @param message message to send
+     * @param timeout how long to wait for a response before giving up, in units of {@code unit} unit
+     * @param unit a {@link TimeUnit} determining how to interpret the {@code timeout} parameter
+     * @return future that completes with the response, or completes exceptionally with {@link java.util.concurrent.TimeoutException} if no
+     * response came in before the timeout or with {@link IllegalStateException} if this gateway was closed before a response came in
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code timeout <= 0}
+     * @throws IllegalStateException if this gateway is closed
+     */
+    public CompletableFuture<Message> ask(Address destination, Object message, long timeout, TimeUnit unit) {
+        Validate.notNull(destination);
+        Validate.notNull(message);
+        Validate.notNull(unit);
+        Validate.isTrue(timeout > 0L);
+        if (joinerLatch.getCount() == 0L) { // latch will be at 0 when closed
+            throw new IllegalStateException();
+        }
+
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        Address source = requests.register(future, timeout, unit);
+        writeMessage(new Message(source, destination, message));
+
+        return future;
+    }
+
+    /**
+     * Equivalent to calling {@code ask(Address.fromString(destination), message, timeout, unit)}.
+     * @param destination destination address
+     * @param message message to send
+     * @param timeout how long to wait for a response before giving up, in units of {@code unit} unit
+     * @param unit a {@link TimeUnit} determining how to interpret the {@code timeout} parameter
+     * @return future that completes with the response, or completes exceptionally with {@link java.util.concurrent.TimeoutException} if no
+     * response came in before the timeout or with {@link IllegalStateException} if this gateway was closed before a response came in
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code timeout <= 0}
+     * @throws IllegalStateException if this gateway is closed
+     */
+    public CompletableFuture<Message> ask(String destination, Object message, long timeout, TimeUnit unit) {
+        Validate.notNull(destination);
+        Validate.notNull(message);
+        Validate.notNull(unit);
+        if (joinerLatch.getCount() == 0L) { // latch will be at 0 when closed
+            throw new IllegalStateException();
+        }
+
+        return ask(Address.fromString(destination), message, timeout, unit);
+    }
+
     /**
      * Reads a message sent to this gateway.
      * @param listenAddress address registered for listening
@@ -293,21 +405,65 @@ public final class DirectGateway implements Gateway {
             throw new IllegalStateException();
         }
 
-        Address next = listenAddress;
-        do {
-            Bus queue = readQueues.get(next);
-            if (queue != null) {
-                List<Object> messageList = queue.pull(1, timeout, unit);
-                if (joinerLatch.getCount() == 0L) { // latch will be at 0 when closed
-                    throw new IllegalStateException();
-                }
+        List<Message> messages = readMessages(listenAddress, 1, timeout, unit);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    /**
+     * Reads a batch of messages sent to this gateway. Blocks until at least one message is available (or the timeout elapses), then returns
+     * that message along with any other messages that are immediately available, up to {@code max} messages.
+     * @param listenAddress address registered for listening
+     * @param max maximum number of messages to read (or {@code -1} for no limit)
+     * @param timeout how long to wait before giving up, in units of {@code unit} unit (or {@code 0} to wait indefinitely)
+     * @param unit a {@link TimeUnit} determining how to interpret the {@code timeout} parameter
+     * @return incoming messages, or an empty list if no message came in before the timeout
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code listenAddress} was not registered for listening, or if {@code timeout < 0}, or if
+     * {@code max != -1 && max <= 0}
+     * @throws IllegalStateException if this gateway is closed
+     * @throws InterruptedException if this thread is interrupted
+     */
+    public List<Message> readMessages(Address listenAddress, int max, long timeout, TimeUnit unit) throws InterruptedException {
+        Validate.notNull(listenAddress);
+        Validate.notNull(unit);
+        Validate.isTrue(max == -1 || max > 0);
+        Validate.isTrue(timeout >= 0L);
+        if (joinerLatch.getCount() == 0L) { // latch will be at 0 when closed
+            throw new IllegalStateException();
+        }
+
+        Mailbox mailbox = mailboxes.findLongestPrefix(listenAddress);
+        Validate.isTrue(mailbox != null, "%s not registered for listening", listenAddress);
 
-                return messageList.isEmpty() ? null : (Message) messageList.get(0);
-            }
-            next = next.removeSuffix(1);
-        } while (next.size() >= 1);
+        List<Message> messages = mailbox.pull(max, timeout, unit);
+        if (joinerLatch.getCount() == 0L) { // latch will be at 0 when closed
+            throw new IllegalStateException();
+        }
 
-        throw new IllegalArgumentException(listenAddress + " not registered for listening");
+        return messages;
+    }
+
+    /**
+     * Equivalent to calling {@code readMessages(Address.fromString(listenAddress), max, timeout, unit)}.
+     * @param listenAddress address registered for listening
+     * @param max maximum number of messages to read (or {@code -1} for no limit)
+     * @param timeout how long to wait before giving up, in units of {@code unit} unit (or {@code 0} to wait indefinitely)
+     * @param unit a {@link TimeUnit} determining how to interpret the {@code timeout} parameter
+     * @return incoming messages, or an empty list if no message came in before the timeout
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code listenAddress} was not registered for listening, or if {@code timeout < 0}, or if
+     * {@code max != -1 && max <= 0}
+     * @throws IllegalStateException if this gateway is closed
+     * @throws InterruptedException if this thread is interrupted
+     */
+    public List<Message> readMessages(String listenAddress, int max, long timeout, TimeUnit unit) throws InterruptedException {
+        Validate.notNull(listenAddress);
+        Validate.notNull(unit);
+        if (joinerLatch.getCount() == 0L) { // latch will be at 0 when closed
+            throw new IllegalStateException();
+        }
+
+        return readMessages(Address.fromString(listenAddress), max, timeout, unit);
     }
 
     /**
@@ -463,11 +619,78 @@ public final class DirectGateway implements Gateway {
         return readMessagePayloadOnly(Address.fromString(listenAddress));
     }
     
+    /**
+     * Creates a {@link Publisher} of the messages sent to this gateway. Messages are only taken from the listening address as the
+     * subscriber requests them -- if the subscriber has no outstanding demand, messages stay queued up at the listening address.
+     * <p>
+     * No thread polls the listening address. Subscribers are signalled via {@code executor} whenever a message comes in or demand is
+     * requested, and signals are always serialized. Only one subscriber can be active on a listening address at a time (additional
+     * subscribers are immediately signalled with {@link IllegalStateException}). The subscriber is completed once the address is unlistened
+     * or this gateway is closed.
+     * <p>
+     * Note that reading from the listening address by some other means (e.g.
+     * {@link #readMessage(com.offbynull.actors.shuttle.Address) }) while a subscriber is active will take messages away from that
+     * subscriber.
+     * @param listenAddress address registered for listening
+     * @param executor executor to signal subscribers on
+     * @return publisher for messages coming in to {@code listenAddress}
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code listenAddress} was not registered for listening
+     * @throws IllegalStateException if this gateway is closed
+     */
+    public Publisher<Message> publisher(Address listenAddress, Executor executor) {
+        Validate.notNull(listenAddress);
+        Validate.notNull(executor);
+        if (joinerLatch.getCount() == 0L) { // latch will be at 0 when closed
+            throw new IllegalStateException();
+        }
+
+        Mailbox mailbox = mailboxes.findLongestPrefix(listenAddress);
+        Validate.isTrue(mailbox != null, "%s not registered for listening", listenAddress);
+
+        return new MailboxPublisher(mailbox, executor);
+    }
+
+    /**
+     * Equivalent to calling {@code publisher(Address.fromString(listenAddress), executor)}.
+     * @param listenAddress address registered for listening
+     * @param executor executor to signal subscribers on
+     * @return publisher for messages coming in to {@code listenAddress}
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code listenAddress} was not registered for listening
+     * @throws IllegalStateException if this gateway is closed
+     */
+    public Publisher<Message> publisher(String listenAddress, Executor executor) {
+        Validate.notNull(listenAddress);
+        Validate.notNull(executor);
+        if (joinerLatch.getCount() == 0L) { // latch will be at 0 when closed
+            throw new IllegalStateException();
+        }
+
+        return publisher(Address.fromString(listenAddress), executor);
+    }
+
+    /**
+     * Creates a {@link Subscriber} that writes the messages it receives via {@link #writeMessage(com.offbynull.actors.shuttle.Message) }.
+     * Demand is requested in batches. If a message fails to write (e.g. its source address doesn't start with this gateway's prefix or
+     * this gateway has been closed), the subscription is cancelled.
+     * @return subscriber that writes messages out from this gateway
+     * @throws IllegalStateException if this gateway is closed
+     */
+    public Subscriber<Message> subscriber() {
+        if (joinerLatch.getCount() == 0L) { // latch will be at 0 when closed
+            throw new IllegalStateException();
+        }
+
+        return new WriteSubscriber(this::writeMessage, 128);
+    }
+
     @Override
     public void close() {
-        readQueues.clear();
         outShuttles.clear();
         joinerLatch.countDown();
+        mailboxes.clear().forEach(mailbox -> mailbox.close()); // wake up anyone waiting -- they'll see the latch and throw
+        requests.close(); // fail outstanding asks
     }
 
     @Override
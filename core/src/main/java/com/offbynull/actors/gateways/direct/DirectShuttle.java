@@ -19,9 +19,7 @@ package com.offbynull.actors.gateways.direct;
 import com.offbynull.actors.shuttle.Address;
 import com.offbynull.actors.shuttle.Message;
 import com.offbynull.actors.shuttle.Shuttle;
-import com.offbynull.actors.shuttles.simple.Bus;
 import java.util.Collection;
-import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,15 +29,17 @@ final class DirectShuttle implements Shuttle {
     private static final Logger LOG = LoggerFactory.getLogger(DirectShuttle.class);
     
     private final String prefix;
-    private final ConcurrentHashMap<Address, Bus> readQueues;
+    private final MailboxTree mailboxes;
+    private final RequestDispatcher requests;
 
-    DirectShuttle(String prefix, ConcurrentHashMap<Address, Bus> readQueues) {
+    DirectShuttle(String prefix, MailboxTree mailboxes, RequestDispatcher requests) {
         Validate.notNull(prefix);
-        Validate.notNull(readQueues);
-        // don't null check outShuttle keys/values -- this is a concurrent map that gets modified elsewhere, so we have no control
+        Validate.notNull(mailboxes);
+        Validate.notNull(requests);
 
         this.prefix = prefix;
-        this.readQueues = readQueues;
+        this.mailboxes = mailboxes;
+        this.requests = requests;
     }
     
 
@@ -61,15 +61,12 @@ final class DirectShuttle implements Shuttle {
             } catch (Exception e) {
                 LOG.error("Error shuttling message: " + m, e);
             }
-                
-            Address next = dst;
-            do {
-                Bus queue = readQueues.get(next);
-                if (queue != null) {
-                    queue.add(m);
-                }
-                next = next.removeSuffix(1);
-            } while (next.size() >= 1);
+
+            if (requests.dispatch(m)) { // responses to ask() are consumed by the future waiting on them
+                return;
+            }
+
+            mailboxes.deliver(m);
         });
     }
     
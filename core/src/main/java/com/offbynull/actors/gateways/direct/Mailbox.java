@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.direct;
+
+import com.offbynull.actors.shuttle.Message;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Why use this over Bus? Bus guards its queue with a single lock, so every write coming in from the shuttle contends with every read
+// happening on the listening thread. This class keeps messages in a lock-free queue and uses a semaphore purely as a counter of how many
+// messages are available: writes never block, and readers only park when the mailbox is empty.
+//
+// Invariant: the number of permits is never more than the number of messages in the queue (a message is always offered before its permit
+// is released). As such, a reader that has acquired N permits is guaranteed to be able to poll N messages. The exception is close(), which
+// releases a flood of permits with no messages behind them, so readers have to stop once the queue comes back empty.
+//
+// A mailbox can optionally be bounded, in which case messages that come in while it's full are dropped (the shuttle contract doesn't
+// guarantee delivery). The bound is checked against the number of permits, so concurrent writers may overshoot it slightly. A mailbox can
+// also have a single listener that gets invoked whenever a message comes in or the mailbox gets closed -- this is what lets publishers
+// push messages out without a thread polling the mailbox.
+final class Mailbox implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Mailbox.class);
+
+    private static final int CLOSE_PERMITS = Integer.MAX_VALUE / 2; // enough to wake up all waiting readers, small enough to not overflow
+
+    private final int capacity;
+    private final ConcurrentLinkedQueue<Message> queue = new ConcurrentLinkedQueue<>();
+    private final Semaphore available = new Semaphore(0);
+    private final AtomicReference<Runnable> listener = new AtomicReference<>();
+    private volatile boolean closed;
+
+    Mailbox() {
+        this(-1);
+    }
+
+    // capacity of -1 means no limit
+    Mailbox(int capacity) {
+        Validate.isTrue(capacity == -1 || capacity > 0);
+        this.capacity = capacity;
+    }
+
+    void add(Message message) {
+        Validate.notNull(message);
+
+        if (closed) {
+            LOG.debug("Message incoming to closed mailbox: {}", message);
+            return;
+        }
+
+        if (capacity != -1 && available.availablePermits() >= capacity) {
+            LOG.warn("Mailbox full, dropping message: {}", message);
+            return;
+        }
+
+        queue.offer(message);
+        available.release();
+
+        Runnable l = listener.get();
+        if (l != null) {
+            l.run();
+        }
+    }
+
+    // Returns false if some other listener is already set
+    boolean setListener(Runnable l) {
+        Validate.notNull(l);
+        return listener.compareAndSet(null, l);
+    }
+
+    void removeListener(Runnable l) {
+        Validate.notNull(l);
+        listener.compareAndSet(l, null);
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    // Non-blocking, returns null if empty or closed
+    Message poll() {
+        if (closed || !available.tryAcquire()) {
+            return null;
+        }
+
+        if (closed) { // permit may have been one of the ones released by close()
+            return null;
+        }
+
+        return queue.poll();
+    }
+
+    // timeout of 0 means wait forever (same as Bus)
+    List<Message> pull(int max, long timeout, TimeUnit unit) throws InterruptedException {
+        Validate.isTrue(max == -1 || max > 0);
+        Validate.isTrue(timeout >= 0L);
+        Validate.notNull(unit);
+
+        if (closed) {
+            LOG.debug("Messages cannot be pulled from a closed mailbox");
+            return new ArrayList<>();
+        }
+
+        if (timeout == 0L) {
+            available.acquire();
+        } else if (!available.tryAcquire(timeout, unit)) {
+            return new ArrayList<>(); // timeout elapsed, return without doing anything
+        }
+
+        if (closed) {
+            LOG.debug("Mailbox was closed while waiting for messages");
+            return new ArrayList<>();
+        }
+
+        List<Message> messages = new ArrayList<>(max == -1 ? 16 : Math.min(max, 16));
+        messages.add(queue.poll());
+        while ((max == -1 || messages.size() < max) && available.tryAcquire()) {
+            Message message = queue.poll();
+            if (message == null) { // permit was one of the ones released by close() and the queue's drained -- stop (don't spin on them)
+                available.release(); // give it back so it can still wake up another waiting reader
+                break;
+            }
+            messages.add(message);
+        }
+
+        LOG.debug("Pulled {} messages", messages.size());
+        return messages;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        available.release(CLOSE_PERMITS);
+
+        Runnable l = listener.get();
+        if (l != null) {
+            l.run();
+        }
+    }
+}
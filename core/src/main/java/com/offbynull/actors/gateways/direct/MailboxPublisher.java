@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.direct;
+
+import com.offbynull.actors.shuttle.Message;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.Validate;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Publishes the messages that come in to a mailbox. Messages are only pulled out of the mailbox when the subscriber has outstanding demand,
+// so if the subscriber falls behind messages stay queued in the mailbox (which drops them once it hits its capacity, if it has one).
+//
+// No thread sits polling the mailbox. Instead, the mailbox invokes a listener whenever a message comes in, and that listener (along with
+// Subscription.request()) schedules a drain on the executor. A work-in-progress counter makes sure only 1 drain runs at a time, so the
+// subscriber is always signalled serially even though the drains may be triggered from many different threads.
+//
+// A mailbox only supports 1 listener, so only 1 subscriber can be active at a time. Once that subscriber cancels, another can subscribe.
+final class MailboxPublisher implements Publisher<Message> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MailboxPublisher.class);
+
+    private final Mailbox mailbox;
+    private final Executor executor;
+
+    MailboxPublisher(Mailbox mailbox, Executor executor) {
+        Validate.notNull(mailbox);
+        Validate.notNull(executor);
+
+        this.mailbox = mailbox;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super Message> subscriber) {
+        Validate.notNull(subscriber); // rule 1.9 -- must throw NPE
+
+        MailboxSubscription subscription = new MailboxSubscription(subscriber);
+        if (!mailbox.setListener(subscription.listener)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                    // do nothing
+                }
+
+                @Override
+                public void cancel() {
+                    // do nothing
+                }
+            });
+            subscriber.onError(new IllegalStateException("Mailbox already has a subscriber"));
+            return;
+        }
+
+        // wip starts at 1, so any signals that come in while onSubscribe() is running get queued up rather than drained
+        subscriber.onSubscribe(subscription);
+        subscription.schedule();
+    }
+
+    private final class MailboxSubscription implements Subscription {
+        private final Subscriber<? super Message> subscriber;
+        private final Runnable listener;
+        private final AtomicLong requested;
+        private final AtomicInteger wip;
+        private volatile boolean done;
+        private volatile Throwable error;
+
+        MailboxSubscription(Subscriber<? super Message> subscriber) {
+            this.subscriber = subscriber;
+            this.listener = this::signal;
+            this.requested = new AtomicLong();
+            this.wip = new AtomicInteger(1);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0L) { // rule 3.9 -- must signal IllegalArgumentException
+                error = new IllegalArgumentException("Non-positive request: " + n);
+                signal();
+                return;
+            }
+
+            long current;
+            long next;
+            do {
+                current = requested.get();
+                if (current == Long.MAX_VALUE) {
+                    break;
+                }
+                next = current + n;
+                if (next < 0L) { // overflow, treat as unbounded (rule 3.17)
+                    next = Long.MAX_VALUE;
+                }
+            } while (!requested.compareAndSet(current, next));
+
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            terminate();
+        }
+
+        private void signal() {
+            if (wip.getAndIncrement() == 0) {
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this::drain);
+            } catch (RuntimeException re) {
+                LOG.error("Unable to schedule drain, cancelling subscription", re);
+                terminate();
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            while (true) {
+                if (done) {
+                    return; // leaves wip as non-zero, so nothing will ever get scheduled again
+                }
+
+                Throwable e = error;
+                if (e != null) {
+                    terminate();
+                    subscriber.onError(e);
+                    return;
+                }
+
+                long r = requested.get();
+                long emitted = 0L;
+                while (emitted != r && !done) {
+                    Message message = mailbox.poll();
+                    if (message == null) {
+                        break;
+                    }
+
+                    try {
+                        subscriber.onNext(message);
+                    } catch (RuntimeException re) { // rule 2.13 -- subscriber violated spec, treat as cancelled
+                        LOG.error("Subscriber threw exception, cancelling subscription", re);
+                        terminate();
+                        return;
+                    }
+                    emitted++;
+                }
+
+                if (mailbox.isClosed() && !done) { // unlistened or gateway closed
+                    terminate();
+                    subscriber.onComplete();
+                    return;
+                }
+
+                if (emitted != 0L && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void terminate() {
+            done = true;
+            mailbox.removeListener(listener);
+        }
+    }
+}
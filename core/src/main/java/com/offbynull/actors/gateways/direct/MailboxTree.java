@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.direct;
+
+import com.offbynull.actors.shuttle.Address;
+import com.offbynull.actors.shuttle.Message;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.lang3.Validate;
+
+// Trie of mailboxes keyed by address element. Lookups walk down the trie one address element at a time, so finding the mailboxes that a
+// message should go to (or the mailbox that a listen address belongs to) doesn't allocate anything -- the old approach of walking up a
+// map with Address.removeSuffix(1) created a new Address object per level.
+//
+// Lookups are lock-free. Structural changes (adding/removing mailboxes) are rare in comparison, so they're synchronized to keep pruning of
+// empty nodes simple.
+final class MailboxTree {
+
+    private final Node root = new Node(null, null);
+
+    synchronized boolean add(Address address, Mailbox mailbox) {
+        Validate.notNull(address);
+        Validate.notNull(mailbox);
+        Validate.isTrue(!address.isEmpty());
+
+        Node node = root;
+        for (int i = 0; i < address.size(); i++) {
+            String element = address.getElement(i);
+            Node parent = node;
+            node = node.children.computeIfAbsent(element, k -> new Node(parent, k));
+        }
+
+        if (node.mailbox != null) {
+            return false;
+        }
+
+        node.mailbox = mailbox;
+        return true;
+    }
+
+    synchronized Mailbox remove(Address address) {
+        Validate.notNull(address);
+
+        Node node = find(address);
+        if (node == null) {
+            return null;
+        }
+
+        Mailbox mailbox = node.mailbox;
+        node.mailbox = null;
+
+        // Prune nodes that no longer lead to a mailbox
+        while (node.parent != null && node.mailbox == null && node.children.isEmpty()) {
+            node.parent.children.remove(node.element);
+            node = node.parent;
+        }
+
+        return mailbox;
+    }
+
+    synchronized List<Mailbox> clear() {
+        List<Mailbox> mailboxes = new ArrayList<>();
+        collect(root, mailboxes);
+        root.children.clear();
+        return mailboxes;
+    }
+
+    // Get the mailbox for the longest registered prefix of address (or address itself), or null if no such mailbox exists
+    Mailbox findLongestPrefix(Address address) {
+        Validate.notNull(address);
+
+        Mailbox found = null;
+        Node node = root;
+        for (int i = 0; i < address.size(); i++) {
+            node = node.children.get(address.getElement(i));
+            if (node == null) {
+                break;
+            }
+
+            Mailbox mailbox = node.mailbox;
+            if (mailbox != null) {
+                found = mailbox;
+            }
+        }
+
+        return found;
+    }
+
+    // Add message to the mailboxes for address and every prefix of address
+    void deliver(Message message) {
+        Validate.notNull(message);
+
+        Address address = message.getDestinationAddress();
+        Node node = root;
+        for (int i = 0; i < address.size(); i++) {
+            node = node.children.get(address.getElement(i));
+            if (node == null) {
+                break;
+            }
+
+            Mailbox mailbox = node.mailbox;
+            if (mailbox != null) {
+                mailbox.add(message);
+            }
+        }
+    }
+
+    private Node find(Address address) {
+        Node node = root;
+        for (int i = 0; i < address.size() && node != null; i++) {
+            node = node.children.get(address.getElement(i));
+        }
+        return node;
+    }
+
+    private static void collect(Node node, List<Mailbox> mailboxes) {
+        if (node.mailbox != null) {
+            mailboxes.add(node.mailbox);
+            node.mailbox = null;
+        }
+        node.children.values().forEach(child -> collect(child, mailboxes));
+    }
+
+    private static final class Node {
+        private final Node parent;
+        private final String element;
+        private final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+        private volatile Mailbox mailbox;
+
+        Node(Node parent, String element) {
+            this.parent = parent;
+            this.element = element;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.direct;
+
+import com.offbynull.actors.shuttle.Address;
+import com.offbynull.actors.shuttle.Message;
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Correlates responses with outstanding requests. Each request gets its own ephemeral address under requestAddress (e.g.
+// direct:ask:1234). When a message comes in for one of those addresses, the future for that request is completed.
+//
+// Futures are always completed on a single dispatcher thread rather than the thread that delivered the message. Messages get delivered to
+// the direct gateway by whatever thread is sending them (e.g. an actor gateway thread), so completing futures directly would run the
+// caller's dependent stages on that thread. The same thread is used to time out requests, so no matter how many requests are outstanding
+// only 1 thread is used.
+//
+// Timeout tasks are removed from the scheduler as soon as they're cancelled. Otherwise, a cancelled task would stay queued until its
+// timeout would have elapsed, holding on to the completed future (and the response in it) -- memory would grow with request rate * timeout
+// rather than with the number of requests actually outstanding.
+//
+// Anything addressed under requestAddress is consumed, even if the request it's for has timed out or was never made. Those addresses belong
+// to the dispatcher, so a late response must never leak through to a listener on some parent address (e.g. direct).
+final class RequestDispatcher implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestDispatcher.class);
+
+    private final Address requestAddress;
+    private final AtomicLong nextId;
+    private final ConcurrentHashMap<String, PendingRequest> pending;
+
+    private ScheduledThreadPoolExecutor executor; // lazily created, so gateways that never make requests don't spin up a thread
+    private boolean closed;
+
+    RequestDispatcher(Address requestAddress) {
+        Validate.notNull(requestAddress);
+        Validate.isTrue(!requestAddress.isEmpty());
+
+        this.requestAddress = requestAddress;
+        this.nextId = new AtomicLong();
+        this.pending = new ConcurrentHashMap<>();
+    }
+
+    Address getRequestAddress() {
+        return requestAddress;
+    }
+
+    // Returns the ephemeral address that the response for this request should go to
+    Address register(CompletableFuture<Message> future, long timeout, TimeUnit unit) {
+        Validate.notNull(future);
+        Validate.notNull(unit);
+        Validate.isTrue(timeout > 0L);
+
+        ScheduledThreadPoolExecutor exec = executor();
+
+        String id = Long.toString(nextId.incrementAndGet());
+        PendingRequest request = new PendingRequest(future);
+        pending.put(id, request);
+
+        try {
+            request.timeoutTask = exec.schedule(() -> {
+                if (pending.remove(id) != null) {
+                    future.completeExceptionally(new TimeoutException("No response to request " + id));
+                }
+            }, timeout, unit);
+        } catch (RejectedExecutionException ree) { // rejected because closed
+            pending.remove(id);
+            throw new IllegalStateException(ree);
+        }
+
+        return requestAddress.appendSuffix(id);
+    }
+
+    // Returns true if message was addressed to requestAddress or below (and as such was consumed), regardless of whether it was a response
+    // to an outstanding request
+    boolean dispatch(Message message) {
+        Validate.notNull(message);
+
+        Address dst = message.getDestinationAddress();
+        if (!requestAddress.isPrefixOf(dst)) {
+            return false;
+        }
+
+        PendingRequest request = dst.size() > requestAddress.size() ? pending.remove(dst.getElement(requestAddress.size())) : null;
+        if (request == null) {
+            LOG.debug("Response for unknown or timed out request: {}", message);
+            return true;
+        }
+
+        ScheduledFuture<?> timeoutTask = request.timeoutTask;
+        if (timeoutTask != null) { // may still be null if the response came in before register() finished scheduling the timeout
+            timeoutTask.cancel(false);
+        }
+
+        try {
+            executor().execute(() -> request.future.complete(message));
+        } catch (IllegalStateException | RejectedExecutionException e) { // rejected because closed
+            request.future.completeExceptionally(new IllegalStateException("Gateway closed", e));
+        }
+        return true;
+    }
+
+    // Number of tasks waiting on the dispatcher thread (timeouts included) -- for testing
+    synchronized int queuedTaskCount() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    @Override
+    public void close() {
+        ScheduledThreadPoolExecutor exec;
+        synchronized (this) {
+            closed = true;
+            exec = executor;
+        }
+
+        if (exec != null) {
+            exec.shutdownNow();
+        }
+
+        pending.values().forEach(r -> r.future.completeExceptionally(new IllegalStateException("Gateway closed")));
+        pending.clear();
+    }
+
+    private synchronized ScheduledThreadPoolExecutor executor() {
+        if (closed) {
+            throw new IllegalStateException();
+        }
+
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r);
+                thread.setName("DirectGatewayRequestDispatcher - " + requestAddress);
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+        }
+
+        return executor;
+    }
+
+    private static final class PendingRequest {
+        private final CompletableFuture<Message> future;
+        private volatile ScheduledFuture<?> timeoutTask;
+
+        PendingRequest(CompletableFuture<Message> future) {
+            this.future = future;
+        }
+    }
+}
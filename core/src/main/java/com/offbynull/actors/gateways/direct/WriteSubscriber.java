@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.direct;
+
+import com.offbynull.actors.shuttle.Message;
+import java.util.function.Consumer;
+import org.apache.commons.lang3.Validate;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Writes incoming messages out through the gateway. Writes never block (shuttles queue internally), so demand is requested in batches
+// purely to keep upstream from having to track an unbounded request count: once half a batch has been written, the next half is requested.
+//
+// If a write fails (e.g. bad source address or the gateway was closed), the subscription is cancelled.
+final class WriteSubscriber implements Subscriber<Message> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteSubscriber.class);
+
+    private final Consumer<Message> writer;
+    private final int batchSize;
+
+    // Rule 2.7 -- onSubscribe/onNext/onError/onComplete are signalled serially, so no synchronization is needed for these
+    private Subscription subscription;
+    private int outstanding;
+
+    WriteSubscriber(Consumer<Message> writer, int batchSize) {
+        Validate.notNull(writer);
+        Validate.isTrue(batchSize > 1);
+
+        this.writer = writer;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void onSubscribe(Subscription s) {
+        Validate.notNull(s); // rule 2.13 -- must throw NPE
+
+        if (subscription != null) { // rule 2.5 -- only 1 active subscription
+            s.cancel();
+            return;
+        }
+
+        subscription = s;
+        outstanding = batchSize;
+        s.request(batchSize);
+    }
+
+    @Override
+    public void onNext(Message message) {
+        Validate.notNull(message); // rule 2.13 -- must throw NPE
+
+        if (subscription == null) {
+            return; // cancelled
+        }
+
+        try {
+            writer.accept(message);
+        } catch (RuntimeException re) {
+            LOG.error("Unable to write message, cancelling subscription: " + message, re);
+            subscription.cancel();
+            subscription = null;
+            return;
+        }
+
+        outstanding--;
+        if (outstanding <= batchSize / 2) {
+            int next = batchSize - outstanding;
+            outstanding += next;
+            subscription.request(next);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        Validate.notNull(t); // rule 2.13 -- must throw NPE
+
+        LOG.error("Upstream publisher failed", t);
+        subscription = null;
+    }
+
+    @Override
+    public void onComplete() {
+        subscription = null;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.servlet;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.offbynull.actors.shuttle.Address;
+import com.offbynull.actors.shuttle.Message;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.lang3.Validate;
+
+// Compact binary alternative to JsonConverter. All integers are unsigned varints (7 bits per byte, least significant group first, high bit
+// set on all but the last byte) and all strings are a varint byte length followed by UTF-8 bytes.
+//
+// Request block:  id:string, count:varint, message[count]
+// Response block: count:varint, message[count]
+// Message:        source:ref, destination:ref, type:ref, data:string (payload as gson JSON)
+// Ref:            index:varint -- 0 means a new dictionary entry follows as a string (and gets the next index), otherwise it's the 1-based
+//                 index of an entry that came earlier in the same block
+//
+// Addresses and types are dictionary encoded per block, so a block with many messages between the same handful of addresses only carries
+// (and parses) each address/type once.
+final class BinaryConverter {
+
+    static final String CONTENT_TYPE = "application/vnd.offbynull.actors.binary";
+
+    private static final int MAX_LENGTH = 16 * 1024 * 1024; // sanity limit for lengths/counts coming in over the wire
+
+    private final Gson gson;
+    private final ConcurrentHashMap<String, Class<?>> classCache; // only successful lookups get cached, so this is bounded
+
+    BinaryConverter() {
+        gson = new Gson();
+        classCache = new ConcurrentHashMap<>();
+    }
+
+    public void toBinary(ResponseBlock response, OutputStream out) throws IOException {
+        Validate.notNull(response);
+        Validate.notNull(out);
+
+        BufferedOutputStream bout = new BufferedOutputStream(out);
+        Map<String, Integer> addressDict = new HashMap<>();
+        Map<String, Integer> typeDict = new HashMap<>();
+
+        List<Message> messages = response.getMessages();
+        writeVarint(bout, messages.size());
+        for (Message message : messages) {
+            Object obj = message.getMessage();
+            writeRef(bout, addressDict, message.getSourceAddress().toString());
+            writeRef(bout, addressDict, message.getDestinationAddress().toString());
+            writeRef(bout, typeDict, obj.getClass().getName());
+            writeString(bout, gson.toJson(obj));
+        }
+
+        bout.flush(); // don't close, caller owns out
+    }
+
+    public RequestBlock fromBinary(InputStream in) throws IOException {
+        Validate.notNull(in);
+
+        BufferedInputStream bin = new BufferedInputStream(in);
+        try {
+            List<Address> addressDict = new ArrayList<>();
+            List<Class<?>> typeDict = new ArrayList<>();
+
+            String id = readString(bin);
+            int count = readVarint(bin);
+            List<Message> messages = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                Address source = readAddressRef(bin, addressDict);
+                Address destination = readAddressRef(bin, addressDict);
+                Class<?> type = readTypeRef(bin, typeDict);
+                Object data = gson.fromJson(readString(bin), type);
+                Validate.isTrue(data != null, "Missing data");
+
+                messages.add(new Message(source, destination, data));
+            }
+            Validate.isTrue(bin.read() == -1, "Trailing data after request");
+
+            return new RequestBlock(id, messages);
+        } catch (EOFException | NullPointerException | IllegalArgumentException | JsonParseException e) {
+            // these types are things that either the decoding or gson can throw -- it means the input was bad
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+
+
+
+
+    private static void writeRef(OutputStream out, Map<String, Integer> dict, String value) throws IOException {
+        Integer idx = dict.get(value);
+        if (idx != null) {
+            writeVarint(out, idx);
+            return;
+        }
+
+        dict.put(value, dict.size() + 1);
+        writeVarint(out, 0);
+        writeString(out, value);
+    }
+
+    private static Address readAddressRef(InputStream in, List<Address> dict) throws IOException {
+        int idx = readVarint(in);
+        if (idx != 0) {
+            Validate.isTrue(idx <= dict.size(), "Bad address reference: %d", idx);
+            return dict.get(idx - 1);
+        }
+
+        Address address = Address.fromString(readString(in));
+        dict.add(address);
+        return address;
+    }
+
+    private Class<?> readTypeRef(InputStream in, List<Class<?>> dict) throws IOException {
+        int idx = readVarint(in);
+        if (idx != 0) {
+            Validate.isTrue(idx <= dict.size(), "Bad type reference: %d", idx);
+            return dict.get(idx - 1);
+        }
+
+        Class<?> cls = lookupClass(readString(in));
+        dict.add(cls);
+        return cls;
+    }
+
+    private Class<?> lookupClass(String type) {
+        Class<?> cls = classCache.get(type);
+        if (cls != null) {
+            return cls;
+        }
+
+        try {
+            cls = Class.forName(type, false, getClass().getClassLoader());
+        } catch (ClassNotFoundException cnfe) {
+            throw new IllegalArgumentException(cnfe);
+        }
+
+        classCache.putIfAbsent(type, cls);
+        return cls;
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException {
+        byte[] data = value.getBytes(UTF_8);
+        writeVarint(out, data.length);
+        out.write(data);
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        int len = readVarint(in);
+        byte[] data = new byte[len];
+        int read = 0;
+        while (read < len) {
+            int n = in.read(data, read, len - read);
+            if (n == -1) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+        return new String(data, UTF_8);
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        Validate.isTrue(value >= 0);
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                Validate.isTrue(value >= 0 && value <= MAX_LENGTH, "Value out of range: %d", value);
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+}
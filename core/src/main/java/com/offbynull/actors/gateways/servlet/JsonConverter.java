@@ -17,24 +17,30 @@
 package com.offbynull.actors.gateways.servlet;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
-import com.google.gson.JsonPrimitive;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 import com.offbynull.actors.shuttle.Address;
 import com.offbynull.actors.shuttle.Message;
-import java.lang.reflect.Type;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.lang3.Validate;
 
+// Streams request blocks straight out of a reader and response blocks straight into a writer -- no intermediate String or Gson tree is
+// created for the block or the messages in it. The only time a tree gets built is if a message's data property comes in before its type
+// property, in which case the data has to be buffered until it's known what type to decode it as.
 final class JsonConverter {
     
     private static final String SOURCE_PROPERTY = "source";
@@ -46,29 +52,81 @@ final class JsonConverter {
     private static final String MESSAGES_PROPERTY = "messages";
     
     private final Gson gson;
+    private final TypeAdapter<JsonElement> jsonElementAdapter;
+    private final ConcurrentHashMap<String, Class<?>> classCache; // only successful lookups get cached, so this is bounded
 
     JsonConverter() {
-        GsonBuilder gsonBuilder = new GsonBuilder();
-        gsonBuilder.registerTypeAdapter(Message.class, new MessageJsonDeserializer());
-        gsonBuilder.registerTypeAdapter(Message.class, new MessageJsonSerializer());
-        gsonBuilder.registerTypeAdapter(RequestBlock.class, new RequestBlockDeserializer());
-        gsonBuilder.registerTypeAdapter(ResponseBlock.class, new ResponseBlockSerializer());
-        gson = gsonBuilder.create();
+        gson = new Gson();
+        jsonElementAdapter = gson.getAdapter(JsonElement.class);
+        classCache = new ConcurrentHashMap<>();
     }
     
     public String toJson(ResponseBlock response) {
         Validate.notNull(response);
 
-        return gson.toJson(response, ResponseBlock.class);
+        StringWriter writer = new StringWriter();
+        try {
+            toJson(response, writer);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe); // should never happen
+        }
+        return writer.toString();
+    }
+
+    public void toJson(ResponseBlock response, Writer out) throws IOException {
+        Validate.notNull(response);
+        Validate.notNull(out);
+
+        JsonWriter writer = newJsonWriter(out);
+
+        writer.beginObject();
+        writer.name(MESSAGES_PROPERTY);
+        writer.beginArray();
+        for (Message message : response.getMessages()) {
+            writeMessage(writer, message);
+        }
+        writer.endArray();
+        writer.endObject();
+        
+        writer.flush(); // don't close, caller owns out
+    }
+    
+    public String toJson(Message message) {
+        Validate.notNull(message);
+
+        StringWriter writer = new StringWriter();
+        try {
+            JsonWriter jsonWriter = newJsonWriter(writer);
+            writeMessage(jsonWriter, message);
+            jsonWriter.flush();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe); // should never happen
+        }
+        return writer.toString();
     }
     
     public RequestBlock fromJson(String request) {
         Validate.notNull(request);
 
         try {
-            return gson.fromJson(request, RequestBlock.class);
-        } catch (NullPointerException | IllegalArgumentException | JsonSyntaxException e) {
-            // these types are things that either gson or the serializer/deserializer we registered can throw -- it means the input was bad
+            return fromJson(new StringReader(request));
+        } catch (IOException ioe) {
+            throw new IllegalArgumentException(ioe); // should never happen -- bad input is rethrown as IllegalArgumentException
+        }
+    }
+
+    public RequestBlock fromJson(Reader in) throws IOException {
+        Validate.notNull(in);
+
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        try {
+            RequestBlock requestBlock = readRequestBlock(reader);
+            Validate.isTrue(reader.peek() == JsonToken.END_DOCUMENT, "Trailing data after request");
+            return requestBlock;
+        } catch (MalformedJsonException | EOFException
+                | NullPointerException | IllegalStateException | IllegalArgumentException | JsonParseException e) {
+            // these types are things that either the reader or gson can throw -- it means the input was bad
             throw new IllegalArgumentException(e);
         }
     }
@@ -77,109 +135,117 @@ final class JsonConverter {
     
     
     
-    
-    
-    
-    
-    
-    
-    
-    
-    
-    
-    private static final class MessageJsonDeserializer implements JsonDeserializer<Message> {
-
-        @Override
-        public Message deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-            JsonObject jsonObject = json.getAsJsonObject();
+    private RequestBlock readRequestBlock(JsonReader reader) throws IOException {
+        String id = null;
+        List<Message> messages = null;
 
-            String from = jsonObject.get(SOURCE_PROPERTY).getAsString();
-            Address fromAddress = Address.fromString(from);
-
-            String to = jsonObject.get(DESTINATION_PROPERTY).getAsString();
-            Address toAddress = Address.fromString(to);
-
-            JsonElement jsonType = jsonObject.get(TYPE_PROPERTY);
-            String type = jsonType.getAsString();
-            Class<?> cls;
-
-            try {
-                cls = Class.forName(type, false, getClass().getClassLoader());
-            } catch (ClassNotFoundException cnfe) {
-                throw new IllegalArgumentException(cnfe);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case ID_PROPERTY:
+                    id = reader.nextString();
+                    break;
+                case MESSAGES_PROPERTY:
+                    messages = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        messages.add(readMessage(reader));
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
             }
-
-            JsonElement jsonData = jsonObject.get(DATA_PROPERTY);
-
-            Object obj = context.deserialize(jsonData, cls);
-
-            return new Message(fromAddress, toAddress, obj);
         }
-    }
+        reader.endObject();
 
-    
-    
-    private static final class MessageJsonSerializer implements JsonSerializer<Message> {
+        Validate.isTrue(id != null, "Missing %s", ID_PROPERTY);
+        Validate.isTrue(messages != null, "Missing %s", MESSAGES_PROPERTY);
 
-        @Override
-        public JsonElement serialize(Message src, Type typeOfSrc, JsonSerializationContext context) {
-            JsonObject output = new JsonObject();
-            JsonElement payload = context.serialize(src.getMessage());
+        return new RequestBlock(id, messages);
+    }
 
-            String from = src.getSourceAddress().toString();
-            String to = src.getDestinationAddress().toString();
-            Object obj = src.getMessage();
-            String type = obj.getClass().getName();
+    private Message readMessage(JsonReader reader) throws IOException {
+        String source = null;
+        String destination = null;
+        Class<?> cls = null;
+        Object data = null;
+        JsonElement bufferedData = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case SOURCE_PROPERTY:
+                    source = reader.nextString();
+                    break;
+                case DESTINATION_PROPERTY:
+                    destination = reader.nextString();
+                    break;
+                case TYPE_PROPERTY:
+                    cls = lookupClass(reader.nextString());
+                    break;
+                case DATA_PROPERTY:
+                    if (cls != null) {
+                        data = gson.getAdapter(cls).read(reader);
+                    } else {
+                        bufferedData = jsonElementAdapter.read(reader); // type not known yet, buffer it
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
 
-            output.add(SOURCE_PROPERTY, new JsonPrimitive(from));
-            output.add(DESTINATION_PROPERTY, new JsonPrimitive(to));
-            output.add(TYPE_PROPERTY, new JsonPrimitive(type));
-            output.add(DATA_PROPERTY, payload);
+        Validate.isTrue(source != null, "Missing %s", SOURCE_PROPERTY);
+        Validate.isTrue(destination != null, "Missing %s", DESTINATION_PROPERTY);
+        Validate.isTrue(cls != null, "Missing %s", TYPE_PROPERTY);
 
-            return output;
+        if (bufferedData != null) {
+            data = gson.fromJson(bufferedData, cls);
         }
-    }
-    
-    
-    
-    private static final class ResponseBlockSerializer implements JsonSerializer<ResponseBlock> {
+        Validate.isTrue(data != null, "Missing %s", DATA_PROPERTY);
 
-        @Override
-        public JsonElement serialize(ResponseBlock src, Type typeOfSrc, JsonSerializationContext context) {
-            JsonObject jsonObject = new JsonObject();
-            
-            JsonArray messages = new JsonArray();
+        return new Message(Address.fromString(source), Address.fromString(destination), data);
+    }
 
-            for (Message message : src.getMessages()) {
-                JsonElement jsonMessage = context.serialize(message);
-                messages.add(jsonMessage);
-            }
-            
-            jsonObject.add(MESSAGES_PROPERTY, messages);
+    private Class<?> lookupClass(String type) {
+        Class<?> cls = classCache.get(type);
+        if (cls != null) {
+            return cls;
+        }
 
-            return jsonObject;
+        try {
+            cls = Class.forName(type, false, getClass().getClassLoader());
+        } catch (ClassNotFoundException cnfe) {
+            throw new IllegalArgumentException(cnfe);
         }
 
+        classCache.putIfAbsent(type, cls);
+        return cls;
     }
-    
-    
-    
-    private static final class RequestBlockDeserializer implements JsonDeserializer<RequestBlock> {
-
-        @Override
-        public RequestBlock deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-            JsonObject jsonObject = json.getAsJsonObject();
-
-            String id = jsonObject.get(ID_PROPERTY).getAsString();
 
-            JsonArray jsonMessages = jsonObject.get(MESSAGES_PROPERTY).getAsJsonArray();
-            List<Message> messages = new ArrayList<>(jsonMessages.size());
-            for (JsonElement jsonMessage : jsonMessages) {
-                Message message = context.deserialize(jsonMessage, Message.class);
-                messages.add(message);
-            }
+    // Same settings that gson.toJson() writes with -- in particular nulls get skipped (a bare JsonWriter writes them out)
+    private JsonWriter newJsonWriter(Writer out) throws IOException {
+        JsonWriter writer = gson.newJsonWriter(out); // sets serializeNulls to gson's setting
+        writer.setHtmlSafe(true);                    // gson's default
+        writer.setLenient(true);                     // gson.toJson() always writes leniently
+        return writer;
+    }
 
-            return new RequestBlock(id, messages);
-        }
+    @SuppressWarnings("unchecked")
+    private void writeMessage(JsonWriter writer, Message message) throws IOException {
+        Object obj = message.getMessage();
+        TypeAdapter<Object> adapter = (TypeAdapter<Object>) gson.getAdapter(obj.getClass());
+
+        writer.beginObject();
+        writer.name(SOURCE_PROPERTY).value(message.getSourceAddress().toString());
+        writer.name(DESTINATION_PROPERTY).value(message.getDestinationAddress().toString());
+        writer.name(TYPE_PROPERTY).value(obj.getClass().getName());
+        writer.name(DATA_PROPERTY);
+        adapter.write(writer, obj);
+        writer.endObject();
     }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.servlet;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.lang3.Validate;
+
+// Parked long-poll requests, keyed by HTTP client id. The shuttle wakes up the waiter for a client whenever it writes messages for that
+// client to the store. Only 1 waiter is kept per client -- if a client issues a new poll while an old one is still parked, the old one is
+// cancelled (responded to with no messages) since the client has obviously stopped waiting on it.
+final class LongPollWaiters implements Closeable {
+
+    private final ConcurrentHashMap<String, Waiter> waiters = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    void park(String id, Waiter waiter) {
+        Validate.notNull(id);
+        Validate.notNull(waiter);
+
+        Waiter old = waiters.put(id, waiter);
+        if (old != null) {
+            old.cancel();
+        }
+
+        if (closed) { // closed while parking, make sure this waiter doesn't get stuck
+            waiter.cancel();
+        }
+    }
+
+    void remove(String id, Waiter waiter) {
+        Validate.notNull(id);
+        Validate.notNull(waiter);
+
+        waiters.remove(id, waiter);
+    }
+
+    void wake(String id) {
+        Validate.notNull(id);
+
+        Waiter waiter = waiters.get(id);
+        if (waiter != null) {
+            waiter.wake();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        waiters.values().forEach(w -> w.cancel());
+        waiters.clear();
+    }
+
+    interface Waiter {
+        // Messages may be available, check the store. Must not block -- called from the shuttle's thread.
+        void wake();
+
+        // Stop waiting and respond with no messages.
+        void cancel();
+    }
+}
@@ -16,19 +16,29 @@
  */
 package com.offbynull.actors.gateways.servlet;
 
+import com.offbynull.actors.gateways.servlet.LongPollWaiters.Waiter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.Validate;
+import com.offbynull.actors.shuttle.Message;
 import com.offbynull.actors.shuttle.Shuttle;
 import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import static java.util.stream.Collectors.groupingBy;
+import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
 import static javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
 import static javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
 import org.slf4j.Logger;
@@ -38,27 +48,36 @@ final class MessageBridgeServlet extends HttpServlet {
 
     private static final Logger LOG = LoggerFactory.getLogger(MessageBridgeServlet.class);
 
+    private static final String WAIT_PARAMETER = "wait";
+    private static final long MAX_WAIT = 60000L;
+
     private final JsonConverter jsonConverter;
+    private final BinaryConverter binaryConverter;
 
     private final String prefix;
     private final Store queue;
+    private final LongPollWaiters waiters;
 
     private final ConcurrentHashMap<String, Shuttle> outShuttles;
     private final CountDownLatch shutdownLatch;
 
     MessageBridgeServlet(String prefix,
             Store queue,
+            LongPollWaiters waiters,
             ConcurrentHashMap<String, Shuttle> outShuttles,
             CountDownLatch shutdownLatch) {
         Validate.notNull(prefix);
         Validate.notNull(queue);
+        Validate.notNull(waiters);
         Validate.notNull(outShuttles);
         Validate.notNull(shutdownLatch);
          // DONT CHECK outShuttles FOR NULL keys/values as there's no point -- map is concurrent, being modified by other threads
 
         this.jsonConverter = new JsonConverter();
+        this.binaryConverter = new BinaryConverter();
         this.prefix = prefix;
         this.queue = queue;
+        this.waiters = waiters;
         this.outShuttles = outShuttles;
         this.shutdownLatch = shutdownLatch;
     }
@@ -70,14 +89,25 @@ final class MessageBridgeServlet extends HttpServlet {
             return;
         }
 
+        long wait = getWait(req);
+        if (wait == -1L) {
+            resp.setStatus(SC_BAD_REQUEST);
+            return;
+        }
 
         try {
-            String requestJson;
-            try (Reader reader = req.getReader()) {
-                requestJson = IOUtils.toString(reader);
-            }
+            boolean binary = isBinary(req);
 
-            RequestBlock requestBlock = jsonConverter.fromJson(requestJson);
+            RequestBlock requestBlock;
+            if (binary) {
+                try (InputStream in = req.getInputStream()) {
+                    requestBlock = binaryConverter.fromBinary(in);
+                }
+            } else {
+                try (Reader reader = req.getReader()) {
+                    requestBlock = jsonConverter.fromJson(reader);
+                }
+            }
             
             String id = requestBlock.getId();
             requestBlock.getMessages().stream()
@@ -94,16 +124,157 @@ final class MessageBridgeServlet extends HttpServlet {
 
 
 
-            ResponseBlock responseBlock = new ResponseBlock(queue.read(id));
-
-            String responseJson = jsonConverter.toJson(responseBlock);
-            try (Writer writer = resp.getWriter()) {
-                IOUtils.write(responseJson, writer);
+            List<Message> messages = queue.read(id);
+            if (!messages.isEmpty() || wait == 0L || !req.isAsyncSupported()) {
+                writeResponse(resp, messages, binary);
+                return;
             }
+
+            // Nothing available and client wants to wait -- park the request without holding on to this thread. The shuttle wakes it up
+            // once messages for this client are written to the store.
+            AsyncContext asyncContext = req.startAsync();
+            asyncContext.setTimeout(wait);
+
+            LongPoll longPoll = new LongPoll(id, binary, asyncContext);
+            asyncContext.addListener(longPoll);
+            waiters.park(id, longPoll);
+            longPoll.drain(); // in case messages were written between the read above and parking
         } catch (RuntimeException | IOException e) {
             resp.setStatus(SC_INTERNAL_SERVER_ERROR);
             LOG.error("Servlet failed: {}", e);
         }
     }
 
+    // Returns -1 if the client sent a malformed or negative wait
+    private static long getWait(HttpServletRequest req) {
+        String waitStr = req.getParameter(WAIT_PARAMETER);
+        if (waitStr == null) {
+            return 0L;
+        }
+
+        long wait;
+        try {
+            wait = Long.parseLong(waitStr);
+        } catch (NumberFormatException nfe) {
+            return -1L;
+        }
+        return wait < 0L ? -1L : Math.min(wait, MAX_WAIT);
+    }
+
+    // Responses are encoded the same way as the request was
+    private static boolean isBinary(HttpServletRequest req) {
+        String contentType = req.getContentType();
+        return contentType != null && contentType.toLowerCase(Locale.ENGLISH).startsWith(BinaryConverter.CONTENT_TYPE);
+    }
+
+    private void writeResponse(HttpServletResponse resp, List<Message> messages, boolean binary) throws IOException {
+        ResponseBlock responseBlock = new ResponseBlock(messages);
+
+        if (binary) {
+            resp.setContentType(BinaryConverter.CONTENT_TYPE);
+            try (OutputStream out = resp.getOutputStream()) {
+                binaryConverter.toBinary(responseBlock, out);
+            }
+        } else {
+            try (Writer writer = resp.getWriter()) {
+                jsonConverter.toJson(responseBlock, writer);
+            }
+        }
+    }
+
+    private final class LongPoll implements Waiter, AsyncListener {
+
+        private final String id;
+        private final boolean binary;
+        private final AsyncContext asyncContext;
+        private boolean done; // guarded by this -- set once messages have been taken from the store (or once giving up)
+
+        LongPoll(String id, boolean binary, AsyncContext asyncContext) {
+            this.id = id;
+            this.binary = binary;
+            this.asyncContext = asyncContext;
+        }
+
+        @Override
+        public void wake() {
+            try {
+                asyncContext.start(this::drain); // read store on a container thread, not the shuttle's thread
+            } catch (IllegalStateException ise) {
+                // do nothing -- request already completed/timed out
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+            }
+            finish(Collections.emptyList(), null);
+        }
+
+        void drain() {
+            List<Message> messages = null;
+            RuntimeException failure = null;
+            synchronized (this) { // ensures messages are only ever taken from the store if this poll is going to respond with them
+                if (done) {
+                    return;
+                }
+
+                try {
+                    messages = queue.read(id);
+                    if (messages.isEmpty()) {
+                        return; // spurious wake-up, keep waiting
+                    }
+                } catch (RuntimeException re) {
+                    failure = re;
+                }
+                done = true;
+            }
+            finish(messages, failure);
+        }
+
+        private void finish(List<Message> messages, RuntimeException failure) {
+            waiters.remove(id, this);
+
+            HttpServletResponse resp = (HttpServletResponse) asyncContext.getResponse();
+            try {
+                if (failure != null) {
+                    throw failure;
+                }
+                writeResponse(resp, messages, binary);
+            } catch (RuntimeException | IOException e) {
+                resp.setStatus(SC_INTERNAL_SERVER_ERROR);
+                LOG.error("Servlet failed: {}", e);
+            } finally {
+                asyncContext.complete();
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            cancel();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            synchronized (this) {
+                done = true;
+            }
+            waiters.remove(id, this);
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            waiters.remove(id, this);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+            // do nothing
+        }
+    }
+
 }
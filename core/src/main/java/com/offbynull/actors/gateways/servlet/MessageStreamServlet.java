@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
+import static javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+import static javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+final class MessageStreamServlet extends HttpServlet {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageStreamServlet.class);
+
+    private static final String ID_PARAMETER = "id";
+
+    private final JsonConverter jsonConverter;
+
+    private final Store queue;
+    private final StreamConnections connections;
+    private final int bufferCapacity;
+
+    private final CountDownLatch shutdownLatch;
+
+    MessageStreamServlet(Store queue, StreamConnections connections, int bufferCapacity, CountDownLatch shutdownLatch) {
+        Validate.notNull(queue);
+        Validate.notNull(connections);
+        Validate.notNull(shutdownLatch);
+        Validate.isTrue(bufferCapacity > 0);
+
+        this.jsonConverter = new JsonConverter();
+        this.queue = queue;
+        this.connections = connections;
+        this.bufferCapacity = bufferCapacity;
+        this.shutdownLatch = shutdownLatch;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if (shutdownLatch.getCount() == 0L) {
+            resp.setStatus(SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        String id = req.getParameter(ID_PARAMETER);
+        if (id == null || id.isEmpty()) {
+            resp.setStatus(SC_BAD_REQUEST);
+            return;
+        }
+
+        if (!req.isAsyncSupported()) {
+            resp.setStatus(SC_INTERNAL_SERVER_ERROR);
+            LOG.error("Streaming requires servlet to be registered with async support");
+            return;
+        }
+
+        resp.setContentType("text/event-stream");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+
+        AsyncContext asyncContext = req.startAsync();
+        asyncContext.setTimeout(0L); // never time out -- heartbeats detect dead clients
+
+        ServletOutputStream out = resp.getOutputStream();
+        StreamConnection connection = new StreamConnection(id, asyncContext, out, queue, jsonConverter, connections, bufferCapacity);
+        asyncContext.addListener(connection);
+        connections.add(id, connection);
+
+        out.setWriteListener(connection); // container calls onWritePossible() once ready, which pushes out anything already in the store
+    }
+}
@@ -86,6 +86,34 @@ import org.apache.commons.lang3.Validate;
  *   ]
  * }
  * </pre>
+ * <p>
+ * For high-throughput integrations, requests and responses can also be encoded in a compact binary format by setting the request's
+ * content type to {@code application/vnd.offbynull.actors.binary} (the response is encoded the same way as the request). In this format,
+ * integers are unsigned varints (7 bits per byte, least significant group first, high bit set on all but the last byte) and strings are
+ * a varint byte length followed by UTF-8 bytes...
+ * <ul>
+ * <li>request -- id (string), message count (varint), messages</li>
+ * <li>response -- message count (varint), messages</li>
+ * <li>message -- source (ref), destination (ref), type (ref), data (string containing JSON, same as data field above)</li>
+ * <li>ref -- {@code 0} followed by a string to introduce a new entry, or the 1-based index of an entry introduced earlier in the same
+ * request/response (addresses and types are tracked separately)</li>
+ * </ul>
+ * <p>
+ * By default, a request is responded to immediately with whatever messages are available for that HTTP client (if any). To avoid having
+ * clients poll in a tight loop, a request can instead ask to wait for messages by setting the {@code wait} query parameter to the number
+ * of milliseconds to wait for (capped at 60 seconds) -- e.g. {@code POST /bridge?wait=30000}. The request is parked until messages
+ * arrive for that HTTP client or the wait elapses, without holding on to a container thread. Only one request per HTTP client can be
+ * waiting at a time: a new request for the same HTTP client causes the old one to be responded to with no messages. Waiting requires
+ * the servlet to be registered with async support enabled, otherwise requests are responded to immediately.
+ * <p>
+ * HTTP clients that want messages pushed to them as they arrive can instead open a stream via the servlet returned by
+ * {@link #getStreamServlet() } -- e.g. {@code GET /stream?id=0782d5a941fc97cabf18}. The response is a server-sent events stream where
+ * each event's data is a single message (same schema as the objects in the {@code messages} field above), with a comment line sent out
+ * as a heartbeat every 15 seconds if nothing else went out. Messages queued for the HTTP client before the stream was opened are sent
+ * first. Each stream buffers up to 1024 messages in memory -- if the HTTP client falls further behind, messages are put in the store
+ * until it catches up. Only one stream per HTTP client can be open at a time: opening a new stream closes the old one. Messages for an
+ * HTTP client that has a stream open don't show up in responses from {@link #getServlet() }. Streaming requires the servlet to be
+ * registered with async support enabled.
  * @author Kasra Faghihi
  */
 public final class ServletGateway implements Gateway {
@@ -94,10 +122,13 @@ public final class ServletGateway implements Gateway {
     private final PumpShuttleController pumpShuttleController;
     
     private final ConcurrentHashMap<String, Shuttle> outShuttles;
+    private final LongPollWaiters waiters;
+    private final StreamConnections streams;
     
     private final CountDownLatch shutdownLatch;
 
     private final MessageBridgeServlet servlet;
+    private final MessageStreamServlet streamServlet;
 
     /**
      * Create a {@link ServletGateway} instance. Equivalent to calling
@@ -152,12 +183,16 @@ public final class ServletGateway implements Gateway {
 
         shutdownLatch = new CountDownLatch(1);
         
-        inShuttle = new ServletShuttle(prefix, store, shutdownLatch);
+        waiters = new LongPollWaiters();
+        streams = new StreamConnections(Duration.ofSeconds(15L));
+        
+        inShuttle = new ServletShuttle(prefix, store, waiters, streams, shutdownLatch);
         pumpShuttleController = PumpShuttle.create(inShuttle); // safe -- internal thread won't be started if create throws exception
         
         outShuttles = new ConcurrentHashMap<>();
 
-        servlet = new MessageBridgeServlet(prefix, store, outShuttles, shutdownLatch);
+        servlet = new MessageBridgeServlet(prefix, store, waiters, outShuttles, shutdownLatch);
+        streamServlet = new MessageStreamServlet(store, streams, 1024, shutdownLatch);
     }
     
     @Override
@@ -203,11 +238,26 @@ public final class ServletGateway implements Gateway {
         return servlet;
     }
 
+    /**
+     * Get the servlet used to stream messages to web clients as server-sent events. See class documentation for details.
+     * @return message stream servlet
+     * @throws IllegalStateException if this gateway is closed
+     */
+    public HttpServlet getStreamServlet() {
+        if (shutdownLatch.getCount() == 0L) { // latch will be at 0 when closed
+            throw new IllegalStateException();
+        }
+
+        return streamServlet;
+    }
+
     @Override
     public void close() {
         outShuttles.clear();
         pumpShuttleController.close();
         shutdownLatch.countDown();
+        waiters.close();
+        streams.close();
     }
 
     @Override
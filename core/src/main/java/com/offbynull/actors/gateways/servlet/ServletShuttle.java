@@ -27,15 +27,21 @@ final class ServletShuttle implements Shuttle {
 
     private final String prefix;
     private final Store queue;
+    private final LongPollWaiters waiters;
+    private final StreamConnections streams;
     private final CountDownLatch shutdownLatch;
 
-    ServletShuttle(String prefix, Store queue, CountDownLatch shutdownLatch) {
+    ServletShuttle(String prefix, Store queue, LongPollWaiters waiters, StreamConnections streams, CountDownLatch shutdownLatch) {
         Validate.notNull(prefix);
         Validate.notNull(queue);
+        Validate.notNull(waiters);
+        Validate.notNull(streams);
         Validate.notNull(shutdownLatch);
 
         this.prefix = prefix;
         this.queue = queue;
+        this.waiters = waiters;
+        this.streams = streams;
         this.shutdownLatch = shutdownLatch;
     }
 
@@ -57,7 +63,13 @@ final class ServletShuttle implements Shuttle {
                 .filter(m -> m.getDestinationAddress().size() <= 2)
                 .filter(m -> m.getDestinationAddress().getElement(0).equals(prefix))
                 .collect(groupingBy(x -> x.getDestinationAddress().getElement(1))).entrySet().stream()
-                .forEach(e -> queue.write(e.getKey(), e.getValue()));
+                .forEach(e -> {
+                    if (streams.offer(e.getKey(), e.getValue())) { // client has a stream open, push directly to it
+                        return;
+                    }
+                    queue.write(e.getKey(), e.getValue());
+                    waiters.wake(e.getKey());
+                });
     }
     
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.servlet;
+
+import com.offbynull.actors.shuttle.Message;
+import java.io.IOException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// An open server-sent events stream to a HTTP client. Messages from the shuttle are put into a bounded buffer and written out using
+// non-blocking IO (servlet 3.1 WriteListener) on container threads, so neither the shuttle nor any container thread ever blocks on a slow
+// client.
+//
+// If the buffer fills up (client isn't keeping up), the connection goes into overflow mode: messages get written to the store instead of
+// the buffer. Once the buffer has been fully written out, whatever is in the store gets read and written out, and then the connection goes
+// back to using the buffer. Since the buffer is always drained before the store is read, messages go out in the order they came in.
+//
+// A connection starts off in overflow mode, so messages that were queued in the store before the client connected go out first.
+final class StreamConnection implements WriteListener, AsyncListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreamConnection.class);
+
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(UTF_8); // SSE comment line, ignored by clients
+
+    private final String id;
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream out;
+    private final Store store;
+    private final JsonConverter jsonConverter;
+    private final StreamConnections connections;
+    private final int capacity;
+
+    private final AtomicBoolean drainScheduled;
+
+    // All of the following are guarded by this
+    private final ArrayDeque<Message> buffer;  // filled by shuttle
+    private final ArrayDeque<Message> backlog; // filled from store, always goes out before buffer
+    private boolean overflowed;
+    private boolean writable; // container has called onWritePossible() at least once, so the stream is in non-blocking mode
+    private boolean heartbeatDue;
+    private boolean flushNeeded;
+    private boolean closed;
+
+    StreamConnection(String id, AsyncContext asyncContext, ServletOutputStream out, Store store, JsonConverter jsonConverter,
+            StreamConnections connections, int capacity) {
+        Validate.notNull(id);
+        Validate.notNull(asyncContext);
+        Validate.notNull(out);
+        Validate.notNull(store);
+        Validate.notNull(jsonConverter);
+        Validate.notNull(connections);
+        Validate.isTrue(capacity > 0);
+
+        this.id = id;
+        this.asyncContext = asyncContext;
+        this.out = out;
+        this.store = store;
+        this.jsonConverter = jsonConverter;
+        this.connections = connections;
+        this.capacity = capacity;
+
+        this.drainScheduled = new AtomicBoolean();
+
+        this.buffer = new ArrayDeque<>();
+        this.backlog = new ArrayDeque<>();
+        this.overflowed = true;
+    }
+
+    // Returns false if closed, in which case the caller should put the messages in the store itself
+    boolean offer(List<Message> messages) {
+        Validate.notNull(messages);
+        Validate.noNullElements(messages);
+
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+
+            if (!overflowed && buffer.size() + messages.size() <= capacity) {
+                buffer.addAll(messages);
+            } else {
+                overflowed = true;
+                store.write(id, messages); // done under lock so a drain can't read the store in between overflowing and this write
+            }
+        }
+
+        scheduleDrain();
+        return true;
+    }
+
+    void heartbeat() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            heartbeatDue = true;
+        }
+
+        scheduleDrain();
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            spill();
+        }
+
+        connections.remove(id, this);
+        try {
+            asyncContext.complete();
+        } catch (IllegalStateException ise) {
+            // do nothing -- already completed
+        }
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        synchronized (this) {
+            writable = true;
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        LOG.debug("Stream failed for {}", id, t);
+        close();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            spill();
+        }
+        connections.remove(id, this);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+        close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+        LOG.debug("Stream failed for {}", id, event.getThrowable());
+        close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException {
+        // do nothing
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            try {
+                asyncContext.start(this::drain); // write on a container thread, not the shuttle/heartbeat thread
+            } catch (IllegalStateException ise) {
+                drainScheduled.set(false); // already completed
+            }
+        }
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
+
+        boolean failed = false;
+        synchronized (this) {
+            if (closed || !writable) {
+                return;
+            }
+
+            try {
+                // Non-blocking IO -- only 1 write allowed per isReady() returning true. If isReady() returns false, the container will call
+                // onWritePossible() once more can be written.
+                while (out.isReady()) {
+                    byte[] chunk = nextChunk();
+                    if (chunk != null) {
+                        out.write(chunk);
+                        flushNeeded = true;
+                    } else if (flushNeeded) {
+                        out.flush();
+                        flushNeeded = false;
+                    } else {
+                        break;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.debug("Stream failed for {}", id, e);
+                failed = true;
+            }
+        }
+
+        if (failed) {
+            close();
+        }
+    }
+
+    private byte[] nextChunk() {
+        Message message = backlog.poll();
+        if (message == null) {
+            message = buffer.poll();
+        }
+        if (message == null && overflowed) {
+            overflowed = false;
+            backlog.addAll(store.read(id));
+            message = backlog.poll();
+        }
+
+        if (message != null) {
+            heartbeatDue = false; // something's going out, no need for a heartbeat
+            return ("data: " + jsonConverter.toJson(message) + "\n\n").getBytes(UTF_8);
+        }
+
+        if (heartbeatDue) {
+            heartbeatDue = false;
+            return HEARTBEAT;
+        }
+
+        return null;
+    }
+
+    // Put whatever didn't make it out back into the store, so the client can get it once it reconnects (or polls). Best effort -- if the
+    // connection was overflowed, this puts them behind newer messages.
+    private void spill() {
+        List<Message> remaining = new ArrayList<>(backlog.size() + buffer.size());
+        remaining.addAll(backlog);
+        remaining.addAll(buffer);
+        backlog.clear();
+        buffer.clear();
+
+        if (remaining.isEmpty()) {
+            return;
+        }
+
+        try {
+            store.write(id, remaining);
+        } catch (RuntimeException re) {
+            LOG.warn("Unable to return {} unsent messages to store for {}", remaining.size(), id, re);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.servlet;
+
+import com.offbynull.actors.shuttle.Message;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.Validate;
+
+// Open streams, keyed by HTTP client id. Only 1 stream is kept per client -- if a client opens a new stream while an old one is still open,
+// the old one is closed (the client has obviously given up on it). A single thread sends out heartbeats for all streams, so idle streams
+// don't get cut off by proxies and dead clients get detected.
+final class StreamConnections implements Closeable {
+
+    private final ConcurrentHashMap<String, StreamConnection> connections;
+    private final Duration heartbeatInterval;
+
+    private ScheduledExecutorService heartbeatExecutor; // lazily created, so gateways that never stream don't spin up a thread
+    private boolean closed;
+
+    StreamConnections(Duration heartbeatInterval) {
+        Validate.notNull(heartbeatInterval);
+        Validate.isTrue(!heartbeatInterval.isNegative() && !heartbeatInterval.isZero());
+
+        this.connections = new ConcurrentHashMap<>();
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    void add(String id, StreamConnection connection) {
+        Validate.notNull(id);
+        Validate.notNull(connection);
+
+        synchronized (this) {
+            if (closed) {
+                connection.close();
+                return;
+            }
+
+            if (heartbeatExecutor == null) {
+                heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r);
+                    thread.setName("ServletGatewayStreamHeartbeat");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                long intervalMillis = heartbeatInterval.toMillis();
+                heartbeatExecutor.scheduleAtFixedRate(
+                        () -> connections.values().forEach(c -> c.heartbeat()),
+                        intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        StreamConnection old = connections.put(id, connection);
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    void remove(String id, StreamConnection connection) {
+        Validate.notNull(id);
+        Validate.notNull(connection);
+
+        connections.remove(id, connection);
+    }
+
+    // Returns false if there's no open stream for the client, in which case the caller should put the messages in the store itself
+    boolean offer(String id, List<Message> messages) {
+        Validate.notNull(id);
+        Validate.notNull(messages);
+
+        StreamConnection connection = connections.get(id);
+        return connection != null && connection.offer(messages);
+    }
+
+    @Override
+    public void close() {
+        ScheduledExecutorService exec;
+        synchronized (this) {
+            closed = true;
+            exec = heartbeatExecutor;
+        }
+
+        if (exec != null) {
+            exec.shutdownNow();
+        }
+
+        connections.values().forEach(c -> c.close());
+        connections.clear();
+    }
+}
@@ -23,32 +23,57 @@ import com.offbynull.actors.shuttle.Message;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.TreeSet;
 import org.apache.commons.lang3.Validate;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Clock;
-import static java.util.stream.Collectors.toList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A storage engine that keeps all messages serialized in memory. Messages are evicted after a user-defined timeout.
+ * A storage engine that keeps all messages in memory. Messages are evicted after a user-defined timeout.
+ * <p>
+ * By default, messages are held as-is. If the messages going through the servlet gateway have mutable payloads that may get modified
+ * after they've been sent, turn on serialization so that each message is stored as a copy.
+ * <p>
+ * Heap usage can optionally be bounded with byte quotas (per HTTP client and across all HTTP clients). Quotas require serialization, since
+ * that's the only way to know how many bytes a message takes up. Once a quota is hit, messages for the HTTP client get spilled to
+ * memory-mapped segment files on disk until the HTTP client reads its queue. Spill files are temporary: they're deleted once everything in
+ * them has been read or discarded, and on close.
  * @author Kasra Faghihi
  */
 public final class MemoryStore implements Store {
+
+    // Queues within a region are kept in an access-ordered LinkedHashMap, so the least recently accessed queue is always at the head. That
+    // means finding expired queues is just a matter of walking from the head until a queue that hasn't expired is hit -- no sorted
+    // structure to maintain or re-insert into on every access. The walk is done by a background reaper rather than inline with
+    // reads/writes, and reads/writes only check if the single queue they're touching has expired.
+    //
+    // Once a queue starts spilling, everything after it for that queue spills as well (until the queue is read), so in-memory messages
+    // always come before spilled messages and ordering is kept.
+
+    private static final int SPILL_SEGMENT_SIZE = 16 * 1024 * 1024;
     
     private final String prefix;
     
     private final LockRegion[] regions;
     private final Duration timeoutDuration;
     private final Clock clock;
+    private final ScheduledExecutorService reaper;
+
+    private final long clientQuota;
+    private final long globalQuota;
+    private final AtomicLong memoryUsed; // bytes of serialized messages held in memory, across all regions
     
     private volatile boolean closed;
     
     /**
-     * Creates a {@link MemoryStore} object.
+     * Creates a {@link MemoryStore} object. Equivalent to calling {@code create(prefix, concurrency, timeout, false)}.
      * @param prefix prefix for the actor gateway that this storage engine belongs to
      * @param concurrency concurrency level (should be set to number of cores or larger)
      * @param timeout timeout duration -- if messages are read by the time this timeout hits, they are discarded
@@ -57,32 +82,97 @@ public final class MemoryStore implements Store {
      * @throws IllegalArgumentException if {@code concurrency <= 0}
      */
     public static MemoryStore create(String prefix, int concurrency, Duration timeout) {
+        return create(prefix, concurrency, timeout, false);
+    }
+    
+    /**
+     * Creates a {@link MemoryStore} object.
+     * @param prefix prefix for the actor gateway that this storage engine belongs to
+     * @param concurrency concurrency level (should be set to number of cores or larger)
+     * @param timeout timeout duration -- if messages are read by the time this timeout hits, they are discarded
+     * @param serialize if {@code true}, messages are stored serialized (copied) rather than as-is
+     * @return new memory store
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code concurrency <= 0}
+     */
+    public static MemoryStore create(String prefix, int concurrency, Duration timeout, boolean serialize) {
         Validate.notNull(prefix);
+        Validate.notNull(timeout);
         Validate.isTrue(concurrency > 0);
         Validate.isTrue(!timeout.isNegative() && !timeout.isZero());
-        return new MemoryStore(prefix, concurrency, timeout);
+        return new MemoryStore(prefix, concurrency, timeout, serialize, Clock.systemDefaultZone());
     }
     
-    MemoryStore(String prefix, int concurrency, Duration timeout) {
-        this(prefix, concurrency, timeout, Clock.systemDefaultZone());
+    /**
+     * Creates a {@link MemoryStore} object that keeps heap usage bounded by spilling to disk. Messages are always serialized.
+     * @param prefix prefix for the actor gateway that this storage engine belongs to
+     * @param concurrency concurrency level (should be set to number of cores or larger)
+     * @param timeout timeout duration -- if messages are read by the time this timeout hits, they are discarded
+     * @param clientQuota maximum number of serialized message bytes to hold in memory for a single HTTP client
+     * @param globalQuota maximum number of serialized message bytes to hold in memory across all HTTP clients
+     * @param spillDirectory directory to write spill files to (should be dedicated to this store, existing spill files get overwritten)
+     * @return new memory store
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code concurrency <= 0}, or if either quota is negative
+     */
+    public static MemoryStore create(String prefix, int concurrency, Duration timeout, long clientQuota, long globalQuota,
+            Path spillDirectory) {
+        Validate.notNull(prefix);
+        Validate.notNull(timeout);
+        Validate.notNull(spillDirectory);
+        Validate.isTrue(concurrency > 0);
+        Validate.isTrue(!timeout.isNegative() && !timeout.isZero());
+        Validate.isTrue(clientQuota >= 0L);
+        Validate.isTrue(globalQuota >= 0L);
+        return new MemoryStore(prefix, concurrency, timeout, clientQuota, globalQuota, spillDirectory, Clock.systemDefaultZone());
     }
     
     MemoryStore(String prefix, int concurrency, Duration timeout, Clock clock) {
+        this(prefix, concurrency, timeout, false, clock);
+    }
+    
+    MemoryStore(String prefix, int concurrency, Duration timeout, boolean serialize, Clock clock) {
+        this(prefix, concurrency, timeout, serialize, Long.MAX_VALUE, Long.MAX_VALUE, null, clock);
+    }
+    
+    MemoryStore(String prefix, int concurrency, Duration timeout, long clientQuota, long globalQuota, Path spillDirectory, Clock clock) {
+        this(prefix, concurrency, timeout, true, clientQuota, globalQuota, Validate.notNull(spillDirectory), clock);
+    }
+    
+    private MemoryStore(String prefix, int concurrency, Duration timeout, boolean serialize, long clientQuota, long globalQuota,
+            Path spillDirectory, Clock clock) {
         Validate.notNull(prefix);
         Validate.notNull(timeout);
         Validate.notNull(clock);
         Validate.isTrue(concurrency > 0);
         Validate.isTrue(!timeout.isNegative() && !timeout.isZero());
+        Validate.isTrue(clientQuota >= 0L);
+        Validate.isTrue(globalQuota >= 0L);
         
         this.prefix = prefix;
         
         regions = new LockRegion[concurrency];
         for (int i = 0; i < regions.length; i++) {
-            regions[i] = new LockRegion();
+            BestEffortSerializer serializer = serialize ? new BestEffortSerializer() : null;
+            SpillLog spillLog = spillDirectory != null ? new SpillLog(spillDirectory, "region" + i, SPILL_SEGMENT_SIZE) : null;
+            regions[i] = new LockRegion(serializer, spillLog);
         }
         
         timeoutDuration = timeout;
         this.clock = clock;
+
+        this.clientQuota = clientQuota;
+        this.globalQuota = globalQuota;
+        this.memoryUsed = new AtomicLong();
+
+        long reapPeriod = Math.max(timeout.toMillis() / 2L, 10L);
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setName("ServletMemoryStoreReaper - " + prefix);
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(this::reap, reapPeriod, reapPeriod, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -97,65 +187,114 @@ public final class MemoryStore implements Store {
             Validate.isTrue(dstAddr.getElement(0).equals(prefix), "Actor address must start with %s: %s", prefix, dstAddr);
         });
         
+        Instant now = clock.instant();
         LockRegion lockRegion = getLockRegion(id);
         synchronized (lockRegion) {
-            filterTimedOutContainers(lockRegion);
-            
-            Queue queue = lockRegion.queues.computeIfAbsent(id, k -> new Queue(id));
+            Queue existingQueue = lockRegion.queues.get(id); // moves to tail of access order
+            Queue queue = existingQueue != null ? existingQueue : new Queue(lockRegion.serializer != null);
+            if (existingQueue == null) {
+                lockRegion.queues.put(id, queue);
+            } else if (isTimedOut(queue, now)) {
+                discard(lockRegion, queue); // reaper hasn't gotten to it yet, discard what's there
+            }
+            queue.lastAccessTime = now;
+
+            if (lockRegion.serializer == null) {
+                queue.messages.addAll(messages);
+                return;
+            }
             
-            lockRegion.timeouts.remove(queue);
-            queue.lastAccessTime = clock.instant();
-            lockRegion.timeouts.add(queue);
-
-            List<byte[]> serializedMesssages = messages.stream()
-                    .map(m -> lockRegion.serializer.serialize(m))
-                    .collect(toList());
-            queue.data.addAll(serializedMesssages);
+            for (Message message : messages) {
+                byte[] data = lockRegion.serializer.serialize(message);
+                if (lockRegion.spillLog != null && mustSpill(queue, data.length)) {
+                    try {
+                        queue.spilled.add(lockRegion.spillLog.append(data));
+                    } catch (IOException ioe) {
+                        throw new IllegalStateException("Unable to spill message for " + id, ioe);
+                    }
+                } else {
+                    queue.serialized.add(data);
+                    queue.memoryBytes += data.length;
+                    memoryUsed.addAndGet(data.length);
+                }
+            }
         }
     }
+    
+    private boolean mustSpill(Queue queue, int length) {
+        return !queue.spilled.isEmpty()
+                || queue.memoryBytes + length > clientQuota
+                || memoryUsed.get() + length > globalQuota;
+    }
 
     @Override
     public List<Message> read(String id) {
         Validate.notNull(id);
         Validate.validState(!closed, "Store closed");
         
+        Instant now = clock.instant();
         LockRegion lockRegion = getLockRegion(id);
         synchronized (lockRegion) {
-            filterTimedOutContainers(lockRegion);
-            
-            Queue queue = lockRegion.queues.get(id);
+            Queue queue = lockRegion.queues.remove(id);
             if (queue == null) {
                 return new ArrayList<>();
             }
             
-            List<byte[]> serializedMessages = new ArrayList<>(queue.data);
-            List<Message> messsages = serializedMessages.stream()
-                    .map(b -> (Message) lockRegion.serializer.deserialize(b))
-                    .collect(toList());
+            if (isTimedOut(queue, now)) {
+                discard(lockRegion, queue);
+                return new ArrayList<>();
+            }
 
-            lockRegion.queues.remove(queue.id);
-            lockRegion.timeouts.remove(queue);
-            
-            return messsages;
+            if (lockRegion.serializer == null) {
+                return queue.messages; // queue has been removed, so hand over the list as-is
+            }
+
+            List<Message> ret = new ArrayList<>(queue.serialized.size() + queue.spilled.size());
+            queue.serialized.forEach(b -> ret.add((Message) lockRegion.serializer.deserialize(b)));
+            queue.spilled.forEach(r -> ret.add((Message) lockRegion.serializer.deserialize(lockRegion.spillLog.read(r))));
+            discard(lockRegion, queue);
+            return ret;
         }
     }
     
+    
 
-
-    private void filterTimedOutContainers(LockRegion region) {
+    void reap() { // package-private so tests can trigger it directly
         Instant now = clock.instant();
-
-        Iterator<Queue> i = region.timeouts.iterator();
-        while (i.hasNext()) {
-            Queue queue = i.next();
-            Duration idleDuration = Duration.between(queue.lastAccessTime, now);
-            if (idleDuration.compareTo(timeoutDuration) < 0) {
-                break;
+        for (LockRegion region : regions) {
+            synchronized (region) {
+                Iterator<Queue> i = region.queues.values().iterator();
+                while (i.hasNext()) {
+                    Queue queue = i.next();
+                    if (!isTimedOut(queue, now)) {
+                        break; // access ordered, so nothing after this will have timed out either
+                    }
+                    i.remove();
+                    discard(region, queue);
+                }
             }
+        }
+    }
 
-            i.remove();
-            region.queues.remove(queue.id);
+    private void discard(LockRegion region, Queue queue) {
+        if (queue.messages != null) {
+            queue.messages.clear();
+            return;
         }
+
+        memoryUsed.addAndGet(-queue.memoryBytes);
+        queue.memoryBytes = 0L;
+        queue.serialized.clear();
+
+        if (!queue.spilled.isEmpty()) {
+            queue.spilled.forEach(region.spillLog::release);
+            queue.spilled.clear();
+        }
+    }
+
+    private boolean isTimedOut(Queue queue, Instant now) {
+        Duration idleDuration = Duration.between(queue.lastAccessTime, now);
+        return idleDuration.compareTo(timeoutDuration) >= 0;
     }
 
 
@@ -163,6 +302,15 @@ public final class MemoryStore implements Store {
     @Override
     public void close() throws IOException {
         closed = true;
+        reaper.shutdownNow();
+        
+        for (LockRegion region : regions) {
+            synchronized (region) {
+                if (region.spillLog != null) {
+                    region.spillLog.close();
+                }
+            }
+        }
     }
     
     
@@ -177,26 +325,30 @@ public final class MemoryStore implements Store {
     
 
     private static final class LockRegion {
-        private final BestEffortSerializer serializer = new BestEffortSerializer();
-        private final HashMap<String, Queue> queues = new HashMap<>();         // actor addr -> stored actor obj
-        private final TreeSet<Queue> timeouts = new TreeSet<>((x, y) -> {
-            int ret = x.lastAccessTime.compareTo(y.lastAccessTime);
-            if (ret == 0 && x != y) { // if we ever encounter the same time (but different objs), treat it as less-than -- we do this
-                                      // because we're using this set just to order (we still want duplicates showing up)
-                ret = -1;
-            }
-            return ret;
-        }); // timeout -> actor addr
+        private final BestEffortSerializer serializer; // null if not serializing
+        private final SpillLog spillLog; // null if not spilling
+        private final LinkedHashMap<String, Queue> queues = new LinkedHashMap<>(16, 0.75f, true); // client id -> queue (access ordered)
+
+        LockRegion(BestEffortSerializer serializer, SpillLog spillLog) {
+            this.serializer = serializer;
+            this.spillLog = spillLog;
+        }
     }
     
     private static final class Queue {
-        private final String id;
-        private final LinkedList<byte[]> data = new LinkedList<>();
+        private ArrayList<Message> messages; // used if not serializing
+        private ArrayList<byte[]> serialized; // used if serializing
+        private ArrayList<SpillLog.Ref> spilled; // used if serializing, always comes after serialized
+        private long memoryBytes; // total size of serialized
         private Instant lastAccessTime;
 
-        Queue(String id) {
-            this.id = id;
+        Queue(boolean serialize) {
+            if (serialize) {
+                serialized = new ArrayList<>();
+                spilled = new ArrayList<>(0);
+            } else {
+                messages = new ArrayList<>();
+            }
         }
-        
     }
 }
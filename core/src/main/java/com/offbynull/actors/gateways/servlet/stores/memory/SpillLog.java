@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.servlet.stores.memory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Overflow tier for a single lock region. Serialized messages that don't fit in memory get appended to memory-mapped segment files. Only
+// the owning lock region touches an instance, so nothing here is thread-safe.
+//
+// Nothing is ever rewritten or read back in bulk -- the queue holding a ref reads it once and then releases it. Each segment counts how
+// many of its refs are still live, and once that hits 0 (and the segment has been rolled over) the segment file is deleted. The index
+// lives entirely in the refs held by queues, so segment files carry raw bytes only and aren't meant to survive a restart.
+final class SpillLog implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpillLog.class);
+
+    private final Path directory;
+    private final String name;
+    private final int segmentSize;
+
+    private final Set<Segment> segments;
+    private Segment active;
+    private long nextSegmentId;
+
+    SpillLog(Path directory, String name, int segmentSize) {
+        Validate.notNull(directory);
+        Validate.notNull(name);
+        Validate.isTrue(segmentSize > 0);
+
+        this.directory = directory;
+        this.name = name;
+        this.segmentSize = segmentSize;
+        this.segments = new HashSet<>();
+    }
+
+    Ref append(byte[] data) throws IOException {
+        Validate.notNull(data);
+
+        if (active == null || active.buffer.remaining() < data.length) {
+            roll(data.length);
+        }
+
+        int offset = active.buffer.position();
+        active.buffer.put(data);
+        active.live++;
+        return new Ref(active, offset, data.length);
+    }
+
+    byte[] read(Ref ref) {
+        Validate.notNull(ref);
+        Validate.validState(ref.segment.buffer != null, "Segment released");
+
+        ByteBuffer view = ref.segment.buffer.duplicate();
+        view.position(ref.offset);
+        byte[] data = new byte[ref.length];
+        view.get(data);
+        return data;
+    }
+
+    void release(Ref ref) {
+        Validate.notNull(ref);
+
+        Segment segment = ref.segment;
+        segment.live--;
+        if (segment.live == 0 && segment != active) {
+            delete(segment);
+        }
+    }
+
+    @Override
+    public void close() {
+        new HashSet<>(segments).forEach(this::delete);
+        active = null;
+    }
+
+    private void roll(int minSize) throws IOException {
+        Segment old = active;
+
+        Path path = directory.resolve(name + "-" + nextSegmentId + ".spill");
+        nextSegmentId++;
+
+        int size = Math.max(segmentSize, minSize);
+        try (FileChannel channel = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, READ, WRITE)) {
+            active = new Segment(path, channel.map(READ_WRITE, 0L, size)); // mapping stays valid after the channel is closed
+        }
+        segments.add(active);
+
+        if (old != null && old.live == 0) {
+            delete(old);
+        }
+    }
+
+    private void delete(Segment segment) {
+        segments.remove(segment);
+        segment.buffer = null; // no way to explicitly unmap on java 8, GC will take care of it
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException ioe) {
+            LOG.warn("Unable to delete spill segment {}", segment.path, ioe);
+        }
+    }
+
+    static final class Ref {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Ref(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int length() {
+            return length;
+        }
+    }
+
+    private static final class Segment {
+        private final Path path;
+        private MappedByteBuffer buffer;
+        private int live;
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.offbynull.actors.gateways.actor.stores.file;
+
+import com.offbynull.actors.gateways.actor.SerializableActor;
+import com.offbynull.actors.gateways.actor.SerializableActorHelper;
+import com.offbynull.actors.gateways.actor.Store.StoredWork;
+import com.offbynull.actors.shuttle.Message;
+import java.nio.file.Path;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileStoreTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path directory;
+    private FileStore fixture;
+
+    @Before
+    public void before() throws Exception {
+        directory = temporaryFolder.newFolder().toPath();
+        fixture = FileStore.create("actor", 2, directory);
+    }
+
+    @After
+    public void after() throws Exception {
+        fixture.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailWhenStoringMessageWithDestinationThatHasBadPrefix() {
+        fixture.store(new Message("unknown1:a", "unknown2:b:2:3:4", "payload"));
+    }
+
+    @Test
+    public void mustIgnoreMessagesComingInForActorsThatDontExist() {
+        fixture.store(
+                new Message("actor:a:1:2:3", "actor:b:2:3:4", "payload"),
+                new Message("actor:a:1:2:3", "actor:b:2:3:4", "payload"));
+        assertEquals(0, fixture.getStoredMessageCount());
+    }
+
+    @Test(timeout = 1000L)
+    public void mustRestoreAfterPulllingWork() {
+        SerializableActor actor = SerializableActorHelper.createFake("actor:b");
+        fixture.store(actor);
+        fixture.store(
+                new Message("actor:a:1:1", "actor:b:2:1", "payload1"),
+                new Message("actor:a:1:2", "actor:b:2:2", "payload2"),
+                new Message("actor:a:1:3", "actor:b:2:3", "payload3"));
+        fixture.take();
+        fixture.store(actor);
+
+        assertEquals(2, fixture.getStoredMessageCount());
+        assertEquals(1, fixture.getActorCount());
+        assertEquals(0, fixture.getProcessingActorCount());
+        assertEquals(1, fixture.getReadyActorCount());
+
+        StoredWork work = fixture.take();
+
+        assertEquals("payload2", work.getMessage().getMessage());
+        assertEquals(1, fixture.getStoredMessageCount());
+        assertEquals(1, fixture.getProcessingActorCount());
+    }
+
+    @Test(timeout = 1000L)
+    public void mustDiscardActor() {
+        fixture.store(SerializableActorHelper.createFake("actor:a"));
+        fixture.store(SerializableActorHelper.createFake("actor:b"));
+        fixture.store(new Message("actor:a:1:1", "actor:b:2:1", "payload1"));
+
+        fixture.discard("actor:b");
+
+        assertEquals(1, fixture.getActorCount());
+        assertEquals(0, fixture.getStoredMessageCount());
+        assertEquals(0, fixture.getReadyActorCount());
+    }
+
+    @Test(timeout = 2000L)
+    public void mustNotAllowRecoveryOfOldCheckpointInstanceToBlowAwayState() {
+        SerializableActor initialActor = SerializableActorHelper.createFake("actor:a", "timeout_msg", 300L);
+        fixture.store(initialActor);
+
+        SerializableActor checkpointHitActor = fixture.take().getActor();
+        assertEquals(1, checkpointHitActor.getCheckpointInstance());
+
+        fixture.store(checkpointHitActor);
+        fixture.store(initialActor);
+
+        SerializableActor checkpointHitActor2 = fixture.take().getActor();
+        assertEquals(2, checkpointHitActor2.getCheckpointInstance());
+    }
+
+    @Test(timeout = 2000L)
+    public void mustRecoverActorsAndMessagesAfterReopen() {
+        fixture.store(SerializableActorHelper.createFake("actor:a"));
+        fixture.store(SerializableActorHelper.createFake("actor:b"));
+        fixture.store(
+                new Message("actor:x", "actor:b:1", "payload1"),
+                new Message("actor:x", "actor:b:2", "payload2"),
+                new Message("actor:x", "actor:a:1", "payload3"));
+        fixture.discard("actor:a");
+        fixture.take(); // takes payload1, actor:b left processing
+        fixture.close();
+
+        fixture = FileStore.create("actor", 2, directory);
+
+        assertEquals(1, fixture.getActorCount());
+        assertEquals(1, fixture.getStoredMessageCount());
+        assertEquals(0, fixture.getProcessingActorCount());
+        assertEquals(1, fixture.getReadyActorCount());
+
+        StoredWork work = fixture.take();
+        assertEquals("actor:b:2", work.getMessage().getDestinationAddress().toString());
+        assertEquals("payload2", work.getMessage().getMessage());
+    }
+
+    @Test(timeout = 2000L)
+    public void mustRecoverCheckpointInstanceAfterReopen() {
+        fixture.store(SerializableActorHelper.createFake("actor:a", "timeout_msg", 0L));
+        assertEquals(1, fixture.take().getActor().getCheckpointInstance());
+        fixture.close();
+
+        fixture = FileStore.create("actor", 2, directory);
+
+        // checkpoint was hit but actor never came back, so it must hit again
+        assertEquals(2, fixture.take().getActor().getCheckpointInstance());
+    }
+
+    @Test(timeout = 2000L)
+    public void mustKeepStateAcrossCompaction() {
+        fixture.store(SerializableActorHelper.createFake("actor:a"));
+        for (int i = 0; i < 100; i++) {
+            fixture.store(new Message("actor:x", "actor:a:" + i, "payload" + i));
+        }
+        for (int i = 0; i < 90; i++) {
+            fixture.take();
+            fixture.store(SerializableActorHelper.createFake("actor:a"));
+        }
+
+        fixture.compact();
+
+        assertEquals(10, fixture.getStoredMessageCount());
+        assertEquals("payload90", fixture.take().getMessage().getMessage());
+        fixture.close();
+
+        fixture = FileStore.create("actor", 2, directory);
+        assertEquals(1, fixture.getActorCount());
+        assertEquals(9, fixture.getStoredMessageCount());
+        assertEquals("payload91", fixture.take().getMessage().getMessage());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailToReopenWithDifferentConcurrency() {
+        fixture.close();
+        fixture = FileStore.create("actor", 3, directory);
+    }
+}
@@ -0,0 +1,63 @@
+package com.offbynull.actors.gateways.actor.stores.memory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import java.util.Random;
+import org.junit.Test;
+
+public class ImageArenaTest {
+
+    @Test
+    public void mustRoundTripImagesOfAllSizes() {
+        ImageArena fixture = new ImageArena(true);
+        Random random = new Random(0L);
+        for (int size : new int[] {0, 1, 55, 56, 57, 300, 4000, 70000, 200000}) {
+            byte[] compressible = new byte[size];
+            byte[] incompressible = new byte[size];
+            random.nextBytes(incompressible);
+
+            long compressibleHandle = fixture.allocate(compressible);
+            long incompressibleHandle = fixture.allocate(incompressible);
+
+            assertArrayEquals(compressible, fixture.read(compressibleHandle));
+            assertArrayEquals(incompressible, fixture.read(incompressibleHandle));
+        }
+    }
+
+    @Test
+    public void mustReuseFreedBlocks() {
+        ImageArena fixture = new ImageArena(false);
+        long first = fixture.allocate(new byte[] {1, 2, 3});
+        long second = fixture.allocate(new byte[] {4, 5, 6});
+        assertNotEquals(first, second);
+
+        fixture.free(first);
+        long third = fixture.allocate(new byte[] {7, 8});
+
+        assertEquals(first, third);
+        assertArrayEquals(new byte[] {7, 8}, fixture.read(third));
+        assertArrayEquals(new byte[] {4, 5, 6}, fixture.read(second));
+    }
+
+    @Test
+    public void mustReuseSlotsOfFreedLargeImages() {
+        ImageArena fixture = new ImageArena(false);
+        long first = fixture.allocate(new byte[100000]);
+        fixture.free(first);
+        long second = fixture.allocate(new byte[120000]);
+
+        assertEquals(first, second);
+        assertEquals(120000, fixture.read(second).length);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void mustFailToUseClosedArena() {
+        ImageArena fixture = new ImageArena(true);
+        long handle = fixture.allocate(new byte[1000]);
+        fixture.close();
+        fixture.close(); // closing twice is fine
+
+        fixture.read(handle);
+    }
+}
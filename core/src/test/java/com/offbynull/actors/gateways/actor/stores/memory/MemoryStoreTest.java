@@ -3,14 +3,29 @@ package com.offbynull.actors.gateways.actor.stores.memory;
 import com.offbynull.actors.gateways.actor.SerializableActor;
 import com.offbynull.actors.gateways.actor.SerializableActorHelper;
 import com.offbynull.actors.gateways.actor.Store.StoredWork;
+import com.offbynull.actors.shuttle.Address;
 import com.offbynull.actors.shuttle.Message;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
 import org.junit.After;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
 
 public class MemoryStoreTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private MemoryStore fixture;
     
     @Before
@@ -190,4 +205,208 @@ public class MemoryStoreTest {
         SerializableActor checkpointHitActor = fixture.take().getActor();
         assertEquals(1, checkpointHitActor.getCheckpointInstance());
     }
+
+    @Test(timeout = 2000L)
+    public void mustRecoverFromLogAfterReopen() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        MemoryStore persistentFixture = MemoryStore.create("actor", 2, directory);
+        persistentFixture.store(SerializableActorHelper.createFake("actor:a"));
+        persistentFixture.store(SerializableActorHelper.createFake("actor:b"));
+        persistentFixture.store(
+                new Message("actor:x", "actor:b:1", "payload1"),
+                new Message("actor:x", "actor:b:2", "payload2"),
+                new Message("actor:x", "actor:a:1", "payload3"));
+        persistentFixture.discard("actor:a");
+        persistentFixture.take();
+        persistentFixture.close();
+
+        persistentFixture = MemoryStore.create("actor", 2, directory);
+        try {
+            assertEquals(1, persistentFixture.getActorCount());
+            assertEquals(1, persistentFixture.getStoredMessageCount());
+            assertEquals(0, persistentFixture.getProcessingActorCount());
+            assertEquals(1, persistentFixture.getReadyActorCount());
+            assertEquals("payload2", persistentFixture.take().getMessage().getMessage());
+        } finally {
+            persistentFixture.close();
+        }
+    }
+
+    @Test(timeout = 2000L)
+    public void mustRecoverFromSnapshotAndLogTailAfterReopen() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        MemoryStore persistentFixture = MemoryStore.create("actor", 2, directory);
+        persistentFixture.store(SerializableActorHelper.createFake("actor:a"));
+        persistentFixture.store(
+                new Message("actor:x", "actor:a:1", "payload1"),
+                new Message("actor:x", "actor:a:2", "payload2"));
+        persistentFixture.snapshot();
+        persistentFixture.store(SerializableActorHelper.createFake("actor:b"));
+        persistentFixture.store(new Message("actor:x", "actor:b:1", "payload3"));
+        persistentFixture.close();
+
+        persistentFixture = MemoryStore.create("actor", 2, directory);
+        try {
+            assertEquals(2, persistentFixture.getActorCount());
+            assertEquals(3, persistentFixture.getStoredMessageCount());
+            assertEquals(2, persistentFixture.getReadyActorCount());
+        } finally {
+            persistentFixture.close();
+        }
+    }
+
+    @Test(timeout = 2000L)
+    public void mustPassivateIdleActorsAndReactivateWhenMessageComesIn() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        MemoryStore passivatingFixture = MemoryStore.create("actor", 2, directory, Duration.ofMinutes(1L), Duration.ofMillis(50L));
+        try {
+            passivatingFixture.store(SerializableActorHelper.createFake("actor:a"));
+            passivatingFixture.store(SerializableActorHelper.createFake("actor:b"));
+            Thread.sleep(100L);
+            passivatingFixture.passivate();
+
+            assertEquals(2, passivatingFixture.getActorCount());
+            assertEquals(2, passivatingFixture.getPassivatedActorCount());
+
+            passivatingFixture.store(new Message("actor:x", "actor:b:1", "payload1"));
+
+            assertEquals(2, passivatingFixture.getActorCount());
+            assertEquals(1, passivatingFixture.getPassivatedActorCount());
+            assertEquals(1, passivatingFixture.getReadyActorCount());
+
+            StoredWork work = passivatingFixture.take();
+            assertEquals("payload1", work.getMessage().getMessage());
+            assertEquals("actor:b", work.getActor().getSelf().toString());
+        } finally {
+            passivatingFixture.close();
+        }
+    }
+
+    @Test(timeout = 2000L)
+    public void mustReactivatePassivatedActorBeforeCheckpointHits() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        MemoryStore passivatingFixture = MemoryStore.create("actor", 2, directory, Duration.ofMinutes(1L), Duration.ofMillis(50L));
+        try {
+            passivatingFixture.store(SerializableActorHelper.createFake("actor:a", "timeout_msg", 700L));
+            Thread.sleep(100L);
+            passivatingFixture.passivate();
+
+            assertEquals(1, passivatingFixture.getPassivatedActorCount());
+
+            StoredWork work = passivatingFixture.take();
+            assertEquals("timeout_msg", work.getMessage().getMessage());
+            assertEquals(0, passivatingFixture.getPassivatedActorCount());
+        } finally {
+            passivatingFixture.close();
+        }
+    }
+
+    @Test(timeout = 2000L)
+    public void mustIncludePassivatedActorsInSnapshot() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        MemoryStore passivatingFixture = MemoryStore.create("actor", 2, directory, Duration.ofMinutes(1L), Duration.ofMillis(50L));
+        passivatingFixture.store(SerializableActorHelper.createFake("actor:a"));
+        passivatingFixture.store(SerializableActorHelper.createFake("actor:b"));
+        Thread.sleep(100L);
+        passivatingFixture.passivate();
+        passivatingFixture.snapshot();
+        passivatingFixture.close();
+
+        MemoryStore persistentFixture = MemoryStore.create("actor", 2, directory);
+        try {
+            assertEquals(2, persistentFixture.getActorCount());
+            persistentFixture.store(new Message("actor:x", "actor:a:1", "payload1"));
+            assertEquals("actor:a", persistentFixture.take().getActor().getSelf().toString());
+        } finally {
+            persistentFixture.close();
+        }
+    }
+
+    @Test(timeout = 2000L)
+    public void mustCoalesceChangesWhenWritingBehind() {
+        FakeBackingStore backingStore = new FakeBackingStore();
+        MemoryStore writeBehindFixture = MemoryStore.create("actor", 2, backingStore, Duration.ofMinutes(1L));
+        try {
+            writeBehindFixture.store(SerializableActorHelper.createFake("actor:a"));
+            writeBehindFixture.store(SerializableActorHelper.createFake("actor:b"));
+            writeBehindFixture.store(
+                    new Message("actor:x", "actor:a:1", "payload1"),
+                    new Message("actor:x", "actor:a:2", "payload2"),
+                    new Message("actor:x", "actor:b:1", "payload3"));
+            writeBehindFixture.writeBehind();
+
+            assertEquals(1, backingStore.writeCount);
+            assertEquals(2, backingStore.data.size());
+
+            writeBehindFixture.discard("actor:a");
+            writeBehindFixture.writeBehind();
+
+            assertEquals(2, backingStore.writeCount);
+            assertEquals(1, backingStore.data.size());
+            assertTrue(backingStore.data.containsKey(Address.fromString("actor:b")));
+        } finally {
+            writeBehindFixture.close();
+        }
+    }
+
+    @Test(timeout = 2000L)
+    public void mustWarmFromBackingStoreAfterReopen() {
+        FakeBackingStore backingStore = new FakeBackingStore();
+        MemoryStore writeBehindFixture = MemoryStore.create("actor", 2, backingStore, Duration.ofMinutes(1L));
+        writeBehindFixture.store(SerializableActorHelper.createFake("actor:a"));
+        writeBehindFixture.store(
+                new Message("actor:x", "actor:a:1", "payload1"),
+                new Message("actor:x", "actor:a:2", "payload2"));
+        writeBehindFixture.take();
+        writeBehindFixture.close(); // writes out whatever is outstanding
+
+        writeBehindFixture = MemoryStore.create("actor", 2, backingStore, Duration.ofMinutes(1L));
+        try {
+            assertEquals(1, writeBehindFixture.getActorCount());
+            assertEquals(1, writeBehindFixture.getStoredMessageCount());
+            assertEquals("payload2", writeBehindFixture.take().getMessage().getMessage());
+        } finally {
+            writeBehindFixture.close();
+        }
+    }
+
+    @Test(timeout = 2000L)
+    public void mustRetryFailedWriteBehind() {
+        FakeBackingStore backingStore = new FakeBackingStore();
+        MemoryStore writeBehindFixture = MemoryStore.create("actor", 2, backingStore, Duration.ofMinutes(1L));
+        try {
+            writeBehindFixture.store(SerializableActorHelper.createFake("actor:a"));
+            backingStore.failing = true;
+            writeBehindFixture.writeBehind();
+            assertEquals(0, backingStore.data.size());
+
+            backingStore.failing = false;
+            writeBehindFixture.writeBehind();
+            assertEquals(1, backingStore.data.size());
+        } finally {
+            writeBehindFixture.close();
+        }
+    }
+
+    private static final class FakeBackingStore implements BackingStore {
+        private final Map<Address, byte[]> data = new HashMap<>();
+        private volatile int writeCount;
+        private volatile boolean failing;
+
+        @Override
+        public synchronized void write(Map<Address, byte[]> puts, Collection<Address> removes) {
+            if (failing) {
+                throw new IllegalStateException();
+            }
+            writeCount++;
+            removes.forEach(data::remove);
+            data.putAll(puts);
+        }
+
+        @Override
+        public synchronized void load(BiConsumer<Address, byte[]> loader) {
+            List<Map.Entry<Address, byte[]>> entries = new ArrayList<>(data.entrySet());
+            entries.forEach(e -> loader.accept(e.getKey(), e.getValue()));
+        }
+    }
 }
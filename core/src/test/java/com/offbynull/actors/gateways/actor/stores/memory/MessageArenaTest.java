@@ -0,0 +1,160 @@
+package com.offbynull.actors.gateways.actor.stores.memory;
+
+import static com.offbynull.actors.gateways.actor.stores.memory.MessageArena.NIL;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageArenaTest {
+
+    private MessageArena fixture;
+
+    @Before
+    public void before() {
+        fixture = new MessageArena(64);
+    }
+
+    @Test
+    public void mustLinkEntriesInOrder() {
+        long first = fixture.append(NIL, new byte[] {1});
+        long second = fixture.append(first, new byte[] {2, 2});
+        long third = fixture.append(second, new byte[] {3, 3, 3});
+
+        assertEquals(second, fixture.next(first));
+        assertEquals(third, fixture.next(second));
+        assertEquals(NIL, fixture.next(third));
+        assertArrayEquals(new byte[] {1}, fixture.read(first));
+        assertArrayEquals(new byte[] {2, 2}, fixture.read(second));
+        assertArrayEquals(new byte[] {3, 3, 3}, fixture.read(third));
+    }
+
+    @Test
+    public void mustKeepInterleavedQueuesIntactAcrossSlabs() {
+        long[] heads = new long[] {NIL, NIL};
+        long[] tails = new long[] {NIL, NIL};
+        for (int i = 0; i < 100; i++) {
+            int queue = i % 2;
+            long handle = fixture.append(tails[queue], new byte[] {(byte) i});
+            if (heads[queue] == NIL) {
+                heads[queue] = handle;
+            }
+            tails[queue] = handle;
+        }
+
+        for (int queue = 0; queue < 2; queue++) {
+            int expected = queue;
+            long handle = heads[queue];
+            while (handle != NIL) {
+                assertArrayEquals(new byte[] {(byte) expected}, fixture.read(handle));
+                long next = fixture.next(handle);
+                fixture.free(handle);
+                handle = next;
+                expected += 2;
+            }
+            assertEquals(100 + queue, expected);
+        }
+    }
+
+    @Test
+    public void mustReuseFreedSlabs() {
+        for (int i = 0; i < 1000; i++) {
+            long handle = fixture.append(NIL, new byte[20]);
+            fixture.free(handle);
+        }
+
+        long handle = fixture.append(NIL, new byte[] {5});
+        assertEquals(0L, handle >>> 32); // never had to go past the first slab index
+        assertArrayEquals(new byte[] {5}, fixture.read(handle));
+    }
+
+    @Test
+    public void mustHandleEntriesLargerThanSlab() {
+        byte[] big = new byte[1000];
+        big[999] = 9;
+        long small = fixture.append(NIL, new byte[] {1});
+        long large = fixture.append(small, big);
+        long after = fixture.append(large, new byte[] {2});
+
+        assertArrayEquals(big, fixture.read(large));
+        assertEquals(after, fixture.next(large));
+        assertArrayEquals(new byte[] {2}, fixture.read(after));
+    }
+
+    @Test
+    public void mustCompactSparseSlabs() {
+        long[] handles = new long[30];
+        for (int i = 0; i < handles.length; i++) { // 20 byte entries, 3 to a slab
+            handles[i] = fixture.append(NIL, new byte[] {(byte) i, 0, 0, 0, 0, 0, 0, 0});
+        }
+        for (int i = 0; i < handles.length; i++) { // leave 1 entry pinning each slab
+            if (i % 3 != 0) {
+                fixture.free(handles[i]);
+                handles[i] = NIL;
+            }
+        }
+        assertFalse(fixture.isCompactionDue()); // only checked when rolling to a new slab
+        for (int i = 0; i < 3; i++) {
+            fixture.free(fixture.append(NIL, new byte[8]));
+        }
+        assertTrue(fixture.isCompactionDue());
+
+        fixture.beginCompaction();
+        for (int i = 0; i < handles.length; i += 3) {
+            handles[i] = fixture.relocate(handles[i]);
+        }
+        fixture.endCompaction();
+        assertFalse(fixture.isCompactionDue());
+
+        Set<Long> slabIndices = new HashSet<>();
+        for (int i = 0; i < handles.length; i += 3) {
+            assertArrayEquals(new byte[] {(byte) i, 0, 0, 0, 0, 0, 0, 0}, fixture.read(handles[i]));
+            assertEquals(NIL, fixture.next(handles[i]));
+            slabIndices.add(handles[i] >>> 32);
+        }
+        assertTrue(slabIndices.size() <= 5); // 10 entries packed into 4 slabs (5 if the slab being allocated into was partially used)
+    }
+
+    @Test
+    public void mustKeepQueueLinkedWhenCompacting() {
+        long head = NIL;
+        long tail = NIL;
+        for (int i = 0; i < 30; i++) {
+            long handle = fixture.append(NIL, new byte[8]); // filler -- freed below to make the queue's slabs sparse
+            long entry = fixture.append(tail, new byte[] {(byte) i, 0, 0, 0, 0, 0, 0, 0});
+            if (head == NIL) {
+                head = entry;
+            }
+            tail = entry;
+            fixture.free(handle);
+        }
+        fixture.append(NIL, new byte[40]); // force roll so compaction gets checked
+        assertTrue(fixture.isCompactionDue());
+
+        fixture.beginCompaction();
+        long prev = NIL;
+        for (long handle = head; handle != NIL;) {
+            long next = fixture.next(handle);
+            long moved = fixture.relocate(handle);
+            if (prev == NIL) {
+                head = moved;
+            } else {
+                fixture.link(prev, moved);
+            }
+            prev = moved;
+            handle = next;
+        }
+        fixture.endCompaction();
+
+        int expected = 0;
+        for (long handle = head; handle != NIL; handle = fixture.next(handle)) {
+            assertArrayEquals(new byte[] {(byte) expected, 0, 0, 0, 0, 0, 0, 0}, fixture.read(handle));
+            expected++;
+        }
+        assertEquals(30, expected);
+    }
+}
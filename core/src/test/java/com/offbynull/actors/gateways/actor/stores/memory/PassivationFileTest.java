@@ -0,0 +1,95 @@
+package com.offbynull.actors.gateways.actor.stores.memory;
+
+import com.offbynull.actors.shuttle.Address;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PassivationFileTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private PassivationFile fixture;
+
+    @Before
+    public void before() throws IOException {
+        fixture = PassivationFile.open(temporaryFolder.newFolder().toPath().resolve("test.passivated"), 100L);
+    }
+
+    @After
+    public void after() {
+        fixture.close();
+    }
+
+    @Test
+    public void mustRemoveOnlyWhatWasPut() throws IOException {
+        for (int i = 0; i < 5000; i++) { // enough to force the index to grow a few times
+            fixture.put(Address.of("actor", "" + i), Long.MAX_VALUE, entry("actor:" + i));
+        }
+        assertEquals(5000, fixture.size());
+
+        for (int i = 0; i < 5000; i += 2) {
+            assertArrayEquals(entry("actor:" + i), fixture.remove(Address.of("actor", "" + i)));
+        }
+        assertEquals(2500, fixture.size());
+
+        for (int i = 0; i < 5000; i++) {
+            byte[] entry = fixture.remove(Address.of("actor", "" + i));
+            if (i % 2 == 0) {
+                assertNull(entry);
+            } else {
+                assertArrayEquals(entry("actor:" + i), entry);
+            }
+        }
+        assertEquals(0, fixture.size());
+    }
+
+    @Test
+    public void mustDrainOnlyLiveEntriesThatAreDue() throws IOException {
+        fixture.put(Address.of("actor", "a"), 1000L, entry("actor:a"));
+        fixture.put(Address.of("actor", "b"), 1050L, entry("actor:b"));
+        fixture.put(Address.of("actor", "c"), 5000L, entry("actor:c"));
+        fixture.put(Address.of("actor", "d"), Long.MAX_VALUE, entry("actor:d"));
+        fixture.remove(Address.of("actor", "b"));
+
+        List<byte[]> drained = new ArrayList<>();
+        fixture.drain(1000L, drained::add);
+
+        assertEquals(1, drained.size());
+        assertArrayEquals(entry("actor:a"), drained.get(0));
+        assertEquals(2, fixture.size());
+        assertNull(fixture.remove(Address.of("actor", "a")));
+    }
+
+    @Test
+    public void mustIterateLiveEntries() throws IOException {
+        fixture.put(Address.of("actor", "a"), Long.MAX_VALUE, entry("actor:a"));
+        fixture.put(Address.of("actor", "b"), Long.MAX_VALUE, entry("actor:b"));
+        fixture.remove(Address.of("actor", "a"));
+
+        List<byte[]> entries = new ArrayList<>();
+        fixture.forEach(entries::add);
+
+        assertEquals(1, entries.size());
+        assertArrayEquals(entry("actor:b"), entries.get(0));
+    }
+
+    private static byte[] entry(String address) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeUTF(address);
+        dos.writeInt(address.length());
+        return baos.toByteArray();
+    }
+}
@@ -1,13 +1,28 @@
 package com.offbynull.actors.gateways.direct;
 
+import com.offbynull.actors.shuttle.Address;
+import com.offbynull.actors.shuttle.Message;
+import static java.util.Arrays.asList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import static java.util.stream.Collectors.toList;
 import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 public class DirectGatewayTest {
 
@@ -117,4 +132,307 @@ public class DirectGatewayTest {
         thrown.expect(IllegalArgumentException.class);
         direct2Gateway.readMessagePayloadOnly("direct2:in");
     }
+
+    @Test
+    public void mustReadMessagesInBatches() throws InterruptedException {
+        direct1Gateway.listen("direct1:in");
+        direct2Gateway.listen("direct2:in");
+
+        for (int i = 0; i < 5; i++) {
+            direct1Gateway.writeMessage("direct1:in", "direct2:in", i);
+        }
+
+        List<Message> batch1 = direct2Gateway.readMessages("direct2:in", 3, 1000L, TimeUnit.MILLISECONDS);
+        List<Message> batch2 = direct2Gateway.readMessages("direct2:in", -1, 1000L, TimeUnit.MILLISECONDS);
+        List<Message> batch3 = direct2Gateway.readMessages("direct2:in", -1, 100L, TimeUnit.MILLISECONDS);
+
+        assertEquals(asList(0, 1, 2), batch1.stream().map(m -> m.getMessage()).collect(toList()));
+        assertEquals(asList(3, 4), batch2.stream().map(m -> m.getMessage()).collect(toList()));
+        assertTrue(batch3.isEmpty());
+    }
+
+    @Test
+    public void mustReadFromClosestListenAddressAboveReadAddress() throws InterruptedException {
+        direct1Gateway.listen("direct1:in1");
+        direct1Gateway.listen("direct1:in1:in2:in3");
+        direct2Gateway.listen("direct2:in");
+
+        direct2Gateway.writeMessage("direct2:in", "direct1:in1:in2", "2to1");
+
+        assertEquals("2to1", direct1Gateway.readMessagePayloadOnly("direct1:in1:in2", 1000L, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void mustListenAgainAfterUnlistening() throws InterruptedException {
+        direct1Gateway.listen("direct1:in1:in2");
+        direct2Gateway.listen("direct2:in");
+        direct1Gateway.unlisten("direct1:in1:in2");
+        direct1Gateway.listen("direct1:in1:in2");
+
+        direct2Gateway.writeMessage("direct2:in", "direct1:in1:in2", "2to1");
+
+        assertEquals("2to1", direct1Gateway.readMessagePayloadOnly("direct1:in1:in2", 1000L, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 5000L)
+    public void mustWakeUpBlockedReaderWhenClosed() throws Exception {
+        direct1Gateway.listen("direct1:in");
+
+        Thread closer = new Thread(() -> {
+            try {
+                Thread.sleep(200L);
+            } catch (InterruptedException ie) {
+                throw new IllegalStateException(ie);
+            }
+            direct1Gateway.close();
+        });
+        closer.start();
+
+        thrown.expect(IllegalStateException.class);
+        try {
+            direct1Gateway.readMessage("direct1:in");
+        } finally {
+            closer.join();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void mustCompleteAskWithResponse() throws Exception {
+        direct2Gateway.listen("direct2:in");
+
+        CompletableFuture<Message> future = direct1Gateway.ask("direct2:in", "request", 5000L, TimeUnit.MILLISECONDS);
+
+        Message request = direct2Gateway.readMessage("direct2:in");
+        assertEquals("request", request.getMessage());
+        direct2Gateway.writeMessage(new Message(request.getDestinationAddress(), request.getSourceAddress(), "response"));
+
+        assertEquals("response", future.get().getMessage());
+    }
+
+    @Test(timeout = 5000L)
+    public void mustCompleteConcurrentAsksWithTheirOwnResponses() throws Exception {
+        direct2Gateway.listen("direct2:in");
+
+        CompletableFuture<Message> future1 = direct1Gateway.ask("direct2:in", "request1", 5000L, TimeUnit.MILLISECONDS);
+        CompletableFuture<Message> future2 = direct1Gateway.ask("direct2:in", "request2", 5000L, TimeUnit.MILLISECONDS);
+
+        List<Message> requests = direct2Gateway.readMessages("direct2:in", 2, 0L, TimeUnit.MILLISECONDS);
+        if (requests.size() == 1) {
+            requests.addAll(direct2Gateway.readMessages("direct2:in", 1, 0L, TimeUnit.MILLISECONDS));
+        }
+        for (int i = requests.size() - 1; i >= 0; i--) { // respond in reverse order
+            Message request = requests.get(i);
+            direct2Gateway.writeMessage(request.getDestinationAddress(), request.getSourceAddress(), request.getMessage() + "response");
+        }
+
+        assertEquals("request1response", future1.get().getMessage());
+        assertEquals("request2response", future2.get().getMessage());
+    }
+
+    @Test(timeout = 5000L)
+    public void mustNotDeliverAskResponsesToListeners() throws Exception {
+        direct1Gateway.listen("direct1");
+        direct2Gateway.listen("direct2:in");
+
+        CompletableFuture<Message> future = direct1Gateway.ask("direct2:in", "request", 5000L, TimeUnit.MILLISECONDS);
+
+        Message request = direct2Gateway.readMessage("direct2:in");
+        direct2Gateway.writeMessage(request.getDestinationAddress(), request.getSourceAddress(), "response");
+
+        assertEquals("response", future.get().getMessage());
+        assertEquals(null, direct1Gateway.readMessage("direct1", 100L, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 5000L)
+    public void mustNotDeliverLateAskResponsesToListeners() throws Exception {
+        direct1Gateway.listen("direct1");
+        direct2Gateway.listen("direct2:in");
+
+        CompletableFuture<Message> future = direct1Gateway.ask("direct2:in", "request", 100L, TimeUnit.MILLISECONDS);
+
+        Message request = direct2Gateway.readMessage("direct2:in");
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof TimeoutException);
+        }
+        direct2Gateway.writeMessage(request.getDestinationAddress(), request.getSourceAddress(), "response");
+        direct2Gateway.writeMessage("direct2:out", "direct1:ask:999999", "stray");
+
+        assertEquals(null, direct1Gateway.readMessage("direct1", 100L, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 5000L)
+    public void mustRemoveAskTimeoutOnceAnswered() throws Exception {
+        try (RequestDispatcher dispatcher = new RequestDispatcher(Address.fromString("direct1:ask"))) {
+            CompletableFuture<Message> future = new CompletableFuture<>();
+            Address responseAddress = dispatcher.register(future, 1L, TimeUnit.HOURS);
+            assertEquals(1, dispatcher.queuedTaskCount());
+
+            assertTrue(dispatcher.dispatch(new Message(Address.fromString("direct2:in"), responseAddress, "response")));
+
+            assertEquals("response", future.get().getMessage());
+            assertEquals(0, dispatcher.queuedTaskCount());
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void mustTimeOutAskWithNoResponse() throws Exception {
+        direct2Gateway.listen("direct2:in");
+
+        CompletableFuture<Message> future = direct1Gateway.ask("direct2:in", "request", 100L, TimeUnit.MILLISECONDS);
+
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void mustFailOutstandingAsksWhenClosed() throws Exception {
+        direct2Gateway.listen("direct2:in");
+
+        CompletableFuture<Message> future = direct1Gateway.ask("direct2:in", "request", 5000L, TimeUnit.MILLISECONDS);
+        assertFalse(future.isDone());
+
+        direct1Gateway.close();
+
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void mustFailToListenOnAskAddress() throws InterruptedException {
+        thrown.expect(IllegalArgumentException.class);
+        direct1Gateway.listen("direct1:ask:1");
+    }
+
+    @Test(timeout = 5000L)
+    public void mustPublishOnlyAsMuchAsRequested() throws Exception {
+        direct1Gateway.listen("direct1:in");
+
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        direct1Gateway.publisher("direct1:in", Runnable::run).subscribe(subscriber);
+
+        direct2Gateway.writeMessage("direct2:out", "direct1:in", "1");
+        direct2Gateway.writeMessage("direct2:out", "direct1:in", "2");
+        direct2Gateway.writeMessage("direct2:out", "direct1:in", "3");
+        assertEquals(asList(), subscriber.payloads());
+
+        subscriber.subscription.request(2L);
+        assertEquals(asList("1", "2"), subscriber.payloads());
+
+        subscriber.subscription.request(5L);
+        assertEquals(asList("1", "2", "3"), subscriber.payloads());
+
+        direct2Gateway.writeMessage("direct2:out", "direct1:in", "4");
+        assertEquals(asList("1", "2", "3", "4"), subscriber.payloads());
+    }
+
+    @Test(timeout = 5000L)
+    public void mustCompletePublisherWhenUnlistened() throws Exception {
+        direct1Gateway.listen("direct1:in");
+
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        direct1Gateway.publisher("direct1:in", Runnable::run).subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        direct1Gateway.unlisten("direct1:in");
+
+        subscriber.completed.await();
+    }
+
+    @Test(timeout = 5000L)
+    public void mustRejectSecondPublisherSubscriberUntilFirstCancels() throws Exception {
+        direct1Gateway.listen("direct1:in");
+
+        RecordingSubscriber subscriber1 = new RecordingSubscriber();
+        direct1Gateway.publisher("direct1:in", Runnable::run).subscribe(subscriber1);
+
+        RecordingSubscriber subscriber2 = new RecordingSubscriber();
+        direct1Gateway.publisher("direct1:in", Runnable::run).subscribe(subscriber2);
+        assertTrue(subscriber2.error instanceof IllegalStateException);
+
+        subscriber1.subscription.cancel();
+
+        RecordingSubscriber subscriber3 = new RecordingSubscriber();
+        direct1Gateway.publisher("direct1:in", Runnable::run).subscribe(subscriber3);
+        subscriber3.subscription.request(1L);
+        direct2Gateway.writeMessage("direct2:out", "direct1:in", "1");
+        assertEquals(asList("1"), subscriber3.payloads());
+        assertEquals(asList(), subscriber1.payloads());
+    }
+
+    @Test(timeout = 5000L)
+    public void mustDropMessagesOverListenCapacity() throws Exception {
+        direct1Gateway.listen("direct1:in", 2);
+
+        direct2Gateway.writeMessage("direct2:out", "direct1:in", "1");
+        direct2Gateway.writeMessage("direct2:out", "direct1:in", "2");
+        direct2Gateway.writeMessage("direct2:out", "direct1:in", "3");
+
+        List<Message> messages = direct1Gateway.readMessages("direct1:in", -1, 0L, TimeUnit.MILLISECONDS);
+        assertEquals(asList("1", "2"), messages.stream().map(m -> m.getMessage()).collect(toList()));
+    }
+
+    @Test(timeout = 5000L)
+    public void mustWriteMessagesFromSubscriber() throws Exception {
+        direct2Gateway.listen("direct2:in");
+
+        Subscriber<Message> subscriber = direct1Gateway.subscriber();
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                for (long i = 0; i < n && i < 3; i++) {
+                    subscriber.onNext(new Message(Address.fromString("direct1:out"), Address.fromString("direct2:in"), "" + i));
+                }
+            }
+
+            @Override
+            public void cancel() {
+                throw new IllegalStateException();
+            }
+        });
+
+        List<Message> messages = direct2Gateway.readMessages("direct2:in", -1, 0L, TimeUnit.MILLISECONDS);
+        assertEquals(asList("0", "1", "2"), messages.stream().map(m -> m.getMessage()).collect(toList()));
+    }
+
+    private static final class RecordingSubscriber implements Subscriber<Message> {
+        private final List<Message> messages = new ArrayList<>();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile Subscription subscription;
+        private volatile Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+        }
+
+        @Override
+        public synchronized void onNext(Message t) {
+            messages.add(t);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        public synchronized List<Object> payloads() {
+            return messages.stream().map(m -> m.getMessage()).collect(toList());
+        }
+    }
 }
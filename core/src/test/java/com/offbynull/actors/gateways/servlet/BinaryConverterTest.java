@@ -0,0 +1,106 @@
+package com.offbynull.actors.gateways.servlet;
+
+import com.offbynull.actors.shuttle.Message;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BinaryConverterTest {
+    
+    private BinaryConverter fixture;
+    
+    @Before
+    public void setUp() {
+        fixture = new BinaryConverter();
+    }
+    
+    @Test
+    public void mustConvertBinaryToRequestBlock() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeString(out, "hi");
+        out.write(2);                  // 2 messages
+        out.write(0);                  // new address
+        writeString(out, "a:a1");
+        out.write(0);                  // new address
+        writeString(out, "b:b1");
+        out.write(0);                  // new type
+        writeString(out, "java.lang.String");
+        writeString(out, "\"payload1\"");
+        out.write(2);                  // address 2 (b:b1)
+        out.write(1);                  // address 1 (a:a1)
+        out.write(1);                  // type 1 (java.lang.String)
+        writeString(out, "\"payload2\"");
+
+        RequestBlock rb = fixture.fromBinary(new ByteArrayInputStream(out.toByteArray()));
+        
+        assertEquals("hi", rb.getId());
+        assertEquals(2, rb.getMessages().size());
+
+        assertEquals("a:a1", rb.getMessages().get(0).getSourceAddress().toString());
+        assertEquals("b:b1", rb.getMessages().get(0).getDestinationAddress().toString());
+        assertEquals("payload1", rb.getMessages().get(0).getMessage());
+
+        assertEquals("b:b1", rb.getMessages().get(1).getSourceAddress().toString());
+        assertEquals("a:a1", rb.getMessages().get(1).getDestinationAddress().toString());
+        assertEquals("payload2", rb.getMessages().get(1).getMessage());
+        assertSame(rb.getMessages().get(0).getSourceAddress(), rb.getMessages().get(1).getDestinationAddress());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailToConvertBinaryWithBadReference() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeString(out, "hi");
+        out.write(1);                  // 1 message
+        out.write(5);                  // address 5 (doesn't exist)
+
+        fixture.fromBinary(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailToConvertTruncatedBinary() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeString(out, "hi");
+        out.write(1);                  // 1 message
+
+        fixture.fromBinary(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    public void mustGenerateResponseBlockToBinary() throws Exception {
+        ResponseBlock rb = new ResponseBlock(Arrays.asList(
+                new Message("a:a1", "b:b1", "payload1"),
+                new Message("a:a1", "b:b1", 5)
+        ));
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        fixture.toBinary(rb, actual);
+        
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(2);
+        expected.write(0);
+        writeString(expected, "a:a1");
+        expected.write(0);
+        writeString(expected, "b:b1");
+        expected.write(0);
+        writeString(expected, "java.lang.String");
+        writeString(expected, "\"payload1\"");
+        expected.write(1);
+        expected.write(2);
+        expected.write(0);
+        writeString(expected, "java.lang.Integer");
+        writeString(expected, "5");
+
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String str) {
+        byte[] data = str.getBytes(UTF_8);
+        out.write(data.length); // all strings used in this test are < 128 bytes, so varint is 1 byte
+        out.write(data, 0, data.length);
+    }
+}
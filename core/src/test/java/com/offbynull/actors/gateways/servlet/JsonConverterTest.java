@@ -1,6 +1,8 @@
 package com.offbynull.actors.gateways.servlet;
 
 import com.offbynull.actors.shuttle.Message;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.Arrays;
 import static org.junit.Assert.assertEquals;
 import org.junit.Before;
@@ -60,5 +62,68 @@ public class JsonConverterTest {
         
         assertEquals("{\"messages\":[{\"source\":\"a:a1\",\"destination\":\"b:b1\",\"type\":\"java.lang.String\",\"data\":\"payload1\"},{\"source\":\"a:a2\",\"destination\":\"b:b2\",\"type\":\"java.lang.String\",\"data\":\"payload2\"}]}", json);
     }
+
+    @Test
+    public void mustConvertJsonStreamToRequestBlockWhenDataComesBeforeType() throws Exception {
+        String json =
+                "{\n"
+                + "  messages: [\n"
+                + "   {\n"
+                + "     data=5,\n"
+                + "     unknown={ a: [1,2,3] },\n"
+                + "     destination='b:b1',\n"
+                + "     type='java.lang.Integer',\n"
+                + "     source='a:a1'\n"
+                + "   }\n"
+                + "  ],\n"
+                + "  id: 'hi'\n"
+                + "}";
+
+        RequestBlock rb = fixture.fromJson(new StringReader(json));
+
+        assertEquals("hi", rb.getId());
+        assertEquals(1, rb.getMessages().size());
+
+        assertEquals("a:a1", rb.getMessages().get(0).getSourceAddress().toString());
+        assertEquals("b:b1", rb.getMessages().get(0).getDestinationAddress().toString());
+        assertEquals(5, rb.getMessages().get(0).getMessage());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailToConvertTruncatedJsonStream() throws Exception {
+        fixture.fromJson(new StringReader("{ id: 'hi', messages: [ { source='a:a1', destination='b:b1'"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mustFailToConvertMessageWithUnknownType() throws Exception {
+        fixture.fromJson("{ id: 'hi', messages: [ { source='a:a1', destination='b:b1', type='fake.Type', data='x' } ] }");
+    }
+
+    @Test
+    public void mustGenerateResponseBlockToJsonStream() throws Exception {
+        ResponseBlock rb = new ResponseBlock(Arrays.asList(
+                new Message("a:a1", "b:b1", 5)
+        ));
+        StringWriter writer = new StringWriter();
+        fixture.toJson(rb, writer);
+        
+        assertEquals("{\"messages\":[{\"source\":\"a:a1\",\"destination\":\"b:b1\",\"type\":\"java.lang.Integer\",\"data\":5}]}",
+                writer.toString());
+    }
+
+    @Test
+    public void mustSkipNullFieldsWhenGeneratingResponseBlock() {
+        ResponseBlock rb = new ResponseBlock(Arrays.asList(
+                new Message("a:a1", "b:b1", new NullableFieldPayload())
+        ));
+        String json = fixture.toJson(rb);
+
+        assertEquals("{\"messages\":[{\"source\":\"a:a1\",\"destination\":\"b:b1\","
+                + "\"type\":\"" + NullableFieldPayload.class.getName() + "\",\"data\":{\"value\":1}}]}", json);
+    }
     
+    private static final class NullableFieldPayload {
+        private final int value = 1;
+        private final String missing = null;
+    }
 }
@@ -2,17 +2,31 @@ package com.offbynull.actors.gateways.servlet;
 
 import com.offbynull.actors.shuttle.Message;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import org.junit.After;
 import static org.junit.Assert.assertEquals;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public final class ServletGatewayTest {
@@ -67,4 +81,164 @@ public final class ServletGatewayTest {
         assertEquals("{\"messages\":[{\"source\":\"src:src\",\"destination\":\"servlet:test_id\",\"type\":\"java.lang.String\",\"data\":\"hi!\"}]}", out.toString());
     }
 
+    @Test
+    public void mustHoldLongPollUntilMessageArrives() throws Throwable {
+        HttpServlet servlet = fixture.getServlet();
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        AsyncContext asyncContext = mockAsyncContext(req, resp);
+
+        StringWriter out = new StringWriter();
+
+        when(req.getMethod()).thenReturn("POST");
+        when(req.getParameter("wait")).thenReturn("10000");
+        when(req.getReader()).thenReturn(new BufferedReader(new StringReader("{ id: 'test_id', messages: [] }")));
+        when(resp.getWriter()).thenReturn(new PrintWriter(out));
+
+        servlet.service(req, resp);
+        
+        verify(asyncContext).setTimeout(10000L);
+        verify(asyncContext, never()).complete();
+        assertEquals("", out.toString());
+
+        fixture.getIncomingShuttle().send(new Message("src:src", "servlet:test_id", "hi!"));
+
+        verify(asyncContext, timeout(5000L)).complete();
+        assertEquals("{\"messages\":[{\"source\":\"src:src\",\"destination\":\"servlet:test_id\",\"type\":\"java.lang.String\",\"data\":\"hi!\"}]}", out.toString());
+    }
+
+    @Test
+    public void mustRespondWithNoMessagesWhenLongPollTimesOut() throws Throwable {
+        HttpServlet servlet = fixture.getServlet();
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        AsyncContext asyncContext = mockAsyncContext(req, resp);
+
+        StringWriter out = new StringWriter();
+
+        when(req.getMethod()).thenReturn("POST");
+        when(req.getParameter("wait")).thenReturn("10000");
+        when(req.getReader()).thenReturn(new BufferedReader(new StringReader("{ id: 'test_id', messages: [] }")));
+        when(resp.getWriter()).thenReturn(new PrintWriter(out));
+
+        servlet.service(req, resp);
+
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+        listener.getValue().onTimeout(new AsyncEvent(asyncContext));
+
+        verify(asyncContext).complete();
+        assertEquals("{\"messages\":[]}", out.toString());
+    }
+
+    @Test
+    public void mustStreamQueuedAndIncomingMessages() throws Throwable {
+        fixture.getIncomingShuttle().send(new Message("src:src", "servlet:test_id", "queued"));
+        Thread.sleep(500L); // wait for pump shuttle to put it in the store
+
+        HttpServlet servlet = fixture.getStreamServlet();
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        AsyncContext asyncContext = mockAsyncContext(req, resp);
+
+        CapturingOutputStream out = new CapturingOutputStream();
+
+        when(req.getMethod()).thenReturn("GET");
+        when(req.getParameter("id")).thenReturn("test_id");
+        when(resp.getOutputStream()).thenReturn(out);
+
+        servlet.service(req, resp);
+
+        verify(resp).setContentType("text/event-stream");
+        verify(asyncContext).setTimeout(0L);
+        assertEquals(
+                "data: {\"source\":\"src:src\",\"destination\":\"servlet:test_id\",\"type\":\"java.lang.String\",\"data\":\"queued\"}\n\n",
+                out.toString());
+
+        fixture.getIncomingShuttle().send(new Message("src:src", "servlet:test_id", "pushed"));
+        Thread.sleep(500L); // wait for pump shuttle to push it
+
+        assertEquals(
+                "data: {\"source\":\"src:src\",\"destination\":\"servlet:test_id\",\"type\":\"java.lang.String\",\"data\":\"queued\"}\n\n"
+                + "data: {\"source\":\"src:src\",\"destination\":\"servlet:test_id\",\"type\":\"java.lang.String\",\"data\":\"pushed\"}\n\n",
+                out.toString());
+
+        fixture.close();
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void mustRejectBadWait() throws Throwable {
+        HttpServlet servlet = fixture.getServlet();
+
+        for (String wait : new String[] {"abc", "-1"}) {
+            HttpServletRequest req = mock(HttpServletRequest.class);
+            HttpServletResponse resp = mock(HttpServletResponse.class);
+
+            when(req.getMethod()).thenReturn("POST");
+            when(req.getParameter("wait")).thenReturn(wait);
+
+            servlet.service(req, resp);
+
+            verify(resp).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            verify(req, never()).getReader();
+        }
+    }
+
+    @Test
+    public void mustFailStreamWithoutId() throws Throwable {
+        HttpServlet servlet = fixture.getStreamServlet();
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+
+        when(req.getMethod()).thenReturn("GET");
+
+        servlet.service(req, resp);
+
+        verify(resp).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    }
+
+    private static AsyncContext mockAsyncContext(HttpServletRequest req, HttpServletResponse resp) {
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(req.isAsyncSupported()).thenReturn(true);
+        when(req.startAsync()).thenReturn(asyncContext);
+        when(asyncContext.getResponse()).thenReturn(resp);
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArguments()[0]).run();
+            return null;
+        }).when(asyncContext).start(any(Runnable.class));
+        return asyncContext;
+    }
+
+    private static final class CapturingOutputStream extends ServletOutputStream {
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            try {
+                writeListener.onWritePossible();
+            } catch (IOException ioe) {
+                throw new IllegalStateException(ioe);
+            }
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            data.write(b);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return new String(data.toByteArray(), UTF_8);
+        }
+    }
 }
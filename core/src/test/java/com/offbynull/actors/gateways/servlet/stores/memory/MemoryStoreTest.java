@@ -1,17 +1,23 @@
 package com.offbynull.actors.gateways.servlet.stores.memory;
 
 import com.offbynull.actors.shuttle.Message;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -23,6 +29,9 @@ public class MemoryStoreTest {
     @Rule
     public ExpectedException expectedException = ExpectedException.none();
     
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    
     @Before
     public void setUp() {
         mockClock = mock(Clock.class);
@@ -30,6 +39,11 @@ public class MemoryStoreTest {
         
         fixture = new MemoryStore("dst", 5, Duration.ofMillis(500L), mockClock);
     }
+    
+    @After
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
 
     @Test
     public void mustCreateQueueOnInitialWrite() {
@@ -109,6 +123,112 @@ public class MemoryStoreTest {
         assertMessagesEquals(inMsgs2, outMsgs.subList(3, 5));
     }
     
+    @Test
+    public void mustReapTimedOutQueuesInBackground() {
+        List<Message> inMsgs = Arrays.asList(
+                new Message("src:src1", "dst:dst1", "payload1")
+        );
+        fixture.write("fake1", inMsgs);
+
+        when(mockClock.instant()).thenReturn(Instant.ofEpochMilli(300L));
+        fixture.write("fake2", inMsgs);
+
+        when(mockClock.instant()).thenReturn(Instant.ofEpochMilli(500L));
+        fixture.reap();
+
+        // move clock back -- anything the reaper didn't remove would still be readable
+        when(mockClock.instant()).thenReturn(Instant.ofEpochMilli(0L));
+        assertTrue(fixture.read("fake1").isEmpty());
+        assertMessagesEquals(inMsgs, fixture.read("fake2"));
+    }
+
+    @Test
+    public void mustCopyMessagesWhenSerializing() throws IOException {
+        MemoryStore serializingFixture = new MemoryStore("dst", 5, Duration.ofMillis(500L), true, mockClock);
+        try {
+            ArrayList<String> payload = new ArrayList<>(Arrays.asList("a", "b"));
+            List<Message> inMsgs = Arrays.asList(
+                    new Message("src:src1", "dst:dst1", payload)
+            );
+            serializingFixture.write("fake", inMsgs);
+            payload.add("c");
+
+            List<Message> outMsgs = serializingFixture.read("fake");
+            assertEquals(1, outMsgs.size());
+            assertEquals(Arrays.asList("a", "b"), outMsgs.get(0).getMessage());
+        } finally {
+            serializingFixture.close();
+        }
+    }
+    
+    @Test
+    public void mustSpillToDiskWhenClientQuotaHit() throws IOException {
+        Path spillDir = temporaryFolder.newFolder().toPath();
+        MemoryStore quotaFixture = new MemoryStore("dst", 5, Duration.ofMillis(500L), 1L, Long.MAX_VALUE, spillDir, mockClock);
+        try {
+            List<Message> inMsgs = Arrays.asList(
+                    new Message("src:src1", "dst:dst1", "payload1"),
+                    new Message("src:src2", "dst:dst2", "payload2"),
+                    new Message("src:src3", "dst:dst3", "payload3")
+            );
+            quotaFixture.write("fake", inMsgs);
+            assertEquals(1L, Files.list(spillDir).count());
+
+            List<Message> outMsgs = quotaFixture.read("fake");
+            assertMessagesEquals(inMsgs, outMsgs);
+        } finally {
+            quotaFixture.close();
+        }
+        assertEquals(0L, Files.list(spillDir).count());
+    }
+
+    @Test
+    public void mustKeepOrderWhenGlobalQuotaHitPartwayThrough() throws IOException {
+        Path spillDir = temporaryFolder.newFolder().toPath();
+        MemoryStore quotaFixture = new MemoryStore("dst", 1, Duration.ofMillis(500L), Long.MAX_VALUE, 1000L, spillDir, mockClock);
+        try {
+            List<Message> inMsgs1 = Arrays.asList(
+                    new Message("src:src1", "dst:dst1", "payload1")
+            );
+            quotaFixture.write("fake1", inMsgs1);
+
+            List<Message> inMsgs2 = Arrays.asList(
+                    new Message("src:src2", "dst:dst2", "payload2"),
+                    new Message("src:src3", "dst:dst3", "payload3"),
+                    new Message("src:src4", "dst:dst4", "payload4")
+            );
+            quotaFixture.write("fake2", inMsgs2);
+            quotaFixture.write("fake2", inMsgs2);
+
+            assertMessagesEquals(inMsgs1, quotaFixture.read("fake1"));
+            List<Message> outMsgs = quotaFixture.read("fake2");
+            assertMessagesEquals(inMsgs2, outMsgs.subList(0, 3));
+            assertMessagesEquals(inMsgs2, outMsgs.subList(3, 6));
+        } finally {
+            quotaFixture.close();
+        }
+    }
+
+    @Test
+    public void mustReleaseSpilledMessagesOnTimeout() throws IOException {
+        Path spillDir = temporaryFolder.newFolder().toPath();
+        MemoryStore quotaFixture = new MemoryStore("dst", 1, Duration.ofMillis(500L), 0L, 0L, spillDir, mockClock);
+        try {
+            quotaFixture.write("fake", Arrays.asList(new Message("src:src1", "dst:dst1", "payload1")));
+
+            when(mockClock.instant()).thenReturn(Instant.ofEpochMilli(500L));
+            assertTrue(quotaFixture.read("fake").isEmpty());
+
+            // segment that's still being appended to stays around, but new writes must still work
+            when(mockClock.instant()).thenReturn(Instant.ofEpochMilli(600L));
+            List<Message> inMsgs = Arrays.asList(new Message("src:src2", "dst:dst2", "payload2"));
+            quotaFixture.write("fake", inMsgs);
+            assertMessagesEquals(inMsgs, quotaFixture.read("fake"));
+        } finally {
+            quotaFixture.close();
+        }
+    }
+    
     private void assertMessagesEquals(List<Message> expected, List<Message> actual) {
         assertEquals(expected.size(), actual.size());
         for (int i = 0; i < expected.size(); i++) {
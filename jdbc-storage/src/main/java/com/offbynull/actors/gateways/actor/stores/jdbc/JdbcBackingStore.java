@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.actor.stores.jdbc;
+
+import com.offbynull.actors.gateways.actor.stores.memory.BackingStore;
+import com.offbynull.actors.gateways.actor.stores.memory.MemoryStore;
+import static com.offbynull.actors.jdbcclient.JdbcUtils.commitFinally;
+import static com.offbynull.actors.jdbcclient.JdbcUtils.retry;
+import com.offbynull.actors.shuttle.Address;
+import java.sql.Connection;
+import static java.sql.Connection.TRANSACTION_READ_COMMITTED;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.BiConsumer;
+import javax.sql.DataSource;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A {@link BackingStore} that keeps actors in a RDBMS, so that a {@link MemoryStore} can write behind to it.
+ * <p>
+ * This backing store will work with any JDBC driver that supports...
+ * <ul>
+ * <li>TRANSACTION_READ_COMMITTED transaction level</li>
+ * <li>batch updates</li>
+ * <li>SQLSTATE codes</li>
+ * </ul>
+ * The schema your JDBC {@link Connection}s point to must have the table below. This DDL statement is for Apache Derby -- you'll need to
+ * tweak it to match for your RDBMS vendor.
+ * <pre>
+ * CREATE TABLE ACTOR_STATE (
+ *   ADDRESS VARCHAR(1024) NOT NULL,
+ *   DATA BLOB NOT NULL,
+ *   PRIMARY KEY (ADDRESS)
+ * );
+ * </pre>
+ * Each batch of writes is applied in a single transaction, as batched deletes followed by batched inserts (rather than vendor-specific
+ * upserts).
+ * @author Kasra Faghihi
+ */
+public final class JdbcBackingStore implements BackingStore {
+
+    private final DataSource dataSource;
+
+    /**
+     * Creates a {@link JdbcBackingStore} object.
+     * @param dataSource JDBC data source to generate connections
+     * @return new JDBC backing store
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static JdbcBackingStore create(DataSource dataSource) {
+        Validate.notNull(dataSource);
+        return new JdbcBackingStore(dataSource);
+    }
+
+    private JdbcBackingStore(DataSource dataSource) {
+        Validate.notNull(dataSource);
+        this.dataSource = dataSource;
+    }
+
+
+
+    private static final String DELETE_ACTOR = "DELETE FROM ACTOR_STATE WHERE ADDRESS = ?";
+    private static final String INSERT_ACTOR = "INSERT INTO ACTOR_STATE (ADDRESS, DATA) VALUES (?, ?)";
+
+    @Override
+    public void write(Map<Address, byte[]> puts, Collection<Address> removes) {
+        Validate.notNull(puts);
+        Validate.notNull(removes);
+        Validate.noNullElements(puts.keySet());
+        Validate.noNullElements(puts.values());
+        Validate.noNullElements(removes);
+
+        if (puts.isEmpty() && removes.isEmpty()) {
+            return;
+        }
+
+        retry(() -> {
+            try (Connection conn = dataSource.getConnection()) {
+                conn.setAutoCommit(false);
+                conn.setTransactionIsolation(TRANSACTION_READ_COMMITTED);
+
+                try {
+                    try (PreparedStatement ps = conn.prepareStatement(DELETE_ACTOR)) {
+                        for (Address address : removes) {
+                            ps.setString(1, address.toString());
+                            ps.addBatch();
+                        }
+                        for (Address address : puts.keySet()) {
+                            ps.setString(1, address.toString());
+                            ps.addBatch();
+                        }
+                        ps.executeBatch();
+                    }
+
+                    try (PreparedStatement ps = conn.prepareStatement(INSERT_ACTOR)) {
+                        for (Entry<Address, byte[]> entry : puts.entrySet()) {
+                            ps.setString(1, entry.getKey().toString());
+                            ps.setBytes(2, entry.getValue());
+                            ps.addBatch();
+                        }
+                        ps.executeBatch();
+                    }
+
+                    conn.commit();
+                } catch (SQLException sqle) {
+                    conn.rollback(); // batch must be applied all or nothing
+                    throw sqle;
+                }
+            }
+        });
+    }
+
+
+
+    private static final String SELECT_ACTORS = "SELECT ADDRESS, DATA FROM ACTOR_STATE";
+
+    @Override
+    public void load(BiConsumer<Address, byte[]> loader) {
+        Validate.notNull(loader);
+
+        retry(() -> {
+            try (Connection conn = dataSource.getConnection()) {
+                conn.setAutoCommit(false);
+                conn.setTransactionIsolation(TRANSACTION_READ_COMMITTED);
+
+                try (PreparedStatement ps = conn.prepareStatement(SELECT_ACTORS);
+                        ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        loader.accept(Address.fromString(rs.getString(1)), rs.getBytes(2));
+                    }
+                } finally {
+                    commitFinally(conn);
+                }
+            }
+        });
+    }
+}
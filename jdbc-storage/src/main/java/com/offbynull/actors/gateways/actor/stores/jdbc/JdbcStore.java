@@ -21,18 +21,37 @@ import com.offbynull.actors.shuttle.Address;
 import com.offbynull.actors.shuttle.Message;
 import com.offbynull.actors.gateways.actor.Store;
 import com.offbynull.actors.common.BestEffortSerializer;
+import com.offbynull.actors.jdbcclient.JdbcSessions;
 import static com.offbynull.actors.jdbcclient.JdbcUtils.commitFinally;
 import static com.offbynull.actors.jdbcclient.JdbcUtils.retry;
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import static java.sql.Connection.TRANSACTION_READ_COMMITTED;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import static java.sql.ResultSet.CONCUR_UPDATABLE;
 import static java.sql.ResultSet.TYPE_FORWARD_ONLY;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.sql.DataSource;
 import org.apache.commons.lang3.Validate;
 
@@ -45,20 +64,40 @@ import org.apache.commons.lang3.Validate;
  * <li>SELECT FOR UPDATE statements and CONCUR_UPDATABLE ResultSet concurrency</li>
  * <li>SQLSTATE codes</li>
  * </ul>
+ * On PostgreSQL 9.5+, MySQL 8+, and MariaDB 10.6+, work is claimed with {@code SELECT ... FOR UPDATE SKIP LOCKED} so that nodes claiming
+ * work concurrently don't wait on each other. Other vendors (and older versions) fall back to a plain {@code SELECT ... FOR UPDATE}.
+ * <p>
+ * When there's no work, {@link #take() } waits rather than continuously querying. It gets woken up when messages/actors are stored by this
+ * instance, and on PostgreSQL (if the PostgreSQL driver supports notifications) also when they're stored by other instances through
+ * {@code LISTEN/NOTIFY}. Otherwise, it checks the database with an exponentially increasing delay of up to a second.
+ * <p>
+ * A store created with {@link #create(java.lang.String, javax.sql.DataSource, int, java.time.Duration) } prefetches work: it claims
+ * several actors per round-trip and buffers their messages locally. Claims are leased, and claims that outlive their lease (e.g. because
+ * the node that made them went down) get revoked so the actors can be picked up elsewhere.
+ * <p>
+ * Each thread using this storage engine holds on to a connection of its own between calls (see {@link JdbcSessions}), so a pooled
+ * {@link DataSource} must allow for at least as many connections as there are threads using it (plus one on PostgreSQL, for listening to
+ * notifications).
+ * <p>
  * The schema your JDBC {@link Connection}s point to must have the tables below. These DDL statements are for Apache Derby -- you'll need
  * to tweak them to match for your RDBMS vendor. Performance is your responsibility -- it's up to you to tune table, schema, and database
  * options to make access performant.
  * <pre>
  * CREATE TABLE ACTOR (
  *   ADDRESS VARCHAR(1024) NOT NULL,
- *   CHECKPOINT_DATA BLOB NOT NULL,
- *   CHECKPOINT_MESSAGE_DATA BLOB NOT NULL,
+ *   CHECKPOINT_DATA BLOB,                   -- NULL if the checkpoint is the same as DATA
+ *   CHECKPOINT_MESSAGE_DATA BLOB NOT NULL,  -- checkpoint message's payload
  *   CHECKPOINT_TIME BIGINT NOT NULL,        -- integer-type that can support Java's long type
  *   CHECKPOINT_INSTANCE INTEGER NOT NULL,   -- integer-type that can support Java's int type
  *   IDLE INTEGER NOT NULL,                  -- will be either 0 or 1
+ *   NEXT_MSG_NUMBER INTEGER,                -- MSG_NUMBER of the actor's oldest queued message, NULL if nothing is queued
+ *   LEASE_EXPIRY BIGINT,                    -- integer-type that can support Java's long type, NULL if not claimed by prefetching
  *   DATA BLOB NOT NULL,
  *   PRIMARY KEY (ADDRESS)
  * );
+ * CREATE INDEX ACTOR_READY ON ACTOR (IDLE, NEXT_MSG_NUMBER);
+ * CREATE INDEX ACTOR_CHECKPOINT ON ACTOR (CHECKPOINT_TIME);
+ * CREATE INDEX ACTOR_LEASE ON ACTOR (LEASE_EXPIRY);
  * 
  * CREATE TABLE MESSAGE_QUEUE (
  *   MSG_NUMBER INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1), -- must be auto-incrementing, not just unique
@@ -67,6 +106,48 @@ import org.apache.commons.lang3.Validate;
  *   PRIMARY KEY (MSG_NUMBER),
  *   FOREIGN KEY (ADDRESS) REFERENCES ACTOR(ADDRESS) ON DELETE CASCADE
  * );
+ * CREATE INDEX MESSAGE_QUEUE_ADDRESS ON MESSAGE_QUEUE (ADDRESS, MSG_NUMBER);
+ * </pre>
+ * The indexes are what keep taking work cheap regardless of how many messages are queued: actors with queued messages are found through
+ * {@code ACTOR_READY}, an actor's next message through {@code MESSAGE_QUEUE_ADDRESS}, and due checkpoints through
+ * {@code ACTOR_CHECKPOINT}. On Apache Derby the index names must be exactly as above, because the queries that depend on
+ * {@code ACTOR_READY} and {@code ACTOR_CHECKPOINT} name them in optimizer overrides.
+ * <p>
+ * A store created with {@link #create(java.lang.String, javax.sql.DataSource, int, int, java.time.Duration) } and a non-zero bucket count
+ * uses a partitioned schema instead: actors are spread across {@code bucketCount} buckets by the hash of their address, and each bucket
+ * {@code n} (from {@code 0} to {@code bucketCount - 1}) gets its own {@code ACTOR_n} and {@code MESSAGE_QUEUE_n} tables. Since each bucket
+ * has its own {@code MSG_NUMBER} sequence and its own indexes, inserts and claims in different buckets don't contend on the same index
+ * pages. Each thread calling {@link #take() } prefers a bucket of its own and only moves on to the other buckets when its bucket has
+ * nothing to hand out. The bucket count must be the same for every node sharing the database. For Apache Derby, the DDL statements above
+ * get repeated for each bucket with the table and index names suffixed...
+ * <pre>
+ * CREATE TABLE ACTOR_0 ( ...same columns as ACTOR... );
+ * CREATE INDEX ACTOR_READY_0 ON ACTOR_0 (IDLE, NEXT_MSG_NUMBER);
+ * CREATE INDEX ACTOR_CHECKPOINT_0 ON ACTOR_0 (CHECKPOINT_TIME);
+ * CREATE INDEX ACTOR_LEASE_0 ON ACTOR_0 (LEASE_EXPIRY);
+ * CREATE TABLE MESSAGE_QUEUE_0 (
+ *   ...same columns as MESSAGE_QUEUE...,
+ *   FOREIGN KEY (ADDRESS) REFERENCES ACTOR_0(ADDRESS) ON DELETE CASCADE
+ * );
+ * CREATE INDEX MESSAGE_QUEUE_ADDRESS_0 ON MESSAGE_QUEUE_0 (ADDRESS, MSG_NUMBER);
+ * -- ...and so on for ACTOR_1/MESSAGE_QUEUE_1, ACTOR_2/MESSAGE_QUEUE_2, etc...
+ * </pre>
+ * For PostgreSQL, the same tables can be created in one go (change {@code 7} to {@code bucketCount - 1})...
+ * <pre>
+ * DO $$
+ * BEGIN
+ *   FOR n IN 0..7 LOOP
+ *     EXECUTE format('CREATE TABLE ACTOR_%s (ADDRESS VARCHAR(1024) NOT NULL, CHECKPOINT_DATA BYTEA,'
+ *         || ' CHECKPOINT_MESSAGE_DATA BYTEA NOT NULL, CHECKPOINT_TIME BIGINT NOT NULL, CHECKPOINT_INSTANCE INTEGER NOT NULL,'
+ *         || ' IDLE INTEGER NOT NULL, NEXT_MSG_NUMBER INTEGER, LEASE_EXPIRY BIGINT, DATA BYTEA NOT NULL, PRIMARY KEY (ADDRESS))', n);
+ *     EXECUTE format('CREATE INDEX ACTOR_READY_%s ON ACTOR_%s (IDLE, NEXT_MSG_NUMBER)', n, n);
+ *     EXECUTE format('CREATE INDEX ACTOR_CHECKPOINT_%s ON ACTOR_%s (CHECKPOINT_TIME)', n, n);
+ *     EXECUTE format('CREATE INDEX ACTOR_LEASE_%s ON ACTOR_%s (LEASE_EXPIRY)', n, n);
+ *     EXECUTE format('CREATE TABLE MESSAGE_QUEUE_%s (MSG_NUMBER SERIAL NOT NULL, ADDRESS VARCHAR(1024) NOT NULL, DATA BYTEA NOT NULL,'
+ *         || ' PRIMARY KEY (MSG_NUMBER), FOREIGN KEY (ADDRESS) REFERENCES ACTOR_%s(ADDRESS) ON DELETE CASCADE)', n, n);
+ *     EXECUTE format('CREATE INDEX MESSAGE_QUEUE_ADDRESS_%s ON MESSAGE_QUEUE_%s (ADDRESS, MSG_NUMBER)', n, n);
+ *   END LOOP;
+ * END $$;
  * </pre>
  * @author Kasra Faghihi
  */
@@ -75,16 +156,72 @@ public final class JdbcStore implements Store {
     //
     // THIS HAS BEEN TESTED WITH POSTGRES 9.6 AND DERBY 10.14.1.0
     //
+    // Connections come from JdbcSessions -- each thread keeps its own connection (auto-commit off, READ_COMMITTED) and prepared statements
+    // between calls, so the try-with-resources blocks below don't actually close anything.
+    //
     // To support Postgres, I had to workaround the following issues...
     //    cannot capture subtypes of SQLException -- have to capture SQLException directly
     //    cannot call setBlob/getBlob on blobs, must call setBytes/getBytes (blob type in postgres is bytea)
     //    SELECT FOR UPDATES need to include the pk column even though they aren't needed, otherwise you can't update/delete the row
     //
+    // Everything that touches an actor's queued messages (storing a message, taking a message, discarding the actor) locks the actor's
+    // row first. Derby doesn't have MVCC -- reading a message row another transaction is inserting blocks -- so without a consistent lock
+    // order a take and a store for the same actor can deadlock.
+    //
+    // Checkpoints are checked before messages on every take. To avoid hitting the database for that each time, the earliest time a
+    // checkpoint can come due is cached (checkpointWatermark) and the checkpoint query is skipped until that time is reached. Storing an
+    // actor with a new checkpoint lowers the watermark, but only for this node -- other nodes sharing the same database won't know about
+    // it, so the watermark is never allowed to be more than MAX_CHECKPOINT_SKIP in the future. That also means checkpoints of actors stored
+    // by a node that has since gone down still get picked up by the remaining nodes.
+    //
+    
+    // If no work was found, take() sleeps for a backoff time that doubles each time nothing turns up. Being woken up resets it. Work stored
+    // by other nodes is only seen when the backoff runs out (unless a WorkNotifier is available), so it's capped.
+    //
+    // In prefetching mode, claimed actors get a LEASE_EXPIRY and their messages are removed from the queue right away, same as a
+    // non-prefetching take (delivery is at-most-once either way). Storing the actor back clears the lease. Any node (prefetching or not)
+    // periodically revokes expired leases: the actor goes back to idle and its CHECKPOINT_INSTANCE gets bumped, the same as when a
+    // checkpoint hits, so if the node that held the lease is still alive its stale copy of the actor gets rejected when it's stored. Work
+    // that sits in the local buffer past its lease gets dropped rather than handed out.
+    //
+    // Storing an actor with an updated checkpoint sets the checkpoint to the actor's current state, so rather than writing the same blob to
+    // both DATA and CHECKPOINT_DATA, CHECKPOINT_DATA gets set to NULL to mean "same as DATA". Storing the actor without a checkpoint update
+    // copies DATA over to CHECKPOINT_DATA (within the database) before replacing DATA, but only if CHECKPOINT_DATA is still NULL. Only the
+    // checkpoint payload gets written for the checkpoint message -- its source and destination are always the actor itself, so the message
+    // gets rebuilt from the actor's address when the checkpoint hits.
+    //
+    // In partitioned mode, every statement runs against the tables of a single bucket -- the SQL constants below are written against the
+    // unpartitioned table names and get rewritten to the bucket's table names (see sql()). An actor's row and its messages always live in
+    // the same bucket, so anything done for a single actor stays within a single bucket. Storing messages to actors in several buckets
+    // locks actor rows bucket by bucket in ascending order (addresses sorted within each bucket), so the lock order stays consistent.
+    // MSG_NUMBERs are per bucket, so "oldest first" only holds within a bucket.
+    //
+    
+    private static final long MAX_CHECKPOINT_SKIP = 1000L;
+    private static final long MIN_BACKOFF = 1L;
+    private static final long MAX_BACKOFF = 1000L;
+    private static final long LEASE_CHECK_INTERVAL = 1000L;
     
     private final String prefix;
     private final DataSource dataSource;
+    private final JdbcSessions sessions;
     private final BestEffortSerializer serializer;
     
+    private final AtomicLong checkpointWatermark;
+    private final WorkSignal workSignal;
+    private final WorkNotifier forcedNotifier; // if null, picked based on vendor
+    
+    private final int prefetchCount; // 0 if not prefetching
+    private final long leaseDuration;
+    private final ArrayDeque<LeasedWork> prefetched; // guarded by itself
+    private final AtomicLong nextLeaseCheck;
+    
+    private final int bucketCount; // 0 if not partitioned
+    private final List<ConcurrentHashMap<String, String>> bucketSql; // bucket -> SQL constant -> rewritten SQL
+    private final AtomicInteger nextPreferredBucket;
+    private final ThreadLocal<Integer> preferredBucket;
+    
+    private volatile Vendor vendor; // picked once first connection is made
     private volatile boolean closed;
 
     /**
@@ -98,33 +235,127 @@ public final class JdbcStore implements Store {
     public static JdbcStore create(String prefix, DataSource dataSource) {
         Validate.notNull(prefix);
         Validate.notNull(dataSource);
-        return new JdbcStore(prefix, dataSource);
+        return new JdbcStore(prefix, dataSource, null, 0, 0, 0L);
     }
 
-    private JdbcStore(String prefix, DataSource dataSource) {
+    /**
+     * Creates a {@link JdbcStore} object that prefetches work. Rather than claiming a single piece of work per round-trip, up to
+     * {@code prefetchCount} idle actors with queued messages get claimed at once, and their next messages get buffered locally until
+     * {@link #take() } hands them out.
+     * <p>
+     * Each claim is leased. If a claimed actor isn't stored back before {@code leaseDuration} elapses (e.g. the node that claimed it went
+     * down), the claim gets revoked and the actor becomes available again. Buffered work that's held past its lease is dropped.
+     * @param prefix prefix for the actor gateway that this storage engine belongs to
+     * @param dataSource JDBC data source to generate connections
+     * @param prefetchCount maximum number of actors to claim per round-trip
+     * @param leaseDuration how long a claim lasts -- must comfortably cover the time work spends buffered plus the time it takes to process
+     * @return new JDBC store
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code prefetchCount < 1}, or if {@code leaseDuration} is negative or zero
+     */
+    public static JdbcStore create(String prefix, DataSource dataSource, int prefetchCount, Duration leaseDuration) {
         Validate.notNull(prefix);
         Validate.notNull(dataSource);
+        Validate.notNull(leaseDuration);
+        Validate.isTrue(prefetchCount >= 1);
+        Validate.isTrue(!leaseDuration.isNegative() && !leaseDuration.isZero());
+        return new JdbcStore(prefix, dataSource, null, 0, prefetchCount, leaseDuration.toMillis());
+    }
+
+    /**
+     * Creates a {@link JdbcStore} object that optionally uses a partitioned schema and optionally prefetches work. See the class
+     * documentation for the partitioned schema, and {@link #create(java.lang.String, javax.sql.DataSource, int, java.time.Duration) } for
+     * prefetching.
+     * @param prefix prefix for the actor gateway that this storage engine belongs to
+     * @param dataSource JDBC data source to generate connections
+     * @param bucketCount number of buckets that actors are spread across, or {@code 0} to use the unpartitioned schema
+     * @param prefetchCount maximum number of actors to claim per round-trip, or {@code 0} to not prefetch
+     * @param leaseDuration how long a claim lasts (ignored if not prefetching)
+     * @return new JDBC store
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code bucketCount < 0}, if {@code prefetchCount < 0}, or if prefetching and
+     * {@code leaseDuration} is negative or zero
+     */
+    public static JdbcStore create(String prefix, DataSource dataSource, int bucketCount, int prefetchCount, Duration leaseDuration) {
+        Validate.notNull(prefix);
+        Validate.notNull(dataSource);
+        Validate.notNull(leaseDuration);
+        Validate.isTrue(bucketCount >= 0);
+        Validate.isTrue(prefetchCount >= 0);
+        Validate.isTrue(prefetchCount == 0 || (!leaseDuration.isNegative() && !leaseDuration.isZero()));
+        return new JdbcStore(prefix, dataSource, null, bucketCount, prefetchCount, prefetchCount == 0 ? 0L : leaseDuration.toMillis());
+    }
+
+    // package-private so tests can stand in for LISTEN/NOTIFY
+    static JdbcStore create(String prefix, DataSource dataSource, WorkNotifier notifier) {
+        Validate.notNull(prefix);
+        Validate.notNull(dataSource);
+        Validate.notNull(notifier);
+        return new JdbcStore(prefix, dataSource, notifier, 0, 0, 0L);
+    }
+
+    private JdbcStore(String prefix, DataSource dataSource, WorkNotifier forcedNotifier, int bucketCount, int prefetchCount,
+            long leaseDuration) {
+        Validate.notNull(prefix);
+        Validate.notNull(dataSource);
+        Validate.isTrue(bucketCount >= 0);
+        Validate.isTrue(prefetchCount >= 0);
+        Validate.isTrue(leaseDuration >= 0L);
         this.prefix = prefix;
         this.dataSource = dataSource;
+        this.sessions = JdbcSessions.create(dataSource, TRANSACTION_READ_COMMITTED);
         this.serializer = new BestEffortSerializer();
+        this.checkpointWatermark = new AtomicLong(Long.MIN_VALUE); // unknown, so query on first take
+        this.workSignal = new WorkSignal();
+        this.forcedNotifier = forcedNotifier;
+        this.prefetchCount = prefetchCount;
+        this.leaseDuration = leaseDuration;
+        this.prefetched = new ArrayDeque<>();
+        this.nextLeaseCheck = new AtomicLong(Long.MIN_VALUE);
+        this.bucketCount = bucketCount;
+        this.bucketSql = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            this.bucketSql.add(new ConcurrentHashMap<>());
+        }
+        this.nextPreferredBucket = new AtomicInteger();
+        this.preferredBucket = ThreadLocal.withInitial(() -> Math.floorMod(nextPreferredBucket.getAndIncrement(), buckets()));
+    }
+
+    private int buckets() {
+        return Math.max(bucketCount, 1);
+    }
+
+    private int bucketOf(String addrStr) {
+        return bucketCount == 0 ? 0 : Math.floorMod(addrStr.hashCode(), bucketCount); // String.hashCode() is the same on every JVM
+    }
+
+    // Index names get rewritten too, since the Derby variants of some statements name indexes in optimizer overrides
+    private static final Pattern TABLE_NAME = Pattern.compile("\\b(ACTOR|MESSAGE_QUEUE|ACTOR_READY|ACTOR_CHECKPOINT)\\b");
+
+    private String sql(String sql, int bucket) {
+        if (bucketCount == 0) {
+            return sql;
+        }
+        return bucketSql.get(bucket).computeIfAbsent(sql, k -> TABLE_NAME.matcher(k).replaceAll("$1_" + bucket));
     }
 
     
     private static final String INSERT_ACTOR
             = "INSERT INTO ACTOR\n"
-            + "    (ADDRESS, CHECKPOINT_DATA, CHECKPOINT_MESSAGE_DATA, CHECKPOINT_TIME, CHECKPOINT_INSTANCE, IDLE, DATA)\n"
+            + "    (ADDRESS, CHECKPOINT_MESSAGE_DATA, CHECKPOINT_TIME, CHECKPOINT_INSTANCE, IDLE, DATA)\n"
             + "VALUES\n"
-            + "    (?, ?, ?, ?, ?, ?, ?)\n";
+            + "    (?, ?, ?, ?, ?, ?)\n";
     private static final String UPDATE_ACTOR_WITHOUT_CHECKPOINT
             = "UPDATE ACTOR\n"
             + "SET\n"
-            + "    DATA = ?, IDLE = ?\n"
+            + "    CHECKPOINT_DATA = COALESCE(CHECKPOINT_DATA, DATA), DATA = ?, IDLE = ?, LEASE_EXPIRY = NULL\n"
             + "WHERE\n"
             + "    ADDRESS = ? AND CHECKPOINT_INSTANCE <= ?\n";
     private static final String UPDATE_ACTOR_WITH_CHECKPOINT
             = "UPDATE ACTOR\n"
             + "SET\n"
-            + "    CHECKPOINT_DATA = ?, CHECKPOINT_MESSAGE_DATA = ?, CHECKPOINT_TIME = ?, CHECKPOINT_INSTANCE = ?, DATA = ?, IDLE = ?\n"
+            + "    CHECKPOINT_DATA = NULL, CHECKPOINT_MESSAGE_DATA = ?, CHECKPOINT_TIME = ?, CHECKPOINT_INSTANCE = ?, DATA = ?, IDLE = ?,\n"
+            + "    LEASE_EXPIRY = NULL\n"
             + "WHERE\n"
             + "    ADDRESS = ? AND CHECKPOINT_INSTANCE <= ?\n";
 
@@ -145,36 +376,37 @@ public final class JdbcStore implements Store {
         byte[] checkpointPayloadData;
         if (checkpointUpdated) {
             Object checkpointPayload = actor.getCheckpointPayload();
-            checkpointPayloadData = serializer.serialize(new Message(actorAddr, actorAddr, checkpointPayload));
+            checkpointPayloadData = serializer.serialize(checkpointPayload);
         } else {
             checkpointPayloadData = null;
         }
         
+        // Will be at or before the checkpoint time that actually gets written (the write happens after this)
+        long earliestCheckpointTime = calculateCheckpointTime(Instant.now(), actor.getCheckpointTimeout());
+        
         retry(() -> {
             Validate.isTrue(!closed, "Store closed");
-            try (Connection conn = dataSource.getConnection()) {
-                conn.setAutoCommit(false);
-                conn.setTransactionIsolation(TRANSACTION_READ_COMMITTED);
-
+            try (Connection conn = sessions.getConnection()) {
                 Instant currentInstant = Instant.now();
                 long checkpointTimeout = actor.getCheckpointTimeout();
                 long checkpointTime = calculateCheckpointTime(currentInstant, checkpointTimeout);
                 
                 String actorAddrStr = actorAddr.toString();
+                int bucket = bucketOf(actorAddrStr);
 
                 
                 
                 // Try inserting the actor into the actors table -- initially, an actor must have a checkpoint
                 if (checkpointPayloadData != null) {
-                    try (PreparedStatement ps = conn.prepareStatement(INSERT_ACTOR)) {
+                    try (PreparedStatement ps = conn.prepareStatement(sql(INSERT_ACTOR, bucket))) {
                         ps.setString(1, actorAddrStr);
-                        ps.setBytes(2, actorData);
-                        ps.setBytes(3, checkpointPayloadData);
-                        ps.setLong(4, checkpointTime);
-                        ps.setInt(5, checkpointInstance);
-                        ps.setInt(6, 1); // idle = true
-                        ps.setBytes(7, actorData);
+                        ps.setBytes(2, checkpointPayloadData);
+                        ps.setLong(3, checkpointTime);
+                        ps.setInt(4, checkpointInstance);
+                        ps.setInt(5, 1); // idle = true
+                        ps.setBytes(6, actorData);
                         ps.executeUpdate();
+                        publishWork(conn);
                         return;
                     } catch (SQLException sqle) {
                         if (!sqle.getSQLState().startsWith("23505")) { // 23505 is used when already exists (unique constraint violation)
@@ -189,37 +421,58 @@ public final class JdbcStore implements Store {
                 
                 // If we reached this point, it means the insert failed because it already existed -- try updating existing instead
                 if (checkpointPayloadData == null) {
-                    try (PreparedStatement ps = conn.prepareStatement(UPDATE_ACTOR_WITHOUT_CHECKPOINT)) {
+                    try (PreparedStatement ps = conn.prepareStatement(sql(UPDATE_ACTOR_WITHOUT_CHECKPOINT, bucket))) {
                         ps.setBytes(1, actorData);
                         ps.setInt(2, 1); // idle = true
                         ps.setString(3, actorAddrStr);
                         ps.setInt(4, checkpointInstance);
                         ps.executeUpdate();
+                        publishWork(conn);
                     } finally {
                         commitFinally(conn);
                     }
                 } else {
-                    try (PreparedStatement ps = conn.prepareStatement(UPDATE_ACTOR_WITH_CHECKPOINT)) {
-                        ps.setBytes(1, actorData);
-                        ps.setBytes(2, checkpointPayloadData);
-                        ps.setLong(3, checkpointTime);
-                        ps.setInt(4, checkpointInstance);
-                        ps.setBytes(5, actorData);
-                        ps.setInt(6, 1); // idle = true
-                        ps.setString(7, actorAddrStr);
-                        ps.setInt(8, checkpointInstance);
+                    try (PreparedStatement ps = conn.prepareStatement(sql(UPDATE_ACTOR_WITH_CHECKPOINT, bucket))) {
+                        ps.setBytes(1, checkpointPayloadData);
+                        ps.setLong(2, checkpointTime);
+                        ps.setInt(3, checkpointInstance);
+                        ps.setBytes(4, actorData);
+                        ps.setInt(5, 1); // idle = true
+                        ps.setString(6, actorAddrStr);
+                        ps.setInt(7, checkpointInstance);
                         ps.executeUpdate();
+                        publishWork(conn);
                     } finally {
                         commitFinally(conn);
                     }
                 }
             }
         });
+        
+        // Lower the watermark only once committed -- lowered any earlier and a concurrent refresh of the watermark could overwrite it with
+        // something that it computed without seeing this checkpoint
+        if (checkpointPayloadData != null) {
+            checkpointWatermark.accumulateAndGet(earliestCheckpointTime, Math::min);
+        }
+        workSignal.signal(); // actor may have queued messages or a new checkpoint
     }
     
     
     
+    // Locks up to LOCK_ACTORS_CHUNK actor rows at once -- unused placeholders get padded with a repeat of the last address, so that the SQL
+    // text is always the same
+    private static final int LOCK_ACTORS_CHUNK = 32;
+    private static final String LOCK_ACTORS
+            = "SELECT ADDRESS FROM ACTOR WHERE ADDRESS IN ("
+            + String.join(", ", Collections.nCopies(LOCK_ACTORS_CHUNK, "?"))
+            + ") FOR UPDATE";
     private static final String INSERT_MESSAGE = "INSERT INTO MESSAGE_QUEUE (ADDRESS, DATA) VALUES (?, ?)";
+    private static final String UPDATE_ACTOR_NEXT_MESSAGE_IF_NONE
+            = "UPDATE ACTOR\n"
+            + "SET\n"
+            + "    NEXT_MSG_NUMBER = (SELECT min(MSG_NUMBER) FROM MESSAGE_QUEUE WHERE ADDRESS = ?)\n"
+            + "WHERE\n"
+            + "    ADDRESS = ? AND NEXT_MSG_NUMBER IS NULL\n";
     
     @Override
     public void store(Collection<Message> messages) {
@@ -231,29 +484,132 @@ public final class JdbcStore implements Store {
             Validate.isTrue(dstAddr.size() >= 2, "Actor address must have atleast 2 elements: %s", dstAddr);
             Validate.isTrue(dstAddr.getElement(0).equals(prefix), "Actor address must start with %s: %s", prefix, dstAddr);
         });
+        
+        if (messages.isEmpty()) {
+            return;
+        }
 
+        // Group by bucket and then by destination -- sorted so that concurrent stores always lock actor rows in the same order. Messages
+        // still get inserted in the order they came in (dstAddrStrs/messageDatas), so MSG_NUMBERs keep reflecting arrival order across
+        // actors.
+        TreeMap<Integer, BucketMessages> messagesByBucket = new TreeMap<>();
         for (Message message : messages) {
             String dstAddrStr = Address.of(prefix, message.getDestinationAddress().getElement(1)).toString();
             byte[] messageData = serializer.serialize(message);
+            BucketMessages bucketMessages = messagesByBucket.computeIfAbsent(bucketOf(dstAddrStr), k -> new BucketMessages());
+            bucketMessages.messagesByActor.computeIfAbsent(dstAddrStr, k -> new ArrayList<>()).add(messageData);
+            bucketMessages.dstAddrStrs.add(dstAddrStr);
+            bucketMessages.messageDatas.add(messageData);
+        }
 
-            retry(() -> {
-                Validate.isTrue(!closed, "Store closed");
-                try (Connection conn = dataSource.getConnection();
-                        PreparedStatement ps = conn.prepareStatement(INSERT_MESSAGE)) {
-                    conn.setAutoCommit(false);
-                    conn.setTransactionIsolation(TRANSACTION_READ_COMMITTED);
-
-                    ps.setString(1, dstAddrStr);
-                    ps.setBytes(2, messageData);
-                    ps.executeUpdate();
-                    commitFinally(conn);
+        retry(() -> {
+            Validate.isTrue(!closed, "Store closed");
+            try (Connection conn = sessions.getConnection()) {
+                try {
+                    // Lock actors first (see comment at top of class) -- messages for actors that don't exist get discarded
+                    Map<Integer, Set<String>> existingActors = new HashMap<>();
+                    for (Entry<Integer, BucketMessages> entry : messagesByBucket.entrySet()) {
+                        int bucket = entry.getKey();
+                        existingActors.put(bucket, lockActors(conn, bucket, entry.getValue().messagesByActor.keySet()));
+                    }
+                    for (Entry<Integer, BucketMessages> entry : messagesByBucket.entrySet()) {
+                        int bucket = entry.getKey();
+                        BucketMessages bucketMessages = entry.getValue();
+                        insertMessages(conn, bucket, bucketMessages.dstAddrStrs, bucketMessages.messageDatas, existingActors.get(bucket));
+                    }
                 } catch (SQLException sqle) {
-                    if (!sqle.getSQLState().startsWith("23503")) { // 23505 is used when no actor with this address exists (foreign key)
+                    if (!isForeignKeyMiss(sqle)) {
                         throw sqle;
                     }
+                    
+                    // An actor went missing even though its row was supposedly locked (driver didn't lock through the IN list?) -- fall
+                    // back to inserting each actor's messages in a transaction of its own, so only messages to missing actors get
+                    // discarded
+                    conn.rollback();
+                    for (Entry<Integer, BucketMessages> bucketEntry : messagesByBucket.entrySet()) {
+                        int bucket = bucketEntry.getKey();
+                        for (Entry<String, List<byte[]>> entry : bucketEntry.getValue().messagesByActor.entrySet()) {
+                            String dstAddrStr = entry.getKey();
+                            List<byte[]> actorMessageDatas = entry.getValue();
+                            try {
+                                insertMessages(conn, bucket, Collections.nCopies(actorMessageDatas.size(), dstAddrStr), actorMessageDatas,
+                                        Collections.singleton(dstAddrStr));
+                                conn.commit();
+                            } catch (SQLException innerSqle) {
+                                if (!isForeignKeyMiss(innerSqle)) {
+                                    throw innerSqle;
+                                }
+                                conn.rollback();
+                            }
+                        }
+                    }
+                } finally {
+                    commitFinally(conn);
+                }
+            }
+        });
+        
+        workSignal.signal();
+    }
+
+    private Set<String> lockActors(Connection conn, int bucket, Set<String> actorAddrs) throws SQLException {
+        Set<String> existingActors = new HashSet<>();
+        List<String> remaining = new ArrayList<>(actorAddrs);
+        try (PreparedStatement ps = conn.prepareStatement(sql(LOCK_ACTORS, bucket))) {
+            for (int i = 0; i < remaining.size(); i += LOCK_ACTORS_CHUNK) {
+                List<String> chunk = remaining.subList(i, Math.min(i + LOCK_ACTORS_CHUNK, remaining.size()));
+                for (int j = 0; j < LOCK_ACTORS_CHUNK; j++) {
+                    ps.setString(j + 1, chunk.get(Math.min(j, chunk.size() - 1)));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        existingActors.add(rs.getString(1));
+                    }
+                }
+            }
+        }
+        return existingActors;
+    }
+
+    private void insertMessages(Connection conn, int bucket, List<String> dstAddrStrs, List<byte[]> messageDatas,
+            Set<String> existingActors) throws SQLException {
+        if (existingActors.isEmpty()) {
+            return;
+        }
+
+        try (PreparedStatement ps = conn.prepareStatement(sql(INSERT_MESSAGE, bucket))) {
+            for (int i = 0; i < dstAddrStrs.size(); i++) {
+                String dstAddrStr = dstAddrStrs.get(i);
+                if (!existingActors.contains(dstAddrStr)) {
+                    continue;
                 }
-            });
+                ps.setString(1, dstAddrStr);
+                ps.setBytes(2, messageDatas.get(i));
+                ps.addBatch();
+            }
+            ps.executeBatch();
         }
+
+        try (PreparedStatement ps = conn.prepareStatement(sql(UPDATE_ACTOR_NEXT_MESSAGE_IF_NONE, bucket))) {
+            for (String actorAddr : existingActors) {
+                ps.setString(1, actorAddr);
+                ps.setString(2, actorAddr);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+
+        publishWork(conn);
+    }
+
+    private static boolean isForeignKeyMiss(SQLException sqle) {
+        // Some drivers chain the exception for the row that failed in a batch rather than reporting its SQLSTATE directly
+        for (SQLException e = sqle; e != null; e = e.getNextException()) {
+            if (e.getSQLState() != null && e.getSQLState().startsWith("23503")) { // 23503 is used when no actor with address exists (FK)
+                return true;
+            }
+        }
+        return false;
     }
 
     
@@ -268,14 +624,12 @@ public final class JdbcStore implements Store {
         Validate.validState(!closed, "Store closed");
         
         String addrStr = address.toString();
+        int bucket = bucketOf(addrStr);
 
         retry(() -> {
             Validate.isTrue(!closed, "Store closed");
-            try (Connection conn = dataSource.getConnection()) {
-                conn.setAutoCommit(false);
-                conn.setTransactionIsolation(TRANSACTION_READ_COMMITTED);
-
-                try (PreparedStatement ps = conn.prepareStatement(DELETE_ACTOR)) {
+            try (Connection conn = sessions.getConnection()) {
+                try (PreparedStatement ps = conn.prepareStatement(sql(DELETE_ACTOR, bucket))) {
                     ps.setString(1, addrStr);
                     ps.executeUpdate();
                 } finally {
@@ -293,17 +647,36 @@ public final class JdbcStore implements Store {
         Validate.validState(!closed, "Store closed");
         
         Work work = retry(() -> {
-            Validate.isTrue(!closed, "Store closed");
+            long backoff = MIN_BACKOFF;
             while (true) {
+                Validate.isTrue(!closed, "Store closed");
+                long seenVersion = workSignal.version(); // read before checking, so nothing signalled during the check gets missed
+
+                revokeExpiredLeases();
+
                 Work checkpointWork = takeCheckpoint();
                 if (checkpointWork != null) {
                     return checkpointWork;
                 }
 
-                Work msgWork = takeMessage();
+                Work msgWork = prefetchCount == 0 ? takeMessage() : takePrefetched();
                 if (msgWork != null) {
                     return msgWork;
                 }
+
+                // Don't sleep past when the next checkpoint can be due
+                long untilCheckpoint = checkpointWatermark.get() - Instant.now().toEpochMilli();
+                long waitTime = Math.min(backoff, Math.max(untilCheckpoint, MIN_BACKOFF));
+                try {
+                    if (workSignal.await(seenVersion, waitTime)) {
+                        backoff = MIN_BACKOFF;
+                    } else {
+                        backoff = Math.min(backoff * 2L, MAX_BACKOFF);
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(ie);
+                }
             }
         });
 
@@ -311,7 +684,13 @@ public final class JdbcStore implements Store {
         byte[] messageData = work.getMessageData();
 
         SerializableActor actor = serializer.deserialize(actorData);
-        Message msg = serializer.deserialize(messageData);
+        Message msg;
+        if (work.isCheckpoint()) { // only the payload gets stored for checkpoint messages
+            Object checkpointPayload = serializer.deserialize(messageData);
+            msg = new Message(actor.getSelf(), actor.getSelf(), checkpointPayload);
+        } else {
+            msg = serializer.deserialize(messageData);
+        }
         
         actor.setCheckpointInstance(work.getCheckpointInstance());
         actor.setCheckpointUpdated(true);
@@ -320,121 +699,495 @@ public final class JdbcStore implements Store {
     }
 
 
-    // use ps.setMaxRows to make it only compute 1 row
-    private static final String GET_NEXT_MESSAGE
-            = "SELECT min(m.MSG_NUMBER), m.ADDRESS\n"
-            + "    FROM MESSAGE_QUEUE m INNER JOIN ACTOR a ON m.ADDRESS = a.ADDRESS\n"
-            + "    WHERE a.IDLE <> 0\n"
-            + "    GROUP BY m.ADDRESS";
-    private static final String SELECT_ACTOR_FOR_IDLE_UPDATE
-            = "SELECT ADDRESS, IDLE, DATA, CHECKPOINT_INSTANCE FROM ACTOR WHERE ADDRESS = ? AND IDLE <> 0 FOR UPDATE";
-    private static final String SELECT_MESSAGE_FOR_DELETE
-            = "SELECT MSG_NUMBER, DATA FROM MESSAGE_QUEUE WHERE MSG_NUMBER = ? FOR UPDATE";
+    // Claims the idle actor with the oldest queued message. Use ps.setMaxRows to make it only compute 1 row.
+    //
+    // This is only cheap (and only gets the oldest message) if it's done as a scan over ACTOR_READY, which stops at the first row. Derby's
+    // optimizer doesn't factor in setMaxRows, so once a good chunk of actors are ready it picks a table scan instead -- that visits every
+    // row in the table and hands back whichever ready actor happens to come first in the heap. The _DERBY variant forces ACTOR_READY with
+    // an optimizer override. The _SKIP_LOCKED variant (PostgreSQL/MySQL) has an ORDER BY + LIMIT, which those planners serve from the index
+    // on their own. For anything else the plan is up to the database.
+    private static final String CLAIM_ACTOR
+            = "SELECT ADDRESS, DATA, CHECKPOINT_INSTANCE, NEXT_MSG_NUMBER\n"
+            + "    FROM ACTOR\n"
+            + "    WHERE IDLE = 1 AND NEXT_MSG_NUMBER IS NOT NULL\n"
+            + "    FOR UPDATE OF IDLE";
+    static final String CLAIM_ACTOR_DERBY // package-private so tests can check the plan
+            = "SELECT ADDRESS, DATA, CHECKPOINT_INSTANCE, NEXT_MSG_NUMBER\n"
+            + "    FROM ACTOR --DERBY-PROPERTIES index=ACTOR_READY\n"
+            + "    WHERE IDLE = 1 AND NEXT_MSG_NUMBER IS NOT NULL\n"
+            + "    FOR UPDATE OF IDLE";
+    private static final String CLAIM_ACTOR_SKIP_LOCKED
+            = "SELECT ADDRESS, DATA, CHECKPOINT_INSTANCE, NEXT_MSG_NUMBER\n"
+            + "    FROM ACTOR\n"
+            + "    WHERE IDLE = 1 AND NEXT_MSG_NUMBER IS NOT NULL\n"
+            + "    ORDER BY NEXT_MSG_NUMBER\n"
+            + "    LIMIT 1\n"
+            + "    FOR UPDATE SKIP LOCKED";
+    private static final String SELECT_MESSAGE = "SELECT DATA FROM MESSAGE_QUEUE WHERE MSG_NUMBER = ?";
+    private static final String DELETE_MESSAGE = "DELETE FROM MESSAGE_QUEUE WHERE MSG_NUMBER = ?";
+    private static final String UPDATE_ACTOR_CLAIMED
+            = "UPDATE ACTOR\n"
+            + "SET\n"
+            + "    IDLE = 0, NEXT_MSG_NUMBER = (SELECT min(MSG_NUMBER) FROM MESSAGE_QUEUE WHERE ADDRESS = ?)\n"
+            + "WHERE\n"
+            + "    ADDRESS = ?\n";
+    private static final String UPDATE_ACTOR_NEXT_MESSAGE
+            = "UPDATE ACTOR\n"
+            + "SET\n"
+            + "    NEXT_MSG_NUMBER = (SELECT min(MSG_NUMBER) FROM MESSAGE_QUEUE WHERE ADDRESS = ?)\n"
+            + "WHERE\n"
+            + "    ADDRESS = ?\n";
 
     private Work takeMessage() throws SQLException {
-        try (Connection conn = dataSource.getConnection()) {
-            conn.setAutoCommit(false);
-            conn.setTransactionIsolation(TRANSACTION_READ_COMMITTED);
+        int preferred = preferredBucket.get();
+        for (int i = 0; i < buckets(); i++) {
+            Work work = takeMessage((preferred + i) % buckets());
+            if (work != null) {
+                return work;
+            }
+        }
+        return null;
+    }
 
-            
-            int msgId;
-            String actorAddr;
-            try (PreparedStatement ps = conn.prepareStatement(GET_NEXT_MESSAGE)) {
-                ps.setMaxRows(1);
-                try (ResultSet rs = ps.executeQuery()) {
-                    if (!rs.next()) {
-                        return null;
+    private Work takeMessage(int bucket) throws SQLException {
+        try (Connection conn = sessions.getConnection()) {
+            // Everything below happens in a single transaction -- the actor row stays locked from when it's claimed until commit, so
+            // nothing else can claim it or touch its queue in the meantime.
+            try {
+                String actorAddr;
+                byte[] actorData;
+                int checkpointInstance;
+                int msgNumber;
+                Vendor claimVendor = vendor(conn);
+                String claimSql = claimVendor.skipLocked ? CLAIM_ACTOR_SKIP_LOCKED : claimVendor.derby ? CLAIM_ACTOR_DERBY : CLAIM_ACTOR;
+                try (PreparedStatement ps = conn.prepareStatement(sql(claimSql, bucket))) {
+                    ps.setMaxRows(1);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (!rs.next()) {
+                            return null;
+                        }
+
+                        actorAddr = rs.getString(1);
+                        actorData = rs.getBytes(2);
+                        checkpointInstance = rs.getInt(3);
+                        msgNumber = rs.getInt(4);
                     }
-                    
-                    msgId = rs.getInt(1); // will be 0 if null, but will never be null because column is non-null
-                    actorAddr = rs.getString(2);
                 }
-            } finally {
-                commitFinally(conn);
-            }
 
-            
-            
-            byte[] actorData;
-            int checkpointInstance;
-            try (PreparedStatement ps = conn.prepareStatement(SELECT_ACTOR_FOR_IDLE_UPDATE, TYPE_FORWARD_ONLY, CONCUR_UPDATABLE)) {
-                ps.setMaxRows(1);
-                ps.setString(1, actorAddr);
-                try (ResultSet rs = ps.executeQuery()) {
-                    if (!rs.next()) { // actor was already set to processing, so try getting another message
-                        return null;
+
+
+                byte[] messageData = null;
+                try (PreparedStatement ps = conn.prepareStatement(sql(SELECT_MESSAGE, bucket))) {
+                    ps.setInt(1, msgNumber);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (rs.next()) {
+                            messageData = rs.getBytes(1);
+                        }
                     }
+                }
+
+                if (messageData == null) { // should never happen -- NEXT_MSG_NUMBER was stale, so fix it and leave the actor idle
+                    try (PreparedStatement ps = conn.prepareStatement(sql(UPDATE_ACTOR_NEXT_MESSAGE, bucket))) {
+                        ps.setString(1, actorAddr);
+                        ps.setString(2, actorAddr);
+                        ps.executeUpdate();
+                    }
+                    return null;
+                }
+
+                try (PreparedStatement ps = conn.prepareStatement(sql(DELETE_MESSAGE, bucket))) {
+                    ps.setInt(1, msgNumber);
+                    ps.executeUpdate();
+                }
 
-                    checkpointInstance = rs.getInt(4);                         // read checkpoint instance
-                    actorData = rs.getBytes(3);                                // read serialized actor data
 
-                    rs.updateInt(2, 1);                                        // update actor so it's set to procesing
 
-                    rs.updateRow();                                            // apply changes to DB
+                try (PreparedStatement ps = conn.prepareStatement(sql(UPDATE_ACTOR_CLAIMED, bucket))) {
+                    ps.setString(1, actorAddr);
+                    ps.setString(2, actorAddr);
+                    ps.executeUpdate();
                 }
+
+                return new Work(actorData, messageData, checkpointInstance, false);
             } finally {
                 commitFinally(conn);
             }
+        }
+    }
 
-            
-            
-            byte[] messageData;
-            try (PreparedStatement ps = conn.prepareStatement(SELECT_MESSAGE_FOR_DELETE, TYPE_FORWARD_ONLY, CONCUR_UPDATABLE)) {
-                ps.setMaxRows(1);
-                ps.setInt(1, msgId);
-                try (ResultSet rs = ps.executeQuery()) {
-                    if (!rs.next()) { // message was already removed, so try getting another message
-                        return null;
+    private Vendor vendor(Connection conn) throws SQLException {
+        Vendor ret = vendor;
+        if (ret != null) {
+            return ret;
+        }
+
+        DatabaseMetaData meta = conn.getMetaData();
+        String product = meta.getDatabaseProductName().toLowerCase(Locale.ENGLISH);
+        synchronized (this) {
+            if (vendor == null) {
+                boolean postgres = product.contains("postgresql");
+                boolean derby = product.contains("derby");
+                boolean skipLocked = supportsSkipLocked(product, meta.getDatabaseProductVersion(), meta.getDatabaseMajorVersion(),
+                        meta.getDatabaseMinorVersion());
+                WorkNotifier notifier = forcedNotifier;
+                if (notifier == null && postgres) {
+                    notifier = PostgresWorkNotifier.create(prefix, dataSource);
+                }
+                if (notifier != null) {
+                    notifier.subscribe(workSignal::signal);
+                }
+                vendor = new Vendor(skipLocked, derby, notifier);
+            }
+            return vendor;
+        }
+    }
+
+    // MariaDB may report itself as MySQL (older drivers), and its version string may be prefixed with a fake MySQL version (e.g.
+    // 5.5.5-10.6.12-MariaDB), so its real version is pulled out of the version string rather than trusted from major/minor.
+    private static final Pattern MARIADB_VERSION = Pattern.compile("(\\d+)\\.(\\d+)\\.\\d+-mariadb");
+
+    // package-private for testing
+    static boolean supportsSkipLocked(String product, String version, int major, int minor) {
+        product = product.toLowerCase(Locale.ENGLISH);
+        version = version == null ? "" : version.toLowerCase(Locale.ENGLISH);
+
+        if (product.contains("postgresql")) {
+            return major > 9 || (major == 9 && minor >= 5);
+        }
+
+        if (product.contains("mariadb") || version.contains("mariadb")) {
+            Matcher m = MARIADB_VERSION.matcher(version);
+            if (m.find()) {
+                major = Integer.parseInt(m.group(1));
+                minor = Integer.parseInt(m.group(2));
+            }
+            return major > 10 || (major == 10 && minor >= 6);
+        }
+
+        if (product.contains("mysql")) {
+            return major >= 8;
+        }
+
+        return false;
+    }
+
+    private void publishWork(Connection conn) throws SQLException {
+        WorkNotifier notifier = vendor(conn).notifier;
+        if (notifier != null) {
+            notifier.publish(conn);
+        }
+    }
+
+
+    // Same as CLAIM_ACTOR/CLAIM_ACTOR_DERBY/CLAIM_ACTOR_SKIP_LOCKED but for many actors. Use ps.setMaxRows to limit rows.
+    private static final String CLAIM_ACTORS
+            = "SELECT ADDRESS, DATA, CHECKPOINT_INSTANCE, NEXT_MSG_NUMBER\n"
+            + "    FROM ACTOR\n"
+            + "    WHERE IDLE = 1 AND NEXT_MSG_NUMBER IS NOT NULL\n"
+            + "    FOR UPDATE OF IDLE";
+    static final String CLAIM_ACTORS_DERBY // package-private so tests can check the plan
+            = "SELECT ADDRESS, DATA, CHECKPOINT_INSTANCE, NEXT_MSG_NUMBER\n"
+            + "    FROM ACTOR --DERBY-PROPERTIES index=ACTOR_READY\n"
+            + "    WHERE IDLE = 1 AND NEXT_MSG_NUMBER IS NOT NULL\n"
+            + "    FOR UPDATE OF IDLE";
+    private static final String CLAIM_ACTORS_SKIP_LOCKED
+            = "SELECT ADDRESS, DATA, CHECKPOINT_INSTANCE, NEXT_MSG_NUMBER\n"
+            + "    FROM ACTOR\n"
+            + "    WHERE IDLE = 1 AND NEXT_MSG_NUMBER IS NOT NULL\n"
+            + "    ORDER BY NEXT_MSG_NUMBER\n"
+            + "    LIMIT ?\n"
+            + "    FOR UPDATE SKIP LOCKED";
+    private static final String UPDATE_ACTOR_LEASED
+            = "UPDATE ACTOR\n"
+            + "SET\n"
+            + "    IDLE = 0, LEASE_EXPIRY = ?,\n"
+            + "    NEXT_MSG_NUMBER = (SELECT min(MSG_NUMBER) FROM MESSAGE_QUEUE WHERE ADDRESS = ? AND MSG_NUMBER > ?)\n"
+            + "WHERE\n"
+            + "    ADDRESS = ?\n";
+    // Pulls up to SELECT_MESSAGES_CHUNK messages at once -- unused placeholders get padded with a repeat of the last number, so that the
+    // SQL text is always the same
+    private static final int SELECT_MESSAGES_CHUNK = 32;
+    private static final String SELECT_MESSAGES
+            = "SELECT MSG_NUMBER, DATA FROM MESSAGE_QUEUE WHERE MSG_NUMBER IN ("
+            + String.join(", ", Collections.nCopies(SELECT_MESSAGES_CHUNK, "?"))
+            + ")";
+    private static final String UPDATE_ACTOR_UNLEASED = "UPDATE ACTOR SET IDLE = 1, LEASE_EXPIRY = NULL WHERE ADDRESS = ?";
+    private static final String REVOKE_EXPIRED_LEASES
+            = "UPDATE ACTOR\n"
+            + "SET\n"
+            + "    IDLE = 1, LEASE_EXPIRY = NULL, CHECKPOINT_INSTANCE = CHECKPOINT_INSTANCE + 1\n"
+            + "WHERE\n"
+            + "    LEASE_EXPIRY <= ?\n";
+
+    private Work takePrefetched() throws SQLException {
+        synchronized (prefetched) { // only 1 thread prefetches at a time, the others wait for what it pulls in
+            Work work = pollPrefetched();
+            if (work != null) {
+                return work;
+            }
+
+            int preferred = preferredBucket.get();
+            for (int i = 0; i < buckets(); i++) {
+                prefetch((preferred + i) % buckets());
+                work = pollPrefetched();
+                if (work != null) {
+                    return work;
+                }
+            }
+            return null;
+        }
+    }
+
+    private Work pollPrefetched() {
+        long currentTime = Instant.now().toEpochMilli();
+        while (true) {
+            LeasedWork leasedWork = prefetched.poll();
+            if (leasedWork == null) {
+                return null;
+            }
+            if (currentTime < leasedWork.leaseExpiry) {
+                return leasedWork.work;
+            }
+            // lease expired while buffered -- the actor may already have been handed to someone else, so drop it
+        }
+    }
+
+    private void prefetch(int bucket) throws SQLException {
+        try (Connection conn = sessions.getConnection()) {
+            try {
+                long leaseExpiry = Instant.now().toEpochMilli() + leaseDuration;
+
+                // Claim actors
+                List<String> actorAddrs = new ArrayList<>(prefetchCount);
+                List<byte[]> actorDatas = new ArrayList<>(prefetchCount);
+                List<Integer> checkpointInstances = new ArrayList<>(prefetchCount);
+                List<Integer> msgNumbers = new ArrayList<>(prefetchCount);
+                Vendor claimVendor = vendor(conn);
+                boolean skipLocked = claimVendor.skipLocked;
+                String claimSql = skipLocked ? CLAIM_ACTORS_SKIP_LOCKED : claimVendor.derby ? CLAIM_ACTORS_DERBY : CLAIM_ACTORS;
+                try (PreparedStatement ps = conn.prepareStatement(sql(claimSql, bucket))) {
+                    ps.setMaxRows(prefetchCount);
+                    if (skipLocked) {
+                        ps.setInt(1, prefetchCount);
                     }
-                    
-                    messageData = rs.getBytes(2);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            actorAddrs.add(rs.getString(1));
+                            actorDatas.add(rs.getBytes(2));
+                            checkpointInstances.add(rs.getInt(3));
+                            msgNumbers.add(rs.getInt(4));
+                        }
+                    }
+                }
+
+                if (actorAddrs.isEmpty()) {
+                    return;
+                }
+
+
+
+                // Lease them and move their NEXT_MSG_NUMBERs past the messages being pulled
+                try (PreparedStatement ps = conn.prepareStatement(sql(UPDATE_ACTOR_LEASED, bucket))) {
+                    for (int i = 0; i < actorAddrs.size(); i++) {
+                        ps.setLong(1, leaseExpiry);
+                        ps.setString(2, actorAddrs.get(i));
+                        ps.setInt(3, msgNumbers.get(i));
+                        ps.setString(4, actorAddrs.get(i));
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+
+
+
+                // Pull and remove their messages
+                Map<Integer, byte[]> messageDatas = new HashMap<>();
+                try (PreparedStatement ps = conn.prepareStatement(sql(SELECT_MESSAGES, bucket))) {
+                    for (int i = 0; i < msgNumbers.size(); i += SELECT_MESSAGES_CHUNK) {
+                        List<Integer> chunk = msgNumbers.subList(i, Math.min(i + SELECT_MESSAGES_CHUNK, msgNumbers.size()));
+                        for (int j = 0; j < SELECT_MESSAGES_CHUNK; j++) {
+                            ps.setInt(j + 1, chunk.get(Math.min(j, chunk.size() - 1)));
+                        }
+                        try (ResultSet rs = ps.executeQuery()) {
+                            while (rs.next()) {
+                                messageDatas.put(rs.getInt(1), rs.getBytes(2));
+                            }
+                        }
+                    }
+                }
 
-                    rs.deleteRow(); // delete the message because we're about to start processing it
+                try (PreparedStatement deletePs = conn.prepareStatement(sql(DELETE_MESSAGE, bucket));
+                        PreparedStatement unleasePs = conn.prepareStatement(sql(UPDATE_ACTOR_UNLEASED, bucket))) {
+                    for (int i = 0; i < msgNumbers.size(); i++) {
+                        if (messageDatas.containsKey(msgNumbers.get(i))) {
+                            deletePs.setInt(1, msgNumbers.get(i));
+                            deletePs.addBatch();
+                        } else { // should never happen -- NEXT_MSG_NUMBER was stale, so leave the actor idle
+                            unleasePs.setString(1, actorAddrs.get(i));
+                            unleasePs.addBatch();
+                        }
+                    }
+                    deletePs.executeBatch();
+                    unleasePs.executeBatch();
+                }
+
+
+
+                for (int i = 0; i < actorAddrs.size(); i++) {
+                    byte[] messageData = messageDatas.get(msgNumbers.get(i));
+                    if (messageData != null) {
+                        Work work = new Work(actorDatas.get(i), messageData, checkpointInstances.get(i), false);
+                        prefetched.add(new LeasedWork(work, leaseExpiry));
+                    }
                 }
             } finally {
                 commitFinally(conn);
             }
+        }
+    }
 
-            return new Work(actorData, messageData, checkpointInstance);
+    private void revokeExpiredLeases() throws SQLException {
+        long currentTime = Instant.now().toEpochMilli();
+        long nextCheck = nextLeaseCheck.get();
+        if (currentTime < nextCheck || !nextLeaseCheck.compareAndSet(nextCheck, currentTime + LEASE_CHECK_INTERVAL)) {
+            return; // not time yet, or another thread is doing it
+        }
+
+        try (Connection conn = sessions.getConnection()) {
+            int revoked = 0;
+            for (int bucket = 0; bucket < buckets(); bucket++) {
+                try (PreparedStatement ps = conn.prepareStatement(sql(REVOKE_EXPIRED_LEASES, bucket))) {
+                    ps.setLong(1, currentTime);
+                    int bucketRevoked = ps.executeUpdate();
+                    if (bucketRevoked > 0) {
+                        publishWork(conn);
+                    }
+                    revoked += bucketRevoked;
+                } finally {
+                    commitFinally(conn);
+                }
+            }
+            
+            if (revoked > 0) {
+                workSignal.signal();
+            }
         }
     }
 
 
-    // use ps.setMaxRows to make it only compute 1 row
+    // Use ps.setMaxRows to make it only compute 1 row. Same deal as CLAIM_ACTOR: it's only cheap as a scan over ACTOR_CHECKPOINT that stops
+    // at the first row, and Derby's optimizer picks a table scan over that once a good chunk of checkpoints are due. The _DERBY variant
+    // forces ACTOR_CHECKPOINT with an optimizer override -- none of the columns that get updated through the cursor are in that index, so
+    // Derby is fine with using it.
     private static final String SELECT_CHECKPOINT_FOR_INSTANCE_UPDATE
-            = "SELECT ADDRESS, CHECKPOINT_INSTANCE, CHECKPOINT_DATA, CHECKPOINT_MESSAGE_DATA, IDLE FROM ACTOR WHERE CHECKPOINT_TIME <= ?";
+            = "SELECT ADDRESS, CHECKPOINT_INSTANCE, CHECKPOINT_DATA, CHECKPOINT_MESSAGE_DATA, IDLE, LEASE_EXPIRY, DATA\n"
+            + "    FROM ACTOR\n"
+            + "    WHERE CHECKPOINT_TIME <= ?";
+    static final String SELECT_CHECKPOINT_FOR_INSTANCE_UPDATE_DERBY // package-private so tests can check the plan
+            = "SELECT ADDRESS, CHECKPOINT_INSTANCE, CHECKPOINT_DATA, CHECKPOINT_MESSAGE_DATA, IDLE, LEASE_EXPIRY, DATA\n"
+            + "    FROM ACTOR --DERBY-PROPERTIES index=ACTOR_CHECKPOINT\n"
+            + "    WHERE CHECKPOINT_TIME <= ?";
+    private static final String SELECT_NEXT_CHECKPOINT_TIME = "SELECT min(CHECKPOINT_TIME) FROM ACTOR";
 
     private Work takeCheckpoint() throws SQLException {
-        try (Connection conn = dataSource.getConnection()) {
-            conn.setAutoCommit(false);
-            conn.setTransactionIsolation(TRANSACTION_READ_COMMITTED);
-            
-            
-            
-            long currentTime = Instant.now().toEpochMilli();
-            try (PreparedStatement ps = conn.prepareStatement(SELECT_CHECKPOINT_FOR_INSTANCE_UPDATE, TYPE_FORWARD_ONLY, CONCUR_UPDATABLE)) {
-                ps.setMaxRows(1);
-                ps.setLong(1, currentTime);
-                try (ResultSet rs = ps.executeQuery()) {
-                    if (!rs.next()) {
-                        return null;
-                    }
-                    
-                    int checkpointInstance = rs.getInt(2); // will be 0 if null, but will never be null because column is non-null
-                    byte[] checkpointData = rs.getBytes(3);
-                    byte[] checkpointMessageData = rs.getBytes(4);
-                    
-                    checkpointInstance++;
-                    
-                    rs.updateInt(2, checkpointInstance); // update to incremented checkpointInstance
-                    rs.updateInt(5, 1);                  // update to not idle
-                    rs.updateRow(); // force row to update
+        long currentTime = Instant.now().toEpochMilli();
+        long watermark = checkpointWatermark.get();
+        if (currentTime < watermark) {
+            return null; // nothing can be due yet
+        }
 
-                    return new Work(checkpointData, checkpointMessageData, checkpointInstance);
+        try (Connection conn = sessions.getConnection()) {
+            int preferred = preferredBucket.get();
+            for (int i = 0; i < buckets(); i++) {
+                Work work = takeCheckpoint(conn, (preferred + i) % buckets(), currentTime);
+                if (work != null) {
+                    return work;
                 }
+            }
+
+            try {
+                refreshCheckpointWatermark(conn, watermark, currentTime);
             } finally {
                 commitFinally(conn);
             }
+            return null;
+        }
+    }
+
+    private Work takeCheckpoint(Connection conn, int bucket, long currentTime) throws SQLException {
+        String selectSql = vendor(conn).derby ? SELECT_CHECKPOINT_FOR_INSTANCE_UPDATE_DERBY : SELECT_CHECKPOINT_FOR_INSTANCE_UPDATE;
+        try (PreparedStatement ps = conn.prepareStatement(sql(selectSql, bucket), TYPE_FORWARD_ONLY, CONCUR_UPDATABLE)) {
+            ps.setMaxRows(1);
+            ps.setLong(1, currentTime);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+
+                int checkpointInstance = rs.getInt(2); // will be 0 if null, but will never be null because column is non-null
+                byte[] checkpointData = rs.getBytes(3);
+                if (checkpointData == null) { // checkpoint is the same as the actor's current state
+                    checkpointData = rs.getBytes(7);
+                }
+                byte[] checkpointMessageData = rs.getBytes(4);
+
+                checkpointInstance++;
+
+                rs.updateInt(2, checkpointInstance); // update to incremented checkpointInstance
+                rs.updateInt(5, 0);                  // update to not idle
+                rs.updateNull(6);                    // update to not leased (checkpoint supersedes any prefetch claim)
+                rs.updateRow(); // force row to update
+
+                return new Work(checkpointData, checkpointMessageData, checkpointInstance, true);
+            }
+        } finally {
+            commitFinally(conn);
+        }
+    }
+    
+    private void refreshCheckpointWatermark(Connection conn, long oldWatermark, long currentTime) throws SQLException {
+        long nextCheckpointTime = Long.MAX_VALUE;
+        for (int bucket = 0; bucket < buckets(); bucket++) {
+            try (PreparedStatement ps = conn.prepareStatement(sql(SELECT_NEXT_CHECKPOINT_TIME, bucket));
+                    ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    long bucketNextCheckpointTime = rs.getLong(1);
+                    if (!rs.wasNull()) { // null if no actors
+                        nextCheckpointTime = Math.min(nextCheckpointTime, bucketNextCheckpointTime);
+                    }
+                }
+            }
+        }
+        
+        long newWatermark = Math.min(nextCheckpointTime, currentTime + MAX_CHECKPOINT_SKIP);
+        checkpointWatermark.compareAndSet(oldWatermark, newWatermark); // fails if a store lowered it in the meantime, which is fine
+    }
+    
+    private static final class Vendor {
+        private final boolean skipLocked;    // supports SELECT ... FOR UPDATE SKIP LOCKED
+        private final boolean derby;         // supports --DERBY-PROPERTIES optimizer overrides
+        private final WorkNotifier notifier; // null if not available
+
+        private Vendor(boolean skipLocked, boolean derby, WorkNotifier notifier) {
+            this.skipLocked = skipLocked;
+            this.derby = derby;
+            this.notifier = notifier;
+        }
+    }
+    
+    private static final class BucketMessages {
+        private final TreeMap<String, List<byte[]>> messagesByActor = new TreeMap<>(); // destination -> messages
+        private final List<String> dstAddrStrs = new ArrayList<>();                   // in arrival order
+        private final List<byte[]> messageDatas = new ArrayList<>();                  // in arrival order
+    }
+    
+    private static final class LeasedWork {
+        private final Work work;
+        private final long leaseExpiry;
+
+        private LeasedWork(Work work, long leaseExpiry) {
+            this.work = work;
+            this.leaseExpiry = leaseExpiry;
         }
     }
     
@@ -442,14 +1195,16 @@ public final class JdbcStore implements Store {
         private final byte[] actorData;
         private final byte[] messageData;
         private final int checkpointInstance;
+        private final boolean checkpoint; // if true, messageData is only the checkpoint payload
 
-        private Work(byte[] actorData, byte[] messageData, int checkpointInstance) {
+        private Work(byte[] actorData, byte[] messageData, int checkpointInstance, boolean checkpoint) {
             Validate.notNull(actorData);
             Validate.notNull(messageData);
 
             this.actorData = actorData.clone();
             this.messageData = messageData.clone();
             this.checkpointInstance = checkpointInstance;
+            this.checkpoint = checkpoint;
         }
 
         private byte[] getActorData() {
@@ -463,11 +1218,24 @@ public final class JdbcStore implements Store {
         private int getCheckpointInstance() {
             return checkpointInstance;
         }
+
+        private boolean isCheckpoint() {
+            return checkpoint;
+        }
     }
     
     @Override
     public void close() throws IOException {
         closed = true;
+        workSignal.signal(); // wake up anything waiting in take() so it sees the close
+
+        synchronized (this) {
+            if (vendor != null && vendor.notifier != null) {
+                vendor.notifier.close();
+            }
+        }
+        
+        sessions.close();
     }
     
     
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.actor.stores.jdbc;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.sql.DataSource;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// WorkNotifier that uses Postgres LISTEN/NOTIFY. A dedicated connection LISTENs on the channel and polls for notifications.
+//
+// Each prefix gets its own channel, so stores for other gateways on the same database don't get woken up for work that isn't theirs. The
+// channel is a quoted identifier built from the prefix. Postgres truncates identifiers to 63 bytes, so a long prefix is cut short and has a
+// hash of the full prefix appended, keeping prefixes that share a long start on separate channels.
+//
+// The Postgres driver isn't a dependency of this module, so the driver-specific call for pulling notifications
+// (PGConnection.getNotifications(int)) is done through reflection. If the driver isn't on the classpath, create() returns null and the
+// store sticks to polling.
+final class PostgresWorkNotifier implements WorkNotifier {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PostgresWorkNotifier.class);
+
+    private static final String CHANNEL_PREFIX = "actor_work:";
+    private static final int MAX_CHANNEL_LENGTH = 63; // in bytes
+    private static final int POLL_TIMEOUT = 500;
+    private static final long RECONNECT_DELAY = 1000L;
+
+    private final String channel;
+    private final DataSource dataSource;
+    private final Class<?> pgConnectionClass;
+    private final Method getNotifications;
+    private final ExecutorService listenerThread;
+
+    private volatile boolean closed;
+
+    static PostgresWorkNotifier create(String prefix, DataSource dataSource) {
+        Validate.notNull(prefix);
+        Validate.notNull(dataSource);
+
+        Class<?> pgConnectionClass;
+        Method getNotifications;
+        try {
+            pgConnectionClass = Class.forName("org.postgresql.PGConnection");
+            getNotifications = pgConnectionClass.getMethod("getNotifications", int.class);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            LOGGER.warn("Postgres driver doesn't support waiting on notifications, falling back to polling", e);
+            return null;
+        }
+
+        return new PostgresWorkNotifier(prefix, dataSource, pgConnectionClass, getNotifications);
+    }
+
+    private PostgresWorkNotifier(String prefix, DataSource dataSource, Class<?> pgConnectionClass, Method getNotifications) {
+        this.channel = channel(prefix);
+        this.dataSource = dataSource;
+        this.pgConnectionClass = pgConnectionClass;
+        this.getNotifications = getNotifications;
+        this.listenerThread = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setName("JdbcStoreWorkListener - " + prefix);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // package-private for testing
+    static String channel(String prefix) {
+        String name = CHANNEL_PREFIX + prefix;
+        if (name.getBytes(UTF_8).length > MAX_CHANNEL_LENGTH) {
+            String hash = Integer.toHexString(prefix.hashCode());
+            StringBuilder sb = new StringBuilder();
+            int len = 0;
+            for (int i = 0; i < name.length();) {
+                int cp = name.codePointAt(i);
+                int cpLen = new String(Character.toChars(cp)).getBytes(UTF_8).length;
+                if (len + cpLen + 1 + hash.length() > MAX_CHANNEL_LENGTH) {
+                    break;
+                }
+                sb.appendCodePoint(cp);
+                len += cpLen;
+                i += Character.charCount(cp);
+            }
+            name = sb.append(':').append(hash).toString();
+        }
+        return '"' + name.replace("\"", "\"\"") + '"';
+    }
+
+    @Override
+    public void publish(Connection conn) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("NOTIFY " + channel);
+        }
+    }
+
+    @Override
+    public void subscribe(Runnable listener) {
+        Validate.notNull(listener);
+        listenerThread.execute(() -> {
+            while (!closed) {
+                try {
+                    listen(listener);
+                } catch (SQLException | ReflectiveOperationException | RuntimeException e) {
+                    if (closed) {
+                        return;
+                    }
+                    LOGGER.warn("Listening for work notifications failed, reconnecting...", e);
+                    listener.run(); // may have missed a notification
+                    try {
+                        Thread.sleep(RECONNECT_DELAY);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    private void listen(Runnable listener) throws SQLException, ReflectiveOperationException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(true);
+            try (Statement statement = conn.createStatement()) {
+                statement.execute("LISTEN " + channel);
+            }
+
+            Object pgConn = conn.unwrap(pgConnectionClass);
+            while (!closed) {
+                Object notifications;
+                try {
+                    notifications = getNotifications.invoke(pgConn, POLL_TIMEOUT);
+                } catch (InvocationTargetException ite) {
+                    if (ite.getCause() instanceof SQLException) {
+                        throw (SQLException) ite.getCause();
+                    }
+                    throw ite;
+                }
+
+                if (notifications != null && Array.getLength(notifications) > 0) {
+                    listener.run();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        listenerThread.shutdownNow();
+    }
+}
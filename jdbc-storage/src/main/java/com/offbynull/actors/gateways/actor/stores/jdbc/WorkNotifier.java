@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.actor.stores.jdbc;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+// Lets JdbcStores on different nodes tell each other that work may have become available, so that idle takers don't have to wait out
+// their backoff. publish() is called from within the transaction that created the work, and implementations should only deliver once that
+// transaction commits (Postgres NOTIFY behaves this way). Delivery is best-effort -- takers fall back to polling with backoff.
+interface WorkNotifier extends Closeable {
+
+    void publish(Connection conn) throws SQLException;
+
+    // Called once, before anything is published.
+    void subscribe(Runnable listener);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.gateways.actor.stores.jdbc;
+
+// Wakes up threads blocked in JdbcStore.take() when work may have become available. Uses a version number rather than a plain flag so that
+// wakeups can't get lost: a taker reads the version before it queries the database, and if anything signals between that read and the
+// taker going to sleep, the version won't match and the taker won't go to sleep at all.
+final class WorkSignal {
+
+    private long version; // guarded by this
+
+    synchronized long version() {
+        return version;
+    }
+
+    synchronized void signal() {
+        version++;
+        notifyAll();
+    }
+
+    // Returns true if signalled since seenVersion, false if timed out.
+    synchronized boolean await(long seenVersion, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (version == seenVersion) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0L) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+}
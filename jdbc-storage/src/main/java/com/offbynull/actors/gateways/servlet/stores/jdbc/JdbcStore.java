@@ -27,25 +27,33 @@ import java.sql.Connection;
 import static java.sql.Connection.TRANSACTION_READ_COMMITTED;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import static java.sql.ResultSet.CONCUR_UPDATABLE;
-import static java.sql.ResultSet.TYPE_FORWARD_ONLY;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 import static java.util.stream.Collectors.toList;
 import javax.sql.DataSource;
 import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * A storage engine that keeps messages for HTTP clients in a RDBMS. This implementation does not evict messages -- messages are only
- * removed after they're read.
+ * A storage engine that keeps messages for HTTP clients in a RDBMS. Messages that haven't been read by the time a user-defined timeout
+ * hits are discarded, so the queues of HTTP clients that have gone away don't pile up.
  * <p>
  * This storage engine will work with any JDBC driver that supports...
  * <ul>
  * <li>TRANSACTION_READ_COMMITTED transaction level</li>
- * <li>SELECT FOR UPDATE statements and CONCUR_UPDATABLE ResultSet concurrency</li>
+ * <li>SELECT FOR UPDATE statements</li>
  * <li>SQLSTATE codes</li>
  * </ul>
+ * On PostgreSQL, a HTTP client's queue is read and removed in a single {@code DELETE ... RETURNING} statement. Other vendors fall back to
+ * a {@code SELECT ... FOR UPDATE} followed by a batched delete.
+ * <p>
  * The schema your JDBC {@link Connection}s point to must have the tables below. These DDL statements are for Apache Derby -- you'll need
  * to tweak them to match for your RDBMS vendor. Performance is your responsibility -- it's up to you to tune table, schema, and database
  * options to make access performant.
@@ -53,52 +61,87 @@ import org.apache.commons.lang3.Validate;
  * CREATE TABLE HTTP_CLIENT_QUEUE (
  *   MSG_NUMBER INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1), -- must be auto-incrementing, not just unique
  *   ADDRESS VARCHAR(1024) NOT NULL,
+ *   WRITE_TIME BIGINT NOT NULL,             -- integer-type that can support Java's long type
  *   DATA BLOB NOT NULL,
  *   PRIMARY KEY (MSG_NUMBER)
  * );
+ * CREATE INDEX HTTP_CLIENT_QUEUE_ADDRESS ON HTTP_CLIENT_QUEUE (ADDRESS, MSG_NUMBER);
+ * CREATE INDEX HTTP_CLIENT_QUEUE_WRITE_TIME ON HTTP_CLIENT_QUEUE (WRITE_TIME);
  * </pre>
+ * The indexes are what keep reads and expiry cheap regardless of how many messages are queued: a HTTP client's queue is found through
+ * {@code HTTP_CLIENT_QUEUE_ADDRESS}, and expired messages through {@code HTTP_CLIENT_QUEUE_WRITE_TIME}.
  * @author Kasra Faghihi
  */
 public final class JdbcStore implements Store {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(JdbcStore.class);
+
     //
     // THIS HAS BEEN TESTED WITH POSTGRES 9.6 AND DERBY 10.14.1.0
     //
+    // Connections are borrowed from the DataSource per call rather than held per thread (JdbcSessions) -- calls come in on servlet
+    // container threads, and there are far more of those than there should be connections.
+    //
     // To support Postgres, I had to workaround the following issues...
     //    cannot capture subtypes of SQLException -- have to capture SQLException directly
     //    cannot call setBlob/getBlob on blobs, must call setBytes/getBytes (blob type in postgres is bytea)
     //    SELECT FOR UPDATES need to include the pk column even though they aren't needed, otherwise you can't update/delete the row
     //
+    // Expired messages are swept by whichever read/write comes along once the sweep is due (at most once every EXPIRY_CHECK_INTERVAL),
+    // rather than by a background thread. Reads skip over messages that have expired but haven't been swept yet.
+    //
+    
+    private static final long EXPIRY_CHECK_INTERVAL = 1000L;
     
     private final String prefix;
     private final DataSource dataSource;
     private final BestEffortSerializer serializer;
+    private final long timeout;
+    private final AtomicLong nextExpiryCheck;
     
+    private volatile Boolean deleteReturning; // picked once first connection is made
     private volatile boolean closed;
     
     /**
-     * Creates a {@link JdbcStore} object.
+     * Creates a {@link JdbcStore} object. Equivalent to calling {@code create(prefix, dataSource, Duration.ofMinutes(1L)) }.
      * @param prefix prefix for the actor gateway that this storage engine belongs to
      * @param dataSource JDBC data source to generate connections
      * @return new JDBC store
      * @throws NullPointerException if any argument is {@code null}
-     * @throws IllegalArgumentException if {@code port} is invalid
      */
     public static JdbcStore create(String prefix, DataSource dataSource) {
+        return create(prefix, dataSource, Duration.ofMinutes(1L));
+    }
+    
+    /**
+     * Creates a {@link JdbcStore} object.
+     * @param prefix prefix for the actor gateway that this storage engine belongs to
+     * @param dataSource JDBC data source to generate connections
+     * @param timeout timeout duration -- if messages aren't read by the time this timeout hits, they are discarded
+     * @return new JDBC store
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code timeout} is negative or zero
+     */
+    public static JdbcStore create(String prefix, DataSource dataSource, Duration timeout) {
         Validate.notNull(prefix);
         Validate.notNull(dataSource);
-        return new JdbcStore(prefix, dataSource);
+        Validate.notNull(timeout);
+        Validate.isTrue(!timeout.isNegative() && !timeout.isZero());
+        return new JdbcStore(prefix, dataSource, timeout.toMillis());
     }
 
-    private JdbcStore(String prefix, DataSource dataSource) {
+    private JdbcStore(String prefix, DataSource dataSource, long timeout) {
         Validate.notNull(prefix);
         Validate.notNull(dataSource);
+        Validate.isTrue(timeout > 0L);
         this.prefix = prefix;
         this.dataSource = dataSource;
         this.serializer = new BestEffortSerializer();
+        this.timeout = timeout;
+        this.nextExpiryCheck = new AtomicLong(Long.MIN_VALUE);
     }
     
-    private static final String INSERT_MESSAGE = "INSERT INTO HTTP_CLIENT_QUEUE (ADDRESS, DATA) VALUES (?, ?)";
+    private static final String INSERT_MESSAGE = "INSERT INTO HTTP_CLIENT_QUEUE (ADDRESS, WRITE_TIME, DATA) VALUES (?, ?, ?)";
     
     @Override
     public void write(String id, List<Message> messages) {
@@ -113,36 +156,56 @@ public final class JdbcStore implements Store {
             Validate.isTrue(dstAddr.size() >= 2, "Actor address must have atleast 2 elements: %s", dstAddr);
             Validate.isTrue(clientAddr.isPrefixOf(dstAddr), "Actor address must start with %s: %s", clientAddr, dstAddr);
         });
+        
+        if (messages.isEmpty()) {
+            return;
+        }
 
         String clientAddrStr = clientAddr.toString();
-        for (Message message : messages) {
-            byte[] messageData = serializer.serialize(message);
-
-            retry(() -> {
-                Validate.isTrue(!closed, "Store closed");
-                try (Connection conn = dataSource.getConnection();
-                        PreparedStatement ps = conn.prepareStatement(INSERT_MESSAGE)) {
-                    conn.setAutoCommit(false);
-                    conn.setTransactionIsolation(TRANSACTION_READ_COMMITTED);
+        List<byte[]> messageDatas = messages.stream()
+                .map(m -> serializer.serialize(m))
+                .collect(toList());
 
-                    ps.setString(1, clientAddrStr);
-                    ps.setBytes(2, messageData);
-                    ps.executeUpdate();
-                    commitFinally(conn);
+        retry(() -> {
+            Validate.isTrue(!closed, "Store closed");
+            try (Connection conn = dataSource.getConnection()) {
+                conn.setAutoCommit(false);
+                conn.setTransactionIsolation(TRANSACTION_READ_COMMITTED);
+                long writeTime = Instant.now().toEpochMilli();
+                try (PreparedStatement ps = conn.prepareStatement(INSERT_MESSAGE)) {
+                    for (byte[] messageData : messageDatas) {
+                        ps.setString(1, clientAddrStr);
+                        ps.setLong(2, writeTime);
+                        ps.setBytes(3, messageData);
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
                 } catch (SQLException sqle) {
-                    if (!sqle.getSQLState().startsWith("23503")) { // 23505 is used when no actor with this address exists (foreign key)
+                    if (sqle.getSQLState() == null || !sqle.getSQLState().startsWith("23503")) { // 23503 is used if a foreign key fails
                         throw sqle;
                     }
+                    conn.rollback();
+                } finally {
+                    commitFinally(conn);
                 }
-            });
-        }
+            }
+        });
+        
+        expireMessages(); // not part of the retry above -- if the write's transaction committed, re-running it would duplicate messages
     }
 
+    // Postgres can remove a queue and hand back what was in it with a single statement. Rows don't come back in any particular order, so
+    // they still need to be sorted by MSG_NUMBER.
+    private static final String DELETE_MESSAGES_RETURNING
+            = "DELETE FROM HTTP_CLIENT_QUEUE WHERE ADDRESS = ? RETURNING MSG_NUMBER, WRITE_TIME, DATA";
     // NOTE: We can't have ORDER BY MSG_NUMBER in this statement if we're going to do FOR UPDATE. As such, we return the MSG_NUMBER and we
     // add it as the key of a TreeMap to manually sort the messages as we pull them in. Remember that MSG_NUMBER is a auto-incrementing
     // integer used for the primary key.
-    private static final String SELECT_MESSAGE_FOR_DELETE
-            = "SELECT MSG_NUMBER, ADDRESS, DATA FROM HTTP_CLIENT_QUEUE WHERE ADDRESS = ? FOR UPDATE";
+    private static final String SELECT_MESSAGES_FOR_DELETE
+            = "SELECT MSG_NUMBER, WRITE_TIME, DATA FROM HTTP_CLIENT_QUEUE WHERE ADDRESS = ? FOR UPDATE";
+    // Deletes by primary key rather than by MSG_NUMBER range -- a message with a lower MSG_NUMBER than what was read may still get
+    // committed after the read, and a range delete would discard it without it ever being read
+    private static final String DELETE_MESSAGE = "DELETE FROM HTTP_CLIENT_QUEUE WHERE MSG_NUMBER = ?";
     
     @Override
     public List<Message> read(String id) {
@@ -150,21 +213,37 @@ public final class JdbcStore implements Store {
         
         List<Message> messages = retry(() -> {
             Validate.isTrue(!closed, "Store closed");
-            try (Connection conn = dataSource.getConnection();
-                    PreparedStatement ps = conn.prepareStatement(SELECT_MESSAGE_FOR_DELETE, TYPE_FORWARD_ONLY, CONCUR_UPDATABLE)) {
+            try (Connection conn = dataSource.getConnection()) {
                 conn.setAutoCommit(false);
                 conn.setTransactionIsolation(TRANSACTION_READ_COMMITTED);
-
-                ps.setString(1, clientAddrStr);
+                long currentTime = Instant.now().toEpochMilli();
                 
                 TreeMap<Integer, byte[]> messageDatas = new TreeMap<>();
-                try (ResultSet rs = ps.executeQuery()) {
-                    while (rs.next()) {
-                        int messageNum = rs.getInt(1);
-                        byte[] messageData = rs.getBytes(3);
-                        messageDatas.put(messageNum, messageData);
-                        
-                        rs.deleteRow();
+                try {
+                    if (deleteReturning(conn)) {
+                        try (PreparedStatement ps = conn.prepareStatement(DELETE_MESSAGES_RETURNING)) {
+                            ps.setString(1, clientAddrStr);
+                            try (ResultSet rs = ps.executeQuery()) {
+                                readMessages(rs, currentTime, messageDatas);
+                            }
+                        }
+                    } else {
+                        try (PreparedStatement selectPs = conn.prepareStatement(SELECT_MESSAGES_FOR_DELETE);
+                                PreparedStatement deletePs = conn.prepareStatement(DELETE_MESSAGE)) {
+                            selectPs.setString(1, clientAddrStr);
+                            List<Integer> messageNums;
+                            try (ResultSet rs = selectPs.executeQuery()) {
+                                messageNums = readMessages(rs, currentTime, messageDatas);
+                            }
+                            
+                            for (int messageNum : messageNums) {
+                                deletePs.setInt(1, messageNum);
+                                deletePs.addBatch();
+                            }
+                            if (!messageNums.isEmpty()) {
+                                deletePs.executeBatch();
+                            }
+                        }
                     }
                 } finally {
                     commitFinally(conn);
@@ -176,8 +255,64 @@ public final class JdbcStore implements Store {
             }
         });
         
+        expireMessages(); // not part of the retry above -- if the read's transaction committed, re-running it would lose messages
+        
         return messages;
     }
+    
+    // Puts unexpired messages into messageDatas, returns the MSG_NUMBER of every row read (expired or not)
+    private List<Integer> readMessages(ResultSet rs, long currentTime, TreeMap<Integer, byte[]> messageDatas) throws SQLException {
+        List<Integer> messageNums = new ArrayList<>();
+        while (rs.next()) {
+            int messageNum = rs.getInt(1);
+            long writeTime = rs.getLong(2);
+            messageNums.add(messageNum);
+            if (currentTime - writeTime < timeout) {
+                messageDatas.put(messageNum, rs.getBytes(3));
+            }
+        }
+        return messageNums;
+    }
+
+    private boolean deleteReturning(Connection conn) throws SQLException {
+        Boolean ret = deleteReturning;
+        if (ret == null) {
+            String product = conn.getMetaData().getDatabaseProductName().toLowerCase(Locale.ENGLISH);
+            ret = product.contains("postgresql");
+            deleteReturning = ret;
+        }
+        return ret;
+    }
+    
+    private static final String DELETE_EXPIRED_MESSAGES = "DELETE FROM HTTP_CLIENT_QUEUE WHERE WRITE_TIME <= ?";
+
+    // Called after a read/write has already committed, so this must never throw -- the caller would lose the messages it just read (or
+    // would retry a write that already went through). A failed sweep just gets logged, and the next one will pick up whatever it missed.
+    private void expireMessages() {
+        long currentTime = Instant.now().toEpochMilli();
+        long nextCheck = nextExpiryCheck.get();
+        if (currentTime < nextCheck || !nextExpiryCheck.compareAndSet(nextCheck, currentTime + EXPIRY_CHECK_INTERVAL)) {
+            return; // not time yet, or another thread is doing it
+        }
+        
+        try {
+            retry(() -> {
+                Validate.isTrue(!closed, "Store closed");
+                try (Connection conn = dataSource.getConnection()) {
+                    conn.setAutoCommit(false);
+                    conn.setTransactionIsolation(TRANSACTION_READ_COMMITTED);
+                    try (PreparedStatement ps = conn.prepareStatement(DELETE_EXPIRED_MESSAGES)) {
+                        ps.setLong(1, currentTime - timeout);
+                        ps.executeUpdate();
+                    } finally {
+                        commitFinally(conn);
+                    }
+                }
+            });
+        } catch (RuntimeException re) {
+            LOGGER.warn("Unable to sweep expired messages", re);
+        }
+    }
 
     @Override
     public void close() throws IOException {
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.actors.jdbcclient;
+
+import java.io.Closeable;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.sql.DataSource;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-thread JDBC sessions on top of a {@link DataSource}.
+ * <p>
+ * Each thread that calls {@link #getConnection() } is given its own connection, which it keeps between calls. The connection has
+ * auto-commit turned off and its transaction isolation level set once, when it's first opened, and the {@link PreparedStatement}s
+ * prepared through it are cached and reused. This avoids the overhead of checking a connection in/out of a pool, re-applying session
+ * settings, and re-preparing statements on every operation.
+ * <p>
+ * Connections and statements handed out by this class are meant to be used the same way as ordinary ones (e.g. in try-with-resources
+ * blocks). Closing a connection or a prepared statement leaves it open for the next use -- prepared statements have their parameters and
+ * batches cleared, but any other settings (e.g. max rows) carry over. If a connection problem is encountered (SQLSTATE class 08), the
+ * connection gets discarded when it's closed and the next call to {@link #getConnection() } opens a new one.
+ * <p>
+ * Since each thread holds on to a connection, a pooled {@link DataSource} must allow at least as many connections as there are threads
+ * using this class. A thread that asks for a connection while it's still using its current one is given a separate connection that isn't
+ * kept. Connections held for threads that have since died are closed the next time some thread opens a session, so threads coming and
+ * going (e.g. a thread pool that retires idle threads) don't leak connections -- but this class is still best suited to a fixed set of
+ * long-lived threads, since a session is only worth keeping if its thread keeps coming back to it.
+ * @author Kasra Faghihi
+ */
+public final class JdbcSessions implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JdbcSessions.class);
+
+    private static final int MAX_CACHED_STATEMENTS = 64;
+
+    private final DataSource dataSource;
+    private final int transactionIsolation;
+    private final ThreadLocal<Session> sessions;
+    private final Set<Session> allSessions;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a {@link JdbcSessions} object.
+     * @param dataSource JDBC data source to generate connections
+     * @param transactionIsolation transaction isolation level for connections (one of the {@code TRANSACTION_*} constants in
+     * {@link Connection})
+     * @return new JDBC sessions
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static JdbcSessions create(DataSource dataSource, int transactionIsolation) {
+        Validate.notNull(dataSource);
+        return new JdbcSessions(dataSource, transactionIsolation);
+    }
+
+    private JdbcSessions(DataSource dataSource, int transactionIsolation) {
+        this.dataSource = dataSource;
+        this.transactionIsolation = transactionIsolation;
+        this.sessions = new ThreadLocal<>();
+        this.allSessions = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Get the calling thread's connection. Auto-commit is off for the returned connection, and its transaction isolation level is set to
+     * the one passed in to {@link #create(javax.sql.DataSource, int) }.
+     * @return connection
+     * @throws SQLException if a new connection had to be opened and that failed
+     * @throws IllegalStateException if closed
+     */
+    public Connection getConnection() throws SQLException {
+        Validate.validState(!closed, "Sessions closed");
+
+        Session session = sessions.get();
+        if (session != null && session.inUse) {
+            return open(); // nested use, give out a separate connection that gets closed normally
+        }
+
+        if (session == null) {
+            reclaimDeadSessions(); // new thread showing up is a good hint that some other threads may have gone away
+            session = new Session(open());
+            sessions.set(session);
+            allSessions.add(session);
+            if (closed) { // closed while opening
+                allSessions.remove(session);
+                sessions.remove();
+                session.discard();
+                throw new IllegalStateException("Sessions closed");
+            }
+        }
+
+        session.inUse = true;
+        return session.connectionProxy;
+    }
+
+    private void reclaimDeadSessions() {
+        for (Session session : allSessions) {
+            Thread owner = session.owner.get();
+            if ((owner == null || !owner.isAlive()) && allSessions.remove(session)) {
+                session.discard(); // owner is gone, so nothing else can be touching this session
+            }
+        }
+    }
+
+    private Connection open() throws SQLException {
+        Connection conn = dataSource.getConnection();
+        try {
+            conn.setAutoCommit(false);
+            conn.setTransactionIsolation(transactionIsolation);
+        } catch (SQLException | RuntimeException e) {
+            conn.close();
+            throw e;
+        }
+        return conn;
+    }
+
+    /**
+     * Closes the connections of all threads. Connections being used when this method is invoked will get closed from under them.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Session session : allSessions) {
+            if (allSessions.remove(session)) { // may be getting reclaimed at the same time
+                session.discard();
+            }
+        }
+    }
+
+
+
+    private final class Session {
+        private final WeakReference<Thread> owner; // weak so the session doesn't keep a dead thread from being collected
+        private final Connection connection;
+        private final Connection connectionProxy;
+        private final LinkedHashMap<List<Object>, CachedStatement> statements;
+        private boolean inUse;  // only accessed by owning thread
+        private boolean broken; // only accessed by owning thread
+
+        Session(Connection connection) {
+            this.owner = new WeakReference<>(Thread.currentThread());
+            this.connection = connection;
+            this.connectionProxy = (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(),
+                    new Class<?>[] {Connection.class},
+                    this::invokeConnection);
+            this.statements = new LinkedHashMap<List<Object>, CachedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<Object>, CachedStatement> eldest) {
+                    if (size() > MAX_CACHED_STATEMENTS) {
+                        closeQuietly(eldest.getValue().statement);
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        private Object invokeConnection(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    inUse = false;
+                    if (broken || closed) {
+                        allSessions.remove(this);
+                        sessions.remove();
+                        discard();
+                    }
+                    return null;
+                case "prepareStatement":
+                    if (isCacheable(method)) {
+                        return prepareCached(args);
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            return invoke(connection, method, args);
+        }
+
+        private boolean isCacheable(Method method) {
+            Class<?>[] paramTypes = method.getParameterTypes();
+            return Arrays.equals(paramTypes, new Class<?>[] {String.class})
+                    || Arrays.equals(paramTypes, new Class<?>[] {String.class, int.class, int.class});
+        }
+
+        private PreparedStatement prepareCached(Object[] args) throws SQLException {
+            String sql = (String) args[0];
+            int resultSetType = args.length == 1 ? ResultSet.TYPE_FORWARD_ONLY : (Integer) args[1];
+            int resultSetConcurrency = args.length == 1 ? ResultSet.CONCUR_READ_ONLY : (Integer) args[2];
+            List<Object> key = Arrays.asList(sql, resultSetType, resultSetConcurrency);
+
+            CachedStatement cached = statements.get(key);
+            if (cached == null) {
+                PreparedStatement ps;
+                try {
+                    ps = connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+                } catch (SQLException sqle) {
+                    checkBroken(sqle);
+                    throw sqle;
+                }
+                cached = new CachedStatement(ps);
+                statements.put(key, cached);
+            }
+            return cached.statementProxy;
+        }
+
+        private Object invoke(Object target, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException ite) {
+                Throwable cause = ite.getCause();
+                if (cause instanceof SQLException) {
+                    checkBroken((SQLException) cause);
+                }
+                throw cause;
+            }
+        }
+
+        private void checkBroken(SQLException sqle) {
+            String sqlState = sqle.getSQLState();
+            if (sqlState != null && sqlState.startsWith("08")) { // 08xxx class of statecodes indicate connection problems
+                broken = true;
+            }
+        }
+
+        void discard() {
+            statements.values().forEach(cs -> closeQuietly(cs.statement));
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException sqle) {
+                LOGGER.warn("Unable to close connection", sqle);
+            }
+        }
+
+        private void closeQuietly(PreparedStatement ps) {
+            try {
+                ps.close();
+            } catch (SQLException sqle) {
+                LOGGER.warn("Unable to close statement", sqle);
+            }
+        }
+
+
+
+        private final class CachedStatement {
+            private final PreparedStatement statement;
+            private final PreparedStatement statementProxy;
+
+            CachedStatement(PreparedStatement statement) {
+                this.statement = statement;
+                this.statementProxy = (PreparedStatement) Proxy.newProxyInstance(
+                        PreparedStatement.class.getClassLoader(),
+                        new Class<?>[] {PreparedStatement.class},
+                        this::invokeStatement);
+            }
+
+            private Object invokeStatement(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "close":
+                        if (!broken) {
+                            invoke(statement, PreparedStatement.class.getMethod("clearParameters"), null);
+                            invoke(statement, PreparedStatement.class.getMethod("clearBatch"), null);
+                        }
+                        return null;
+                    case "getConnection":
+                        return connectionProxy;
+                    default:
+                        return invoke(statement, method, args);
+                }
+            }
+        }
+    }
+}
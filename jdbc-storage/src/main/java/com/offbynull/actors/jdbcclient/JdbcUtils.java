@@ -18,6 +18,7 @@ package com.offbynull.actors.jdbcclient;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,6 +29,9 @@ import org.slf4j.LoggerFactory;
 public final class JdbcUtils {
     
     private static final Logger LOGGER = LoggerFactory.getLogger(JdbcUtils.class);
+    
+    private static final long MIN_RETRY_DELAY = 10L;
+    private static final long MAX_RETRY_DELAY = 5000L;
 
     private JdbcUtils() {
         // do nothing
@@ -51,12 +55,17 @@ public final class JdbcUtils {
     
     
     /**
-     * Retry a JDBC operation.
+     * Retry a JDBC operation. Operations that fail because of connection problems are retried after a randomized delay that grows
+     * exponentially with each failed attempt (up to a few seconds), so that many clients losing their connections at once don't all
+     * hammer the database as soon as it comes back.
      * @param <V> return type
      * @param block retry block
      * @return return value
+     * @throws IllegalStateException if the operation failed for a reason other than a connection problem, or if interrupted while waiting
+     * to retry
      */
     public static <V> V retry(RetryReturnBlock<V> block) {
+        int attempt = 0;
         while (true) {
             try {
                 return block.run();               
@@ -64,6 +73,7 @@ public final class JdbcUtils {
                 boolean connProblem = sqle.getSQLState().startsWith("08"); // 08xxx class of statecodes indicate connection problems
                 if (connProblem) {
                     LOGGER.error("Connection problem encountered, retrying...", sqle);
+                    backoff(attempt++);
                 } else {
                     LOGGER.error("Non-connection problem encountered", sqle);
                     throw new IllegalStateException(sqle);
@@ -86,10 +96,14 @@ public final class JdbcUtils {
     }
 
     /**
-     * Retry a JDBC operation.
+     * Retry a JDBC operation. Equivalent to {@link #retry(com.offbynull.actors.jdbcclient.JdbcUtils.RetryReturnBlock) }, but without a
+     * return value.
      * @param block retry block
+     * @throws IllegalStateException if the operation failed for a reason other than a connection problem, or if interrupted while waiting
+     * to retry
      */
     public static void retry(RetryBlock block) {
+        int attempt = 0;
         while (true) {
             try {
                 block.run();
@@ -98,6 +112,7 @@ public final class JdbcUtils {
                 boolean connProblem = sqle.getSQLState().startsWith("08"); // 08xxx class of statecodes indicate connection problems
                 if (connProblem) {
                     LOGGER.error("Connection problem encountered, retrying...", sqle);
+                    backoff(attempt++);
                 } else {
                     LOGGER.error("Non-connection problem encountered", sqle);
                     throw new IllegalStateException(sqle);
@@ -106,6 +121,18 @@ public final class JdbcUtils {
         }
     }
     
+    private static void backoff(int attempt) {
+        // "Full jitter" -- random delay between 0 and an exponentially growing cap
+        long cap = MIN_RETRY_DELAY << Math.min(attempt, 20);
+        long delay = ThreadLocalRandom.current().nextLong(Math.min(cap, MAX_RETRY_DELAY) + 1L);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ie);
+        }
+    }
+    
     /**
      * Retry block.
      */
@@ -30,15 +30,20 @@ public class ActorSystemTest {
             statement.execute(
                     "CREATE TABLE ACTOR (\n"
                     + "    ADDRESS VARCHAR(1024) NOT NULL, \n"
-                    + "    CHECKPOINT_DATA BLOB NOT NULL,\n"
+                    + "    CHECKPOINT_DATA BLOB,\n"
                     + "    CHECKPOINT_MESSAGE_DATA BLOB NOT NULL,\n"
                     + "    CHECKPOINT_TIME BIGINT NOT NULL,\n"
                     + "    CHECKPOINT_INSTANCE INTEGER NOT NULL,\n"
                     + "    IDLE INTEGER NOT NULL,\n"
+                    + "    NEXT_MSG_NUMBER INTEGER,\n"
+                    + "    LEASE_EXPIRY BIGINT,\n"
                     + "    DATA BLOB NOT NULL,\n"
                     + "    PRIMARY KEY (ADDRESS)\n"
                     + ")\n"
             );
+            statement.execute("CREATE INDEX ACTOR_READY ON ACTOR (IDLE, NEXT_MSG_NUMBER)");
+            statement.execute("CREATE INDEX ACTOR_CHECKPOINT ON ACTOR (CHECKPOINT_TIME)");
+            statement.execute("CREATE INDEX ACTOR_LEASE ON ACTOR (LEASE_EXPIRY)");
             statement.execute(
                     "CREATE TABLE MESSAGE_QUEUE (\n"
                     + "    MSG_NUMBER INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1),\n"
@@ -48,6 +53,7 @@ public class ActorSystemTest {
                     + "    FOREIGN KEY (ADDRESS) REFERENCES ACTOR(ADDRESS) ON DELETE CASCADE\n"
                     + ")\n"
             );
+            statement.execute("CREATE INDEX MESSAGE_QUEUE_ADDRESS ON MESSAGE_QUEUE (ADDRESS, MSG_NUMBER)");
         }
         
         JdbcStore store = JdbcStore.create("actor", ds);
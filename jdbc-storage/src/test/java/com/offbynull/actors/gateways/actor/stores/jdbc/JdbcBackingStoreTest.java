@@ -0,0 +1,95 @@
+package com.offbynull.actors.gateways.actor.stores.jdbc;
+
+import com.offbynull.actors.gateways.actor.SerializableActorHelper;
+import com.offbynull.actors.gateways.actor.stores.memory.MemoryStore;
+import com.offbynull.actors.shuttle.Address;
+import com.offbynull.actors.shuttle.Message;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import static java.util.Arrays.asList;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.derby.jdbc.EmbeddedConnectionPoolDataSource;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JdbcBackingStoreTest {
+
+    private EmbeddedConnectionPoolDataSource ds;
+    private JdbcBackingStore fixture;
+    
+    @Before
+    public void before() throws SQLException {
+        ds = new EmbeddedConnectionPoolDataSource();
+        ds.setDatabaseName("memory:testDB");
+        ds.setCreateDatabase("create");
+        ds.setLogWriter(new PrintWriter(System.out));
+        
+        try (Connection conn = ds.getConnection();
+                Statement statement = conn.createStatement()) {
+            statement.execute(
+                    "CREATE TABLE ACTOR_STATE (\n"
+                    + "    ADDRESS VARCHAR(1024) NOT NULL, \n"
+                    + "    DATA BLOB NOT NULL,\n"
+                    + "    PRIMARY KEY (ADDRESS)\n"
+                    + ")\n"
+            );
+        }
+        
+        fixture = JdbcBackingStore.create(ds);
+    }
+    
+    @After
+    public void after() throws Exception {
+        try {
+            DriverManager.getConnection("jdbc:derby:memory:testDB;drop=true");
+        } catch (SQLException sqle) {
+            // https://db.apache.org/derby/docs/10.8/devguide/cdevdvlpinmemdb.html -- See section "Removing an in-memory database"
+            if (!"08006".equals(sqle.getSQLState())) { // 08006 is expected
+                throw sqle;
+            }
+        }
+    }
+
+    @Test
+    public void mustReplaceAndRemoveActors() {
+        Map<Address, byte[]> puts = new HashMap<>();
+        puts.put(Address.fromString("actor:a"), new byte[] {1});
+        puts.put(Address.fromString("actor:b"), new byte[] {2});
+        fixture.write(puts, asList());
+
+        puts.clear();
+        puts.put(Address.fromString("actor:b"), new byte[] {3});
+        fixture.write(puts, asList(Address.fromString("actor:a"), Address.fromString("actor:unknown")));
+
+        Map<Address, byte[]> loaded = new HashMap<>();
+        fixture.load(loaded::put);
+        assertEquals(1, loaded.size());
+        assertArrayEquals(new byte[] {3}, loaded.get(Address.fromString("actor:b")));
+    }
+
+    @Test(timeout = 5000L)
+    public void mustWarmMemoryStoreFromWhatWasWrittenBehind() {
+        MemoryStore memoryStore = MemoryStore.create("actor", 2, fixture, Duration.ofMinutes(1L));
+        memoryStore.store(SerializableActorHelper.createFake("actor:a"));
+        memoryStore.store(
+                new Message("actor:x", "actor:a:1", "payload1"),
+                new Message("actor:x", "actor:a:2", "payload2"));
+        memoryStore.close();
+
+        memoryStore = MemoryStore.create("actor", 2, fixture, Duration.ofMinutes(1L));
+        try {
+            assertEquals(1, memoryStore.getActorCount());
+            assertEquals("payload1", memoryStore.take().getMessage().getMessage());
+        } finally {
+            memoryStore.close();
+        }
+    }
+}
@@ -7,16 +7,35 @@ import com.offbynull.actors.shuttle.Message;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import static java.sql.ResultSet.CONCUR_READ_ONLY;
+import static java.sql.ResultSet.CONCUR_UPDATABLE;
+import static java.sql.ResultSet.TYPE_FORWARD_ONLY;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.derby.jdbc.EmbeddedConnectionPoolDataSource;
 import org.junit.After;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Test;
 import org.junit.Before;
 
 public class JdbcStoreTest {
 
+    private EmbeddedConnectionPoolDataSource dataSource;
     private JdbcStore fixture;
     
     @Before
@@ -26,32 +45,44 @@ public class JdbcStoreTest {
         ds.setCreateDatabase("create");
         ds.setLogWriter(new PrintWriter(System.out));
         
-        try (Connection conn = ds.getConnection();
-                Statement statement = conn.createStatement()) {
+        try (Connection conn = ds.getConnection()) {
+            createTables(conn, "");
+        }
+        
+        dataSource = ds;
+        fixture = JdbcStore.create("actor", ds);
+    }
+    
+    private static void createTables(Connection conn, String suffix) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
             statement.execute(
-                    "CREATE TABLE ACTOR (\n"
+                    "CREATE TABLE ACTOR" + suffix + " (\n"
                     + "    ADDRESS VARCHAR(1024) NOT NULL, \n"
-                    + "    CHECKPOINT_DATA BLOB NOT NULL,\n"
+                    + "    CHECKPOINT_DATA BLOB,\n"
                     + "    CHECKPOINT_MESSAGE_DATA BLOB NOT NULL,\n"
                     + "    CHECKPOINT_TIME BIGINT NOT NULL,\n"
                     + "    CHECKPOINT_INSTANCE INTEGER NOT NULL,\n"
                     + "    IDLE INTEGER NOT NULL,\n"
+                    + "    NEXT_MSG_NUMBER INTEGER,\n"
+                    + "    LEASE_EXPIRY BIGINT,\n"
                     + "    DATA BLOB NOT NULL,\n"
                     + "    PRIMARY KEY (ADDRESS)\n"
                     + ")\n"
             );
+            statement.execute("CREATE INDEX ACTOR_READY" + suffix + " ON ACTOR" + suffix + " (IDLE, NEXT_MSG_NUMBER)");
+            statement.execute("CREATE INDEX ACTOR_CHECKPOINT" + suffix + " ON ACTOR" + suffix + " (CHECKPOINT_TIME)");
+            statement.execute("CREATE INDEX ACTOR_LEASE" + suffix + " ON ACTOR" + suffix + " (LEASE_EXPIRY)");
             statement.execute(
-                    "CREATE TABLE MESSAGE_QUEUE (\n"
+                    "CREATE TABLE MESSAGE_QUEUE" + suffix + " (\n"
                     + "    MSG_NUMBER INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1),\n"
                     + "    ADDRESS VARCHAR(1024) NOT NULL,\n"
                     + "    DATA BLOB NOT NULL,\n"
                     + "    PRIMARY KEY (MSG_NUMBER),\n"
-                    + "    FOREIGN KEY (ADDRESS) REFERENCES ACTOR(ADDRESS) ON DELETE CASCADE\n"
+                    + "    FOREIGN KEY (ADDRESS) REFERENCES ACTOR" + suffix + "(ADDRESS) ON DELETE CASCADE\n"
                     + ")\n"
             );
+            statement.execute("CREATE INDEX MESSAGE_QUEUE_ADDRESS" + suffix + " ON MESSAGE_QUEUE" + suffix + " (ADDRESS, MSG_NUMBER)");
         }
-        
-        fixture = JdbcStore.create("actor", ds);
     }
     
     @After
@@ -108,6 +139,32 @@ public class JdbcStoreTest {
                 new Message("actor:a:1:2:3", "actor:b:2:3:4", "payload"));
     } 
 
+    @Test(timeout = 1000L)
+    public void mustStoreBatchOfMessagesForMultipleActorsAndIgnoreOnesForActorsThatDontExist() {
+        SerializableActor actorB = SerializableActorHelper.createFake("actor:b");
+        SerializableActor actorC = SerializableActorHelper.createFake("actor:c");
+        fixture.store(actorB);
+        fixture.store(actorC);
+        fixture.store(
+                new Message("actor:a:1:1", "actor:c:2:1", "payload1"),
+                new Message("actor:a:1:2", "actor:x:2:2", "payload2"),
+                new Message("actor:a:1:3", "actor:b:2:3", "payload3"),
+                new Message("actor:a:1:4", "actor:c:2:4", "payload4"),
+                new Message("actor:a:1:5", "actor:b:2:5", "payload5"));
+        
+        StoredWork work1 = fixture.take();
+        StoredWork work2 = fixture.take();
+        assertEquals("actor:c", work1.getActor().getSelf().toString());
+        assertEquals("payload1", work1.getMessage().getMessage());
+        assertEquals("actor:b", work2.getActor().getSelf().toString());
+        assertEquals("payload3", work2.getMessage().getMessage());
+        
+        fixture.store(work1.getActor());
+        fixture.store(work2.getActor());
+        assertEquals("payload4", fixture.take().getMessage().getMessage());
+        assertEquals("payload5", fixture.take().getMessage().getMessage());
+    } 
+
     @Test(timeout = 1000L)
     public void mustPullWork() {
         SerializableActor actor = SerializableActorHelper.createFake("actor:b");
@@ -143,6 +200,98 @@ public class JdbcStoreTest {
         assertEquals("payload2", work.getMessage().getMessage());
     } 
 
+    @Test(timeout = 1000L)
+    public void mustPullWorkFromIdleActorWithOldestMessage() {
+        SerializableActor actorB = SerializableActorHelper.createFake("actor:b");
+        SerializableActor actorC = SerializableActorHelper.createFake("actor:c");
+        fixture.store(actorB);
+        fixture.store(actorC);
+        fixture.store(
+                new Message("actor:a:1:1", "actor:c:2:1", "payload1"),
+                new Message("actor:a:1:2", "actor:b:2:2", "payload2"),
+                new Message("actor:a:1:3", "actor:c:2:3", "payload3"));
+        
+        assertEquals("payload1", fixture.take().getMessage().getMessage());
+        assertEquals("payload2", fixture.take().getMessage().getMessage()); // actor:c is still processing payload1, so it gets skipped
+        fixture.store(actorC);
+        assertEquals("payload3", fixture.take().getMessage().getMessage());
+    } 
+
+    @Test(timeout = 1000L)
+    public void mustPullWorkWhenPrefetching() throws Exception {
+        try (JdbcStore prefetchingFixture = JdbcStore.create("actor", dataSource, 10, Duration.ofSeconds(30L))) {
+            SerializableActor actorB = SerializableActorHelper.createFake("actor:b");
+            SerializableActor actorC = SerializableActorHelper.createFake("actor:c");
+            prefetchingFixture.store(actorB);
+            prefetchingFixture.store(actorC);
+            prefetchingFixture.store(
+                    new Message("actor:a:1:1", "actor:b:2:1", "payload1"),
+                    new Message("actor:a:1:2", "actor:b:2:2", "payload2"),
+                    new Message("actor:a:1:3", "actor:c:2:3", "payload3"));
+
+            assertEquals("payload1", prefetchingFixture.take().getMessage().getMessage());
+            assertEquals("payload3", prefetchingFixture.take().getMessage().getMessage()); // actor:b still claimed, so payload2 waits
+            prefetchingFixture.store(actorB);
+            assertEquals("payload2", prefetchingFixture.take().getMessage().getMessage());
+        }
+    } 
+
+    @Test(timeout = 2000L)
+    public void mustRevokeExpiredPrefetchLeases() throws Exception {
+        try (JdbcStore prefetchingFixture = JdbcStore.create("actor", dataSource, 10, Duration.ofMillis(200L))) {
+            SerializableActor actorB = SerializableActorHelper.createFake("actor:b");
+            SerializableActor actorC = SerializableActorHelper.createFake("actor:c");
+            prefetchingFixture.store(actorB);
+            prefetchingFixture.store(actorC);
+            prefetchingFixture.store(
+                    new Message("actor:a:1:1", "actor:b:2:1", "payload1"),
+                    new Message("actor:a:1:2", "actor:c:2:2", "payload2"),
+                    new Message("actor:a:1:3", "actor:c:2:3", "payload3"));
+
+            StoredWork work = prefetchingFixture.take(); // claims both actor:b and actor:c, but only hands out actor:b's message
+            assertEquals("payload1", work.getMessage().getMessage());
+            
+            Thread.sleep(400L); // neither actor stored back before lease expires
+            
+            StoredWork revokedWork = fixture.take(); // another node picks up actor:c's remaining message
+            assertEquals("payload3", revokedWork.getMessage().getMessage());
+            assertEquals(1, revokedWork.getActor().getCheckpointInstance());
+        }
+    } 
+
+    @Test(timeout = 2000L)
+    public void mustPullWorkFromEveryBucketWhenPartitioned() throws Exception {
+        try (Connection conn = dataSource.getConnection()) {
+            createTables(conn, "_0");
+            createTables(conn, "_1");
+        }
+
+        try (JdbcStore partitionedFixture = JdbcStore.create("actor", dataSource, 2, 0, Duration.ZERO)) {
+            Set<String> expectedPayloads = new HashSet<>();
+            for (String name : Arrays.asList("a", "b", "c", "d", "e", "f")) {
+                partitionedFixture.store(SerializableActorHelper.createFake("actor:" + name));
+                partitionedFixture.store(new Message("actor:x", "actor:" + name + ":1", "payload" + name));
+                expectedPayloads.add("payload" + name);
+            }
+            
+            try (Connection conn = dataSource.getConnection();
+                    Statement statement = conn.createStatement()) {
+                for (String table : Arrays.asList("ACTOR_0", "ACTOR_1", "MESSAGE_QUEUE_0", "MESSAGE_QUEUE_1")) {
+                    try (ResultSet rs = statement.executeQuery("SELECT count(*) FROM " + table)) {
+                        rs.next();
+                        assertTrue(table + " is empty", rs.getInt(1) > 0);
+                    }
+                }
+            }
+            
+            Set<String> payloads = new HashSet<>();
+            for (int i = 0; i < expectedPayloads.size(); i++) {
+                payloads.add((String) partitionedFixture.take().getMessage().getMessage());
+            }
+            assertEquals(expectedPayloads, payloads);
+        }
+    } 
+
     @Test(timeout = 1000L)
     public void mustDiscardActor() {
         SerializableActor actorA = SerializableActorHelper.createFake("actor:a");
@@ -165,6 +314,32 @@ public class JdbcStoreTest {
         assertEquals("timeout_msg", work.getMessage().getMessage());
     } 
 
+    @Test(timeout = 2000L)
+    public void mustRecoverCheckpointedStateAfterActorStoredWithoutCheckpoint() {
+        SerializableActor checkpointedActor = SerializableActorHelper.createFake("actor:a", "timeout_msg", 300L);
+        fixture.store(checkpointedActor);
+        
+        SerializableActor laterActor = SerializableActorHelper.createFake("actor:a", "other_msg", 60000L);
+        laterActor.setCheckpointUpdated(false);
+        fixture.store(laterActor);
+        
+        StoredWork work = fixture.take();
+        assertEquals("timeout_msg", work.getMessage().getMessage());
+        assertEquals(300L, work.getActor().getCheckpointTimeout());
+    }
+
+    @Test(timeout = 1000L)
+    public void mustPickUpNewlyStoredCheckpointWithoutWaitingOnCachedCheckpointTime() {
+        SerializableActor actorA = SerializableActorHelper.createFake("actor:a", "timeout_msg_a", 60000L);
+        fixture.store(actorA);
+        fixture.store(new Message("actor:b:1:1", "actor:a:2:1", "payload1"));
+        assertEquals("payload1", fixture.take().getMessage().getMessage()); // nothing due, so next checkpoint check gets pushed out
+        
+        SerializableActor actorB = SerializableActorHelper.createFake("actor:b", "timeout_msg_b", 300L);
+        fixture.store(actorB);
+        assertEquals("timeout_msg_b", fixture.take().getMessage().getMessage());
+    }
+
     @Test(timeout = 2000L)
     public void mustNotAllowRecoveryOfOldCheckpointInstanceToBlowAwayState() {
         SerializableActor initialActor = SerializableActorHelper.createFake("actor:a", "timeout_msg", 300L);
@@ -203,4 +378,149 @@ public class JdbcStoreTest {
         SerializableActor checkpointHitActor = fixture.take().getActor();
         assertEquals(1, checkpointHitActor.getCheckpointInstance());
     }
+    
+    @Test(timeout = 2000L)
+    public void mustWakeUpBlockedTakeWhenMessageStored() throws Exception {
+        SerializableActor actor = SerializableActorHelper.createFake("actor:b");
+        fixture.store(actor);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<StoredWork> future = executor.submit(() -> fixture.take());
+            Thread.sleep(100L);
+            fixture.store(new Message("actor:a:1:1", "actor:b:2:1", "payload1"));
+            assertEquals("payload1", future.get().getMessage().getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test(timeout = 2000L)
+    public void mustWakeUpBlockedTakeWhenClosed() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<StoredWork> future = executor.submit(() -> fixture.take());
+            Thread.sleep(100L);
+            fixture.close();
+            try {
+                future.get();
+                fail();
+            } catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof IllegalArgumentException || ee.getCause() instanceof IllegalStateException);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test(timeout = 3000L)
+    public void mustWakeUpBlockedTakeWhenMessageStoredByOtherStore() throws Exception {
+        LocalWorkNotifier notifier = new LocalWorkNotifier();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (JdbcStore storeA = JdbcStore.create("actor", dataSource, notifier);
+                JdbcStore storeB = JdbcStore.create("actor", dataSource, notifier)) {
+            SerializableActor actor = SerializableActorHelper.createFake("actor:b");
+            storeB.store(actor);
+
+            Future<StoredWork> future = executor.submit(() -> storeA.take());
+            Thread.sleep(1500L); // long enough for storeA to have backed off to the maximum
+            
+            long start = System.currentTimeMillis();
+            storeB.store(new Message("actor:a:1:1", "actor:b:2:1", "payload1"));
+            assertEquals("payload1", future.get().getMessage().getMessage());
+            assertTrue(System.currentTimeMillis() - start < 500L);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void mustNotifyOnChannelSpecificToPrefix() {
+        assertEquals("\"actor_work:actor\"", PostgresWorkNotifier.channel("actor"));
+        assertEquals("\"actor_work:a\"\"b\"", PostgresWorkNotifier.channel("a\"b"));
+
+        String longPrefix1 = StringUtils.repeat('x', 100) + "1";
+        String longPrefix2 = StringUtils.repeat('x', 100) + "2";
+        String channel1 = PostgresWorkNotifier.channel(longPrefix1);
+        String channel2 = PostgresWorkNotifier.channel(longPrefix2);
+        assertEquals(63, channel1.length() - 2); // minus the quotes
+        assertFalse(channel1.equals(channel2));
+    }
+
+    @Test
+    public void mustOnlySkipLockedOnVersionsThatSupportIt() {
+        assertTrue(JdbcStore.supportsSkipLocked("PostgreSQL", "9.5.3", 9, 5));
+        assertFalse(JdbcStore.supportsSkipLocked("PostgreSQL", "9.4.1", 9, 4));
+        assertTrue(JdbcStore.supportsSkipLocked("MySQL", "8.0.33", 8, 0));
+        assertFalse(JdbcStore.supportsSkipLocked("MySQL", "5.7.42", 5, 7));
+        assertTrue(JdbcStore.supportsSkipLocked("MariaDB", "10.6.12-MariaDB", 10, 6));
+        assertFalse(JdbcStore.supportsSkipLocked("MariaDB", "10.5.19-MariaDB", 10, 5));
+        assertTrue(JdbcStore.supportsSkipLocked("MySQL", "5.5.5-10.11.2-MariaDB", 5, 5));
+        assertFalse(JdbcStore.supportsSkipLocked("MySQL", "5.5.5-10.3.39-MariaDB", 5, 5));
+        assertFalse(JdbcStore.supportsSkipLocked("Apache Derby", "10.14.1.0", 10, 14));
+    }
+
+    @Test
+    public void mustClaimThroughReadyIndexOnDerby() throws Exception {
+        for (int i = 0; i < 100; i++) { // every actor ready -- without the override, derby picks a table scan for this
+            fixture.store(SerializableActorHelper.createFake("actor:" + i));
+            fixture.store(new Message("actor:x", "actor:" + i + ":1", "payload"));
+        }
+
+        assertIndexScan(JdbcStore.CLAIM_ACTOR_DERBY, "ACTOR_READY", CONCUR_READ_ONLY);
+        assertIndexScan(JdbcStore.CLAIM_ACTORS_DERBY, "ACTOR_READY", CONCUR_READ_ONLY);
+    }
+
+    @Test
+    public void mustFindDueCheckpointsThroughCheckpointIndexOnDerby() throws Exception {
+        for (int i = 0; i < 100; i++) { // every checkpoint due -- without the override, derby picks a table scan for this
+            fixture.store(SerializableActorHelper.createFake("actor:" + i));
+        }
+
+        assertIndexScan(JdbcStore.SELECT_CHECKPOINT_FOR_INSTANCE_UPDATE_DERBY, "ACTOR_CHECKPOINT", CONCUR_UPDATABLE, Long.MAX_VALUE);
+    }
+    
+    private void assertIndexScan(String sql, String index, int concurrency, Object... params) throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+                Statement statement = conn.createStatement()) {
+            conn.setAutoCommit(false);
+            statement.execute("CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(1)");
+            try (PreparedStatement ps = conn.prepareStatement(sql, TYPE_FORWARD_ONLY, concurrency)) {
+                ps.setMaxRows(1);
+                for (int i = 0; i < params.length; i++) {
+                    ps.setObject(i + 1, params[i]);
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    assertTrue(rs.next());
+                }
+            }
+            try (ResultSet rs = statement.executeQuery("VALUES SYSCS_UTIL.SYSCS_GET_RUNTIMESTATISTICS()")) {
+                rs.next();
+                String plan = rs.getString(1);
+                assertTrue(plan, plan.contains("Index Scan ResultSet for ACTOR using index " + index));
+                assertTrue(plan, plan.contains("Number of rows visited=1\n"));
+            }
+            conn.rollback();
+        }
+    }
+    
+    // Stands in for Postgres LISTEN/NOTIFY
+    private static final class LocalWorkNotifier implements WorkNotifier {
+        private final CopyOnWriteArrayList<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void publish(Connection conn) {
+            listeners.forEach(Runnable::run);
+        }
+
+        @Override
+        public void subscribe(Runnable listener) {
+            listeners.add(listener);
+        }
+
+        @Override
+        public void close() {
+            // do nothing
+        }
+    }
 }
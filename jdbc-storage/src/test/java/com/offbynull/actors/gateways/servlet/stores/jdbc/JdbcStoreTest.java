@@ -5,8 +5,11 @@ import com.offbynull.actors.shuttle.Message;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import org.apache.derby.jdbc.EmbeddedConnectionPoolDataSource;
@@ -17,6 +20,7 @@ import static org.junit.Assert.*;
 
 public class JdbcStoreTest {
     
+    private EmbeddedConnectionPoolDataSource dataSource;
     private JdbcStore fixture;
     
     @Before
@@ -32,12 +36,16 @@ public class JdbcStoreTest {
                     "CREATE TABLE HTTP_CLIENT_QUEUE (\n"
                     + "  MSG_NUMBER INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1),\n"
                     + "  ADDRESS VARCHAR(1024) NOT NULL,\n"
+                    + "  WRITE_TIME BIGINT NOT NULL,\n"
                     + "  DATA BLOB NOT NULL,\n"
                     + "  PRIMARY KEY (MSG_NUMBER)\n"
                     + ")\n"
             );
+            statement.execute("CREATE INDEX HTTP_CLIENT_QUEUE_ADDRESS ON HTTP_CLIENT_QUEUE (ADDRESS, MSG_NUMBER)");
+            statement.execute("CREATE INDEX HTTP_CLIENT_QUEUE_WRITE_TIME ON HTTP_CLIENT_QUEUE (WRITE_TIME)");
         }
         
+        dataSource = ds;
         fixture = JdbcStore.create("servlet", ds);
     }
     
@@ -93,6 +101,44 @@ public class JdbcStoreTest {
         assertMessagesEquals(inMsgsB, outMsgsB);
     }
 
+    @Test
+    public void mustReadMessagesInOrderAcrossWrites() throws Exception {
+        List<Message> inMsgs1 = Arrays.asList(
+                new Message("actor:a:1:2:3", "servlet:b:2:3:4", "payload1"),
+                new Message("actor:a:1:2:3", "servlet:b:2:3:4", "payload2"));
+        List<Message> inMsgs2 = Arrays.asList(
+                new Message("actor:a:1:2:3", "servlet:b:2:3:4", "payload3"),
+                new Message("actor:a:1:2:3", "servlet:b:2:3:4", "payload4"));
+        
+        fixture.write("b", inMsgs1);
+        fixture.write("b", inMsgs2);
+        List<Message> outMsgs = fixture.read("b");
+        
+        List<Message> expectedMsgs = new ArrayList<>();
+        expectedMsgs.addAll(inMsgs1);
+        expectedMsgs.addAll(inMsgs2);
+        assertMessagesEquals(expectedMsgs, outMsgs);
+        assertTrue(fixture.read("b").isEmpty());
+    }
+
+    @Test
+    public void mustDiscardExpiredMessages() throws Exception {
+        try (JdbcStore expiringFixture = JdbcStore.create("servlet", dataSource, Duration.ofMillis(100L))) {
+            expiringFixture.write("a", Arrays.asList(new Message("actor:a:1:2:3", "servlet:a:2:3:4", "payload")));
+            Thread.sleep(1500L); // wait for the message to expire and for the next expiry sweep to be due
+            expiringFixture.write("b", Arrays.asList(new Message("actor:a:1:2:3", "servlet:b:2:3:4", "payload")));
+            
+            try (Connection conn = dataSource.getConnection();
+                    Statement statement = conn.createStatement();
+                    ResultSet rs = statement.executeQuery("SELECT count(*) FROM HTTP_CLIENT_QUEUE WHERE ADDRESS = 'servlet:a'")) {
+                rs.next();
+                assertEquals(0, rs.getInt(1)); // swept without a.read() ever being called
+            }
+            assertTrue(expiringFixture.read("a").isEmpty());
+            assertEquals(1, expiringFixture.read("b").size());
+        }
+    }
+
     @Test
     public void mustTakeEmptyListForNonExistantQueue() throws Exception {
         List<Message> outMsgsA = fixture.read("a");
@@ -0,0 +1,133 @@
+package com.offbynull.actors.jdbcclient;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.derby.jdbc.EmbeddedConnectionPoolDataSource;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JdbcSessionsTest {
+
+    private JdbcSessions fixture;
+    
+    @Before
+    public void before() throws SQLException {
+        EmbeddedConnectionPoolDataSource ds = new EmbeddedConnectionPoolDataSource();
+        ds.setDatabaseName("memory:testDB");
+        ds.setCreateDatabase("create");
+        ds.getConnection().close(); // create database
+        
+        fixture = JdbcSessions.create(ds, Connection.TRANSACTION_READ_COMMITTED);
+    }
+    
+    @After
+    public void after() throws Exception {
+        fixture.close();
+        try {
+            DriverManager.getConnection("jdbc:derby:memory:testDB;drop=true");
+        } catch (SQLException sqle) {
+            // https://db.apache.org/derby/docs/10.8/devguide/cdevdvlpinmemdb.html -- See section "Removing an in-memory database"
+            if (!"08006".equals(sqle.getSQLState())) { // 08006 is expected
+                throw sqle;
+            }
+        }
+    }
+
+    @Test
+    public void mustApplySessionSettings() throws Exception {
+        try (Connection conn = fixture.getConnection()) {
+            assertFalse(conn.getAutoCommit());
+            assertEquals(Connection.TRANSACTION_READ_COMMITTED, conn.getTransactionIsolation());
+        }
+    }
+
+    @Test
+    public void mustReuseConnectionAndStatementsWithinThread() throws Exception {
+        Connection conn1;
+        PreparedStatement ps1;
+        try (Connection conn = fixture.getConnection();
+                PreparedStatement ps = conn.prepareStatement("VALUES CAST(? AS INTEGER)")) {
+            ps.setInt(1, 5);
+            try (ResultSet rs = ps.executeQuery()) {
+                assertTrue(rs.next());
+                assertEquals(5, rs.getInt(1));
+            }
+            conn1 = conn;
+            ps1 = ps;
+        }
+
+        try (Connection conn = fixture.getConnection();
+                PreparedStatement ps = conn.prepareStatement("VALUES CAST(? AS INTEGER)")) {
+            ps.setInt(1, 6);
+            try (ResultSet rs = ps.executeQuery()) {
+                assertTrue(rs.next());
+                assertEquals(6, rs.getInt(1));
+            }
+            assertSame(conn1, conn);
+            assertSame(ps1, ps);
+        }
+    }
+
+    @Test
+    public void mustGiveSeparateConnectionForNestedUse() throws Exception {
+        try (Connection conn1 = fixture.getConnection()) {
+            Connection conn2 = fixture.getConnection();
+            assertNotSame(conn1, conn2);
+            assertFalse(conn2.getAutoCommit());
+            conn2.close();
+            assertTrue(conn2.isClosed());
+        }
+    }
+
+    @Test
+    public void mustGiveEachThreadItsOwnConnection() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (Connection conn1 = fixture.getConnection()) {
+            Connection conn2 = executor.submit(() -> {
+                try (Connection conn = fixture.getConnection()) {
+                    return conn;
+                }
+            }).get();
+            assertNotSame(conn1, conn2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void mustCloseConnectionOfDeadThreadWhenNewSessionOpened() throws Exception {
+        Connection[] deadThreadConn = new Connection[1];
+        Thread thread = new Thread(() -> {
+            try (Connection conn = fixture.getConnection()) {
+                deadThreadConn[0] = conn;
+            } catch (SQLException sqle) {
+                throw new IllegalStateException(sqle);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertFalse(deadThreadConn[0].isClosed());
+
+        try (Connection conn = fixture.getConnection()) {
+            assertFalse(conn.isClosed());
+            assertTrue(deadThreadConn[0].isClosed());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void mustFailToGetConnectionWhenClosed() throws Exception {
+        fixture.close();
+        fixture.getConnection();
+    }
+}